@@ -77,6 +77,13 @@ public class SingleJar {
   private boolean normalize = false;
   private OutputMode outputMode = OutputMode.FORCE_STORED;
 
+  /**
+   * The number of threads that compress and decompress entries, set with --compression_threads.
+   * This is opt-in: Bazel does not pass the flag for deploy jars, which it schedules as using a
+   * fraction of a CPU, and whose singlejar may come from a toolchain that does not know the flag.
+   */
+  private int compressionThreads = 1;
+
   /** Whether to include build-data.properties file */
   protected boolean includeBuildData = true;
 
@@ -180,7 +187,7 @@ public class SingleJar {
     ZipCombiner combiner = null;
     try {
       combiner = new ZipCombiner(outputMode, createEntryFilter(normalize, allowedPaths),
-          fileSystem.getOutputStream(outputJar));
+          fileSystem.getOutputStream(outputJar), compressionThreads);
       if (launcherBin != null) {
         combiner.prependExecutable(fileSystem.getInputStream(launcherBin));
       }
@@ -325,6 +332,17 @@ public class SingleJar {
         outputMode = OutputMode.FORCE_DEFLATE;
       } else if (arg.equals("--dont_change_compression")) {
         outputMode = OutputMode.DONT_CARE;
+      } else if (arg.equals("--compression_threads")) {
+        String threads = getArgument(args, i, arg);
+        try {
+          compressionThreads = Integer.parseInt(threads);
+        } catch (NumberFormatException e) {
+          throw new IOException(arg + ": invalid number of threads '" + threads + "'");
+        }
+        if (compressionThreads < 1) {
+          throw new IOException(arg + ": invalid number of threads '" + threads + "'");
+        }
+        i++;
       } else if (arg.equals("--normalize")) {
         normalize = true;
       } else if (arg.equals("--include_prefixes")) {
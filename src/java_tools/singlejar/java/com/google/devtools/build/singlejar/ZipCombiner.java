@@ -30,13 +30,23 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
@@ -65,6 +75,11 @@ import javax.annotation.Nullable;
  * <p>This class performs only rudimentary data checking. If the input files
  * are damaged, the output will likely also be damaged.
  *
+ * <p>Entries that have to be compressed or decompressed can be processed by
+ * several threads. They are still written in the order in which they were
+ * added, so the output does not depend on the number of threads. Entries that
+ * are copied as they are wait for the entries before them to be written.
+ *
  * <p>Also see:
  * <a href="http://www.pkware.com/documents/casestudies/APPNOTE.TXT">ZIP format</a>
  */
@@ -203,6 +218,19 @@ public class ZipCombiner implements AutoCloseable {
     }
   }
 
+  /**
+   * An entry whose data may still be being computed by the compression threads.
+   */
+  private static final class PendingEntry {
+    private final ZipFileEntry entry;
+    private final Future<byte[]> data;
+
+    PendingEntry(ZipFileEntry entry, Future<byte[]> data) {
+      this.entry = entry;
+      this.data = data;
+    }
+  }
+
   private final class FilterCallback implements StrategyCallback {
     private String filename;
     private final AtomicBoolean called = new AtomicBoolean();
@@ -248,6 +276,36 @@ public class ZipCombiner implements AutoCloseable {
     return new Inflater(true);
   }
 
+  /** Returns the deflated contents of the buffer. */
+  private static byte[] deflate(byte[] uncompressed) throws IOException {
+    Deflater deflater = getDeflater();
+    try {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      copyStream(new DeflaterInputStream(new ByteArrayInputStream(uncompressed), deflater),
+          compressed);
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Returns the inflated contents of the buffer. */
+  private static byte[] inflate(byte[] compressed) throws IOException {
+    Inflater inflater = getInflater();
+    try {
+      return readFully(new InflaterInputStream(new ByteArrayInputStream(compressed), inflater));
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Returns all data from the input stream. */
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    copyStream(in, buffer);
+    return buffer.toByteArray();
+  }
+
   /** Copies all data from the input stream to the output stream. */
   private static long copyStream(InputStream from, OutputStream to) throws IOException {
     byte[] buf = new byte[0x1000];
@@ -268,6 +326,10 @@ public class ZipCombiner implements AutoCloseable {
   private final Map<String, ZipFileEntry> entries;
   private final Map<String, EntryAction> actions;
 
+  @Nullable private final ExecutorService compressionPool;
+  private final int maxPendingEntries;
+  private final Deque<PendingEntry> pendingEntries;
+
   /**
    * Creates a {@link ZipCombiner} for combining ZIP files using the specified {@link OutputMode},
    * {@link ZipEntryFilter}, and destination {@link OutputStream}.
@@ -277,12 +339,39 @@ public class ZipCombiner implements AutoCloseable {
    * @param out the {@link OutputStream} for writing the combined ZIP file
    */
   public ZipCombiner(OutputMode mode, ZipEntryFilter entryFilter, OutputStream out) {
+    this(mode, entryFilter, out, 1);
+  }
+
+  /**
+   * Creates a {@link ZipCombiner} for combining ZIP files using the specified {@link OutputMode},
+   * {@link ZipEntryFilter}, and destination {@link OutputStream}, which compresses and
+   * decompresses entries on the given number of threads.
+   *
+   * @param mode the compression preference for the output ZIP file
+   * @param entryFilter the filter to use when adding ZIP files to the combined output
+   * @param out the {@link OutputStream} for writing the combined ZIP file
+   * @param compressionThreads the number of threads to use for compression; with 1, entries are
+   *     processed on the calling thread
+   */
+  public ZipCombiner(OutputMode mode, ZipEntryFilter entryFilter, OutputStream out,
+      int compressionThreads) {
+    checkArgument(compressionThreads > 0, "Invalid number of compression threads: %s",
+        compressionThreads);
     this.mode = mode;
     this.entryFilter = entryFilter;
     this.callback = new FilterCallback();
-    this.out = new ZipWriter(new BufferedOutputStream(out), UTF_8);
+    // ZipWriter buffers file output itself, and only copies entries between files directly if it
+    // writes to the file stream.
+    this.out = new ZipWriter(
+        out instanceof FileOutputStream ? out : new BufferedOutputStream(out), UTF_8);
     this.entries = new HashMap<>();
     this.actions = new HashMap<>();
+    this.compressionPool =
+        compressionThreads > 1 ? Executors.newFixedThreadPool(compressionThreads) : null;
+    // Enough to keep all threads busy while the oldest entry is written, without buffering
+    // arbitrarily many entries in memory.
+    this.maxPendingEntries = 4 * compressionThreads;
+    this.pendingEntries = new ArrayDeque<>();
   }
 
   /**
@@ -327,6 +416,7 @@ public class ZipCombiner implements AutoCloseable {
    * @throws IOException if there is an error writing the prefix file
    */
   public void prependExecutable(InputStream in) throws IOException {
+    writePendingEntries(0);
     out.startPrefixFile();
     copyStream(in, out);
     out.endPrefixFile();
@@ -364,6 +454,7 @@ public class ZipCombiner implements AutoCloseable {
     entry.setCompressedSize(0);
     entry.setTime(date != null ? date.getTime() : new Date().getTime());
     entry.setExtra(new ExtraDataList(extra));
+    writePendingEntries(0);
     out.putNextEntry(entry);
     out.closeEntry();
     entries.put(filename, entry);
@@ -483,24 +574,28 @@ public class ZipCombiner implements AutoCloseable {
   }
 
   /** Writes an entry with the given name, date and external file attributes from the buffer. */
-  private void writeEntryFromBuffer(ZipFileEntry entry, byte[] uncompressed) throws IOException {
-    CRC32 crc = new CRC32();
-    crc.update(uncompressed);
-
-    entry.setCrc(crc.getValue());
-    entry.setSize(uncompressed.length);
-    if (mode == OutputMode.FORCE_STORED) {
-      entry.setMethod(Compression.STORED);
-      entry.setCompressedSize(uncompressed.length);
-      writeEntry(entry, new ByteArrayInputStream(uncompressed));
-    } else {
-      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-      copyStream(new DeflaterInputStream(new ByteArrayInputStream(uncompressed), getDeflater()),
-          compressed);
-      entry.setMethod(Compression.DEFLATED);
-      entry.setCompressedSize(compressed.size());
-      writeEntry(entry, new ByteArrayInputStream(compressed.toByteArray()));
-    }
+  private void writeEntryFromBuffer(final ZipFileEntry entry, final byte[] uncompressed)
+      throws IOException {
+    writeEntryLater(entry, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(uncompressed);
+
+        entry.setCrc(crc.getValue());
+        entry.setSize(uncompressed.length);
+        if (mode == OutputMode.FORCE_STORED) {
+          entry.setMethod(Compression.STORED);
+          entry.setCompressedSize(uncompressed.length);
+          return uncompressed;
+        } else {
+          byte[] compressed = deflate(uncompressed);
+          entry.setMethod(Compression.DEFLATED);
+          entry.setCompressedSize(compressed.length);
+          return compressed;
+        }
+      }
+    });
   }
 
   /**
@@ -515,7 +610,7 @@ public class ZipCombiner implements AutoCloseable {
     checkArgument(action.getType() != ActionType.SKIP,
         "Cannot write a zip entry whose action is of type SKIP.");
 
-    ZipFileEntry outEntry = new ZipFileEntry(entry);
+    final ZipFileEntry outEntry = new ZipFileEntry(entry);
     if (action.getType() == ActionType.RENAME) {
       checkNotNull(action.getNewName(),
           "ZipEntryFilter actions of type RENAME must not have a null filename.");
@@ -526,27 +621,93 @@ public class ZipCombiner implements AutoCloseable {
       outEntry.setTime(action.getDate().getTime());
     }
 
-    InputStream data;
     if (mode == OutputMode.FORCE_DEFLATE && entry.getMethod() != Compression.DEFLATED) {
-      // The output mode is deflate, but the entry compression is not. Create a deflater stream
-      // from the raw file data and deflate to a temporary byte array to determine the deflated
-      // size. Then use this byte array as the input stream for writing the entry.
-      ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-      copyStream(new DeflaterInputStream(zip.getRawInputStream(entry), getDeflater()), tmp);
-      data = new ByteArrayInputStream(tmp.toByteArray());
+      // The output mode is deflate, but the entry compression is not. Read the raw file data and
+      // deflate it to a byte array to determine the deflated size, possibly on another thread.
+      final byte[] uncompressed = readFully(zip.getRawInputStream(entry));
       outEntry.setMethod(Compression.DEFLATED);
-      outEntry.setCompressedSize(tmp.size());
+      writeEntryLater(outEntry, new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          byte[] compressed = deflate(uncompressed);
+          outEntry.setCompressedSize(compressed.length);
+          return compressed;
+        }
+      });
     } else if (mode == OutputMode.FORCE_STORED && entry.getMethod() != Compression.STORED) {
-      // The output mode is stored, but the entry compression is not; create an inflater stream
-      // from the raw file data. 
-      data = new InflaterInputStream(zip.getRawInputStream(entry), getInflater());
+      // The output mode is stored, but the entry compression is not; inflate the raw file data.
       outEntry.setMethod(Compression.STORED);
       outEntry.setCompressedSize(entry.getSize());
+      if (compressionPool == null) {
+        writeEntry(outEntry, new InflaterInputStream(zip.getRawInputStream(entry), getInflater()));
+      } else {
+        final byte[] compressed = readFully(zip.getRawInputStream(entry));
+        writeEntryLater(outEntry, new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws IOException {
+            return inflate(compressed);
+          }
+        });
+      }
+    } else {
+      // Entry compression agrees with output mode; use the raw file data as is. The entries before
+      // it are written first, so that the data is copied between the files rather than read into
+      // memory to wait for its turn.
+      writePendingEntries(0);
+      out.putNextEntry(outEntry);
+      out.writeRawData(zip, entry);
+      out.closeEntry();
+      entries.put(outEntry.getName(), outEntry);
+    }
+  }
+
+  /**
+   * Computes the data of the given entry on a compression thread, or right away if there is none,
+   * and writes the entry once all entries added before it are written. The computation may
+   * update the sizes, CRC and compression method of the entry.
+   */
+  private void writeEntryLater(ZipFileEntry entry, Callable<byte[]> data) throws IOException {
+    FutureTask<byte[]> task = new FutureTask<>(data);
+    if (compressionPool != null) {
+      compressionPool.execute(task);
     } else {
-      // Entry compression agrees with output mode; use the raw file data as is.
-      data = zip.getRawInputStream(entry);
+      task.run();
+    }
+    entries.put(entry.getName(), entry);
+    pendingEntries.add(new PendingEntry(entry, task));
+    writePendingEntries(maxPendingEntries);
+  }
+
+  /**
+   * Writes pending entries in order, waiting for their data until no more than the given number
+   * of entries are pending. Afterwards, also writes the entries whose data is already available.
+   */
+  private void writePendingEntries(int maxPending) throws IOException {
+    while (!pendingEntries.isEmpty()
+        && (pendingEntries.size() > maxPending || pendingEntries.peek().data.isDone())) {
+      PendingEntry pending = pendingEntries.remove();
+      byte[] data;
+      try {
+        data = pending.data.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while compressing " + pending.entry.getName());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
+      }
+      out.putNextEntry(pending.entry);
+      out.write(data);
+      out.closeEntry();
     }
-    writeEntry(outEntry, data);
   }
 
   /**
@@ -592,6 +753,7 @@ public class ZipCombiner implements AutoCloseable {
         writeEntryFromBuffer(e, uncompressed.toByteArray());
       }
     }
+    writePendingEntries(0);
     out.finish();
   }
 
@@ -601,8 +763,14 @@ public class ZipCombiner implements AutoCloseable {
    * @throws IOException if the output stream or the filter throws an IOException
    */
   @Override public void close() throws IOException {
-    finish();
-    out.close();
+    try {
+      finish();
+      out.close();
+    } finally {
+      if (compressionPool != null) {
+        compressionPool.shutdownNow();
+      }
+    }
   }
 
   /** Ensures the truth of an expression involving one or more parameters to the calling method. */
@@ -38,23 +38,7 @@ class ZipEntryInputStream extends InputStream {
    */
   ZipEntryInputStream(ZipReader zipReader, ZipFileEntry zipEntry, boolean raw)
       throws IOException {
-    stream = zipReader.getStreamAt(zipEntry.getLocalHeaderOffset());
-
-    byte[] fileHeader = new byte[LocalFileHeader.FIXED_DATA_SIZE];
-    ZipUtil.readFully(stream, fileHeader);
-
-    if (!ZipUtil.arrayStartsWith(fileHeader,
-        ZipUtil.intToLittleEndian(LocalFileHeader.SIGNATURE))) {
-      throw new ZipException(String.format("The file '%s' is not a correctly formatted zip file: "
-          + "Expected a File Header at file offset %d, but was not present.",
-          zipReader.getFilename(), zipEntry.getLocalHeaderOffset()));
-    }
-
-    int nameLength = ZipUtil.getUnsignedShort(fileHeader,
-        LocalFileHeader.FILENAME_LENGTH_OFFSET);
-    int extraFieldLength = ZipUtil.getUnsignedShort(fileHeader,
-        LocalFileHeader.EXTRA_FIELD_LENGTH_OFFSET);
-    ZipUtil.readFully(stream, new byte[nameLength + extraFieldLength]);
+    stream = zipReader.getStreamAt(zipReader.getRawDataOffset(zipEntry));
     if (raw) {
       rem = zipEntry.getCompressedSize();
     } else {
@@ -22,7 +22,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.zip.ZipEntry;
@@ -42,6 +43,11 @@ import java.util.zip.ZipFile;
  *
  * <p><em>NOTE:</em> The entries are read from the central directory. If the entry is not listed
  * there, it will not be returned from {@link #entries()} or {@link #getEntry(String)}.
+ *
+ * <p>The file is read with positional reads, so that streams for several entries can be open at
+ * the same time. It is not memory-mapped: a mapping could not be released when the reader is
+ * closed, and reading it after the file was truncated would crash the JVM instead of failing
+ * with an {@link IOException}.
  */
 public class ZipReader implements Closeable, AutoCloseable {
 
@@ -91,7 +97,16 @@ public class ZipReader implements Closeable, AutoCloseable {
     this.file = file;
     this.in = new RandomAccessFile(file, "r");
     this.zipData = new ZipFileData(charset);
-    readCentralDirectory(strictEntries);
+    try {
+      readCentralDirectory(strictEntries);
+    } catch (IOException | RuntimeException e) {
+      try {
+        in.close();
+      } catch (IOException closeFailure) {
+        e.addSuppressed(closeFailure);
+      }
+      throw e;
+    }
   }
 
   /**
@@ -172,6 +187,38 @@ public class ZipReader implements Closeable, AutoCloseable {
     return new ZipEntryInputStream(this, entry, /* raw */ true);
   }
 
+  /**
+   * Returns the file offset of the raw data of the specified ZIP file entry, which follows its
+   * local file header.
+   *
+   * @throws ZipException if the entry does not have a correct local file header
+   * @throws IOException if an I/O error has occurred
+   */
+  long getRawDataOffset(ZipFileEntry entry) throws IOException {
+    InputStream stream = getStreamAt(entry.getLocalHeaderOffset());
+    byte[] fileHeader = new byte[LocalFileHeader.FIXED_DATA_SIZE];
+    ZipUtil.readFully(stream, fileHeader);
+
+    if (!ZipUtil.arrayStartsWith(fileHeader,
+        ZipUtil.intToLittleEndian(LocalFileHeader.SIGNATURE))) {
+      throw new ZipException(String.format("The file '%s' is not a correctly formatted zip file: "
+          + "Expected a File Header at file offset %d, but was not present.",
+          file.getName(), entry.getLocalHeaderOffset()));
+    }
+
+    int nameLength = ZipUtil.getUnsignedShort(fileHeader,
+        LocalFileHeader.FILENAME_LENGTH_OFFSET);
+    int extraFieldLength = ZipUtil.getUnsignedShort(fileHeader,
+        LocalFileHeader.EXTRA_FIELD_LENGTH_OFFSET);
+    return entry.getLocalHeaderOffset() + LocalFileHeader.FIXED_DATA_SIZE + nameLength
+        + extraFieldLength;
+  }
+
+  /** Returns the channel of the ZIP file, for positional reads only. */
+  FileChannel getChannel() {
+    return in.getChannel();
+  }
+
   /**
    * Closes the ZIP file.
    *
@@ -330,6 +377,46 @@ public class ZipReader implements Closeable, AutoCloseable {
    * @throws IOException if an I/O error has occurred
    */
   protected InputStream getStreamAt(long fileOffset) throws IOException {
-    return new BufferedInputStream(Channels.newInputStream(in.getChannel().position(fileOffset)));
+    if (fileOffset < 0 || fileOffset > in.length()) {
+      throw new ZipException(String.format("Zip file '%s' is malformed. Offset %d is outside of"
+          + " the file.", file.getName(), fileOffset));
+    }
+    return new BufferedInputStream(new ChannelInputStream(in.getChannel(), fileOffset));
+  }
+
+  /**
+   * An input stream that reads a channel from the given position on, without changing the
+   * position of the channel.
+   */
+  private static final class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+
+    ChannelInputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override public long skip(long n) throws IOException {
+      n = Math.max(0, Math.min(n, channel.size() - position));
+      position += n;
+      return n;
+    }
   }
 }
@@ -16,17 +16,26 @@ package com.google.devtools.build.zip;
 
 import com.google.devtools.build.zip.ZipFileEntry.Flag;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.zip.ZipException;
 
 /**
  * This class implements an output stream filter for writing files in the ZIP file format. It does
  * not perform its own compression and so allows writing of already compressed file data.
+ *
+ * <p>When writing to a {@link FileOutputStream}, the output is buffered, and entry data copied
+ * from another ZIP file with {@link #writeRawData} is transferred by the operating system.
  */
 public class ZipWriter extends OutputStream {
   private final CountingOutputStream stream;
+  // null unless writing to a file
+  private final FileChannel channel;
   private final ZipFileData zipData;
   private final boolean allowZip64;
   private boolean writingPrefix;
@@ -52,7 +61,13 @@ public class ZipWriter extends OutputStream {
    * @param allowZip64 whether the output Zip should be allowed to use Zip64 extensions 
    */
   public ZipWriter(OutputStream out, Charset charset, boolean allowZip64) {
-    this.stream = new CountingOutputStream(out);
+    if (out instanceof FileOutputStream) {
+      this.stream = new CountingOutputStream(new BufferedOutputStream(out));
+      this.channel = ((FileOutputStream) out).getChannel();
+    } else {
+      this.stream = new CountingOutputStream(out);
+      this.channel = null;
+    }
     this.zipData = new ZipFileData(charset);
     this.allowZip64 = allowZip64;
     this.finished = false;
@@ -139,6 +154,47 @@ public class ZipWriter extends OutputStream {
     bytesWritten += len;
   }
 
+  /**
+   * Writes the raw data of an entry of a ZIP file as the data of the current entry. If this writer
+   * writes to a file, the data is copied from file to file without passing through the heap.
+   *
+   * @param zip the ZIP file to copy from
+   * @param e the entry of the ZIP file whose compressed data is written
+   * @throws ZipException if the ZIP file ends before the end of the entry's data
+   * @throws IOException if an I/O error occurred
+   */
+  public void writeRawData(ZipReader zip, ZipFileEntry e) throws IOException {
+    checkNotFinished();
+    if (entry == null) {
+      throw new ZipException("Cannot write zip contents without first setting a ZipEntry.");
+    }
+    if (channel == null) {
+      InputStream in = zip.getRawInputStream(e);
+      byte[] buf = new byte[0x1000];
+      int r;
+      while ((r = in.read(buf)) != -1) {
+        write(buf, 0, r);
+      }
+      return;
+    }
+    // Everything written before the data has to be in the file before transferring to it.
+    stream.flush();
+    FileChannel source = zip.getChannel();
+    long position = zip.getRawDataOffset(e);
+    long remaining = e.getCompressedSize();
+    while (remaining > 0) {
+      long transferred = source.transferTo(position, remaining, channel);
+      if (transferred <= 0) {
+        throw new ZipException(String.format("Zip file '%s' ends within the data of entry '%s'.",
+            zip.getFilename(), e.getName()));
+      }
+      position += transferred;
+      remaining -= transferred;
+    }
+    stream.addCount(e.getCompressedSize());
+    bytesWritten += e.getCompressedSize();
+  }
+
   /**
    * Finishes writing the contents of the ZIP output stream without closing the underlying stream.
    * Use this method when applying multiple filters in succession to the same output stream.
@@ -152,6 +208,7 @@ public class ZipWriter extends OutputStream {
       finishEntry();
     }
     writeCentralDirectory();
+    stream.flush();
     finished = true;
   }
 
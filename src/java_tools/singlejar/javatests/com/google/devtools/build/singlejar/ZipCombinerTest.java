@@ -805,4 +805,40 @@ public class ZipCombinerTest {
     assertNull(zipInput.getNextEntry());
     new ZipTester(out.toByteArray()).validate();
   }
+
+  private byte[] combine(int compressionThreads, OutputMode mode, File... zips)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ZipCombiner zipCombiner =
+        new ZipCombiner(mode, new CopyEntryFilter(), out, compressionThreads)) {
+      zipCombiner.addDirectory("META-INF/", ZipCombiner.DOS_EPOCH);
+      zipCombiner.addFile("META-INF/MANIFEST.MF", ZipCombiner.DOS_EPOCH, asStream("Manifest"));
+      for (File zip : zips) {
+        zipCombiner.addZip(zip);
+      }
+      zipCombiner.addFile("last", ZipCombiner.DOS_EPOCH, asStream("Last file"));
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testParallelCompressionIsDeterministic() throws IOException {
+    ZipFactory compressed = new ZipFactory();
+    ZipFactory mixed = new ZipFactory();
+    for (int i = 0; i < 200; i++) {
+      StringBuilder content = new StringBuilder();
+      for (int j = 0; j < i; j++) {
+        content.append("Hello ").append(j).append('!');
+      }
+      compressed.addFile("compressed" + i, content.toString());
+      mixed.addFile("mixed" + i, content.toString(), i % 2 == 0);
+    }
+    File compressedZip = writeInputStreamToFile(compressed.toInputStream());
+    File mixedZip = writeInputStreamToFile(mixed.toInputStream());
+
+    for (OutputMode mode : OutputMode.values()) {
+      byte[] expected = combine(1, mode, compressedZip, mixedZip);
+      assertThat(combine(4, mode, compressedZip, mixedZip)).isEqualTo(expected);
+    }
+  }
 }
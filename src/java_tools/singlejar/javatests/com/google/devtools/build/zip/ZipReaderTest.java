@@ -295,6 +295,31 @@ public class ZipReaderTest {
     }
   }
 
+  @Test public void testFileTruncatedWhileOpen() throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update("bar".getBytes(UTF_8));
+    try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(test))) {
+      ZipEntry bar = new ZipEntry("bar");
+      bar.setMethod(ZipEntry.STORED);
+      bar.setSize("bar".length());
+      bar.setCompressedSize("bar".length());
+      bar.setCrc(crc.getValue());
+      zout.putNextEntry(bar);
+      zout.write("bar".getBytes(UTF_8));
+      zout.closeEntry();
+    }
+
+    try (ZipReader reader = new ZipReader(test, UTF_8)) {
+      ZipFileEntry barEntry = reader.getEntry("bar");
+      try (RandomAccessFile file = new RandomAccessFile(test, "rw")) {
+        // Keep the local file header and the first byte of the data.
+        file.setLength(LocalFileHeader.FIXED_DATA_SIZE + "bar".length() + 1);
+      }
+      assertThat(ByteStreams.toByteArray(reader.getRawInputStream(barEntry)))
+          .isEqualTo("b".getBytes(UTF_8));
+    }
+  }
+
   @Test public void testFileData() throws IOException {
     CRC32 crc = new CRC32();
     try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(test))) {
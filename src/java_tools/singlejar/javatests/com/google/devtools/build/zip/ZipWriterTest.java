@@ -129,6 +129,45 @@ public class ZipWriterTest {
     }
   }
 
+  @Test public void testRawDataFromZipFile() throws IOException {
+    File source = tmp.newFile("source.zip");
+    byte[] content = "content".getBytes(UTF_8);
+    crc.update(content);
+    ZipFileEntry entry = new ZipFileEntry("foo");
+    entry.setSize(content.length);
+    entry.setCompressedSize(content.length);
+    entry.setCrc(crc.getValue());
+    entry.setTime(cal.getTimeInMillis());
+    try (ZipWriter writer = new ZipWriter(new FileOutputStream(source), UTF_8)) {
+      writer.putNextEntry(entry);
+      writer.write(content);
+    }
+
+    try (ZipReader reader = new ZipReader(source);
+        ZipWriter writer = new ZipWriter(new FileOutputStream(test), UTF_8)) {
+      ZipFileEntry bar = new ZipFileEntry("bar");
+      bar.setSize(0);
+      bar.setCompressedSize(0);
+      bar.setCrc(0);
+      bar.setTime(cal.getTimeInMillis());
+      writer.putNextEntry(bar);
+      ZipFileEntry foo = reader.getEntry("foo");
+      ZipFileEntry copy = new ZipFileEntry(foo);
+      writer.putNextEntry(copy);
+      writer.writeRawData(reader, foo);
+    }
+
+    byte[] buf = new byte[128];
+    try (ZipFile zipFile = new ZipFile(test)) {
+      assertThat(zipFile.getEntry("bar").getSize()).isEqualTo(0);
+      ZipEntry foo = zipFile.getEntry("foo");
+      assertThat(foo.getSize()).isEqualTo(content.length);
+      assertThat(foo.getCrc()).isEqualTo(crc.getValue());
+      zipFile.getInputStream(foo).read(buf);
+      assertThat(Bytes.indexOf(buf, content)).isEqualTo(0);
+    }
+  }
+
   @Test public void testMultipleEntry() throws IOException {
     ZipWriter writer = new ZipWriter(new FileOutputStream(test), UTF_8);
     writer.setComment("file comment");
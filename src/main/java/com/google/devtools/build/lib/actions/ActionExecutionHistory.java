@@ -0,0 +1,291 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.devtools.build.lib.util.PersistentStateFile.readString;
+import static com.google.devtools.build.lib.util.PersistentStateFile.writeString;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.PersistentStateFile;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How long actions took to execute across builds, and how much CPU time, memory and disk I/O
+ * they used.
+ *
+ * <p>Actions are identified by the exec path of their primary output, which, unlike the action
+ * key, stays the same when the command line of the action changes. For every action, the latest
+ * execution and the totals over all executions are kept. CPU time, memory and I/O are only known
+ * for actions whose processes were measured; see {@link SpawnResourceUsageEvent}.
+ */
+@ThreadSafe
+public final class ActionExecutionHistory {
+  private static final long MAGIC = 0x6163746869730001L;
+
+  /** Beyond this many entries, the actions that ran least recently are forgotten on save. */
+  static final int MAX_ENTRIES = 1 << 20;
+
+  /** What one execution of an action measured. Values that were not measured are -1. */
+  @Immutable
+  public static final class Usage {
+    private final long wallMillis;
+    private final long cpuMillis;
+    private final long peakRssBytes;
+    private final long ioBytes;
+
+    public Usage(long wallMillis, long cpuMillis, long peakRssBytes, long ioBytes) {
+      this.wallMillis = wallMillis;
+      this.cpuMillis = cpuMillis;
+      this.peakRssBytes = peakRssBytes;
+      this.ioBytes = ioBytes;
+    }
+
+    /** Returns the usage of an execution of which only the wall time is known. */
+    public static Usage ofWallTime(long wallMillis) {
+      return new Usage(wallMillis, -1, -1, -1);
+    }
+
+    public long getWallMillis() {
+      return wallMillis;
+    }
+
+    public long getCpuMillis() {
+      return cpuMillis;
+    }
+
+    public long getPeakRssBytes() {
+      return peakRssBytes;
+    }
+
+    public long getIoBytes() {
+      return ioBytes;
+    }
+
+    /** Whether the CPU time, memory and I/O of the execution were measured. */
+    public boolean isMeasured() {
+      return cpuMillis >= 0;
+    }
+  }
+
+  /** The history of one action. */
+  @Immutable
+  public static final class Entry {
+    private final String mnemonic;
+    private final long lastRunMillis;
+    private final Usage last;
+    private final int runs;
+    private final int measuredRuns;
+    private final long totalWallMillis;
+    private final long totalCpuMillis;
+    private final long maxPeakRssBytes;
+    private final long totalIoBytes;
+
+    private Entry(String mnemonic, long lastRunMillis, Usage last, int runs, int measuredRuns,
+        long totalWallMillis, long totalCpuMillis, long maxPeakRssBytes, long totalIoBytes) {
+      this.mnemonic = mnemonic;
+      this.lastRunMillis = lastRunMillis;
+      this.last = last;
+      this.runs = runs;
+      this.measuredRuns = measuredRuns;
+      this.totalWallMillis = totalWallMillis;
+      this.totalCpuMillis = totalCpuMillis;
+      this.maxPeakRssBytes = maxPeakRssBytes;
+      this.totalIoBytes = totalIoBytes;
+    }
+
+    private Entry add(String mnemonic, long runMillis, Usage usage) {
+      boolean measured = usage.isMeasured();
+      return new Entry(
+          mnemonic,
+          runMillis,
+          usage,
+          runs + 1,
+          measured ? measuredRuns + 1 : measuredRuns,
+          totalWallMillis + usage.wallMillis,
+          measured ? totalCpuMillis + usage.cpuMillis : totalCpuMillis,
+          measured ? Math.max(maxPeakRssBytes, usage.peakRssBytes) : maxPeakRssBytes,
+          measured ? totalIoBytes + usage.ioBytes : totalIoBytes);
+    }
+
+    public String getMnemonic() {
+      return mnemonic;
+    }
+
+    /** Returns when the action last ran, in milliseconds since the epoch. */
+    public long getLastRunMillis() {
+      return lastRunMillis;
+    }
+
+    /** Returns what the latest execution of the action measured. */
+    public Usage getLast() {
+      return last;
+    }
+
+    public int getRuns() {
+      return runs;
+    }
+
+    /** Returns the number of executions whose CPU time, memory and I/O were measured. */
+    public int getMeasuredRuns() {
+      return measuredRuns;
+    }
+
+    public long getTotalWallMillis() {
+      return totalWallMillis;
+    }
+
+    /** Returns the CPU time of all measured executions. */
+    public long getTotalCpuMillis() {
+      return totalCpuMillis;
+    }
+
+    /** Returns the largest resident set size of any measured execution. */
+    public long getMaxPeakRssBytes() {
+      return maxPeakRssBytes;
+    }
+
+    /** Returns the I/O of all measured executions. */
+    public long getTotalIoBytes() {
+      return totalIoBytes;
+    }
+  }
+
+  private static final Entry EMPTY = new Entry("", 0, Usage.ofWallTime(0), 0, 0, 0, 0, -1, 0);
+
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /**
+   * Reads the history from the given file. Returns an empty history if the file does not exist.
+   *
+   * @throws IOException if the file cannot be read or is corrupted
+   */
+  public static ActionExecutionHistory load(Path file) throws IOException {
+    final ActionExecutionHistory history = new ActionExecutionHistory();
+    PersistentStateFile.read(
+        file,
+        MAGIC,
+        new PersistentStateFile.Reader() {
+          @Override
+          public void read(DataInputStream in) throws IOException {
+            for (int count = in.readInt(); count > 0; count--) {
+              String key = readString(in);
+              Entry entry =
+                  new Entry(
+                      readString(in),
+                      in.readLong(),
+                      new Usage(in.readLong(), in.readLong(), in.readLong(), in.readLong()),
+                      in.readInt(),
+                      in.readInt(),
+                      in.readLong(),
+                      in.readLong(),
+                      in.readLong(),
+                      in.readLong());
+              history.entries.put(key, entry);
+            }
+          }
+        });
+    return history;
+  }
+
+  /** Writes the history to the given file, replacing it atomically. */
+  public void save(Path file) throws IOException {
+    List<Map.Entry<String, Entry>> snapshot;
+    synchronized (this) {
+      snapshot = new ArrayList<>(entries.entrySet());
+    }
+    if (snapshot.size() > MAX_ENTRIES) {
+      Collections.sort(
+          snapshot,
+          new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+              return Long.compare(b.getValue().lastRunMillis, a.getValue().lastRunMillis);
+            }
+          });
+      snapshot = snapshot.subList(0, MAX_ENTRIES);
+    }
+
+    final List<Map.Entry<String, Entry>> entriesToSave = snapshot;
+    PersistentStateFile.write(
+        file,
+        MAGIC,
+        new PersistentStateFile.Writer() {
+          @Override
+          public void write(DataOutputStream out) throws IOException {
+            out.writeInt(entriesToSave.size());
+            for (Map.Entry<String, Entry> mapEntry : entriesToSave) {
+              Entry entry = mapEntry.getValue();
+              writeString(out, mapEntry.getKey());
+              writeString(out, entry.mnemonic);
+              out.writeLong(entry.lastRunMillis);
+              out.writeLong(entry.last.wallMillis);
+              out.writeLong(entry.last.cpuMillis);
+              out.writeLong(entry.last.peakRssBytes);
+              out.writeLong(entry.last.ioBytes);
+              out.writeInt(entry.runs);
+              out.writeInt(entry.measuredRuns);
+              out.writeLong(entry.totalWallMillis);
+              out.writeLong(entry.totalCpuMillis);
+              out.writeLong(entry.maxPeakRssBytes);
+              out.writeLong(entry.totalIoBytes);
+            }
+          }
+        });
+  }
+
+  /** Returns the key under which the executions of the given action are recorded. */
+  public static String getKey(ActionExecutionMetadata action) {
+    return action.getPrimaryOutput().getExecPathString();
+  }
+
+  /**
+   * Adds an execution of the given action to its history.
+   *
+   * @param runMillis when the action ran, in milliseconds since the epoch
+   */
+  public void record(ActionExecutionMetadata action, long runMillis, Usage usage) {
+    record(getKey(action), action.getMnemonic(), runMillis, usage);
+  }
+
+  synchronized void record(String key, String mnemonic, long runMillis, Usage usage) {
+    Entry entry = entries.get(key);
+    entries.put(key, (entry == null ? EMPTY : entry).add(mnemonic, runMillis, usage));
+  }
+
+  /** Returns the history of the action with the given key, or null if it never ran. */
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /** Returns the history of all actions, keyed as by {@link #getKey}. */
+  public synchronized ImmutableMap<String, Entry> getEntries() {
+    return ImmutableMap.copyOf(entries);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.devtools.build.lib.util.PersistentStateFile.readString;
+import static com.google.devtools.build.lib.util.PersistentStateFile.writeString;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.PersistentStateFile;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates of the remaining critical path of actions, taken from earlier builds.
+ *
+ * <p>The remaining critical path of an action is the longest chain of actions that starts with the
+ * action and continues through actions that depend on it. An action with a long remaining
+ * critical path should run early, since the build cannot finish before that chain has run. Actions
+ * are identified by the exec path of their primary output, which is stable across builds.
+ */
+@ThreadSafe
+public final class CriticalPathEstimates {
+  private static final long MAGIC = 0x6370657374000001L;
+
+  /**
+   * Beyond this many entries, the estimates of actions that the last build did not run are
+   * dropped.
+   */
+  static final int MAX_ENTRIES = 1 << 20;
+
+  private final Map<String, Long> remainingMillis = new ConcurrentHashMap<>();
+
+  /**
+   * Reads estimates from the given file. Returns empty estimates if the file does not exist.
+   *
+   * @throws IOException if the file cannot be read or is corrupted
+   */
+  public static CriticalPathEstimates load(Path file) throws IOException {
+    final CriticalPathEstimates estimates = new CriticalPathEstimates();
+    PersistentStateFile.read(
+        file,
+        MAGIC,
+        new PersistentStateFile.Reader() {
+          @Override
+          public void read(DataInputStream in) throws IOException {
+            for (int count = in.readInt(); count > 0; count--) {
+              estimates.remainingMillis.put(readString(in), in.readLong());
+            }
+          }
+        });
+    return estimates;
+  }
+
+  /** Writes the estimates to the given file, replacing it atomically. */
+  public void save(Path file) throws IOException {
+    final Map<String, Long> snapshot = new HashMap<>(remainingMillis);
+    PersistentStateFile.write(
+        file,
+        MAGIC,
+        new PersistentStateFile.Writer() {
+          @Override
+          public void write(DataOutputStream out) throws IOException {
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+              writeString(out, entry.getKey());
+              out.writeLong(entry.getValue());
+            }
+          }
+        });
+  }
+
+  /**
+   * Replaces the estimates for the actions of a build with what the build measured. Estimates for
+   * other actions are kept.
+   *
+   * @param measuredMillis the remaining critical path in milliseconds, keyed by the exec path of
+   *     the primary output of each action
+   */
+  public void update(Map<String, Long> measuredMillis) {
+    if (remainingMillis.size() + measuredMillis.size() > MAX_ENTRIES) {
+      remainingMillis.clear();
+    }
+    remainingMillis.putAll(measuredMillis);
+  }
+
+  /**
+   * Returns the remaining critical path of the given action in milliseconds, or 0 if no earlier
+   * build ran it.
+   */
+  public long getRemainingMillis(ActionExecutionMetadata action) {
+    Long millis = remainingMillis.get(action.getPrimaryOutput().getExecPathString());
+    return millis == null ? 0 : millis;
+  }
+
+  public int size() {
+    return remainingMillis.size();
+  }
+}
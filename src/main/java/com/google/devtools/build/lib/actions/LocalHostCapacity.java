@@ -53,4 +53,12 @@ public final class LocalHostCapacity {
     return localResources;
   }
 
+  /**
+   * Returns the memory of the local host that is free for new processes in MB, or -1 if it is
+   * unknown.
+   */
+  public static double getFreeMemoryMb() {
+    return currentOS == OS.LINUX ? LocalHostResourceManagerLinux.getFreeMemoryInMb() : -1;
+  }
+
 }
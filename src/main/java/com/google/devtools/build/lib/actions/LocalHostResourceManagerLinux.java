@@ -33,6 +33,8 @@ public class LocalHostResourceManagerLinux {
   private static final Splitter NEWLINE_SPLITTER = Splitter.on('\n').omitEmptyStrings();
   private static final String CPU_INFO_FILE = "/proc/cpuinfo";
   private static final String MEM_INFO_FILE = "/proc/meminfo";
+  private static final String CGROUP_FILE = "/proc/self/cgroup";
+  private static final String CGROUP_ROOT = "/sys/fs/cgroup";
 
   private static int getLogicalCpuCount() throws IOException {
     String content = getCpuInfoContent();
@@ -66,6 +68,27 @@ public class LocalHostResourceManagerLinux {
     }
   }
 
+  /**
+   * Returns the memory that is free for new processes in MB: the free memory of the host, or the
+   * room left below the memory limit of the cgroup of this process if that is less. Returns -1 if
+   * the free memory cannot be read.
+   */
+  public static double getFreeMemoryInMb() {
+    double freeMb;
+    try {
+      freeMb = ProcMeminfoParser.kbToMb(new ProcMeminfoParser(MEM_INFO_FILE).getFreeRamKb());
+    } catch (IOException | IllegalArgumentException e) {
+      return -1;
+    }
+    try {
+      return Math.min(
+          freeMb, getCgroupFreeMemoryInMbHelper(readContent(CGROUP_FILE), CGROUP_ROOT));
+    } catch (IOException | IllegalArgumentException e) {
+      // Not in a cgroup with a memory controller.
+      return freeMb;
+    }
+  }
+
   private static String getCpuInfoContent() throws IOException {
     if (cpuInfoContent == null) {
       cpuInfoContent = readContent(CPU_INFO_FILE);
@@ -124,6 +147,29 @@ public class LocalHostResourceManagerLinux {
     return cpuCount * coresPerCpu;
   }
 
+  /**
+   * Returns the room left below the memory limit of a unified (version 2) cgroup in MB, or
+   * infinity if the cgroup has no limit.
+   *
+   * @param cgroupContent the content of /proc/self/cgroup
+   * @param cgroupRoot the directory that the cgroup hierarchy is mounted at
+   */
+  public static double getCgroupFreeMemoryInMbHelper(String cgroupContent, String cgroupRoot)
+      throws IOException {
+    for (String line : NEWLINE_SPLITTER.split(cgroupContent)) {
+      if (line.startsWith("0::")) {
+        String cgroupDir = cgroupRoot + line.substring("0::".length());
+        String max = readContent(cgroupDir + "/memory.max").trim();
+        if (max.equals("max")) {
+          return Double.POSITIVE_INFINITY;
+        }
+        long current = Long.parseLong(readContent(cgroupDir + "/memory.current").trim());
+        return ProcMeminfoParser.kbToMb((Long.parseLong(max) - current) / 1024);
+      }
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
   public static double getMemoryInMbHelper(String memInfoFileName) throws IOException {
     ProcMeminfoParser memInfo = new ProcMeminfoParser(memInfoFileName);
     double ramMb = ProcMeminfoParser.kbToMb(memInfo.getTotalKb());
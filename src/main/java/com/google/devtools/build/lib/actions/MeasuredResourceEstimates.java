@@ -0,0 +1,119 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.devtools.build.lib.actions.ActionExecutionHistory.Usage;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates of the memory and CPU that actions use, measured per mnemonic, which replace the fixed
+ * estimates that actions declare.
+ *
+ * <p>For every mnemonic, the estimates are exponential moving averages over the measured
+ * executions of actions with that mnemonic, so that they follow changes of the tools. Memory is
+ * the peak resident set size, and CPU is the CPU time divided by the wall time. Until a mnemonic
+ * has been measured {@link #MIN_SAMPLES} times, the declared estimates are kept.
+ */
+@ThreadSafe
+public final class MeasuredResourceEstimates {
+  static final int MIN_SAMPLES = 3;
+
+  /** The weight of a new measurement in the moving averages. */
+  private static final double ALPHA = 0.2;
+
+  /**
+   * The factor by which the average peak memory is raised, since the average does not cover the
+   * actions of a mnemonic that use the most memory.
+   */
+  private static final double MEMORY_HEADROOM = 1.25;
+
+  /**
+   * The smallest CPU estimate, since actions that mostly wait for I/O still need some CPU, and an
+   * estimate of 0 would not limit them at all.
+   */
+  private static final double MIN_CPU = 0.1;
+
+  /** The averages of a mnemonic. Instances are replaced rather than modified. */
+  private static final class Average {
+    final int samples;
+    final double memoryMb;
+    final double cpu;
+
+    Average(int samples, double memoryMb, double cpu) {
+      this.samples = samples;
+      this.memoryMb = memoryMb;
+      this.cpu = cpu;
+    }
+
+    Average add(double sampleMemoryMb, double sampleCpu) {
+      // The first samples are averaged evenly, so that the first one does not dominate.
+      double weight = Math.max(ALPHA, 1.0 / (samples + 1));
+      return new Average(
+          samples + 1,
+          memoryMb + (sampleMemoryMb - memoryMb) * weight,
+          cpu + (sampleCpu - cpu) * weight);
+    }
+  }
+
+  private final Map<String, Average> averages = new ConcurrentHashMap<>();
+
+  /**
+   * Creates estimates from the latest measured execution of every action in the given history.
+   */
+  public static MeasuredResourceEstimates fromHistory(ActionExecutionHistory history) {
+    MeasuredResourceEstimates estimates = new MeasuredResourceEstimates();
+    for (ActionExecutionHistory.Entry entry : history.getEntries().values()) {
+      estimates.record(entry.getMnemonic(), entry.getLast());
+    }
+    return estimates;
+  }
+
+  /** Adds a measured execution of an action with the given mnemonic to the averages. */
+  public void record(String mnemonic, Usage usage) {
+    if (!usage.isMeasured() || usage.getWallMillis() <= 0) {
+      return;
+    }
+    double memoryMb = usage.getPeakRssBytes() / 1048576.0;
+    double cpu = (double) usage.getCpuMillis() / usage.getWallMillis();
+    while (true) {
+      Average average = averages.get(mnemonic);
+      if (average == null) {
+        if (averages.putIfAbsent(mnemonic, new Average(1, memoryMb, cpu)) == null) {
+          return;
+        }
+      } else if (averages.replace(mnemonic, average, average.add(memoryMb, cpu))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the resources to reserve for the given action: its declared resources, with memory
+   * and CPU replaced by the measured estimates if its mnemonic was measured often enough.
+   */
+  public ResourceSet estimate(ActionExecutionMetadata action, ResourceSet declared) {
+    Average average = averages.get(action.getMnemonic());
+    if (average == null || average.samples < MIN_SAMPLES) {
+      return declared;
+    }
+    return ResourceSet.create(
+        average.memoryMb * MEMORY_HEADROOM,
+        Math.max(average.cpu, MIN_CPU),
+        declared.getIoUsage(),
+        declared.getLocalTestCount());
+  }
+}
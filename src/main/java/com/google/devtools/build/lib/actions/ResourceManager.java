@@ -17,18 +17,22 @@ package com.google.devtools.build.lib.actions;
 import static com.google.devtools.build.lib.profiler.AutoProfiler.profiled;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
-import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Preconditions;
 
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.concurrent.CountDownLatch;
 
+import javax.annotation.Nullable;
+
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
  * when necessary.
@@ -56,6 +60,16 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>If {@link MeasuredResourceEstimates} are set, the memory and CPU that actions are measured to
+ * use are reserved instead of what they declare. If a supplier of the free memory of the host is
+ * set, memory is also only granted while the host has that much memory free, which protects
+ * against other processes and against actions that use more than they reserve.
+ *
+ * <p>Blocked threads are unblocked in the order of their requests. If {@link CriticalPathEstimates}
+ * are set, requests of actions with a longer estimated remaining critical path are unblocked first
+ * instead, so that the actions that the end of the build waits for are not stuck behind many
+ * short actions that happened to become ready earlier.
  */
 @ThreadSafe
 public class ResourceManager {
@@ -119,9 +133,44 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  // How long the free memory of the host is trusted when a thread requests resources. Waiting
+  // threads are always checked against a fresh value.
+  private static final long FREE_MEMORY_REFRESH_NANOS = 100 * 1000 * 1000;
+
+  /** A blocked thread's request. */
+  private static final class Request {
+    final ResourceSet resources;
+    // Always initialized to 1 in the acquire() method.
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long priority;
+
+    Request(ResourceSet resources, long priority) {
+      this.resources = resources;
+      this.priority = priority;
+    }
+  }
+
+  // List of blocked threads, ordered by decreasing priority, and by arrival for equal priorities.
+  private final List<Request> requestList;
+
+  // Estimates that prioritize blocked threads, or null to unblock them in the order they arrived.
+  @Nullable private CriticalPathEstimates criticalPathEstimates;
+
+  // Estimates that replace the declared resources of actions, or null to use the declared ones.
+  @Nullable private MeasuredResourceEstimates measuredResourceEstimates;
+
+  // Supplies the free memory of the host in MB, or a negative value if it is unknown. If null,
+  // only the memory reserved through this manager counts. The supplier reads files, so it is only
+  // called without holding the lock.
+  @Nullable private volatile Supplier<Double> freeMemoryMb;
+  private double lastFreeMemoryMb = -1;
+  // When the read of lastFreeMemoryMb started.
+  private volatile long lastFreeMemoryNanos = Long.MIN_VALUE;
+  private volatile boolean freeMemoryIsStale;
+  // All memory granted so far, and how much of it was granted when lastFreeMemoryMb was read. The
+  // difference may not be in use by the new processes yet.
+  private double ramGranted;
+  private double ramGrantedAtFreeMemoryRead;
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
@@ -167,9 +216,9 @@ public class ResourceManager {
     usedRam = 0;
     usedIo = 0;
     usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
+    for (Request request : requestList) {
       // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+      request.latch.countDown();
     }
     requestList.clear();
   }
@@ -197,17 +246,90 @@ public class ResourceManager {
   }
 
   /**
-   * Acquires requested resource set. Will block if resource is not available.
+   * Sets the estimates by which blocked threads are prioritized, or null to unblock them in the
+   * order of their requests.
+   */
+  public synchronized void setCriticalPathEstimates(
+      @Nullable CriticalPathEstimates criticalPathEstimates) {
+    this.criticalPathEstimates = criticalPathEstimates;
+  }
+
+  /**
+   * Sets the estimates that replace the resources that actions declare, or null to use the
+   * declared resources.
+   */
+  public synchronized void setMeasuredResourceEstimates(
+      @Nullable MeasuredResourceEstimates measuredResourceEstimates) {
+    this.measuredResourceEstimates = measuredResourceEstimates;
+  }
+
+  /**
+   * Sets the supplier of the free memory of the host in MB, or null to only count the memory
+   * reserved through this manager. The supplier may return a negative value if the free memory is
+   * unknown.
+   */
+  public void setFreeMemorySupplier(@Nullable Supplier<Double> freeMemoryMb) {
+    synchronized (this) {
+      this.freeMemoryMb = freeMemoryMb;
+      lastFreeMemoryMb = -1;
+      lastFreeMemoryNanos = Long.MIN_VALUE;
+      freeMemoryIsStale = true;
+    }
+    refreshFreeMemoryIfStale();
+  }
+
+  /**
+   * Rereads the free memory if the last read is too old or resources were released since. Must be
+   * called without holding the lock, so that reading the files behind the supplier does not block
+   * other threads that acquire or release resources.
+   */
+  private void refreshFreeMemoryIfStale() {
+    Supplier<Double> supplier = freeMemoryMb;
+    long startNanos = BlazeClock.nanoTime();
+    if (supplier == null
+        || !(freeMemoryIsStale || startNanos - lastFreeMemoryNanos > FREE_MEMORY_REFRESH_NANOS)) {
+      return;
+    }
+    double grantedBeforeRead;
+    synchronized (this) {
+      grantedBeforeRead = ramGranted;
+      // A release during the read marks the value as stale again.
+      freeMemoryIsStale = false;
+    }
+    double freeMb = supplier.get();
+    synchronized (this) {
+      // Keeps the value of a read that started later, which knows about more released memory.
+      if (freeMemoryMb == supplier && startNanos >= lastFreeMemoryNanos) {
+        lastFreeMemoryMb = freeMb;
+        lastFreeMemoryNanos = startNanos;
+        ramGrantedAtFreeMemoryRead = grantedBeforeRead;
+      }
+    }
+  }
+
+  private synchronized ResourceSet estimateResources(
+      ActionExecutionMetadata owner, ResourceSet resources) {
+    return measuredResourceEstimates == null
+        ? resources
+        : measuredResourceEstimates.estimate(owner, resources);
+  }
+
+  /**
+   * Acquires requested resource set. Will block if resource is not available. If measured
+   * estimates are set, the resources held by the returned handle may differ from the requested
+   * ones.
    * NB! This method must be thread-safe!
    */
   public ResourceHandle acquireResources(ActionExecutionMetadata owner, ResourceSet resources)
       throws InterruptedException {
     Preconditions.checkNotNull(resources);
+    resources = estimateResources(owner, resources);
     AutoProfiler p = profiled(owner, ProfilerTask.ACTION_LOCK);
     CountDownLatch latch = null;
     try {
       waiting(owner);
-      latch = acquire(resources);
+      refreshFreeMemoryIfStale();
+      latch = acquire(owner, resources);
       if (latch != null) {
         latch.await();
       }
@@ -230,6 +352,7 @@ public class ResourceManager {
    */
   public boolean tryAcquire(ActionExecutionMetadata owner, ResourceSet resources) {
     boolean acquired = false;
+    refreshFreeMemoryIfStale();
     synchronized (this) {
       if (areResourcesAvailable(resources)) {
         incrementResources(resources);
@@ -249,6 +372,7 @@ public class ResourceManager {
   private void incrementResources(ResourceSet resources) {
     usedCpu += resources.getCpuUsage();
     usedRam += resources.getMemoryMb();
+    ramGranted += resources.getMemoryMb();
     usedIo += resources.getIoUsage();
     usedLocalTestCount += resources.getLocalTestCount();
   }
@@ -302,6 +426,10 @@ public class ResourceManager {
     boolean isConflict = false;
     AutoProfiler p = profiled(owner, ProfilerTask.ACTION_RELEASE);
     try {
+      // The processes of the owner have finished, so the host has more free memory now. Waiting
+      // threads are checked against it.
+      freeMemoryIsStale = true;
+      refreshFreeMemoryIfStale();
       isConflict = release(resources);
     } finally {
       threadLocked.set(false);
@@ -313,15 +441,25 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
+  private synchronized CountDownLatch acquire(
+      ActionExecutionMetadata owner, ResourceSet resources) {
     if (areResourcesAvailable(resources)) {
       incrementResources(resources);
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    long priority =
+        criticalPathEstimates == null ? 0 : criticalPathEstimates.getRemainingMillis(owner);
+    Request request = new Request(resources, priority);
+    // Requests are few (at most one per job), so a linear scan is cheap enough.
+    ListIterator<Request> iterator = requestList.listIterator(requestList.size());
+    while (iterator.hasPrevious()) {
+      if (iterator.previous().priority >= priority) {
+        iterator.next();
+        break;
+      }
+    }
+    iterator.add(request);
+    return request.latch;
   }
 
   private synchronized boolean release(ResourceSet resources) {
@@ -354,12 +492,12 @@ public class ResourceManager {
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    Iterator<Request> iterator = requestList.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (areResourcesAvailable(request.first)) {
-        incrementResources(request.first);
-        request.second.countDown();
+      Request request = iterator.next();
+      if (areResourcesAvailable(request.resources)) {
+        incrementResources(request.resources);
+        request.latch.countDown();
         iterator.remove();
       }
     }
@@ -400,9 +538,22 @@ public class ResourceManager {
     boolean ioIsAvailable = io == 0.0 || usedIo == 0.0 || usedIo + io <= availableIo;
     boolean localTestCountIsAvailable = localTestCount == 0 || usedLocalTestCount == 0
         || usedLocalTestCount + localTestCount <= availableLocalTestCount;
+    ramIsAvailable = ramIsAvailable && (ram == 0.0 || usedRam == 0.0 || ram <= getFreeRamMb());
     return cpuIsAvailable && ramIsAvailable && ioIsAvailable && localTestCountIsAvailable;
   }
 
+  /**
+   * Returns the memory of the host that is free for new grants: the free memory at the last
+   * read, less what was granted since, which the new processes may not have allocated yet. See
+   * {@link #refreshFreeMemoryIfStale} for when the free memory is read.
+   */
+  private double getFreeRamMb() {
+    if (freeMemoryMb == null || lastFreeMemoryMb < 0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return lastFreeMemoryMb - (ramGranted - ramGrantedAtFreeMemoryRead);
+  }
+
 
   @VisibleForTesting
   synchronized int getWaitCount() {
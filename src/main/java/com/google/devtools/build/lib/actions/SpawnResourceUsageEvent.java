@@ -0,0 +1,69 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+/**
+ * This event is fired during the build, when a spawn that was executed locally has measured how
+ * much of the machine its processes used.
+ */
+public final class SpawnResourceUsageEvent {
+  private final ActionExecutionMetadata owner;
+  private final long wallMillis;
+  private final long cpuMillis;
+  private final long peakRssBytes;
+  private final long ioBytes;
+
+  /**
+   * Create an event for a spawn that finished.
+   *
+   * @param owner the action that ran the spawn
+   * @param wallMillis the time from starting the processes of the spawn until they finished, not
+   *     including the time that the action waited for resources
+   * @param cpuMillis the user and system CPU time of the processes of the spawn
+   * @param peakRssBytes the largest resident set size of any of the processes of the spawn
+   * @param ioBytes the bytes the processes of the spawn read from and wrote to block devices
+   */
+  public SpawnResourceUsageEvent(
+      ActionExecutionMetadata owner,
+      long wallMillis,
+      long cpuMillis,
+      long peakRssBytes,
+      long ioBytes) {
+    this.owner = owner;
+    this.wallMillis = wallMillis;
+    this.cpuMillis = cpuMillis;
+    this.peakRssBytes = peakRssBytes;
+    this.ioBytes = ioBytes;
+  }
+
+  public ActionExecutionMetadata getOwner() {
+    return owner;
+  }
+
+  public long getWallMillis() {
+    return wallMillis;
+  }
+
+  public long getCpuMillis() {
+    return cpuMillis;
+  }
+
+  public long getPeakRssBytes() {
+    return peakRssBytes;
+  }
+
+  public long getIoBytes() {
+    return ioBytes;
+  }
+}
@@ -18,6 +18,8 @@ import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.profiler.MemoryProfiler;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.CompactStringIndexer;
 import com.google.devtools.build.lib.util.PersistentMap;
@@ -43,7 +45,8 @@ import java.util.logging.Logger;
 /**
  * An implementation of the ActionCache interface that uses
  * {@link CompactStringIndexer} to reduce memory footprint and saves
- * cached actions using the {@link PersistentMap}.
+ * cached actions using the {@link PersistentMap}, or alternatively a
+ * {@link MappedActionLog}.
  *
  * <p>This cache is not fully correct: as hashes are xor'd together, a permutation of input
  * file contents will erroneously be considered up to date.
@@ -67,7 +70,19 @@ public class CompactPersistentActionCache implements ActionCache {
 
   private static final Logger LOG = Logger.getLogger(CompactPersistentActionCache.class.getName());
 
-  private final class ActionMap extends PersistentMap<Integer, byte[]> {
+  /** The persistent map from action key indexes to encoded entries. */
+  interface Store extends Map<Integer, byte[]> {
+    /** Like {@link #put}, but does not return (and possibly read back) the previous value. */
+    void set(int key, byte[] value);
+
+    /** Writes all changes to disk and returns the number of bytes written or stored. */
+    long save() throws IOException;
+
+    /** Releases the files held open by this store. */
+    void close() throws IOException;
+  }
+
+  private final class ActionMap extends PersistentMap<Integer, byte[]> implements Store {
     private final Clock clock;
     private long nextUpdateSecs;
 
@@ -80,6 +95,16 @@ public class CompactPersistentActionCache implements ActionCache {
       load();
     }
 
+    @Override
+    public void set(int key, byte[] value) {
+      put(key, value);
+    }
+
+    @Override
+    public void close() {
+      // Only the journal is kept open between saves, and save() closes it.
+    }
+
     @Override
     protected boolean updateJournal() {
       // Using nanoTime. currentTimeMillis may not provide enough granularity.
@@ -151,27 +176,51 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
-  private final PersistentMap<Integer, byte[]> map;
+  private final Store map;
   private final PersistentStringIndexer indexer;
   static final ActionCache.Entry CORRUPTED = new ActionCache.Entry(null, false);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
-    Path cacheFile = cacheFile(cacheRoot);
-    Path journalFile = journalFile(cacheRoot);
+    this(cacheRoot, clock, false);
+  }
+
+  /**
+   * @param mappedLog whether to store the entries in a {@link MappedActionLog} and the file names
+   *     in an off-heap string table, instead of loading them all onto the heap
+   */
+  public CompactPersistentActionCache(Path cacheRoot, Clock clock, boolean mappedLog)
+      throws IOException {
+    long startTime = clock.nanoTime();
     Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
 
     try {
-      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock, mappedLog);
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load filename index data", e);
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      if (mappedLog) {
+        map =
+            new MappedActionLog(
+                logFile(cacheRoot),
+                VERSION,
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    // The index data on disk must be at least as recent as the action cache data.
+                    indexer.flush();
+                  }
+                });
+      } else {
+        // we can now use normal hash map as backing map, since dependency checker
+        // will manually purge records from the action cache.
+        map =
+            new ActionMap(
+                new HashMap<Integer, byte[]>(), clock, cacheFile(cacheRoot),
+                journalFile(cacheRoot));
+      }
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
@@ -185,6 +234,20 @@ public class CompactPersistentActionCache implements ActionCache {
         throw new IOException("Failed action cache referential integrity check: " + integrityError);
       }
     }
+    MemoryProfiler.instance()
+        .logValue(
+            "action cache load ms", TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - startTime));
+    logResidentSize();
+  }
+
+  private void logResidentSize() {
+    if (map instanceof MappedActionLog) {
+      MappedActionLog log = (MappedActionLog) map;
+      MemoryProfiler.instance().logValue("action cache mapped bytes", log.getMappedBytes());
+      MemoryProfiler.instance().logValue("action cache index bytes", log.getIndexBytes());
+      MemoryProfiler.instance()
+          .logValue("action cache filename index bytes", indexer.getOffHeapBytes());
+    }
   }
 
   /**
@@ -238,6 +301,15 @@ public class CompactPersistentActionCache implements ActionCache {
     return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
   }
 
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
+  /** Returns whether the entries are stored in a {@link MappedActionLog}. */
+  public boolean usesMappedLog() {
+    return map instanceof MappedActionLog;
+  }
+
   @Override
   public ActionCache.Entry createEntry(String key, boolean discoversInputs) {
     return new ActionCache.Entry(key, discoversInputs);
@@ -277,9 +349,9 @@ public class CompactPersistentActionCache implements ActionCache {
     // a value lower than the indexer size will remain in the validation record.
     // This will still pass the integrity check.
     synchronized (this) {
-      map.put(VALIDATION_KEY, buffer.array());
+      map.set(VALIDATION_KEY, buffer.array());
       // Now update record itself.
-      map.put(index, content);
+      map.set(index, content);
     }
   }
 
@@ -290,11 +362,25 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public synchronized long save() throws IOException {
+    long startTime = BlazeClock.nanoTime();
     long indexSize = indexer.save();
     long mapSize = map.save();
+    MemoryProfiler.instance()
+        .logValue(
+            "action cache save ms",
+            TimeUnit.NANOSECONDS.toMillis(BlazeClock.nanoTime() - startTime));
+    logResidentSize();
     return indexSize + mapSize;
   }
 
+  /**
+   * Releases the files held open by this cache. Changes that were not saved are lost. The cache
+   * must not be used afterwards.
+   */
+  public synchronized void close() throws IOException {
+    map.close();
+  }
+
   @Override
   public synchronized String toString() {
     StringBuilder builder = new StringBuilder();
@@ -13,29 +13,100 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions.cache;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
 
 /**
- * Utility class for getting md5 digests of files.
+ * Utility class for getting digests of files, computed with {@link FileSystem#getDigestFunction}.
+ *
+ * <p>Digests that have to be computed by reading the file can optionally be cached, see
+ * {@link #configureCache}. Cache entries are keyed on the file's inode number, size, mtime and
+ * ctime in addition to its path, so a file that is modified, replaced or touched is always
+ * re-read. Since these keys stay valid across server restarts, the cache can also be written to
+ * and read back from disk ({@link #writeCache}, {@link #readCache}).
  */
 public class DigestUtils {
-  // Object to synchronize on when serializing large file reads.
-  private static final Object MD5_LOCK = new Object();
+  private static final int CACHE_FILE_MAGIC = 0x44494743; // "DIGC"
+  private static final int CACHE_FILE_VERSION = 2;
+
+  // Bounds the number of large files read concurrently. With a single permit this serializes
+  // large file reads, which avoids excessive disk seeks on spinning disks.
+  private static volatile Semaphore largeFileDigestPermits = new Semaphore(1, true);
+  private static int largeFileDigestConcurrency = 1;
   private static final AtomicBoolean MULTI_THREADED_DIGEST = new AtomicBoolean(false);
 
+  // Digests computed by reading files, or null if caching is disabled.
+  @Nullable private static volatile Cache<CacheKey, byte[]> globalCache = null;
+  private static long cacheMaximumSize = 0;
+
+  /**
+   * Key of {@link #globalCache}. Contains everything that a rewrite of the file would change, so
+   * that a cached digest is never returned for modified contents.
+   */
+  private static final class CacheKey {
+    private final String path;
+    private final long nodeId;
+    private final long size;
+    private final long modifiedTime;
+    private final long changeTime;
+
+    private CacheKey(String path, long nodeId, long size, long modifiedTime, long changeTime) {
+      this.path = path;
+      this.nodeId = nodeId;
+      this.size = size;
+      this.modifiedTime = modifiedTime;
+      this.changeTime = changeTime;
+    }
+
+    private static CacheKey create(Path path, FileStatus status) throws IOException {
+      return new CacheKey(path.getPathString(), status.getNodeId(), status.getSize(),
+          status.getLastModifiedTime(), status.getLastChangeTime());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return path.equals(other.path) && nodeId == other.nodeId && size == other.size
+          && modifiedTime == other.modifiedTime && changeTime == other.changeTime;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, nodeId, size, modifiedTime, changeTime);
+    }
+  }
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -51,24 +122,33 @@ public class DigestUtils {
   }
 
   /**
-   * Obtain file's MD5 metadata using synchronized method, ensuring that system
-   * is not overloaded in case when multiple threads are requesting MD5
-   * calculations and underlying file system cannot provide it via extended
-   * attribute.
+   * Obtain file's MD5 metadata while holding one of a bounded number of permits, ensuring that
+   * system is not overloaded in case when multiple threads are requesting MD5 calculations and
+   * underlying file system cannot provide it via extended attribute.
    */
-  private static byte[] getDigestInExclusiveMode(Path path) throws IOException {
+  private static byte[] getDigestInExclusiveMode(Path path, long fileSize) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    synchronized (MD5_LOCK) {
+    Semaphore permits = largeFileDigestPermits;
+    permits.acquireUninterruptibly();
+    try {
       Profiler.instance().logSimpleTask(startTime, ProfilerTask.WAIT, path.getPathString());
-      return getDigestInternal(path);
+      return getDigestInternal(path, fileSize);
+    } finally {
+      permits.release();
     }
   }
 
-  private static byte[] getDigestInternal(Path path) throws IOException {
+  private static byte[] getDigestInternal(Path path, long fileSize) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    byte[] md5bin = path.getMD5Digest();
+    byte[] md5bin = path.getDigest();
 
-    long millis = (BlazeClock.nanoTime() - startTime) / 1000000;
+    long nanos = BlazeClock.nanoTime() - startTime;
+    Profiler profiler = Profiler.instance();
+    if (profiler.isActive() && profiler.isProfiling(ProfilerTask.DIGEST)) {
+      profiler.logSimpleTaskDuration(startTime, nanos, ProfilerTask.DIGEST,
+          describeThroughput(path, fileSize, nanos));
+    }
+    long millis = nanos / 1000000;
     if (millis > 5000L) {
       System.err.println("Slow read: a " + path.getFileSize() + "-byte read from " + path
           + " took " +  millis + "ms.");
@@ -76,19 +156,26 @@ public class DigestUtils {
     return md5bin;
   }
 
+  private static String describeThroughput(Path path, long fileSize, long nanos) {
+    long bytesPerSecond = nanos > 0 ? (long) (fileSize * 1e9 / nanos) : 0;
+    return String.format("%s (%d bytes, %.1f MB/s)", path.getPathString(), fileSize,
+        bytesPerSecond / 1e6);
+  }
+
   private static boolean binaryDigestWellFormed(byte[] digest) {
     Preconditions.checkNotNull(digest);
-    return digest.length == 16;
+    return digest.length == FileSystem.getDigestFunction().getDigestLength();
   }
 
   /**
-   * Returns the the fast md5 digest of the file, or null if not available.
+   * Returns the the fast digest of the file, or null if not available or computed with a different
+   * function than {@link FileSystem#getDigestFunction}.
    */
   @Nullable
-  private static byte[] getFastDigest(Path path) throws IOException {
-    // TODO(bazel-team): the action cache currently only works with md5 digests but it ought to
-    // work with any opaque digest.
-    return Objects.equals(path.getFastDigestFunctionType(), "MD5") ? path.getFastDigest() : null;
+  public static byte[] getFastDigest(Path path) throws IOException {
+    return Objects.equals(path.getFastDigestFunctionType(), FileSystem.getDigestFunction().name())
+        ? path.getFastDigest()
+        : null;
   }
 
   /**
@@ -99,7 +186,128 @@ public class DigestUtils {
   }
 
   /**
-   * Get the md5 digest of {@code path}, using a constant-time xattr call if the filesystem supports
+   * Sets the number of large files whose digests may be computed concurrently, unless
+   * multi-threaded digesting is enabled, in which case there is no limit. Defaults to 1.
+   */
+  public static synchronized void setLargeFileDigestConcurrency(int concurrency) {
+    Preconditions.checkArgument(concurrency > 0, concurrency);
+    // Digests in flight release their permits to the semaphore they acquired them from, so
+    // replacing it is safe, but only needed when the configured value actually changes.
+    if (largeFileDigestConcurrency != concurrency) {
+      largeFileDigestPermits = new Semaphore(concurrency, true);
+      largeFileDigestConcurrency = concurrency;
+    }
+  }
+
+  /**
+   * Enables the cache of computed digests with the given maximum number of entries, or disables
+   * it if {@code maximumSize} is 0. Reconfiguring the cache with the same size keeps its contents.
+   */
+  public static synchronized void configureCache(long maximumSize) {
+    Preconditions.checkArgument(maximumSize >= 0, maximumSize);
+    if (maximumSize == 0) {
+      globalCache = null;
+    } else if (globalCache == null || cacheMaximumSize != maximumSize) {
+      Cache<CacheKey, byte[]> newCache =
+          CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+      if (globalCache != null) {
+        newCache.putAll(globalCache.asMap());
+      }
+      globalCache = newCache;
+    }
+    cacheMaximumSize = maximumSize;
+  }
+
+  /** Returns the statistics of the digest cache, or null if it is disabled. */
+  @Nullable
+  public static CacheStats getCacheStats() {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    return cache == null ? null : cache.stats();
+  }
+
+  /**
+   * Writes the contents of the digest cache to {@code cacheFile}. Does nothing if the cache is
+   * disabled. Returns the number of entries written.
+   */
+  public static int writeCache(Path cacheFile) throws IOException {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    if (cache == null) {
+      return 0;
+    }
+    Map<CacheKey, byte[]> entries = cache.asMap();
+    FileSystemUtils.createDirectoryAndParents(cacheFile.getParentDirectory());
+    Path tmpFile = cacheFile.getParentDirectory().getChild(cacheFile.getBaseName() + ".tmp");
+    int written = 0;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(CACHE_FILE_MAGIC);
+      out.writeInt(CACHE_FILE_VERSION);
+      out.writeUTF(FileSystem.getDigestFunction().name());
+      // The map may change while we iterate over it, so the entry count is written last.
+      for (Map.Entry<CacheKey, byte[]> entry : entries.entrySet()) {
+        CacheKey key = entry.getKey();
+        out.writeBoolean(true);
+        out.writeUTF(key.path);
+        out.writeLong(key.nodeId);
+        out.writeLong(key.size);
+        out.writeLong(key.modifiedTime);
+        out.writeLong(key.changeTime);
+        out.writeByte(entry.getValue().length);
+        out.write(entry.getValue());
+        written++;
+      }
+      out.writeBoolean(false);
+      out.writeInt(written);
+    }
+    tmpFile.renameTo(cacheFile);
+    return written;
+  }
+
+  /**
+   * Adds the entries written by {@link #writeCache} to the digest cache. Does nothing if the cache
+   * is disabled or {@code cacheFile} does not exist. Returns the number of entries read.
+   *
+   * <p>Entries are only ever used for files whose inode, size, mtime and ctime all match, so a
+   * stale file is harmless.
+   */
+  public static int readCache(Path cacheFile) throws IOException {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    if (cache == null || !cacheFile.exists()) {
+      return 0;
+    }
+    int read = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(cacheFile.getInputStream()))) {
+      if (in.readInt() != CACHE_FILE_MAGIC
+          || in.readInt() != CACHE_FILE_VERSION
+          || !in.readUTF().equals(FileSystem.getDigestFunction().name())) {
+        return 0;
+      }
+      while (in.readBoolean()) {
+        CacheKey key =
+            new CacheKey(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+        cache.put(key, digest);
+        read++;
+      }
+      if (in.readInt() != read) {
+        throw new IOException("Corrupt digest cache " + cacheFile);
+      }
+    }
+    return read;
+  }
+
+  @VisibleForTesting
+  static void clearCache() {
+    Cache<CacheKey, byte[]> cache = globalCache;
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Get the digest of {@code path}, using a constant-time xattr call if the filesystem supports
    * it, and calculating the digest manually otherwise.
    *
    * @param path Path of the file.
@@ -121,16 +329,33 @@ public class DigestUtils {
 
     if (md5bin != null) {
       return md5bin;
-    } else if (fileSize > 4096 && !MULTI_THREADED_DIGEST.get()) {
+    }
+
+    Cache<CacheKey, byte[]> cache = globalCache;
+    CacheKey key = null;
+    if (cache != null) {
+      key = CacheKey.create(path, path.stat());
+      md5bin = cache.getIfPresent(key);
+      if (md5bin != null) {
+        return md5bin;
+      }
+    }
+
+    if (fileSize > 4096 && !MULTI_THREADED_DIGEST.get()) {
       // We'll have to read file content in order to calculate the digest. In that case
-      // it would be beneficial to serialize those calculations since there is a high
-      // probability that MD5 will be requested for multiple output files simultaneously.
+      // it would be beneficial to limit concurrent calculations since there is a high
+      // probability that digests will be requested for multiple output files simultaneously.
       // Exception is made for small (<=4K) files since they will not likely to introduce
       // significant delays (at worst they will result in two extra disk seeks by
       // interrupting other reads).
-      return getDigestInExclusiveMode(path);
+      md5bin = getDigestInExclusiveMode(path, fileSize);
     } else {
-      return getDigestInternal(path);
+      md5bin = getDigestInternal(path, fileSize);
     }
+
+    if (cache != null) {
+      cache.put(key, md5bin);
+    }
+    return md5bin;
   }
 }
@@ -0,0 +1,665 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A persistent map from ints to byte arrays, stored in an append-only log file that is memory
+ * mapped for reading.
+ *
+ * <p>Every put or remove appends a record to the log; nothing is ever rewritten in place. The heap
+ * only holds an open-addressing index from keys to record offsets (an int and a long per key), so
+ * loading the log is a scan of the record headers and values are only read when asked for. Appends
+ * are buffered on the heap until {@link #save} or until the buffer grows large.
+ *
+ * <p>Once less than half of the log is live, {@link #save} starts a compaction on a background
+ * thread. It copies the live records as of that moment to a new file without holding the lock,
+ * then replays the records appended in the meantime and swaps the files under the lock. {@link
+ * #close} stops a running compaction before it swaps the files, so it never replaces a log that
+ * another instance has opened since.
+ *
+ * <p>Record format: key (int), value length (int, -1 for a removal), value bytes.
+ */
+@ThreadSafe
+final class MappedActionLog extends AbstractMap<Integer, byte[]>
+    implements CompactPersistentActionCache.Store {
+  private static final Logger LOG = Logger.getLogger(MappedActionLog.class.getName());
+
+  private static final int MAGIC = 0x414c4f47; // "ALOG"
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int REMOVED = -1;
+  private static final int FLUSH_THRESHOLD_BYTES = 4 * 1024 * 1024;
+  private static final long MIN_COMPACTION_SIZE_BYTES = 1024 * 1024;
+
+  private static final ExecutorService COMPACTION_EXECUTOR =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("action-log-compaction").setDaemon(true).build());
+
+  private final Path logFile;
+  private final int version;
+  private final Runnable beforeFlush;
+
+  private FileChannel channel;
+  // Read-only mapping of the log from offset 0. May be shorter than the flushed part of the log.
+  private MappedByteBuffer mapped;
+  // Length of the part of the log that has been written to the file.
+  private long flushedEnd;
+  // Records appended after flushedEnd.
+  private ByteBuffer pending = ByteBuffer.allocate(4096);
+  private Index index;
+  // Total size of the records that hold the current values.
+  private long liveBytes;
+  private boolean compacting;
+  @Nullable private Future<?> compaction;
+  // Read without the lock by a running compaction, so that it stops early.
+  private volatile boolean closed;
+
+  /**
+   * Opens the log in {@code logFile}, creating it if it does not exist yet.
+   *
+   * @param beforeFlush run before buffered appends are written to the file
+   * @throws IOException if the file exists but is not a log of the given version
+   */
+  MappedActionLog(Path logFile, int version, Runnable beforeFlush) throws IOException {
+    this.logFile = logFile;
+    this.version = version;
+    this.beforeFlush = beforeFlush;
+    open();
+  }
+
+  private void open() throws IOException {
+    boolean exists = logFile.exists();
+    channel = new RandomAccessFile(logFile.getPathFile(), "rw").getChannel();
+    if (!exists || channel.size() == 0) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(version);
+      header.flip();
+      writeFully(channel, header, 0);
+      flushedEnd = HEADER_SIZE;
+      index = new Index(16);
+      liveBytes = 0;
+      remap();
+      return;
+    }
+    flushedEnd = channel.size();
+    remap();
+    if (flushedEnd < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != version) {
+      channel.close();
+      throw new IOException("Action log " + logFile + " has an unknown format or version");
+    }
+    index = new Index(16);
+    liveBytes = 0;
+    long end = scan(HEADER_SIZE, index);
+    if (end < flushedEnd) {
+      // The last record was not completely written; forget about it.
+      LOG.warning("Truncating action log " + logFile + " from " + flushedEnd + " to " + end);
+      channel.truncate(end);
+      flushedEnd = end;
+      remap();
+    }
+  }
+
+  /**
+   * Adds the records of the flushed log from {@code start} on to {@code target}. Returns the offset
+   * after the last complete record.
+   */
+  private long scan(long start, Index target) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    long offset = start;
+    while (offset + RECORD_HEADER_SIZE <= flushedEnd) {
+      readFlushed(offset, header);
+      int key = header.getInt(0);
+      int length = header.getInt(4);
+      long recordSize = RECORD_HEADER_SIZE + Math.max(length, 0);
+      if (length < REMOVED || offset + recordSize > flushedEnd) {
+        break;
+      }
+      updateIndex(target, key, length == REMOVED ? REMOVED : offset, recordSize);
+      offset += recordSize;
+    }
+    return offset;
+  }
+
+  private void updateIndex(Index target, int key, long offset, long recordSize)
+      throws IOException {
+    long previous = target.put(key, offset);
+    if (target == index) {
+      if (previous != REMOVED) {
+        liveBytes -= getRecordSize(previous);
+      }
+      if (offset != REMOVED) {
+        liveBytes += recordSize;
+      }
+    }
+  }
+
+  private void remap() throws IOException {
+    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(flushedEnd, Integer.MAX_VALUE));
+  }
+
+  /** Reads {@code dst.remaining()} bytes at {@code offset}, which must be flushed already. */
+  private void readFlushed(long offset, ByteBuffer dst) throws IOException {
+    dst.clear();
+    if (offset + dst.remaining() <= mapped.limit()) {
+      ByteBuffer src = mapped.duplicate();
+      src.position((int) offset);
+      src.limit((int) offset + dst.remaining());
+      dst.put(src);
+    } else {
+      while (dst.hasRemaining()) {
+        if (channel.read(dst, offset + dst.position()) < 0) {
+          throw new IOException("Unexpected end of action log " + logFile);
+        }
+      }
+    }
+    dst.flip();
+  }
+
+  private void read(long offset, ByteBuffer dst) throws IOException {
+    if (offset >= flushedEnd) {
+      dst.clear();
+      ByteBuffer src = pending.duplicate();
+      src.flip();
+      src.position((int) (offset - flushedEnd));
+      src.limit(src.position() + dst.remaining());
+      dst.put(src);
+      dst.flip();
+    } else {
+      readFlushed(offset, dst);
+    }
+  }
+
+  private long getRecordSize(long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    read(offset, header);
+    return RECORD_HEADER_SIZE + header.getInt(4);
+  }
+
+  private byte[] readValue(long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    read(offset, header);
+    byte[] value = new byte[header.getInt(4)];
+    read(offset + RECORD_HEADER_SIZE, ByteBuffer.wrap(value));
+    return value;
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer src, long position)
+      throws IOException {
+    while (src.hasRemaining()) {
+      position += out.write(src, position);
+    }
+  }
+
+  /** Appends a record and returns its offset. */
+  private long append(int key, byte[] value) throws IOException {
+    int recordSize = RECORD_HEADER_SIZE + (value == null ? 0 : value.length);
+    if (pending.remaining() < recordSize) {
+      if (pending.position() + recordSize > FLUSH_THRESHOLD_BYTES) {
+        flush();
+      }
+      if (pending.remaining() < recordSize) {
+        ByteBuffer larger =
+            ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + recordSize));
+        pending.flip();
+        larger.put(pending);
+        pending = larger;
+      }
+    }
+    long offset = flushedEnd + pending.position();
+    pending.putInt(key).putInt(value == null ? REMOVED : value.length);
+    if (value != null) {
+      pending.put(value);
+    }
+    return offset;
+  }
+
+  private void flush() throws IOException {
+    if (pending.position() == 0) {
+      return;
+    }
+    beforeFlush.run();
+    pending.flip();
+    writeFully(channel, pending, flushedEnd);
+    flushedEnd += pending.limit();
+    pending.clear();
+  }
+
+  @Override
+  public synchronized byte[] get(Object key) {
+    if (!(key instanceof Integer)) {
+      return null;
+    }
+    long offset = index.get((Integer) key);
+    if (offset == REMOVED) {
+      return null;
+    }
+    try {
+      return readValue(offset);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read action log " + logFile, e);
+    }
+  }
+
+  @Override
+  public synchronized boolean containsKey(Object key) {
+    return key instanceof Integer && index.get((Integer) key) != REMOVED;
+  }
+
+  @Override
+  public synchronized byte[] put(Integer key, byte[] value) {
+    long previousOffset = index.get(key);
+    try {
+      byte[] previous = previousOffset != REMOVED ? readValue(previousOffset) : null;
+      set(key, value);
+      return previous;
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read action log " + logFile, e);
+    }
+  }
+
+  @Override
+  public synchronized void set(int key, byte[] value) {
+    Preconditions.checkNotNull(value);
+    try {
+      updateIndex(index, key, append(key, value), RECORD_HEADER_SIZE + value.length);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to append to action log " + logFile, e);
+    }
+  }
+
+  @Override
+  public synchronized byte[] remove(Object key) {
+    if (!containsKey(key)) {
+      return null;
+    }
+    int intKey = (Integer) key;
+    try {
+      byte[] previous = readValue(index.get(intKey));
+      append(intKey, null);
+      updateIndex(index, intKey, REMOVED, 0);
+      return previous;
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to append to action log " + logFile, e);
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    for (int key : index.keys()) {
+      remove(key);
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * Writes all buffered appends to the file, and starts a compaction if less than half of the log
+   * holds current values. Returns the size of the log file.
+   */
+  @Override
+  public synchronized long save() throws IOException {
+    flush();
+    remap();
+    if (!compacting
+        && flushedEnd > MIN_COMPACTION_SIZE_BYTES
+        && liveBytes * 2 < flushedEnd - HEADER_SIZE) {
+      compacting = true;
+      compaction = COMPACTION_EXECUTOR.submit(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                compact();
+              } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to compact action log " + logFile, e);
+              } finally {
+                synchronized (MappedActionLog.this) {
+                  compacting = false;
+                }
+              }
+            }
+          });
+    }
+    return flushedEnd;
+  }
+
+  /**
+   * Stops a running compaction and closes the log file. Appends that were not saved are lost. The
+   * log must not be used afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    Future<?> running;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      running = compaction;
+    }
+    if (running != null) {
+      // A compaction that sees the log closed stops before it replaces any file. Cancelling it
+      // instead would not wait for one that is already running.
+      try {
+        Uninterruptibles.getUninterruptibly(running);
+      } catch (ExecutionException e) {
+        // Compaction failures are logged by the compaction itself.
+      }
+    }
+    synchronized (this) {
+      channel.close();
+    }
+  }
+
+  /** Returns the number of bytes of the log file that are mapped into memory. */
+  synchronized long getMappedBytes() {
+    return mapped.limit();
+  }
+
+  /** Returns the number of heap bytes used by the index. */
+  synchronized long getIndexBytes() {
+    return index.getMemoryBytes();
+  }
+
+  @VisibleForTesting
+  synchronized long getLogBytes() {
+    return flushedEnd + pending.position();
+  }
+
+  @VisibleForTesting
+  synchronized boolean isCompacting() {
+    return compacting;
+  }
+
+  /** Writes the current values to a new log, then swaps it for the current log. */
+  @VisibleForTesting
+  void compact() throws IOException {
+    Index snapshot;
+    long snapshotEnd;
+    MappedByteBuffer source;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      flush();
+      remap();
+      snapshot = index.copy();
+      snapshotEnd = flushedEnd;
+      source = mapped;
+    }
+
+    Path tmpFile = logFile.getParentDirectory().getChild(logFile.getBaseName() + ".compacting");
+    Index compacted = new Index(snapshot.size() * 2);
+    try (FileChannel out = new RandomAccessFile(tmpFile.getPathFile(), "rw").getChannel()) {
+      out.truncate(0);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(version);
+      header.flip();
+      long outEnd = HEADER_SIZE;
+      writeFully(out, header, 0);
+
+      // The records of the snapshot are never modified, so they can be copied without the lock.
+      ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+      for (int key : snapshot.keys()) {
+        if (closed) {
+          return;
+        }
+        long offset = snapshot.get(key);
+        ByteBuffer record = null;
+        if (offset + RECORD_HEADER_SIZE <= source.limit()) {
+          int length = source.getInt((int) offset + 4);
+          if (offset + RECORD_HEADER_SIZE + length <= source.limit()) {
+            record = source.duplicate();
+            record.position((int) offset);
+            record.limit((int) offset + RECORD_HEADER_SIZE + length);
+          }
+        }
+        if (record == null) {
+          synchronized (this) {
+            if (closed) {
+              return;
+            }
+            record = ByteBuffer.wrap(readRecord(offset, recordHeader));
+          }
+        }
+        compacted.put(key, outEnd);
+        int size = record.remaining();
+        writeFully(out, record, outEnd);
+        outEnd += size;
+      }
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        // Replay what was appended since the snapshot, including removals.
+        flush();
+        long offset = snapshotEnd;
+        while (offset < flushedEnd) {
+          byte[] record = readRecord(offset, recordHeader);
+          int key = recordHeader.getInt(0);
+          int length = recordHeader.getInt(4);
+          compacted.put(key, length == REMOVED ? REMOVED : outEnd);
+          writeFully(out, ByteBuffer.wrap(record), outEnd);
+          outEnd += record.length;
+          offset += record.length;
+        }
+        out.force(false);
+        tmpFile.renameTo(logFile);
+        channel.close();
+        channel = new RandomAccessFile(logFile.getPathFile(), "rw").getChannel();
+        flushedEnd = outEnd;
+        remap();
+        index = compacted;
+        liveBytes = 0;
+        for (int key : index.keys()) {
+          liveBytes += getRecordSize(index.get(key));
+        }
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  /** Returns the whole record at {@code offset}, leaving its header in {@code header}. */
+  private byte[] readRecord(long offset, ByteBuffer header) throws IOException {
+    read(offset, header);
+    int length = header.getInt(4);
+    byte[] record = new byte[RECORD_HEADER_SIZE + Math.max(length, 0)];
+    read(offset, ByteBuffer.wrap(record));
+    return record;
+  }
+
+  @Override
+  public Set<Map.Entry<Integer, byte[]>> entrySet() {
+    return new AbstractSet<Map.Entry<Integer, byte[]>>() {
+      @Override
+      public Iterator<Map.Entry<Integer, byte[]>> iterator() {
+        final int[] keys;
+        synchronized (MappedActionLog.this) {
+          keys = index.keys();
+        }
+        return new Iterator<Map.Entry<Integer, byte[]>>() {
+          private int next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return next < keys.length;
+          }
+
+          @Override
+          public Map.Entry<Integer, byte[]> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            int key = keys[next++];
+            return new SimpleImmutableEntry<>(key, get(key));
+          }
+
+          @Override
+          public void remove() {
+            MappedActionLog.this.remove(keys[next - 1]);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return MappedActionLog.this.size();
+      }
+    };
+  }
+
+  /**
+   * Open-addressing hash table from int keys to long offsets, with linear probing. Removed keys
+   * keep their slot with an offset of {@link #REMOVED} until the table is rebuilt.
+   */
+  private static final class Index {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private long[] offsets;
+    private int size = 0;
+    private int usedSlots = 0;
+
+    private Index(int expectedSize) {
+      int capacity = 16;
+      while (capacity < expectedSize * 2) {
+        capacity *= 2;
+      }
+      keys = new int[capacity];
+      offsets = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+    }
+
+    private int slot(int key) {
+      int mask = keys.length - 1;
+      // Action cache keys are dense, so spread them before masking.
+      int hash = key * 0x9E3779B9;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private long get(int key) {
+      int slot = slot(key);
+      return keys[slot] == key ? offsets[slot] : REMOVED;
+    }
+
+    /** Sets the offset of {@code key} and returns the previous one. */
+    private long put(int key, long offset) {
+      Preconditions.checkArgument(key != EMPTY, key);
+      int slot = slot(key);
+      if (keys[slot] == EMPTY) {
+        if (offset == REMOVED) {
+          return REMOVED;
+        }
+        if ((usedSlots + 1) * 2 > keys.length) {
+          // Only grow if live keys fill the table. Otherwise removed keys do, and dropping them
+          // at the same capacity is enough; growing would let a put/remove workload grow the
+          // table without bound.
+          rebuild((size + 1) * 4 > keys.length ? keys.length * 2 : keys.length);
+          slot = slot(key);
+        }
+        keys[slot] = key;
+        offsets[slot] = REMOVED;
+        usedSlots++;
+      }
+      long previous = offsets[slot];
+      offsets[slot] = offset;
+      if (previous == REMOVED && offset != REMOVED) {
+        size++;
+      } else if (previous != REMOVED && offset == REMOVED) {
+        size--;
+      }
+      return previous;
+    }
+
+    private void rebuild(int capacity) {
+      int[] oldKeys = keys;
+      long[] oldOffsets = offsets;
+      keys = new int[Math.max(capacity, 16)];
+      offsets = new long[keys.length];
+      Arrays.fill(keys, EMPTY);
+      usedSlots = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY && oldOffsets[i] != REMOVED) {
+          int slot = slot(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          offsets[slot] = oldOffsets[i];
+          usedSlots++;
+        }
+      }
+    }
+
+    private int size() {
+      return size;
+    }
+
+    private int[] keys() {
+      int[] result = new int[size];
+      int next = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != EMPTY && offsets[i] != REMOVED) {
+          result[next++] = keys[i];
+        }
+      }
+      return result;
+    }
+
+    private Index copy() {
+      Index copy = new Index(0);
+      copy.keys = keys.clone();
+      copy.offsets = offsets.clone();
+      copy.size = size;
+      copy.usedSlots = usedSlots;
+      return copy;
+    }
+
+    private long getMemoryBytes() {
+      return keys.length * (4L + 8L);
+    }
+  }
+}
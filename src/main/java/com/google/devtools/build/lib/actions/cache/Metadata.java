@@ -18,6 +18,7 @@ import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystem;
 
 import java.util.Arrays;
 import java.util.Date;
@@ -83,7 +84,7 @@ public final class Metadata {
   @Override
   public String toString() {
     if (digest != null) {
-      return "MD5 " + BaseEncoding.base16().lowerCase().encode(digest);
+      return FileSystem.getDigestFunction() + " " + BaseEncoding.base16().lowerCase().encode(digest);
     } else if (mtime > 0) {
       return "timestamp " + new Date(mtime);
     }
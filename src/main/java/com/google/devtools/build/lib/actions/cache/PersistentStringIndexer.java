@@ -18,6 +18,7 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThread
 import com.google.devtools.build.lib.util.CanonicalStringIndexer;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.util.PrimitiveStringTable;
 import com.google.devtools.build.lib.util.StringCanonicalizer;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -28,6 +29,8 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.Nullable;
+
 /**
  * Persistent version of the CanonicalStringIndexer.
  *
@@ -35,6 +38,9 @@ import java.util.concurrent.ConcurrentMap;
  * canonicalization mapping. The other direction is handled purely in memory
  * and reconstituted at load-time.
  *
+ * <p>Optionally, both directions are views of a single {@link PrimitiveStringTable} kept
+ * outside of the Java heap. The on-disk format is the same either way.
+ *
  * <p>Thread-safety is ensured by locking on all mutating operations from the
  * superclass. Read-only operations are not locked, but rather backed by
  * ConcurrentMaps.
@@ -52,12 +58,18 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
     private static final long SAVE_INTERVAL_NS = 3L * 1000 * 1000 * 1000;
 
     private final Clock clock;
+    private final boolean canonicalizeKeys;
     private long nextUpdate;
 
-    public PersistentIndexMap(Path mapFile, Path journalFile, Clock clock) throws IOException {
-      super(VERSION, PersistentStringIndexer.<String, Integer>newConcurrentMap(INITIAL_ENTRIES),
-            mapFile, journalFile);
+    /**
+     * @param canonicalizeKeys whether to intern the keys read from disk; only worthwhile if the
+     *     map holds on to its key objects
+     */
+    public PersistentIndexMap(Map<String, Integer> map, boolean canonicalizeKeys, Path mapFile,
+        Path journalFile, Clock clock) throws IOException {
+      super(VERSION, map, mapFile, journalFile);
       this.clock = clock;
+      this.canonicalizeKeys = canonicalizeKeys;
       nextUpdate = clock.nanoTime();
       load(/*throwOnLoadFailure=*/true);
     }
@@ -94,7 +106,8 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
       }
       byte[] content = new byte[length];
       in.readFully(content);
-      return StringCanonicalizer.intern(bytes2string(content));
+      String key = bytes2string(content);
+      return canonicalizeKeys ? StringCanonicalizer.intern(key) : key;
     }
 
     @Override
@@ -116,6 +129,7 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
   }
 
   private final PersistentIndexMap persistentIndexMap;
+  @Nullable private final PrimitiveStringTable table;
   private static final int INITIAL_ENTRIES = 10000;
 
   /**
@@ -123,21 +137,57 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
    */
   static PersistentStringIndexer newPersistentStringIndexer(Path dataPath,
                                                             Clock clock) throws IOException {
-    PersistentIndexMap persistentIndexMap = new PersistentIndexMap(dataPath,
-        FileSystemUtils.replaceExtension(dataPath, ".journal"), clock);
+    return newPersistentStringIndexer(dataPath, clock, false);
+  }
+
+  /**
+   * Instantiates and loads instance of the persistent string indexer.
+   *
+   * @param offHeap whether to keep the strings in a direct {@link PrimitiveStringTable} instead
+   *     of a pair of concurrent maps
+   */
+  static PersistentStringIndexer newPersistentStringIndexer(Path dataPath, Clock clock,
+      boolean offHeap) throws IOException {
+    Path journalPath = FileSystemUtils.replaceExtension(dataPath, ".journal");
+    if (offHeap) {
+      PrimitiveStringTable table = new PrimitiveStringTable(INITIAL_ENTRIES, /*direct=*/true);
+      PersistentIndexMap persistentIndexMap;
+      try {
+        // The table rejects conflicting entries as they are loaded.
+        persistentIndexMap = new PersistentIndexMap(table.asMap(), /*canonicalizeKeys=*/false,
+            dataPath, journalPath, clock);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Corrupted filename index has duplicate entry: " + e.getMessage());
+      }
+      return new PersistentStringIndexer(persistentIndexMap, table.asReverseMap(), table);
+    }
+
+    PersistentIndexMap persistentIndexMap = new PersistentIndexMap(
+        PersistentStringIndexer.<String, Integer>newConcurrentMap(INITIAL_ENTRIES),
+        /*canonicalizeKeys=*/true, dataPath, journalPath, clock);
     Map<Integer, String> reverseMapping = newConcurrentMap(INITIAL_ENTRIES);
     for (Map.Entry<String, Integer> entry : persistentIndexMap.entrySet()) {
       if (reverseMapping.put(entry.getValue(), entry.getKey()) != null) {
         throw new IOException("Corrupted filename index has duplicate entry: " + entry.getKey());
       }
     }
-    return new PersistentStringIndexer(persistentIndexMap, reverseMapping);
+    return new PersistentStringIndexer(persistentIndexMap, reverseMapping, null);
   }
 
   private PersistentStringIndexer(PersistentIndexMap stringToInt,
-                                  Map<Integer, String> intToString) {
+                                  Map<Integer, String> intToString,
+                                  @Nullable PrimitiveStringTable table) {
     super(stringToInt, intToString);
     this.persistentIndexMap = stringToInt;
+    this.table = table;
+  }
+
+  /**
+   * Returns the number of bytes held outside of the Java heap, or 0 if the strings are kept on the
+   * heap.
+   */
+  long getOffHeapBytes() {
+    return table == null ? 0 : table.getFootprintBytes();
   }
 
   /**
@@ -50,7 +50,9 @@ public final class BazelMain {
           com.google.devtools.build.lib.remote.RemoteModule.class,
           com.google.devtools.build.lib.standalone.StandaloneModule.class,
           com.google.devtools.build.lib.sandbox.SandboxModule.class,
-          com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class);
+          com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class,
+          com.google.devtools.build.lib.runtime.ActionHistoryModule.class,
+          com.google.devtools.build.lib.runtime.ReverseDepsIndexModule.class);
 
   public static void main(String[] args) {
     BlazeVersionInfo.setBuildInfo(tryGetBuildInfo());
@@ -19,6 +19,7 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Supplier;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -195,7 +196,9 @@ public class ExecutionTool {
                 env.getReporter(), env.getWorkspaceName()),
             new SimpleActionContextProvider(
                 new SymlinkTreeStrategy(
-                    env.getOutputService(), env.getBlazeWorkspace().getBinTools())));
+                    env.getOutputService(),
+                    env.getBlazeWorkspace().getBinTools(),
+                    request.getOptions(ExecutionOptions.class).inprocessSymlinkCreation)));
     StrategyConverter strategyConverter = new StrategyConverter(actionContextProviders);
 
     ImmutableList<ActionContextConsumer> actionContextConsumers =
@@ -702,6 +705,14 @@ public class ExecutionTool {
         request.getExecutionOptions().usingLocalTestJobs()
             ? request.getExecutionOptions().localTestJobs : Integer.MAX_VALUE
     ));
+    resourceMgr.setFreeMemorySupplier(options.localMemoryAdmission
+        ? new Supplier<Double>() {
+            @Override
+            public Double get() {
+              return LocalHostCapacity.getFreeMemoryMb();
+            }
+          }
+        : null);
   }
 
   /**
@@ -187,6 +187,53 @@ public class ExecutionOptions extends OptionsBase {
       )
   public ResourceSet availableResources;
 
+  @Option(name = "experimental_critical_path_scheduling",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, actions that wait for local resources are started in the order of their "
+          + "remaining critical path in earlier builds, longest first, instead of the order in "
+          + "which they became ready. The estimates are kept in the output base."
+  )
+  public boolean criticalPathScheduling;
+
+  @Option(name = "experimental_action_history",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, the wall time of every executed action is recorded in the output base, "
+          + "along with the CPU time, peak memory and disk I/O of actions run by the standalone "
+          + "strategy. Use the 'action-history' command to show what was recorded."
+  )
+  public boolean actionHistory;
+
+  @Option(name = "experimental_measured_resource_estimates",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, the memory and CPU reserved for local actions are moving averages of "
+          + "what actions with the same mnemonic were measured to use, once there are enough "
+          + "measurements, instead of the fixed estimates of the actions. Measurements are taken "
+          + "as with --experimental_action_history, and kept in the action history."
+  )
+  public boolean measuredResourceEstimates;
+
+  @Option(name = "experimental_local_memory_admission",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, local actions only start while the host has the memory reserved for "
+          + "them free, in addition to the limit of --local_resources or "
+          + "--ram_utilization_factor. The limit of the memory cgroup of the server counts too. "
+          + "Only has an effect on Linux."
+  )
+  public boolean localMemoryAdmission;
+
+  @Option(name = "experimental_inprocess_symlink_creation",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, runfiles and Fileset symlink trees are created by Blaze itself instead of "
+          + "the build-runfiles tool, and only the links that changed since the last build are "
+          + "touched. Does not apply on Windows or with Windows-compatible symlinks."
+  )
+  public boolean inprocessSymlinkCreation;
+
   @Option(name = "local_test_jobs",
       defaultValue = "0",
       category = "testing",
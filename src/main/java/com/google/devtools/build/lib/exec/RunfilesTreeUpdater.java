@@ -0,0 +1,320 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates a symlink tree from a manifest in the format of the build-runfiles tool, without
+ * starting it.
+ *
+ * <p>build-runfiles scans the whole tree on every run to find what differs from the manifest. This
+ * class instead compares the manifest with the copy of the previous manifest that it left in the
+ * tree, and only deletes and creates the entries that changed. The copy is only trusted if the
+ * marker file next to it holds its fingerprint, which is written once the tree was made to match
+ * it. Otherwise the tree is created from scratch: an earlier update may have failed halfway, or
+ * only written the manifest because runfiles were disabled, or the manifest may come from {@code
+ * build-runfiles --manifest_only}.
+ *
+ * <p>Like build-runfiles, an entry with a target becomes a symbolic link to it, an entry without
+ * a target becomes an empty file, and a copy of the manifest is written to {@code MANIFEST} in the
+ * tree. Hard links and junctions for Windows are not supported.
+ */
+@ThreadSafe
+public final class RunfilesTreeUpdater {
+
+  /** Below this many new links, they are created by the calling thread alone. */
+  static final int MIN_PARALLEL_LINKS = 1000;
+
+  private static final String MANIFEST = "MANIFEST";
+  private static final String MARKER = "MANIFEST.materialized";
+
+  /** What an update did. */
+  public static final class Stats {
+    private final boolean fromScratch;
+    private final int deleted;
+    private final int created;
+
+    Stats(boolean fromScratch, int deleted, int created) {
+      this.fromScratch = fromScratch;
+      this.deleted = deleted;
+      this.created = created;
+    }
+
+    /** Whether the tree was created from scratch, because it did not match a previous manifest. */
+    public boolean isFromScratch() {
+      return fromScratch;
+    }
+
+    /** The number of files, links and directories that were deleted. */
+    public int getDeleted() {
+      return deleted;
+    }
+
+    /** The number of files, links and directories that were created. */
+    public int getCreated() {
+      return created;
+    }
+
+    @Override
+    public String toString() {
+      return (fromScratch ? "created from scratch, " : "")
+          + deleted + " entries deleted, " + created + " entries created";
+    }
+  }
+
+  /** The entries of a manifest and the directories that contain them. */
+  private static final class Tree {
+    // The target of each link; the empty string for empty files.
+    final SortedMap<PathFragment, String> links = new TreeMap<>();
+    final SortedSet<PathFragment> directories = new TreeSet<>();
+  }
+
+  private final int threads;
+
+  /**
+   * @param threads the number of threads that create links if there are many new ones
+   */
+  public RunfilesTreeUpdater(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Updates the symlink tree under {@code root} to match the given manifest.
+   *
+   * @param inputManifest the manifest to create the tree from
+   * @param root the root directory of the tree
+   * @param filesetTree whether this is a Fileset tree, whose manifests have a metadata line after
+   *     every entry and may contain relative targets
+   * @param enableRunfiles if false, only the manifest is written and the tree is left empty
+   * @throws IOException if the manifest is malformed or the tree could not be changed
+   */
+  public Stats update(Path inputManifest, Path root, boolean filesetTree, boolean enableRunfiles)
+      throws IOException, InterruptedException {
+    List<String> lines = Lists.newArrayList(FileSystemUtils.readLines(inputManifest, ISO_8859_1));
+    Tree newTree = parse(inputManifest, lines, filesetTree);
+
+    FileSystemUtils.createDirectoryAndParents(root);
+    Path outputManifest = root.getChild(MANIFEST);
+    Path marker = root.getChild(MARKER);
+    Tree oldTree = null;
+    if (enableRunfiles && outputManifest.exists() && marker.exists()) {
+      try {
+        List<String> oldLines =
+            Lists.newArrayList(FileSystemUtils.readLines(outputManifest, ISO_8859_1));
+        if (fingerprint(oldLines).equals(new String(FileSystemUtils.readContentAsLatin1(marker)))) {
+          oldTree = parse(outputManifest, oldLines, filesetTree);
+        }
+      } catch (IOException e) {
+        // Unreadable or from a different kind of tree; start over.
+      }
+    }
+    // Without a marker, an interrupted update is detected by the next one.
+    marker.delete();
+    outputManifest.delete();
+
+    Stats stats;
+    if (!enableRunfiles) {
+      // Links left over from when runfiles were enabled are not in the manifest.
+      FileSystemUtils.deleteTreesBelow(root);
+      stats = new Stats(true, 0, 0);
+    } else if (oldTree == null) {
+      FileSystemUtils.deleteTreesBelow(root);
+      stats = new Stats(true, 0, create(root, new Tree(), newTree));
+    } else {
+      int deleted = delete(root, oldTree, newTree);
+      stats = new Stats(false, deleted, create(root, oldTree, newTree));
+    }
+
+    Path tmp = root.getChild(MANIFEST + ".tmp");
+    FileSystemUtils.writeLinesAs(tmp, ISO_8859_1, lines);
+    tmp.renameTo(outputManifest);
+    if (enableRunfiles) {
+      FileSystemUtils.writeContentAsLatin1(marker, fingerprint(lines));
+    }
+    return stats;
+  }
+
+  private static String fingerprint(List<String> lines) {
+    Hasher hasher = Hashing.md5().newHasher();
+    for (String line : lines) {
+      hasher.putString(line, ISO_8859_1).putByte((byte) '\n');
+    }
+    return hasher.hash().toString();
+  }
+
+  private static Tree parse(Path manifest, List<String> lines, boolean filesetTree)
+      throws IOException {
+    Tree tree = new Tree();
+    for (int i = 0; i < lines.size(); i++) {
+      // Every other line of a Fileset manifest is metadata, which is only used for dependency
+      // checking.
+      if (filesetTree && i % 2 == 1) {
+        continue;
+      }
+      String line = lines.get(i);
+      int space = line.indexOf(' ');
+      if (space < 0) {
+        throw malformed(manifest, i, "missing field delimiter", line);
+      } else if (line.indexOf(' ', space + 1) >= 0) {
+        throw malformed(manifest, i, "link or target filename contains space", line);
+      }
+      PathFragment link = new PathFragment(line.substring(0, space));
+      String target = line.substring(space + 1);
+      if (link.isAbsolute() || link.containsUplevelReferences() || link.segmentCount() == 0) {
+        throw malformed(manifest, i, "paths must be relative and normalized", line);
+      }
+      if (!filesetTree && !target.isEmpty() && !new PathFragment(target).isAbsolute()) {
+        throw malformed(manifest, i, "expected absolute path", line);
+      }
+      tree.links.put(link, target);
+      for (PathFragment dir = link.getParentDirectory();
+          dir.segmentCount() > 0 && tree.directories.add(dir);
+          dir = dir.getParentDirectory()) {}
+    }
+    return tree;
+  }
+
+  private static IOException malformed(Path manifest, int index, String problem, String line) {
+    return new IOException(
+        String.format("%s at line %d of %s: '%s'", problem, index + 1, manifest, line));
+  }
+
+  /**
+   * Deletes the entries of the old tree that are not in the new one, or differ. Returns the number
+   * of deleted entries, not counting those inside deleted directories.
+   */
+  private static int delete(Path root, Tree oldTree, Tree newTree) throws IOException {
+    SortedSet<PathFragment> obsolete = new TreeSet<>();
+    for (Map.Entry<PathFragment, String> link : oldTree.links.entrySet()) {
+      if (!link.getValue().equals(newTree.links.get(link.getKey()))) {
+        obsolete.add(link.getKey());
+      }
+    }
+    for (PathFragment dir : oldTree.directories) {
+      if (!newTree.directories.contains(dir)) {
+        obsolete.add(dir);
+      }
+    }
+    // Parents sort before their children, so everything inside a deleted directory is skipped.
+    int deleted = 0;
+    PathFragment deletedDir = null;
+    for (PathFragment path : obsolete) {
+      if (deletedDir != null && path.startsWith(deletedDir)) {
+        continue;
+      }
+      Path file = root.getRelative(path);
+      if (oldTree.directories.contains(path)) {
+        FileSystemUtils.deleteTree(file);
+        deletedDir = path;
+      } else {
+        file.getParentDirectory().setWritable(true);
+        file.delete();
+      }
+      deleted++;
+    }
+    return deleted;
+  }
+
+  /**
+   * Creates the entries of the new tree that the old tree does not have. Returns the number of
+   * created entries.
+   */
+  private int create(final Path root, Tree oldTree, Tree newTree)
+      throws IOException, InterruptedException {
+    int created = 0;
+    for (PathFragment dir : newTree.directories) {
+      if (!oldTree.directories.contains(dir)) {
+        root.getRelative(dir).createDirectory();
+        created++;
+      }
+    }
+    final List<Map.Entry<PathFragment, String>> links = new ArrayList<>();
+    for (Map.Entry<PathFragment, String> link : newTree.links.entrySet()) {
+      if (!Objects.equals(link.getValue(), oldTree.links.get(link.getKey()))) {
+        links.add(link);
+      }
+    }
+    if (threads <= 1 || links.size() < MIN_PARALLEL_LINKS) {
+      createLinks(root, links);
+      return created + links.size();
+    }
+
+    // Links in the same directory go to the same thread, so that threads rarely contend for the
+    // same directory.
+    List<Callable<Void>> parts = new ArrayList<>();
+    for (final List<Map.Entry<PathFragment, String>> part :
+        Iterables.partition(links, (links.size() + threads - 1) / threads)) {
+      parts.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          createLinks(root, part);
+          return null;
+        }
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Void> future : executor.invokeAll(parts)) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return created + links.size();
+  }
+
+  private static void createLinks(Path root, List<Map.Entry<PathFragment, String>> links)
+      throws IOException {
+    for (Map.Entry<PathFragment, String> link : links) {
+      Path path = root.getRelative(link.getKey());
+      if (link.getValue().isEmpty()) {
+        FileSystemUtils.createEmptyFile(path);
+        path.setWritable(false);
+        path.setExecutable(true);
+      } else {
+        path.createSymbolicLink(new PathFragment(link.getValue()));
+      }
+    }
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.actions.AbstractAction;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.BaseSpawn;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
@@ -36,6 +37,7 @@ import com.google.devtools.build.lib.vfs.UnixFileSystem;
 import com.google.devtools.build.lib.vfs.UnixFileSystem.SymlinkStrategy;
 import com.google.devtools.build.lib.vfs.WindowsFileSystem;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -54,6 +56,12 @@ public final class SymlinkTreeHelper {
    */
   public static final ResourceSet RESOURCE_SET = ResourceSet.createWithRamCpuIo(1000, 0.5, 0.75);
 
+  /**
+   * Trees are created one at a time because of {@link #RESOURCE_SET}, so a large one may as well
+   * use a few threads.
+   */
+  private static final RunfilesTreeUpdater UPDATER = new RunfilesTreeUpdater(4);
+
   private final PathFragment inputManifest;
   private final PathFragment symlinkTreeRoot;
   private final boolean filesetTree;
@@ -134,6 +142,36 @@ public final class SymlinkTreeHelper {
     }
   }
 
+  /**
+   * Creates the symlink tree without running build-runfiles, changing only the links that differ
+   * from the last time the tree was created. Returns {@code null} if that is not supported for the
+   * file system of the exec root, in which case the caller should fall back to
+   * {@link #createSymlinks}.
+   *
+   * <p>Like {@link #createSymlinks}, this may block while acquiring resources.
+   */
+  public RunfilesTreeUpdater.Stats createSymlinksInProcess(
+      AbstractAction action, Path execRoot, boolean enableRunfiles)
+      throws ExecException, InterruptedException {
+    if (isWindowsCompatible(execRoot.getFileSystem())) {
+      return null;
+    }
+    try (ResourceHandle handle =
+        ResourceManager.instance().acquireResources(action, RESOURCE_SET)) {
+      return UPDATER.update(execRoot.getRelative(inputManifest),
+          execRoot.getRelative(symlinkTreeRoot), filesetTree, enableRunfiles);
+    } catch (IOException e) {
+      throw new EnvironmentalExecException(
+          "failed to create symlink tree " + symlinkTreeRoot + ": " + e.getMessage(), e);
+    }
+  }
+
+  private static boolean isWindowsCompatible(FileSystem fs) {
+    return (fs instanceof WindowsFileSystem)
+        || (fs instanceof UnixFileSystem
+            && ((UnixFileSystem) fs).getSymlinkStrategy() == SymlinkStrategy.WINDOWS_COMPATIBLE);
+  }
+
   /**
    * Returns the complete argument list build-runfiles has to be called with.
    */
@@ -157,10 +195,7 @@ public final class SymlinkTreeHelper {
       args.add("--use_metadata");
     }
 
-    FileSystem fs = execRoot.getFileSystem();
-    if ((fs instanceof WindowsFileSystem)
-        || (fs instanceof UnixFileSystem
-            && ((UnixFileSystem) fs).getSymlinkStrategy() == SymlinkStrategy.WINDOWS_COMPATIBLE)) {
+    if (isWindowsCompatible(execRoot.getFileSystem())) {
       args.add("--windows_compatible");
     }
 
@@ -28,8 +28,8 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import java.util.logging.Logger;
 
 /**
- * Implements SymlinkTreeAction by using the output service or by running an embedded script to
- * create the symlink tree.
+ * Implements SymlinkTreeAction by using the output service, by running an embedded script or, with
+ * {@code --experimental_inprocess_symlink_creation}, by updating the symlink tree in process.
  */
 @ExecutionStrategy(contextType = SymlinkTreeActionContext.class)
 public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
@@ -37,10 +37,20 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
 
   private final OutputService outputService;
   private final BinTools binTools;
+  private final boolean inprocess;
 
   public SymlinkTreeStrategy(OutputService outputService, BinTools binTools) {
+    this(outputService, binTools, false);
+  }
+
+  /**
+   * @param inprocess whether to create symlink trees without running build-runfiles, if the file
+   *     system allows it
+   */
+  public SymlinkTreeStrategy(OutputService outputService, BinTools binTools, boolean inprocess) {
     this.outputService = outputService;
     this.binTools = binTools;
+    this.inprocess = inprocess;
   }
 
   @Override
@@ -64,13 +74,20 @@ public final class SymlinkTreeStrategy implements SymlinkTreeActionContext {
               action.getOutputManifest().getPath(),
               action.isFilesetTree(), helper.getSymlinkTreeRoot());
         } else {
-          helper.createSymlinks(
-              action,
-              actionExecutionContext,
-              binTools,
-              shExecutable,
-              shellEnvironment,
-              enableRunfiles);
+          RunfilesTreeUpdater.Stats stats = inprocess
+              ? helper.createSymlinksInProcess(action, executor.getExecRoot(), enableRunfiles)
+              : null;
+          if (stats != null) {
+            LOG.fine(helper.getSymlinkTreeRoot() + ": " + stats);
+          } else {
+            helper.createSymlinks(
+                action,
+                actionExecutionContext,
+                binTools,
+                shExecutable,
+                shellEnvironment,
+                enableRunfiles);
+          }
         }
       } catch (ExecException e) {
         throw e.toActionExecutionException(
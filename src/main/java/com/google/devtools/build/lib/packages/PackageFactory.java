@@ -63,6 +63,7 @@ import com.google.devtools.build.lib.syntax.SkylarkSignatureProcessor;
 import com.google.devtools.build.lib.syntax.Statement;
 import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.syntax.Type.ConversionException;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -328,6 +329,7 @@ public final class PackageFactory {
 
   private final ThreadPoolExecutor threadPool;
   private Map<String, String> platformSetRegexps;
+  private volatile boolean skylarkCompiler;
 
   private final ImmutableList<EnvironmentExtension> environmentExtensions;
   private final ImmutableMap<String, PackageArgument<?>> packageArguments;
@@ -423,6 +425,14 @@ public final class PackageFactory {
     threadPool.setMaximumPoolSize(globbingThreads);
   }
 
+  /**
+   * Sets whether the Skylark functions that BUILD files call are compiled to byte code once they
+   * are hot. A package keeps the setting it was started with.
+   */
+  public void setSkylarkCompiler(boolean skylarkCompiler) {
+    this.skylarkCompiler = skylarkCompiler;
+  }
+
 
   /**
    * Returns the immutable, unordered set of names of all the known rule
@@ -1556,13 +1566,16 @@ public final class PackageFactory {
     StoredEventHandler eventHandler = new StoredEventHandler();
 
     try (Mutability mutability = Mutability.create("package %s", packageId)) {
-      Environment pkgEnv = Environment.builder(mutability)
+      Environment.Builder pkgEnvBuilder = Environment.builder(mutability)
           .setGlobals(Environment.BUILD)
           .setEventHandler(eventHandler)
           .setImportedExtensions(imports)
           .setToolsRepository(ruleClassProvider.getToolsRepository())
-          .setPhase(Phase.LOADING)
-          .build();
+          .setPhase(Phase.LOADING);
+      if (skylarkCompiler) {
+        pkgEnvBuilder.enableCompiler(UserDefinedFunction.DEFAULT_COMPILATION_THRESHOLD);
+      }
+      Environment pkgEnv = pkgEnvBuilder.build();
 
       pkgBuilder.setFilename(buildFilePath)
           .setMakeEnv(pkgMakeEnv)
@@ -144,6 +144,23 @@ public class PackageCacheOptions extends OptionsBase {
             + "this flag to false to see the effect on incremental build times.")
   public boolean checkOutputFiles;
 
+  @Option(name = "experimental_filesystem_snapshot",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the file system state known to the server is written to the output base "
+          + "when the server is idle or shuts down, and loaded again by the next server, which then "
+          + "only needs to check it for changes instead of recomputing it.")
+  public boolean fileSystemSnapshot;
+
+  @Option(name = "experimental_skylark_compiler",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Skylark functions that BUILD files call often are compiled to Java byte "
+          + "code. "
+          + "Functions the compiler does not support are still interpreted. Packages that were "
+          + "already loaded are not reloaded when this changes.")
+  public boolean skylarkCompiler;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
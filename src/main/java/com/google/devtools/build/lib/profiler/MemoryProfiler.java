@@ -59,6 +59,16 @@ public final class MemoryProfiler {
     }
   }
 
+  /**
+   * Records a named measurement in the current phase, e.g. the size of a data structure that is
+   * not on the heap, or the time it took to load it.
+   */
+  public synchronized void logValue(String name, long value) {
+    if (memoryProfile != null) {
+      memoryProfile.println(currentPhase.description + ":" + name + ":" + value);
+    }
+  }
+
   public synchronized void markPhase(ProfilePhase nextPhase) {
     if (memoryProfile != null) {
       String name = currentPhase.description;
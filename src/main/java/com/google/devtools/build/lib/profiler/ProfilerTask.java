@@ -90,6 +90,10 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  DIGEST("file digest computation", 10000000, 0x996699, 30),
+  SANDBOX_SETUP("sandbox setup", 10000000, 0x669966, 30),
+  SANDBOX_CLEANUP("sandbox cleanup", 10000000, 0x996666, 0),
+  VFS_DIGEST("VFS digest", 10000000, 0x999999, 30, true),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
@@ -57,7 +57,7 @@ public class AggregatingChartCreator implements ChartCreator {
       EnumSet.of(ProfilerTask.VFS_STAT, ProfilerTask.VFS_DIR, ProfilerTask.VFS_READLINK,
           ProfilerTask.VFS_MD5, ProfilerTask.VFS_DELETE, ProfilerTask.VFS_OPEN,
           ProfilerTask.VFS_READ, ProfilerTask.VFS_WRITE, ProfilerTask.VFS_GLOB,
-          ProfilerTask.VFS_XATTR);
+          ProfilerTask.VFS_XATTR, ProfilerTask.VFS_DIGEST);
 
   /** The data of the profiled build. */
   private final ProfileInfo info;
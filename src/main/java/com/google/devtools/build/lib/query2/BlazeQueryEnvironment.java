@@ -20,12 +20,16 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.ResolvedTargets;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.cmdline.TargetPattern;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.graph.Node;
 import com.google.devtools.build.lib.packages.Attribute;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
 import com.google.devtools.build.lib.packages.OutputFile;
 import com.google.devtools.build.lib.packages.Package;
@@ -38,12 +42,18 @@ import com.google.devtools.build.lib.pkgcache.TargetProvider;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.FunctionExpression;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AbstractUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllCallback;
+import com.google.devtools.build.lib.query2.engine.RdepsFunction;
 import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
+import com.google.devtools.build.lib.query2.engine.TargetLiteral;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -59,22 +69,27 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 /**
  * The environment of a Blaze query. Not thread-safe.
  */
 public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
 
   private static final int MAX_DEPTH_FULL_SCAN_LIMIT = 20;
+  private static final String ALL_PACKAGES_PATTERN = "//...";
   private final Map<String, Set<Target>> resolvedTargetPatterns = new HashMap<>();
   private final TargetPatternEvaluator targetPatternEvaluator;
   private final TransitivePackageLoader transitivePackageLoader;
   private final TargetProvider targetProvider;
+  private final PackageProvider packageProvider;
   private final Digraph<Target> graph = new Digraph<>();
   private final ErrorPrintingTargetEdgeErrorObserver errorObserver;
   private final LabelVisitor labelVisitor;
   protected final int loadingPhaseThreads;
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
+  @Nullable private ReverseDepsIndex reverseDepsIndex;
 
   /**
    * Note that the correct operation of this class critically depends on the Reporter being a
@@ -101,6 +116,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     this.targetPatternEvaluator = targetPatternEvaluator;
     this.transitivePackageLoader = transitivePackageLoader;
     this.targetProvider = packageProvider;
+    this.packageProvider = packageProvider;
     this.errorObserver = new ErrorPrintingTargetEdgeErrorObserver(this.eventHandler);
     this.loadingPhaseThreads = loadingPhaseThreads;
     this.labelVisitor = new LabelVisitor(packageProvider, dependencyFilter);
@@ -113,6 +129,118 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @Override
   public void close() {}
 
+  /**
+   * Makes {@code rdeps} in the universe of all packages of the main repository use the given
+   * index instead of building the graph of the transitive closure of the universe. The index is
+   * only used when query follows all kinds of dependencies, and the environment must not have a
+   * label filter.
+   */
+  public void setReverseDepsIndex(@Nullable ReverseDepsIndex reverseDepsIndex) {
+    this.reverseDepsIndex = reverseDepsIndex;
+  }
+
+  @Override
+  public QueryExpression transformParsedQuery(QueryExpression queryExpression) {
+    if (reverseDepsIndex == null || dependencyFilter != DependencyFilter.ALL_DEPS) {
+      return queryExpression;
+    }
+    final TargetPattern.Parser targetPatternParser =
+        new TargetPattern.Parser(targetPatternEvaluator.getOffset());
+    return queryExpression.getMapped(
+        new QueryExpressionMapper() {
+          @Override
+          public QueryExpression map(FunctionExpression functionExpression) {
+            FunctionExpression mapped = (FunctionExpression) super.map(functionExpression);
+            if (mapped.getFunction().getName().equals(new RdepsFunction().getName())) {
+              QueryExpression universe = mapped.getArgs().get(0).getExpression();
+              if (universe instanceof TargetLiteral
+                  && !((TargetLiteral) universe).isVariableReference()
+                  && targetPatternParser
+                      .absolutize(((TargetLiteral) universe).getPattern())
+                      .equals(ALL_PACKAGES_PATTERN)) {
+                return new FunctionExpression(new IndexedRdepsFunction(), mapped.getArgs());
+              }
+            }
+            return mapped;
+          }
+        });
+  }
+
+  /** An {@code rdeps} function that looks up the reverse dependencies in the index. */
+  private class IndexedRdepsFunction implements QueryFunction {
+    private final QueryFunction rdeps = new RdepsFunction();
+
+    @Override
+    public String getName() {
+      return rdeps.getName();
+    }
+
+    @Override
+    public int getMandatoryArguments() {
+      return rdeps.getMandatoryArguments();
+    }
+
+    @Override
+    public Iterable<ArgumentType> getArgumentTypes() {
+      return rdeps.getArgumentTypes();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> void eval(
+        QueryEnvironment<T> env, QueryExpression expression, List<Argument> args,
+        Callback<T> callback) throws QueryException, InterruptedException {
+      Preconditions.checkState(env == BlazeQueryEnvironment.this);
+      evalIndexedRdeps(expression, args, (Callback<Target>) callback);
+    }
+  }
+
+  private void evalIndexedRdeps(
+      QueryExpression expression, List<Argument> args, Callback<Target> callback)
+      throws QueryException, InterruptedException {
+    Map<PackageIdentifier, Package> packages = new HashMap<>();
+    for (Target target : QueryUtil.evalAll(this, args.get(0).getExpression())) {
+      packages.put(target.getLabel().getPackageIdentifier(), target.getPackage());
+    }
+    try {
+      reverseDepsIndex.update(packages.values(), packageProvider, eventHandler);
+    } catch (NoSuchPackageException e) {
+      // The closure of the universe is broken; rdeps reports the error, or skips the package if
+      // --keep_going is set.
+      new RdepsFunction().eval(this, expression, args, callback);
+      return;
+    }
+
+    Map<Label, Target> targets = new HashMap<>();
+    for (Target target : QueryUtil.evalAll(this, args.get(1).getExpression())) {
+      targets.put(target.getLabel(), target);
+    }
+    int depth = args.size() > 2 ? args.get(2).getInteger() : Integer.MAX_VALUE;
+    Map<Label, Collection<Label>> reverseDeps =
+        reverseDepsIndex.getReverseDeps(ImmutableSet.copyOf(targets.keySet()), depth);
+
+    Map<Label, Target> result = new HashMap<>();
+    for (Label label : reverseDeps.keySet()) {
+      Target target = targets.get(label);
+      try {
+        if (target == null) {
+          Package pkg = packages.get(label.getPackageIdentifier());
+          target = pkg != null ? pkg.getTarget(label.getName()) : getTargetOrThrow(label);
+        }
+      } catch (NoSuchThingException e) {
+        throw new QueryException(expression, e.getMessage());
+      }
+      result.put(label, getOrCreate(target));
+    }
+    // Preservation of graph order, like for the targets of a wildcard.
+    for (Map.Entry<Label, Collection<Label>> entry : reverseDeps.entrySet()) {
+      for (Label dep : entry.getValue()) {
+        makeEdge(result.get(entry.getKey()), result.get(dep));
+      }
+    }
+    callback.process(result.values());
+  }
+
   @Override
   public DigraphQueryEvalResult<Target> evaluateQuery(QueryExpression expr,
       final Callback<Target> callback) throws QueryException, InterruptedException {
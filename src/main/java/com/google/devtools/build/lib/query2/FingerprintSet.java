@@ -0,0 +1,106 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A set of 128-bit fingerprints, kept in flat arrays of longs rather than as objects.
+ *
+ * <p>Takes 32 to 64 bytes per element and holds no references, so that remembering which of
+ * millions of targets were seen costs far less heap and garbage collection work than a set of
+ * the targets or their labels would. Two elements with the same fingerprint are the same for this
+ * set; with 128 bits, that is vanishingly unlikely for different elements.
+ *
+ * <p>The set is split into stripes by the fingerprint, each of which is an open-addressing hash
+ * table with its own lock.
+ */
+@ThreadSafe
+final class FingerprintSet {
+  private static final int STRIPE_BITS = 6;
+  private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+  private static final class Stripe {
+    // Pairs of longs, with (0, 0) marking an empty slot.
+    private long[] table = new long[INITIAL_STRIPE_CAPACITY * 2];
+    private int size;
+
+    synchronized boolean add(long high, long low) {
+      if ((size + 1) * 2 > table.length / 2) {
+        resize();
+      }
+      if (insert(table, high, low)) {
+        size++;
+        return true;
+      }
+      return false;
+    }
+
+    private void resize() {
+      long[] newTable = new long[table.length * 2];
+      for (int i = 0; i < table.length; i += 2) {
+        if (table[i] != 0 || table[i + 1] != 0) {
+          insert(newTable, table[i], table[i + 1]);
+        }
+      }
+      table = newTable;
+    }
+
+    /** Inserts the pair unless present. The table must have an empty slot. */
+    private static boolean insert(long[] table, long high, long low) {
+      int mask = table.length / 2 - 1;
+      for (int slot = (int) low & mask; ; slot = (slot + 1) & mask) {
+        long slotHigh = table[slot * 2];
+        long slotLow = table[slot * 2 + 1];
+        if (slotHigh == 0 && slotLow == 0) {
+          table[slot * 2] = high;
+          table[slot * 2 + 1] = low;
+          return true;
+        }
+        if (slotHigh == high && slotLow == low) {
+          return false;
+        }
+      }
+    }
+  }
+
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  FingerprintSet() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Adds the given fingerprint, and returns whether it was not in the set before.
+   *
+   * @param fingerprint a hash code of 128 bits
+   */
+  boolean add(HashCode fingerprint) {
+    Preconditions.checkArgument(fingerprint.bits() == 128, fingerprint);
+    ByteBuffer bytes = ByteBuffer.wrap(fingerprint.asBytes());
+    long high = bytes.getLong();
+    long low = bytes.getLong();
+    if (high == 0 && low == 0) {
+      // (0, 0) marks empty slots.
+      low = 1;
+    }
+    return stripes[(int) (high >>> (Long.SIZE - STRIPE_BITS))].add(high, low);
+  }
+}
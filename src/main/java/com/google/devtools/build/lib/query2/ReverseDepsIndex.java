@@ -0,0 +1,381 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.packages.BuildType;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
+import com.google.devtools.build.lib.packages.OutputFile;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageGroup;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.pkgcache.PackageProvider;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The direct dependencies of every target in the packages of a universe and in the packages they
+ * transitively depend on, from which the reverse dependencies of any target in the transitive
+ * closure of the universe can be found without building a graph of the closure.
+ *
+ * <p>Labels are numbered, and the dependencies of a target are kept as an array of label numbers.
+ * The numbers of labels that no package uses any more are reclaimed once they are the majority.
+ * The index is updated one package at a time: a package that Skyframe did not reload since the
+ * last update is the same {@link Package} instance and is not looked at again.
+ *
+ * <p>The index is only kept in memory, in the server. An entry read back from disk could only be
+ * trusted after loading its package and comparing the two, and loading the packages is what most
+ * of the time of an update goes to, so a copy on disk would save little after a restart.
+ *
+ * <p>Dependencies are those that {@code query} follows with all dependency kinds enabled. Like in
+ * {@link SkyQueryEnvironment}, a rule depends on every label that an aspect of one of its
+ * attributes may add, whether or not the aspect applies to the dependency.
+ */
+@ThreadSafe
+public final class ReverseDepsIndex {
+  private static final int[] NO_LABELS = new int[0];
+
+  /** The targets of one package and their direct dependencies. */
+  private static final class PackageEntry {
+    /** A hash of the labels of the targets and their dependencies, independent of numbering. */
+    final long fingerprint;
+    final int[] targets;
+    final BitSet rules;
+    final int[][] deps;
+    /** The other packages that the targets depend on. */
+    final ImmutableSet<PackageIdentifier> depPackages;
+
+    PackageEntry(
+        long fingerprint,
+        int[] targets,
+        BitSet rules,
+        int[][] deps,
+        ImmutableSet<PackageIdentifier> depPackages) {
+      this.fingerprint = fingerprint;
+      this.targets = targets;
+      this.rules = rules;
+      this.deps = deps;
+      this.depPackages = depPackages;
+    }
+  }
+
+  private final List<String> labels = new ArrayList<>();
+  private final Map<String, Integer> labelIds = new HashMap<>();
+  private final Map<PackageIdentifier, PackageEntry> packages = new HashMap<>();
+  // The loaded package each entry was last compared with.
+  private final Map<PackageIdentifier, Package> sources = new HashMap<>();
+  private final Set<PackageIdentifier> universe = new HashSet<>();
+
+  // Derived from the packages, and rebuilt on first use after they change.
+  private int[][] reverseDeps;
+  private int[][] directDeps;
+  private BitSet closure;
+
+  /**
+   * Makes the index describe exactly the packages of the given universe and the packages they
+   * transitively depend on, which are loaded from the given provider. Packages that were indexed
+   * before and did not change are kept as they are.
+   *
+   * <p>If a package cannot be loaded, the exception is thrown and the index is left as it was.
+   */
+  public synchronized void update(
+      Collection<Package> universePackages, PackageProvider packageProvider,
+      EventHandler eventHandler) throws NoSuchPackageException, InterruptedException {
+    Map<PackageIdentifier, Package> newSources = new HashMap<>();
+    Map<PackageIdentifier, PackageEntry> newPackages = new HashMap<>();
+    Deque<PackageIdentifier> pending = new ArrayDeque<>();
+    for (Package pkg : universePackages) {
+      newSources.put(pkg.getPackageIdentifier(), pkg);
+      pending.add(pkg.getPackageIdentifier());
+    }
+    Set<PackageIdentifier> newUniverse = new HashSet<>(newSources.keySet());
+    while (!pending.isEmpty()) {
+      PackageIdentifier id = pending.remove();
+      Package pkg = newSources.get(id);
+      if (pkg == null) {
+        pkg = packageProvider.getPackage(eventHandler, id);
+        newSources.put(id, pkg);
+      }
+      PackageEntry entry = packages.get(id);
+      if (sources.get(id) != pkg) {
+        PackageEntry newEntry = indexPackage(pkg);
+        if (entry == null || entry.fingerprint != newEntry.fingerprint) {
+          entry = newEntry;
+        }
+      }
+      newPackages.put(id, entry);
+      for (PackageIdentifier dep : entry.depPackages) {
+        if (!newSources.containsKey(dep)) {
+          newSources.put(dep, null);
+          pending.add(dep);
+        }
+      }
+    }
+    boolean changed =
+        !universe.equals(newUniverse) || !packages.keySet().equals(newPackages.keySet());
+    for (Map.Entry<PackageIdentifier, PackageEntry> entry : newPackages.entrySet()) {
+      changed |= packages.get(entry.getKey()) != entry.getValue();
+    }
+    packages.clear();
+    packages.putAll(newPackages);
+    sources.clear();
+    sources.putAll(newSources);
+    universe.clear();
+    universe.addAll(newUniverse);
+    if (changed) {
+      reverseDeps = null;
+    }
+  }
+
+  private PackageEntry indexPackage(Package pkg) {
+    Collection<Target> targets = pkg.getTargets();
+    int[] targetIds = new int[targets.size()];
+    BitSet rules = new BitSet();
+    int[][] deps = new int[targets.size()][];
+    Hasher fingerprint = Hashing.murmur3_128().newHasher();
+    Set<PackageIdentifier> depPackages = new HashSet<>();
+    int t = 0;
+    for (Target target : targets) {
+      String label = target.getLabel().toString();
+      targetIds[t] = getLabelId(label);
+      rules.set(t, target instanceof Rule);
+      fingerprint.putString(label, UTF_8).putBoolean(target instanceof Rule);
+      ImmutableSortedSet<Label> depLabels = getDeps(target);
+      deps[t] = depLabels.isEmpty() ? NO_LABELS : new int[depLabels.size()];
+      int d = 0;
+      for (Label dep : depLabels) {
+        String depLabel = dep.toString();
+        deps[t][d++] = getLabelId(depLabel);
+        fingerprint.putString(depLabel, UTF_8);
+        depPackages.add(dep.getPackageIdentifier());
+      }
+      fingerprint.putInt(d);
+      t++;
+    }
+    depPackages.remove(pkg.getPackageIdentifier());
+    return new PackageEntry(
+        fingerprint.hash().asLong(), targetIds, rules, deps, ImmutableSet.copyOf(depPackages));
+  }
+
+  /** Returns the labels that {@code query} follows from the target with all dependencies. */
+  private static ImmutableSortedSet<Label> getDeps(Target target) {
+    ImmutableSortedSet.Builder<Label> deps = ImmutableSortedSet.naturalOrder();
+    if (target instanceof Rule) {
+      Rule rule = (Rule) target;
+      deps.addAll(rule.getTransitions(DependencyFilter.ALL_DEPS).values());
+      deps.addAll(rule.getAspectLabelsSuperset(DependencyFilter.ALL_DEPS));
+      if (rule.getRuleClassObject().hasAttr("visibility", BuildType.NODEP_LABEL_LIST)) {
+        deps.addAll(rule.getVisibility().getDependencyLabels());
+      }
+    } else if (target instanceof PackageGroup) {
+      deps.addAll(((PackageGroup) target).getIncludes());
+    } else {
+      if (target instanceof OutputFile) {
+        deps.add(((OutputFile) target).getGeneratingRule().getLabel());
+      }
+      deps.addAll(target.getVisibility().getDependencyLabels());
+    }
+    return deps.build();
+  }
+
+  private int getLabelId(String label) {
+    Integer id = labelIds.get(label);
+    if (id == null) {
+      id = labels.size();
+      labels.add(label);
+      labelIds.put(label, id);
+    }
+    return id;
+  }
+
+  /**
+   * Renumbers the labels that the packages use, if most labels are not used any more because
+   * their targets were removed or renamed.
+   */
+  private void compactLabels() {
+    BitSet used = new BitSet();
+    for (PackageEntry entry : packages.values()) {
+      for (int t = 0; t < entry.targets.length; t++) {
+        used.set(entry.targets[t]);
+        for (int dep : entry.deps[t]) {
+          used.set(dep);
+        }
+      }
+    }
+    if (used.cardinality() * 2 >= labels.size()) {
+      return;
+    }
+    int[] newIds = new int[labels.size()];
+    Arrays.fill(newIds, -1);
+    List<String> newLabels = new ArrayList<>();
+    for (int id = used.nextSetBit(0); id >= 0; id = used.nextSetBit(id + 1)) {
+      newIds[id] = newLabels.size();
+      newLabels.add(labels.get(id));
+    }
+    // The arrays of the entries are only ever read through the current numbering.
+    for (PackageEntry entry : packages.values()) {
+      for (int t = 0; t < entry.targets.length; t++) {
+        entry.targets[t] = newIds[entry.targets[t]];
+        for (int d = 0; d < entry.deps[t].length; d++) {
+          entry.deps[t][d] = newIds[entry.deps[t][d]];
+        }
+      }
+    }
+    labels.clear();
+    labels.addAll(newLabels);
+    labelIds.clear();
+    for (int id = 0; id < labels.size(); id++) {
+      labelIds.put(labels.get(id), id);
+    }
+  }
+
+  private void buildReverseDeps() {
+    compactLabels();
+    int[] counts = new int[labels.size()];
+    directDeps = new int[labels.size()][];
+    List<Integer> rules = new ArrayList<>();
+    for (Map.Entry<PackageIdentifier, PackageEntry> packageEntry : packages.entrySet()) {
+      PackageEntry entry = packageEntry.getValue();
+      boolean inUniverse = universe.contains(packageEntry.getKey());
+      for (int t = 0; t < entry.targets.length; t++) {
+        directDeps[entry.targets[t]] = entry.deps[t];
+        if (inUniverse && entry.rules.get(t)) {
+          rules.add(entry.targets[t]);
+        }
+        for (int dep : entry.deps[t]) {
+          counts[dep]++;
+        }
+      }
+    }
+    closure = getForwardClosure(rules);
+    reverseDeps = new int[labels.size()][];
+    for (int i = 0; i < counts.length; i++) {
+      reverseDeps[i] = counts[i] == 0 ? NO_LABELS : new int[counts[i]];
+    }
+    for (PackageEntry entry : packages.values()) {
+      for (int t = 0; t < entry.targets.length; t++) {
+        for (int dep : entry.deps[t]) {
+          reverseDeps[dep][--counts[dep]] = entry.targets[t];
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the rules of the packages of the universe and every target they transitively depend
+   * on, which is the transitive closure of the universe of {@code rdeps}.
+   */
+  private BitSet getForwardClosure(List<Integer> rules) {
+    BitSet visited = new BitSet();
+    Deque<Integer> pending = new ArrayDeque<>();
+    for (int rule : rules) {
+      visited.set(rule);
+      pending.add(rule);
+    }
+    while (!pending.isEmpty()) {
+      int[] deps = directDeps[pending.remove()];
+      if (deps == null) {
+        // A target that its package does not have, which query reports when it follows the edge.
+        continue;
+      }
+      for (int dep : deps) {
+        if (!visited.get(dep)) {
+          visited.set(dep);
+          pending.add(dep);
+        }
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * Returns the given targets and their transitive reverse dependencies, up to the given depth,
+   * within the transitive closure of the rules of the packages of the universe. The labels are
+   * paired with their direct dependencies among the result.
+   */
+  public synchronized Map<Label, Collection<Label>> getReverseDeps(
+      Iterable<Label> targets, int depth) {
+    if (reverseDeps == null) {
+      buildReverseDeps();
+    }
+    BitSet visited = new BitSet();
+    List<Integer> current = new ArrayList<>();
+    for (Label target : targets) {
+      Integer id = labelIds.get(target.toString());
+      if (id != null && closure.get(id) && !visited.get(id)) {
+        visited.set(id);
+        current.add(id);
+      }
+    }
+    // Same as in AllRdepsFunction, depth + 1 levels are visited.
+    for (int i = 0; i < depth && !current.isEmpty(); i++) {
+      List<Integer> next = new ArrayList<>();
+      for (int id : current) {
+        for (int parent : reverseDeps[id]) {
+          if (!visited.get(parent) && closure.get(parent)) {
+            visited.set(parent);
+            next.add(parent);
+          }
+        }
+      }
+      current = next;
+    }
+    Map<Label, Collection<Label>> result = new HashMap<>();
+    for (int id = visited.nextSetBit(0); id >= 0; id = visited.nextSetBit(id + 1)) {
+      ImmutableList.Builder<Label> deps = ImmutableList.builder();
+      int[] targetDeps = directDeps[id] == null ? NO_LABELS : directDeps[id];
+      for (int dep : targetDeps) {
+        if (visited.get(dep)) {
+          deps.add(Label.parseAbsoluteUnchecked(labels.get(dep)));
+        }
+      }
+      result.put(Label.parseAbsoluteUnchecked(labels.get(id)), deps.build());
+    }
+    return result;
+  }
+
+  /** Returns the number of indexed packages, inside and outside of the universe. */
+  public synchronized int getPackageCount() {
+    return packages.size();
+  }
+
+  /** Returns the number of labels that are numbered, whether or not they are still used. */
+  @VisibleForTesting
+  synchronized int getLabelCount() {
+    return labels.size();
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
@@ -26,12 +27,17 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -61,6 +67,7 @@ import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
 import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
 import com.google.devtools.build.lib.query2.engine.RdepsFunction;
 import com.google.devtools.build.lib.query2.engine.StreamableQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.TargetLiteral;
@@ -77,6 +84,7 @@ import com.google.devtools.build.lib.skyframe.SkyFunctions;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue.TargetPatternKey;
 import com.google.devtools.build.lib.skyframe.TransitiveTraversalValue;
+import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -90,7 +98,6 @@ import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -101,8 +108,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
@@ -120,6 +129,8 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   // TODO(janakr): Unify with RecursivePackageProviderBackedTargetPatternResolver's constant.
   private static final int BATCH_CALLBACK_SIZE = 10000;
   private static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+  // Frontiers of a traversal with fewer targets than this are expanded on the calling thread.
+  private static final int DEFAULT_MIN_PARALLEL_FRONTIER_SIZE = 1000;
   private static final Logger LOG = Logger.getLogger(SkyQueryEnvironment.class.getName());
   private static final Function<Target, Label> TARGET_LABEL_FUNCTION =
       new Function<Target, Label>() {
@@ -144,6 +155,11 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
               DEFAULT_THREAD_COUNT,
               new ThreadFactoryBuilder().setNameFormat("QueryEnvironment-%d").build()));
 
+  // Expands the frontiers of graph traversals. This is separate from threadPool, whose threads may
+  // be waiting for the expansion to finish.
+  private ForkJoinPool frontierPool = new ForkJoinPool(DEFAULT_THREAD_COUNT);
+  private int minParallelFrontierSize = DEFAULT_MIN_PARALLEL_FRONTIER_SIZE;
+
   // The following fields are set in the #beforeEvaluateQuery method.
   protected WalkableGraph graph;
   private Supplier<ImmutableSet<PathFragment>> blacklistPatternsSupplier;
@@ -228,6 +244,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @Override
   public void close() {
     ExecutorUtil.interruptibleShutdown(threadPool);
+    ExecutorUtil.interruptibleShutdown(frontierPool);
   }
 
   @Override
@@ -323,24 +340,10 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     return new QueryEvalResult(!eventHandler.hasErrors(), empty.get());
   }
 
-  // TODO(mschaller): This method and its use above are a quick temporary fix to a threadsafety
-  // problem that can happen when the operands of a BinaryOperatorExpression contain LetExpressions.
-  // Namely, concurrent reads and writes to AbstractBlazeQueryEnvironment#letBindings may fail or
-  // produce the wrong results.
-  // For now, this limits concurrent query expression evaluation to BinaryOperatorExpressions with
-  // TargetLiteral operands.
+  // Operands that bind or read variables are not evaluated concurrently, because concurrent reads
+  // and writes to AbstractBlazeQueryEnvironment#letBindings may fail or produce the wrong results.
   private static boolean canEvalConcurrently(QueryExpression expr) {
-    if (!(expr instanceof BinaryOperatorExpression)) {
-      return false;
-    }
-    BinaryOperatorExpression binaryExpr = (BinaryOperatorExpression) expr;
-    ImmutableList<QueryExpression> operands = binaryExpr.getOperands();
-    for (QueryExpression operand : operands) {
-      if (!(operand instanceof TargetLiteral)) {
-        return false;
-      }
-    }
-    return true;
+    return expr instanceof BinaryOperatorExpression && !QueryUtil.usesVariables(expr);
   }
 
   private Map<Target, Collection<Target>> makeTargetsMap(Map<SkyKey, Iterable<SkyKey>> input) {
@@ -402,23 +405,107 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
   }
 
+  /**
+   * Makes frontiers with at least {@code minParallelFrontierSize} targets be expanded by {@code
+   * parallelism} threads, so that tests can exercise the parallel expansion on any machine.
+   */
+  @VisibleForTesting
+  void setFrontierParallelism(int parallelism, int minParallelFrontierSize) {
+    ExecutorUtil.interruptibleShutdown(frontierPool);
+    this.frontierPool = new ForkJoinPool(parallelism);
+    this.minParallelFrontierSize = minParallelFrontierSize;
+  }
+
+  private <E, R> List<R> mapInParallel(Iterable<E> elements, Function<List<E>, R> function) {
+    return mapInParallel(elements, function, frontierPool, minParallelFrontierSize);
+  }
+
+  /**
+   * Applies the function to consecutive parts of the elements and returns the results. Inputs with
+   * at least {@code minParallelSize} elements are split into one part per thread of the pool and
+   * the parts are processed concurrently.
+   */
+  @VisibleForTesting
+  static <E, R> List<R> mapInParallel(
+      Iterable<E> elements,
+      final Function<List<E>, R> function,
+      ForkJoinPool pool,
+      int minParallelSize) {
+    List<E> list = ImmutableList.copyOf(elements);
+    int parallelism = pool.getParallelism();
+    if (list.size() < minParallelSize || parallelism == 1) {
+      return ImmutableList.of(function.apply(list));
+    }
+    int partitionSize = (list.size() + parallelism - 1) / parallelism;
+    List<Callable<R>> tasks = new ArrayList<>(parallelism);
+    for (final List<E> partition : Lists.partition(list, partitionSize)) {
+      tasks.add(
+          new Callable<R>() {
+            @Override
+            public R call() {
+              return function.apply(partition);
+            }
+          });
+    }
+    ImmutableList.Builder<R> results = ImmutableList.builder();
+    for (Future<R> future : pool.invokeAll(tasks)) {
+      try {
+        results.add(Futures.getUnchecked(future));
+      } catch (UncheckedExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    return results.build();
+  }
+
   @Override
   public Collection<Target> getFwdDeps(Iterable<Target> targets) {
     Set<Target> result = new HashSet<>();
-    Map<Target, Collection<Target>> rawFwdDeps = getRawFwdDeps(targets);
-    warnIfMissingTargets(targets, rawFwdDeps.keySet());
-    for (Map.Entry<Target, Collection<Target>> entry : rawFwdDeps.entrySet()) {
-      result.addAll(filterFwdDeps(entry.getKey(), entry.getValue()));
+    Set<Target> found = new HashSet<>();
+    for (Map<Target, Collection<Target>> fwdDeps :
+        mapInParallel(
+            targets,
+            new Function<List<Target>, Map<Target, Collection<Target>>>() {
+              @Override
+              public Map<Target, Collection<Target>> apply(List<Target> partition) {
+                Map<Target, Collection<Target>> fwdDeps = new HashMap<>();
+                for (Map.Entry<Target, Collection<Target>> entry :
+                    getRawFwdDeps(partition).entrySet()) {
+                  fwdDeps.put(entry.getKey(), filterFwdDeps(entry.getKey(), entry.getValue()));
+                }
+                return fwdDeps;
+              }
+            })) {
+      found.addAll(fwdDeps.keySet());
+      for (Collection<Target> deps : fwdDeps.values()) {
+        result.addAll(deps);
+      }
     }
+    warnIfMissingTargets(targets, found);
     return result;
   }
 
   @Override
   public Collection<Target> getReverseDeps(Iterable<Target> targets) {
-    Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(targets);
-    warnIfMissingTargets(targets, rawReverseDeps.keySet());
-
-    return processRawReverseDeps(rawReverseDeps);
+    Set<Target> result = CompactHashSet.create();
+    Set<Target> found = new HashSet<>();
+    for (Pair<Set<Target>, Collection<Target>> reverseDeps :
+        mapInParallel(
+            targets,
+            new Function<List<Target>, Pair<Set<Target>, Collection<Target>>>() {
+              @Override
+              public Pair<Set<Target>, Collection<Target>> apply(List<Target> partition) {
+                // A parent is only kept if it depends on a target of the partition through an
+                // allowed edge, which does not depend on the other partitions.
+                Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(partition);
+                return Pair.of(rawReverseDeps.keySet(), processRawReverseDeps(rawReverseDeps));
+              }
+            })) {
+      found.addAll(reverseDeps.first);
+      result.addAll(reverseDeps.second);
+    }
+    warnIfMissingTargets(targets, found);
+    return result;
   }
 
   private Collection<Target> processRawReverseDeps(Map<Target, Collection<Target>> rawReverseDeps) {
@@ -890,24 +977,36 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     }
   }
 
+  /**
+   * Remembers the seen targets by a fingerprint of their labels, so that deduplicating a result of
+   * millions of targets does not take a map entry per target.
+   */
   @ThreadSafe
   private static class ConcurrentUniquifier implements Uniquifier<Target> {
-
-    // Note that setting initialCapacity to BATCH_CALLBACK_SIZE is not especially principled.
-    private final Set<Label> seen =
-        Collections.newSetFromMap(
-            new ConcurrentHashMap<Label, Boolean>(BATCH_CALLBACK_SIZE, .75f, DEFAULT_THREAD_COUNT));
+    private final FingerprintSet seen = new FingerprintSet();
 
     @Override
     public ImmutableList<Target> unique(Iterable<Target> newElements) {
       ImmutableList.Builder<Target> builder = ImmutableList.builder();
       for (Target newElement : newElements) {
-        if (seen.add(newElement.getLabel())) {
+        if (seen.add(fingerprint(newElement.getLabel()))) {
           builder.add(newElement);
         }
       }
       return builder.build();
     }
+
+    private static HashCode fingerprint(Label label) {
+      // Repository names cannot contain '/', and package names cannot contain ':'.
+      return Hashing.murmur3_128()
+          .newHasher()
+          .putUnencodedChars(label.getPackageIdentifier().getRepository().getName())
+          .putChar('/')
+          .putUnencodedChars(label.getPackageName())
+          .putChar(':')
+          .putUnencodedChars(label.getName())
+          .hash();
+    }
   }
 
   /**
@@ -1101,7 +1200,21 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
         Callback<Target> callback,
         Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue)
         throws QueryException, InterruptedException {
-      Collection<Target> children = processRawReverseDeps(makeTargetsMap(reverseDepsMap));
+      Iterable<Target> children =
+          Iterables.concat(
+              mapInParallel(
+                  reverseDepsMap.entrySet(),
+                  new Function<List<Map.Entry<SkyKey, Iterable<SkyKey>>>, Collection<Target>>() {
+                    @Override
+                    public Collection<Target> apply(
+                        List<Map.Entry<SkyKey, Iterable<SkyKey>>> partition) {
+                      Map<SkyKey, Iterable<SkyKey>> partitionMap = new HashMap<>();
+                      for (Map.Entry<SkyKey, Iterable<SkyKey>> entry : partition) {
+                        partitionMap.put(entry.getKey(), entry.getValue());
+                      }
+                      return processRawReverseDeps(makeTargetsMap(partitionMap));
+                    }
+                  }));
       Iterable<Target> currentInUniverse = Iterables.filter(children, universe);
       ImmutableList<Target> uniqueChildren = uniquifier.unique(currentInUniverse);
       reverseDepsMap.clear();
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.engine;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -25,8 +26,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Future;
 
 /**
  * A binary algebraic set operation.
@@ -73,9 +75,7 @@ public class BinaryOperatorExpression extends QueryExpression {
       ListeningExecutorService executorService)
       throws QueryException, InterruptedException {
     if (operator == TokenKind.PLUS || operator == TokenKind.UNION) {
-      final AtomicReference<InterruptedException> interruptRef = new AtomicReference<>();
-      final AtomicReference<QueryException> queryExceptionRef = new AtomicReference<>();
-      ArrayList<ListenableFuture<?>> futures = new ArrayList<>(operands.size());
+      ArrayList<ListenableFuture<Void>> futures = new ArrayList<>(operands.size());
       for (final QueryExpression operand : operands) {
         // When executorService has an implementation that evaluates runnables in a non-serial
         // order, like a fixedSizeThreadPool, the following code does not guarantee that operands'
@@ -87,38 +87,34 @@ public class BinaryOperatorExpression extends QueryExpression {
         // environment.
         futures.add(
             executorService.submit(
-                new Runnable() {
+                new Callable<Void>() {
                   @Override
-                  public void run() {
-                    try {
-                      env.eval(operand, callback);
-                    } catch (QueryException e) {
-                      queryExceptionRef.compareAndSet(null, e);
-                    } catch (InterruptedException e) {
-                      interruptRef.compareAndSet(null, e);
-                    }
+                  public Void call() throws QueryException, InterruptedException {
+                    env.eval(operand, callback);
+                    return null;
                   }
                 }));
       }
-      try {
-        Futures.allAsList(futures).get();
-      } catch (ExecutionException e) {
-        throw new IllegalStateException(e);
-      }
-      InterruptedException interruptedExceptionIfAny = interruptRef.get();
-      if (interruptedExceptionIfAny != null) {
-        throw interruptedExceptionIfAny;
-      }
-      QueryException queryException = queryExceptionRef.get();
-      if (queryException != null) {
-        throw queryException;
-      }
+      getAllOrCancel(futures);
       return;
     }
-    // We cannot do differences with partial results. So we fully evaluate the operands
-    Set<T> lhsValue = QueryUtil.evalAll(env, operands.get(0));
+    // We cannot do differences with partial results. So we fully evaluate the operands. They are
+    // independent of each other, so they are evaluated at the same time.
+    ArrayList<ListenableFuture<Set<T>>> values = new ArrayList<>(operands.size());
+    for (final QueryExpression operand : operands) {
+      values.add(
+          executorService.submit(
+              new Callable<Set<T>>() {
+                @Override
+                public Set<T> call() throws QueryException, InterruptedException {
+                  return QueryUtil.evalAll(env, operand);
+                }
+              }));
+    }
+    List<Set<T>> operandValues = getAllOrCancel(values);
+    Set<T> lhsValue = operandValues.get(0);
     for (int i = 1; i < operands.size(); i++) {
-      Set<T> rhsValue = QueryUtil.evalAll(env, operands.get(i));
+      Set<T> rhsValue = operandValues.get(i);
       switch (operator) {
         case INTERSECT:
         case CARET:
@@ -137,6 +133,31 @@ public class BinaryOperatorExpression extends QueryExpression {
     callback.process(lhsValue);
   }
 
+  /**
+   * Waits for all futures and returns their values. If one of them fails or the wait is
+   * interrupted, the others are cancelled, since the result can no longer be used.
+   */
+  private static <V> List<V> getAllOrCancel(List<ListenableFuture<V>> futures)
+      throws QueryException, InterruptedException {
+    try {
+      return Futures.allAsList(futures).get();
+    } catch (ExecutionException e) {
+      cancel(futures);
+      Throwables.propagateIfPossible(
+          e.getCause(), QueryException.class, InterruptedException.class);
+      throw new IllegalStateException(e);
+    } catch (InterruptedException e) {
+      cancel(futures);
+      throw e;
+    }
+  }
+
+  private static void cancel(List<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(/*mayInterruptIfRunning=*/true);
+    }
+  }
+
   @Override
   public void collectTargetPatterns(Collection<String> literals) {
     for (QueryExpression subExpression : operands) {
@@ -20,6 +20,7 @@ import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Several query utilities to make easier to work with query callbacks and uniquifiers. */
 public final class QueryUtil {
@@ -58,6 +59,31 @@ public final class QueryUtil {
     return callback.result;
   }
 
+  /**
+   * Returns whether the expression binds or reads a variable anywhere. Variables are held by the
+   * environment, so such an expression must not be evaluated concurrently with another one.
+   */
+  public static boolean usesVariables(QueryExpression expr) {
+    final AtomicBoolean found = new AtomicBoolean(false);
+    expr.getMapped(
+        new QueryExpressionMapper() {
+          @Override
+          public QueryExpression map(TargetLiteral targetLiteral) {
+            if (targetLiteral.isVariableReference()) {
+              found.set(true);
+            }
+            return targetLiteral;
+          }
+
+          @Override
+          public QueryExpression map(LetExpression letExpression) {
+            found.set(true);
+            return letExpression;
+          }
+        });
+    return found.get();
+  }
+
   /**
    * Notify {@code parentCallback} only about the events that match {@code retainIfTrue} predicate.
    *
@@ -43,9 +43,9 @@ import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnord
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.GeneratedFile;
-import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult.Builder;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.SourceFile;
 import com.google.devtools.build.lib.syntax.Environment;
+import com.google.protobuf.CodedOutputStream;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -91,25 +91,29 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
   public OutputFormatterCallback<Target> createStreamCallback(final PrintStream out) {
     return new OutputFormatterCallback<Target>() {
 
-      private Builder queryResult;
+      // Writes each target as a "target" field of a QueryResult as soon as it arrives, rather
+      // than building the whole QueryResult in memory. The concatenation of these fields is a
+      // valid QueryResult.
+      private CodedOutputStream codedOut;
 
       @Override
       public void start() {
-        queryResult = Build.QueryResult.newBuilder();
+        codedOut = CodedOutputStream.newInstance(out);
       }
 
       @Override
       protected void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
-
         for (Target target : partialResult) {
-          queryResult.addTarget(toTargetProtoBuffer(target));
+          codedOut.writeMessage(
+              Build.QueryResult.TARGET_FIELD_NUMBER, toTargetProtoBuffer(target));
         }
+        codedOut.flush();
       }
 
       @Override
       public void close() throws IOException {
-        queryResult.build().writeTo(out);
+        codedOut.flush();
       }
     };
   }
@@ -225,6 +225,18 @@ public class QueryOptions extends OptionsBase {
   )
   public String queryFile;
 
+  @Option(
+    name = "experimental_rdeps_index",
+    defaultValue = "false",
+    category = "query",
+    help =
+        "If true, rdeps() in the universe //... is answered from an index of the dependencies of "
+            + "the packages in the transitive closure of the universe that the server keeps "
+            + "between commands, instead of from a graph of the closure. Only used when all "
+            + "kinds of dependencies are followed."
+  )
+  public boolean rdepsIndex;
+
   /**
    * Return the current options as a set of QueryEnvironment settings.
    */
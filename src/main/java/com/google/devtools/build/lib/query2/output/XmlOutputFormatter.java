@@ -38,6 +38,8 @@ import org.w3c.dom.Element;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
@@ -66,16 +68,24 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
   public OutputFormatterCallback<Target> createStreamCallback(final PrintStream out) {
     return new OutputFormatterCallback<Target>() {
 
+      // Holds the target elements of one batch at a time. Each batch is written out as part of the
+      // whole document, so that the output is laid out exactly as if the document had been
+      // written at once, but the document is never held in memory as a whole.
       private Document doc;
       private Element queryElem;
-
+      private Transformer transformer;
+      private boolean wroteStart;
+      // The end of the document, from the whitespace before the query end tag.
+      private String end;
 
       @Override
       public void start() {
         try {
           DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
           doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
+          transformer = TransformerFactory.newInstance().newTransformer();
+        } catch (ParserConfigurationException | TransformerFactoryConfigurationError
+            | TransformerException e) {
           // This shouldn't be possible: all the configuration is hard-coded.
           throw new IllegalStateException("XML output failed", e);
         }
@@ -83,6 +93,7 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
         queryElem = doc.createElement("query");
         queryElem.setAttribute("version", "2");
         doc.appendChild(queryElem);
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
       }
 
       @Override
@@ -91,18 +102,49 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
         for (Target target : partialResult) {
           queryElem.appendChild(createTargetElement(doc, target));
         }
+        if (!queryElem.hasChildNodes()) {
+          return;
+        }
+        String xml = serialize();
+        int contentStart = xml.indexOf('>', xml.indexOf("<query")) + 1;
+        int contentEnd = xml.lastIndexOf("</query>");
+        while (contentEnd > contentStart && Character.isWhitespace(xml.charAt(contentEnd - 1))) {
+          contentEnd--;
+        }
+        if (!wroteStart) {
+          print(xml.substring(0, contentStart));
+          wroteStart = true;
+        }
+        print(xml.substring(contentStart, contentEnd));
+        end = xml.substring(contentEnd);
+        while (queryElem.hasChildNodes()) {
+          queryElem.removeChild(queryElem.getFirstChild());
+        }
+        out.flush();
       }
 
       @Override
       public void close() throws IOException {
+        // Without targets, the query element is written as an empty element.
+        print(wroteStart ? end : serialize());
+        out.flush();
+      }
+
+      // The document declares UTF-8, whatever the default encoding of the stream is.
+      private void print(String xml) {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+      }
+
+      private String serialize() {
+        StringWriter writer = new StringWriter();
         try {
-          Transformer transformer = TransformerFactory.newInstance().newTransformer();
-          transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-          transformer.transform(new DOMSource(doc), new StreamResult(out));
-        } catch (TransformerFactoryConfigurationError | TransformerException e) {
+          transformer.transform(new DOMSource(doc), new StreamResult(writer));
+        } catch (TransformerException e) {
           // This shouldn't be possible: all the configuration is hard-coded.
           throw new IllegalStateException("XML output failed", e);
         }
+        return writer.toString();
       }
     };
   }
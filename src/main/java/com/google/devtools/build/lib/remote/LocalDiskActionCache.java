@@ -0,0 +1,544 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.util.PersistentStateFile;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * A RemoteActionCache implementation that stores files and action outputs in a directory on local
+ * disk, optionally as a write-through tier in front of another RemoteActionCache.
+ *
+ * <p>File contents are stored under {@code cas/} by their content key, and action outputs under
+ * {@code ac/} by their action key. A file that is written out of the cache is hard linked to the
+ * stored copy whenever the file system allows it, so a hit does not copy any bytes. For that
+ * reason stored files are read-only, and executable and non-executable files with the same content
+ * are stored separately.
+ *
+ * <p>The total size of the directory is bounded; the least recently used entries are evicted
+ * first. The order is kept in memory and saved to an index file in the directory by {@link
+ * #saveAccessOrder}, so that it survives server restarts. Stored files are never touched after
+ * they are written: restored outputs are hard links to them, and a new modification time would
+ * make those outputs look changed. Entries that the index does not know, such as those stored by
+ * another server using the same directory, are ordered by the time they were stored and count as
+ * more recently used than the indexed ones.
+ *
+ * <p>When there is a remote cache, every put also goes to it, and entries that are missing locally
+ * are fetched from it and then stored locally.
+ */
+@ThreadSafe
+final class LocalDiskActionCache implements RemoteActionCache {
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final String EXECUTABLE_SUFFIX = "-x";
+  private static final String ACCESS_ORDER_FILE = "access_order";
+  private static final long ACCESS_ORDER_MAGIC = 0x6c6f63616c647301L;
+
+  private final Path execRoot;
+  private final Path root;
+  private final Path casDir;
+  private final Path acDir;
+  private final long maxSizeBytes;
+  @Nullable private final RemoteActionCache remoteCache;
+
+  // All entries in the cache directory with their size, in least recently used order.
+  private final LinkedHashMap<Path, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalSizeBytes = 0;
+
+  /**
+   * Creates a cache in {@code root}, picking up the entries that are already stored there.
+   *
+   * @param remoteCache The cache to write through to, or null to only cache locally.
+   */
+  LocalDiskActionCache(
+      Path execRoot, Path root, long maxSizeBytes, @Nullable RemoteActionCache remoteCache)
+      throws IOException {
+    Preconditions.checkArgument(maxSizeBytes > 0, maxSizeBytes);
+    this.execRoot = execRoot;
+    this.root = root;
+    this.casDir = root.getRelative("cas");
+    this.acDir = root.getRelative("ac");
+    this.maxSizeBytes = maxSizeBytes;
+    this.remoteCache = remoteCache;
+    FileSystemUtils.createDirectoryAndParents(casDir);
+    FileSystemUtils.createDirectoryAndParents(acDir);
+    loadEntries();
+  }
+
+  Path getRoot() {
+    return root;
+  }
+
+  long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  @Nullable
+  RemoteActionCache getRemoteCache() {
+    return remoteCache;
+  }
+
+  /** Returns the position of each entry in the saved access order, oldest first. */
+  private Map<Path, Integer> loadAccessOrder() {
+    final Map<Path, Integer> order = new HashMap<>();
+    try {
+      PersistentStateFile.read(
+          root.getChild(ACCESS_ORDER_FILE),
+          ACCESS_ORDER_MAGIC,
+          new PersistentStateFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+              for (int count = in.readInt(); count > 0; count--) {
+                Path entry = root.getRelative(PersistentStateFile.readString(in));
+                if (!order.containsKey(entry)) {
+                  order.put(entry, order.size());
+                }
+              }
+            }
+          });
+    } catch (IOException e) {
+      // Fall back to the times at which the entries were stored.
+      order.clear();
+    }
+    return order;
+  }
+
+  /**
+   * Saves the order in which the entries were used, so that a later server evicts them in the
+   * same order.
+   */
+  void saveAccessOrder() throws IOException {
+    final List<Path> paths;
+    synchronized (this) {
+      paths = new ArrayList<>(entries.keySet());
+    }
+    PersistentStateFile.write(
+        root.getChild(ACCESS_ORDER_FILE),
+        ACCESS_ORDER_MAGIC,
+        new PersistentStateFile.Writer() {
+          @Override
+          public void write(DataOutputStream out) throws IOException {
+            out.writeInt(paths.size());
+            for (Path path : paths) {
+              PersistentStateFile.writeString(out, path.relativeTo(root).getPathString());
+            }
+          }
+        });
+  }
+
+  private void loadEntries() throws IOException {
+    final Map<Path, Integer> order = loadAccessOrder();
+    final Map<Path, FileStatus> stats = new LinkedHashMap<>();
+    for (Path dir : ImmutableList.of(casDir, acDir)) {
+      for (Path entry : dir.getDirectoryEntries()) {
+        if (entry.getBaseName().endsWith(TMP_SUFFIX)) {
+          // Left behind by a server that died while storing an entry.
+          entry.delete();
+          continue;
+        }
+        FileStatus stat = entry.statIfFound(Symlinks.NOFOLLOW);
+        if (stat != null && stat.isFile()) {
+          stats.put(entry, stat);
+        }
+      }
+    }
+    List<Path> paths = new ArrayList<>(stats.keySet());
+    Collections.sort(
+        paths,
+        new Comparator<Path>() {
+          @Override
+          public int compare(Path a, Path b) {
+            Integer aOrder = order.get(a);
+            Integer bOrder = order.get(b);
+            if (aOrder != null || bOrder != null) {
+              if (aOrder == null) {
+                return 1;
+              }
+              return bOrder == null ? -1 : Integer.compare(aOrder, bOrder);
+            }
+            try {
+              return Long.compare(
+                  stats.get(a).getLastModifiedTime(), stats.get(b).getLastModifiedTime());
+            } catch (IOException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        });
+    for (Path path : paths) {
+      addEntry(path, stats.get(path).getSize());
+    }
+  }
+
+  /** Records a new entry, then evicts the least recently used entries until the cache fits. */
+  private void addEntry(Path path, long size) {
+    List<Path> evicted = new ArrayList<>();
+    synchronized (this) {
+      Long previousSize = entries.put(path, size);
+      totalSizeBytes += size - (previousSize == null ? 0 : previousSize);
+      Iterator<Map.Entry<Path, Long>> it = entries.entrySet().iterator();
+      while (totalSizeBytes > maxSizeBytes && entries.size() > 1) {
+        Map.Entry<Path, Long> eldest = it.next();
+        evicted.add(eldest.getKey());
+        totalSizeBytes -= eldest.getValue();
+        it.remove();
+      }
+    }
+    for (Path evictedPath : evicted) {
+      try {
+        evictedPath.delete();
+      } catch (IOException e) {
+        // The file is no longer tracked; it is picked up again by the next server.
+      }
+    }
+  }
+
+  private synchronized void removeEntry(Path path) {
+    Long size = entries.remove(path);
+    if (size != null) {
+      totalSizeBytes -= size;
+    }
+  }
+
+  /**
+   * Returns whether {@code path} is an entry of this cache, and if so marks it as the most recently
+   * used one.
+   */
+  private boolean useEntry(Path path) {
+    synchronized (this) {
+      if (entries.get(path) == null) {
+        return false;
+      }
+    }
+    if (!path.exists(Symlinks.NOFOLLOW)) {
+      // Evicted by another server using the same directory.
+      removeEntry(path);
+      return false;
+    }
+    return true;
+  }
+
+  @VisibleForTesting
+  synchronized long getSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  private Path getBlob(String key, boolean executable) {
+    return casDir.getChild(executable ? key + EXECUTABLE_SUFFIX : key);
+  }
+
+  private Path newTmpFile(Path dir) {
+    return dir.getChild(UUID.randomUUID() + TMP_SUFFIX);
+  }
+
+  /** Stores a copy of {@code file} under {@code key}, unless it is already stored. */
+  private void storeFile(String key, Path file) throws IOException {
+    boolean executable = file.isExecutable();
+    Path blob = getBlob(key, executable);
+    if (useEntry(blob)) {
+      return;
+    }
+    Path tmp = newTmpFile(casDir);
+    try {
+      try (InputStream in = file.getInputStream();
+          OutputStream out = tmp.getOutputStream()) {
+        ByteStreams.copy(in, out);
+      }
+      tmp.setExecutable(executable);
+      tmp.setWritable(false);
+      long size = tmp.getFileSize();
+      tmp.renameTo(blob);
+      addEntry(blob, size);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Writes the file stored under {@code key} to {@code dest}. Returns false if it is not stored
+   * locally.
+   */
+  private boolean restoreFile(String key, Path dest, boolean executable) throws IOException {
+    Path blob = getBlob(key, executable);
+    if (useEntry(blob)) {
+      dest.delete();
+      try {
+        dest.createHardLink(blob);
+        return true;
+      } catch (UnsupportedOperationException | IOException e) {
+        // Different devices, too many links to the blob, or no hard link support: copy it.
+      }
+      if (copyBlob(blob, dest, executable)) {
+        return true;
+      }
+    }
+    // The same content may be stored with the other executable bit.
+    blob = getBlob(key, !executable);
+    return useEntry(blob) && copyBlob(blob, dest, executable);
+  }
+
+  private boolean copyBlob(Path blob, Path dest, boolean executable) throws IOException {
+    try (InputStream in = blob.getInputStream();
+        OutputStream out = dest.getOutputStream()) {
+      ByteStreams.copy(in, out);
+    } catch (FileNotFoundException e) {
+      if (blob.exists()) {
+        throw e;
+      }
+      // Evicted since we looked it up.
+      removeEntry(blob);
+      return false;
+    }
+    dest.setExecutable(executable);
+    return true;
+  }
+
+  @Override
+  public String putFileIfNotExist(Path file) throws IOException {
+    String contentKey = HashCode.fromBytes(file.getDigest()).toString();
+    storeFile(contentKey, file);
+    if (remoteCache != null) {
+      remoteCache.putFileIfNotExist(file);
+    }
+    return contentKey;
+  }
+
+  @Override
+  public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException {
+    // Same key as MemcacheActionCache, so that both tiers agree on it.
+    String contentKey = new String(cache.getDigest(file).toByteArray());
+    storeFile(contentKey, execRoot.getRelative(file.getExecPathString()));
+    if (remoteCache != null) {
+      remoteCache.putFileIfNotExist(cache, file);
+    }
+    return contentKey;
+  }
+
+  @Override
+  public ImmutableSet<String> containsKeys(Collection<String> keys, RemoteCacheStats stats)
+      throws IOException {
+    ImmutableSet.Builder<String> present = ImmutableSet.builder();
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (useEntry(getBlob(key, false)) || useEntry(getBlob(key, true))) {
+        present.add(key);
+      } else {
+        missing.add(key);
+      }
+    }
+    if (remoteCache != null && !missing.isEmpty()) {
+      present.addAll(remoteCache.containsKeys(missing, stats));
+    }
+    return present.build();
+  }
+
+  @Override
+  public ImmutableList<String> putBatch(
+      ActionInputFileCache cache, Collection<? extends ActionInput> files, RemoteCacheStats stats)
+      throws IOException {
+    ImmutableList.Builder<String> keys = ImmutableList.builder();
+    for (ActionInput file : files) {
+      String contentKey = new String(cache.getDigest(file).toByteArray());
+      Path path = execRoot.getRelative(file.getExecPathString());
+      if (remoteCache == null) {
+        // Otherwise the remote cache records whether the file had to be uploaded.
+        stats.addLookup(useEntry(getBlob(contentKey, path.isExecutable())));
+      }
+      storeFile(contentKey, path);
+      keys.add(contentKey);
+    }
+    if (remoteCache != null) {
+      return remoteCache.putBatch(cache, files, stats);
+    }
+    return keys.build();
+  }
+
+  @Override
+  public void getBatch(Path root, Collection<FileEntry> files, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    List<FileEntry> missing = new ArrayList<>();
+    for (FileEntry file : files) {
+      Path dest = root.getRelative(file.getPath());
+      FileSystemUtils.createDirectoryAndParents(dest.getParentDirectory());
+      if (restoreFile(file.getContentKey(), dest, file.getExecutable())) {
+        stats.addLookup(true);
+      } else {
+        missing.add(file);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    if (remoteCache == null) {
+      stats.addLookup(false);
+      throw new CacheNotFoundException(
+          "File content cannot be found with key: " + missing.get(0).getContentKey());
+    }
+    remoteCache.getBatch(root, missing, stats);
+    for (FileEntry file : missing) {
+      storeFile(file.getContentKey(), root.getRelative(file.getPath()));
+    }
+  }
+
+  @Override
+  public void writeFile(String key, Path dest, boolean executable)
+      throws IOException, CacheNotFoundException {
+    if (restoreFile(key, dest, executable)) {
+      return;
+    }
+    if (remoteCache == null) {
+      throw new CacheNotFoundException("File content cannot be found with key: " + key);
+    }
+    remoteCache.writeFile(key, dest, executable);
+    storeFile(key, dest);
+  }
+
+  @Override
+  public void readFile(String key, OutputStream dest) throws IOException, CacheNotFoundException {
+    for (boolean executable : new boolean[] {false, true}) {
+      Path blob = getBlob(key, executable);
+      if (useEntry(blob)) {
+        try (InputStream in = blob.getInputStream()) {
+          ByteStreams.copy(in, dest);
+          return;
+        } catch (FileNotFoundException e) {
+          removeEntry(blob);
+        }
+      }
+    }
+    if (remoteCache == null) {
+      throw new CacheNotFoundException("File content cannot be found with key: " + key);
+    }
+    remoteCache.readFile(key, dest);
+  }
+
+  @Override
+  public ImmutableList<FileEntry> getActionOutput(String key, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    Path entry = acDir.getChild(key);
+    if (useEntry(entry)) {
+      try (InputStream in = entry.getInputStream()) {
+        ImmutableList<FileEntry> files =
+            ImmutableList.copyOf(CacheEntry.parseFrom(in).getFilesList());
+        stats.addLookup(true);
+        return files;
+      } catch (FileNotFoundException e) {
+        removeEntry(entry);
+      }
+    }
+    if (remoteCache == null) {
+      stats.addLookup(false);
+      throw new CacheNotFoundException("Action output cannot be found with key: " + key);
+    }
+    ImmutableList<FileEntry> files = remoteCache.getActionOutput(key, stats);
+    storeActionOutput(key, files);
+    return files;
+  }
+
+  @Override
+  public void writeActionOutput(String key, Path execRoot, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    getBatch(execRoot, getActionOutput(key, stats), stats);
+  }
+
+  @Override
+  public void putActionOutput(
+      String key, Collection<? extends ActionInput> outputs, RemoteCacheStats stats)
+      throws IOException {
+    List<Path> files = new ArrayList<>(outputs.size());
+    for (ActionInput output : outputs) {
+      files.add(execRoot.getRelative(output.getExecPathString()));
+    }
+    storeActionOutput(key, execRoot, files);
+    if (remoteCache != null) {
+      remoteCache.putActionOutput(key, outputs, stats);
+    }
+  }
+
+  @Override
+  public void putActionOutput(String key, Path execRoot, Collection<Path> files)
+      throws IOException {
+    storeActionOutput(key, execRoot, files);
+    if (remoteCache != null) {
+      remoteCache.putActionOutput(key, execRoot, files);
+    }
+  }
+
+  private void storeActionOutput(String key, Path execRoot, Collection<Path> files)
+      throws IOException {
+    List<FileEntry> entries = new ArrayList<>(files.size());
+    for (Path file : files) {
+      if (file.isDirectory()) {
+        // TODO(alpha): Implement this for directory.
+        throw new UnsupportedOperationException("Storing a directory is not yet supported.");
+      }
+      String contentKey = HashCode.fromBytes(file.getDigest()).toString();
+      storeFile(contentKey, file);
+      entries.add(
+          FileEntry.newBuilder()
+              .setPath(file.relativeTo(execRoot).getPathString())
+              .setContentKey(contentKey)
+              .setExecutable(file.isExecutable())
+              .build());
+    }
+    storeActionOutput(key, entries);
+  }
+
+  private void storeActionOutput(String key, Collection<FileEntry> files) throws IOException {
+    Path entry = acDir.getChild(key);
+    Path tmp = newTmpFile(acDir);
+    try {
+      try (OutputStream out = tmp.getOutputStream()) {
+        CacheEntry.newBuilder().addAllFiles(files).build().writeTo(out);
+      }
+      long size = tmp.getFileSize();
+      tmp.renameTo(entry);
+      addEntry(entry, size);
+    } finally {
+      tmp.delete();
+    }
+  }
+}
@@ -14,156 +14,599 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
 import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
-import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A RemoteActionCache implementation that uses memcache as a distributed storage
  * for files and action output. The memcache is accessed by the {@link ConcurrentMap}
  * interface.
  *
+ * <p>Files larger than {@link #CHUNK_SIZE_BYTES} are split into chunks that are stored under the
+ * digest of their contents, so that no single cache value exceeds the chunk size and chunks that
+ * are shared between files are stored once. The entry of such a file only lists its chunk keys,
+ * and is written after all of its chunks. Chunks are transferred concurrently, with the total size
+ * of chunks held in memory bounded by {@link #MAX_MEMORY_KBYTES}.
+ *
+ * <p>The batch operations issue all of their lookups, uploads and downloads concurrently on a pool
+ * of {@code --remote_cache_transfer_threads} threads, since a {@link ConcurrentMap} has no
+ * multi-key operations. Large files are transferred by the calling thread, which in turn
+ * transfers their chunks on the pool. The memory for an upload is always acquired by the thread
+ * that submits it, never by a pool thread, so that pool threads cannot block on memory that only
+ * queued uploads would release.
+ *
  * The thread satefy is guaranteed by the underlying memcache client.
  */
 @ThreadSafe
 public final class MemcacheActionCache implements RemoteActionCache {
+  /** Files larger than this are stored in chunks of this size. */
+  static final int CHUNK_SIZE_BYTES = 4 * 1024 * 1024;
+  private static final int CHUNK_SIZE_KBYTES = CHUNK_SIZE_BYTES / 1024;
+
   private final Path execRoot;
   private final ConcurrentMap<String, byte[]> cache;
   private static final int MAX_MEMORY_KBYTES = 512 * 1024;
-  private final Semaphore uploadMemoryAvailable = new Semaphore(MAX_MEMORY_KBYTES, true);
+  private static final int TRANSFER_THREAD_KEEP_ALIVE_SECONDS = 10;
+  private final Semaphore uploadMemoryAvailable;
+  private final ListeningExecutorService transferExecutor;
+  // Number of downloads that are started ahead of the one being written to disk.
+  private final int maxDownloadsInFlight;
 
   /**
    * Construct an action cache using JCache API.
    */
   public MemcacheActionCache(
       Path execRoot, RemoteOptions options, ConcurrentMap<String, byte[]> cache) {
+    this(execRoot, options, cache, MAX_MEMORY_KBYTES);
+  }
+
+  @VisibleForTesting
+  MemcacheActionCache(
+      Path execRoot,
+      RemoteOptions options,
+      ConcurrentMap<String, byte[]> cache,
+      int maxMemoryKBytes) {
     this.execRoot = execRoot;
     this.cache = cache;
+    this.uploadMemoryAvailable = new Semaphore(maxMemoryKBytes, true);
+    // Idle threads time out, since a cache is created for every build and every remote work
+    // request.
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            options.remoteCacheTransferThreads,
+            options.remoteCacheTransferThreads,
+            TRANSFER_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("remote-cache-transfer-%d")
+                .setDaemon(true)
+                .build());
+    executor.allowCoreThreadTimeOut(true);
+    this.transferExecutor = MoreExecutors.listeningDecorator(executor);
+    this.maxDownloadsInFlight = 2 * options.remoteCacheTransferThreads;
   }
 
   @Override
   public String putFileIfNotExist(Path file) throws IOException {
-    String contentKey = HashCode.fromBytes(file.getMD5Digest()).toString();
-    if (containsFile(contentKey)) {
+    String contentKey = HashCode.fromBytes(file.getDigest()).toString();
+    RemoteCacheStats stats = new RemoteCacheStats();
+    if (containsFile(contentKey, stats)) {
       return contentKey;
     }
-    putFile(contentKey, file);
+    putFile(contentKey, file, stats);
     return contentKey;
   }
 
   @Override
   public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException {
-    // PerActionFileCache already converted this to a lowercase ascii string.. it's not consistent!
-    String contentKey = new String(cache.getDigest(file).toByteArray());
-    if (containsFile(contentKey)) {
+    String contentKey = getContentKey(cache, file);
+    RemoteCacheStats stats = new RemoteCacheStats();
+    if (containsFile(contentKey, stats)) {
       return contentKey;
     }
-    putFile(contentKey, execRoot.getRelative(file.getExecPathString()));
+    putFile(contentKey, execRoot.getRelative(file.getExecPathString()), stats);
     return contentKey;
   }
 
-  private void putFile(String key, Path file) throws IOException {
-    int fileSizeKBytes = (int) (file.getFileSize() / 1024);
-    Preconditions.checkArgument(fileSizeKBytes < MAX_MEMORY_KBYTES);
-    try {
-      uploadMemoryAvailable.acquire(fileSizeKBytes);
-      // TODO(alpha): I should put the file content as chunks to avoid reading the entire
-      // file into memory.
-      try (InputStream stream = file.getInputStream()) {
-        cache.put(
+  private static String getContentKey(ActionInputFileCache cache, ActionInput file)
+      throws IOException {
+    // PerActionFileCache already converted this to a lowercase ascii string.. it's not consistent!
+    return new String(cache.getDigest(file).toByteArray());
+  }
+
+  @Override
+  public ImmutableSet<String> containsKeys(Collection<String> keys, final RemoteCacheStats stats)
+      throws IOException {
+    Map<String, ListenableFuture<Boolean>> lookups = new LinkedHashMap<>();
+    for (final String key : keys) {
+      if (!lookups.containsKey(key)) {
+        lookups.put(
             key,
-            CacheEntry.newBuilder()
-                .setFileContent(ByteString.readFrom(stream))
-                .build()
-                .toByteArray());
+            transferExecutor.submit(
+                new Callable<Boolean>() {
+                  @Override
+                  public Boolean call() {
+                    return containsFile(key, stats);
+                  }
+                }));
+      }
+    }
+    ImmutableSet.Builder<String> present = ImmutableSet.builder();
+    for (Map.Entry<String, Boolean> lookup : getAll(lookups).entrySet()) {
+      if (lookup.getValue()) {
+        present.add(lookup.getKey());
+      }
+    }
+    return present.build();
+  }
+
+  @Override
+  public ImmutableList<String> putBatch(
+      ActionInputFileCache cache, Collection<? extends ActionInput> files, RemoteCacheStats stats)
+      throws IOException {
+    List<String> keys = new ArrayList<>(files.size());
+    List<Path> paths = new ArrayList<>(files.size());
+    for (ActionInput file : files) {
+      keys.add(getContentKey(cache, file));
+      paths.add(execRoot.getRelative(file.getExecPathString()));
+    }
+    putFiles(keys, paths, stats);
+    return ImmutableList.copyOf(keys);
+  }
+
+  /**
+   * Uploads {@code files[i]} under {@code keys[i]} for all keys that are not in the cache yet.
+   * Small files are uploaded on the transfer pool, once this thread has acquired their memory;
+   * large files are uploaded by this thread, since their chunks are uploaded on the pool.
+   */
+  private void putFiles(List<String> keys, List<Path> files, final RemoteCacheStats stats)
+      throws IOException {
+    ImmutableSet<String> present = containsKeys(keys, stats);
+    Set<String> uploaded = new HashSet<>();
+    Map<String, ListenableFuture<Void>> uploads = new LinkedHashMap<>();
+    try {
+      for (int i = 0; i < keys.size(); i++) {
+        final String key = keys.get(i);
+        final Path file = files.get(i);
+        stats.addLookup(present.contains(key));
+        if (present.contains(key) || !uploaded.add(key)) {
+          continue;
+        }
+        long fileSize = file.getFileSize();
+        if (fileSize > CHUNK_SIZE_BYTES) {
+          putFileInChunks(key, file, stats);
+        } else {
+          int fileSizeKBytes = (int) (fileSize / 1024);
+          uploadMemoryAvailable.acquire(fileSizeKBytes);
+          uploads.put(
+              key,
+              submitHoldingMemory(
+                  fileSizeKBytes,
+                  new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                      uploadFile(key, file, stats);
+                      return null;
+                    }
+                  }));
+        }
       }
+      getAll(uploads);
     } catch (InterruptedException e) {
       throw new IOException("Failed to put file to memory cache.", e);
+    } finally {
+      cancelAll(uploads.values());
+    }
+  }
+
+  /**
+   * Waits for all futures and returns their results. Failures are rethrown as the IOException or
+   * CacheNotFoundException that caused them.
+   */
+  private static <K, V> Map<K, V> getAll(Map<K, ListenableFuture<V>> futures) throws IOException {
+    Map<K, V> results = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<K, ListenableFuture<V>> future : futures.entrySet()) {
+        results.put(future.getKey(), future.getValue().get());
+      }
+    } catch (InterruptedException e) {
+      cancelAll(futures.values());
+      throw new IOException("Interrupted while accessing memory cache.", e);
+    } catch (ExecutionException e) {
+      cancelAll(futures.values());
+      throw rethrow(e);
+    }
+    return results;
+  }
+
+  private static IOException rethrow(ExecutionException e) throws IOException {
+    if (e.getCause() instanceof IOException) {
+      throw (IOException) e.getCause();
+    }
+    if (e.getCause() instanceof RuntimeException) {
+      // Includes CacheNotFoundException.
+      throw (RuntimeException) e.getCause();
+    }
+    throw new IOException("Failed to access memory cache.", e.getCause());
+  }
+
+  /**
+   * Submits {@code task} to the transfer pool. The caller must have acquired {@code kbytes} of
+   * {@link #uploadMemoryAvailable}, which are released once the task has finished, or when it is
+   * cancelled before it started.
+   */
+  private <T> ListenableFuture<T> submitHoldingMemory(final int kbytes, final Callable<T> task) {
+    // Set by whichever of the task and the cancellation listener gets to the memory first.
+    final AtomicBoolean claimed = new AtomicBoolean();
+    ListenableFuture<T> future;
+    try {
+      future =
+          transferExecutor.submit(
+              new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                  if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                  }
+                  try {
+                    return task.call();
+                  } finally {
+                    uploadMemoryAvailable.release(kbytes);
+                  }
+                }
+              });
+    } catch (RuntimeException e) {
+      uploadMemoryAvailable.release(kbytes);
+      throw e;
+    }
+    future.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (claimed.compareAndSet(false, true)) {
+              uploadMemoryAvailable.release(kbytes);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return future;
+  }
+
+  private void putFile(String key, Path file, RemoteCacheStats stats) throws IOException {
+    long fileSize = file.getFileSize();
+    if (fileSize > CHUNK_SIZE_BYTES) {
+      putFileInChunks(key, file, stats);
+      return;
+    }
+    int fileSizeKBytes = (int) (fileSize / 1024);
+    try {
+      uploadMemoryAvailable.acquire(fileSizeKBytes);
+    } catch (InterruptedException e) {
+      throw new IOException("Failed to put file to memory cache.", e);
+    }
+    try {
+      uploadFile(key, file, stats);
     } finally {
       uploadMemoryAvailable.release(fileSizeKBytes);
     }
   }
 
+  /** Uploads a small file in one entry. The caller holds the memory for its contents. */
+  private void uploadFile(String key, Path file, RemoteCacheStats stats) throws IOException {
+    try (InputStream stream = file.getInputStream()) {
+      put(
+          key,
+          CacheEntry.newBuilder().setFileContent(ByteString.readFrom(stream)).build().toByteArray(),
+          stats);
+    }
+  }
+
+  /**
+   * Uploads the chunks of {@code file} that are not in the cache yet, then the entry listing them.
+   * The file is read once; every chunk holds {@link #CHUNK_SIZE_KBYTES} of
+   * {@link #uploadMemoryAvailable} until its upload has finished.
+   */
+  private void putFileInChunks(String key, Path file, final RemoteCacheStats stats)
+      throws IOException {
+    List<String> chunkKeys = new ArrayList<>();
+    Set<String> uploadedChunkKeys = new HashSet<>();
+    List<ListenableFuture<Void>> uploads = new ArrayList<>();
+    try (InputStream stream = file.getInputStream()) {
+      while (true) {
+        uploadMemoryAvailable.acquire(CHUNK_SIZE_KBYTES);
+        boolean submitted = false;
+        try {
+          byte[] buffer = new byte[CHUNK_SIZE_BYTES];
+          int length = ByteStreams.read(stream, buffer, 0, CHUNK_SIZE_BYTES);
+          if (length == 0) {
+            break;
+          }
+          final String chunkKey = Hashing.sha256().hashBytes(buffer, 0, length).toString();
+          chunkKeys.add(chunkKey);
+          if (uploadedChunkKeys.add(chunkKey)) {
+            final ByteString content = ByteString.copyFrom(buffer, 0, length);
+            submitted = true;
+            uploads.add(
+                submitHoldingMemory(
+                    CHUNK_SIZE_KBYTES,
+                    new Callable<Void>() {
+                      @Override
+                      public Void call() {
+                        if (!containsFile(chunkKey, stats)) {
+                          put(
+                              chunkKey,
+                              CacheEntry.newBuilder()
+                                  .setFileContent(content)
+                                  .build()
+                                  .toByteArray(),
+                              stats);
+                        }
+                        return null;
+                      }
+                    }));
+          }
+        } finally {
+          if (!submitted) {
+            uploadMemoryAvailable.release(CHUNK_SIZE_KBYTES);
+          }
+        }
+      }
+      for (ListenableFuture<Void> upload : uploads) {
+        upload.get();
+      }
+    } catch (InterruptedException e) {
+      cancelAll(uploads);
+      throw new IOException("Failed to put file to memory cache.", e);
+    } catch (ExecutionException e) {
+      cancelAll(uploads);
+      throw new IOException("Failed to put file to memory cache.", e.getCause());
+    } catch (IOException | RuntimeException e) {
+      cancelAll(uploads);
+      throw e;
+    }
+    put(key, CacheEntry.newBuilder().addAllChunkKeys(chunkKeys).build().toByteArray(), stats);
+  }
+
+  @Override
+  public void getBatch(Path root, Collection<FileEntry> files, final RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    // The entries of the files are fetched concurrently, a bounded number ahead of the one being
+    // written to disk.
+    Deque<ListenableFuture<CacheEntry>> downloads = new ArrayDeque<>();
+    Deque<FileEntry> pending = new ArrayDeque<>();
+    try {
+      for (final FileEntry file : files) {
+        downloads.add(
+            transferExecutor.submit(
+                new Callable<CacheEntry>() {
+                  @Override
+                  public CacheEntry call() throws IOException, CacheNotFoundException {
+                    return getFileEntry(file.getContentKey(), stats);
+                  }
+                }));
+        pending.add(file);
+        if (downloads.size() >= maxDownloadsInFlight) {
+          writeFile(root, pending.removeFirst(), downloads.removeFirst().get(), stats);
+        }
+      }
+      while (!downloads.isEmpty()) {
+        writeFile(root, pending.removeFirst(), downloads.removeFirst().get(), stats);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Failed to read file from memory cache.", e);
+    } catch (ExecutionException e) {
+      throw rethrow(e);
+    } finally {
+      cancelAll(downloads);
+    }
+  }
+
+  private void writeFile(Path root, FileEntry file, CacheEntry entry, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    Path dest = root.getRelative(file.getPath());
+    FileSystemUtils.createDirectoryAndParents(dest.getParentDirectory());
+    try (OutputStream stream = dest.getOutputStream()) {
+      writeFileContent(entry, stream, stats);
+      dest.setExecutable(file.getExecutable());
+    }
+  }
+
   @Override
   public void writeFile(String key, Path dest, boolean executable)
       throws IOException, CacheNotFoundException {
-    byte[] data = cache.get(key);
+    RemoteCacheStats stats = new RemoteCacheStats();
+    CacheEntry entry = getFileEntry(key, stats);
+    try (OutputStream stream = dest.getOutputStream()) {
+      writeFileContent(entry, stream, stats);
+      dest.setExecutable(executable);
+    }
+  }
+
+  @Override
+  public void readFile(String key, OutputStream out) throws IOException, CacheNotFoundException {
+    RemoteCacheStats stats = new RemoteCacheStats();
+    writeFileContent(getFileEntry(key, stats), out, stats);
+  }
+
+  private CacheEntry getFileEntry(String key, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    byte[] data = get(key, stats);
+    stats.addLookup(data != null);
     if (data == null) {
       throw new CacheNotFoundException("File content cannot be found with key: " + key);
     }
-    try (OutputStream stream = dest.getOutputStream()) {
-      CacheEntry.parseFrom(data).getFileContent().writeTo(stream);
-      dest.setExecutable(executable);
+    return CacheEntry.parseFrom(data);
+  }
+
+  /**
+   * Writes the contents of the file stored in {@code entry} to {@code out}. The chunks of a chunked
+   * file are downloaded concurrently, at most {@link #maxDownloadsInFlight} ahead of the one being
+   * written.
+   */
+  private void writeFileContent(CacheEntry entry, OutputStream out, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    if (entry.getChunkKeysCount() == 0) {
+      entry.getFileContent().writeTo(out);
+      return;
+    }
+    Deque<ListenableFuture<ByteString>> downloads = new ArrayDeque<>();
+    int next = 0;
+    try {
+      while (next < entry.getChunkKeysCount() || !downloads.isEmpty()) {
+        while (next < entry.getChunkKeysCount() && downloads.size() < maxDownloadsInFlight) {
+          downloads.add(downloadChunk(entry.getChunkKeys(next++), stats));
+        }
+        downloads.removeFirst().get().writeTo(out);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Failed to read file from memory cache.", e);
+    } catch (ExecutionException e) {
+      throw rethrow(e);
+    } finally {
+      cancelAll(downloads);
     }
   }
 
-  private boolean containsFile(String key) {
+  private ListenableFuture<ByteString> downloadChunk(
+      final String chunkKey, final RemoteCacheStats stats) {
+    return transferExecutor.submit(
+        new Callable<ByteString>() {
+          @Override
+          public ByteString call() throws IOException, CacheNotFoundException {
+            byte[] data = get(chunkKey, stats);
+            if (data == null) {
+              throw new CacheNotFoundException("File chunk cannot be found with key: " + chunkKey);
+            }
+            return CacheEntry.parseFrom(data).getFileContent();
+          }
+        });
+  }
+
+  private static void cancelAll(Iterable<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  private boolean containsFile(String key, RemoteCacheStats stats) {
+    stats.addRoundTrip();
     return cache.containsKey(key);
   }
 
+  private byte[] get(String key, RemoteCacheStats stats) {
+    stats.addRoundTrip();
+    byte[] data = cache.get(key);
+    if (data != null) {
+      stats.addBytesDownloaded(data.length);
+    }
+    return data;
+  }
+
+  private void put(String key, byte[] value, RemoteCacheStats stats) {
+    stats.addRoundTrip();
+    stats.addBytesUploaded(value.length);
+    cache.put(key, value);
+  }
+
   @Override
-  public void writeActionOutput(String key, Path execRoot)
+  public ImmutableList<FileEntry> getActionOutput(String key, RemoteCacheStats stats)
       throws IOException, CacheNotFoundException {
-    byte[] data = cache.get(key);
+    byte[] data = get(key, stats);
+    stats.addLookup(data != null);
     if (data == null) {
       throw new CacheNotFoundException("Action output cannot be found with key: " + key);
     }
-    CacheEntry cacheEntry = CacheEntry.parseFrom(data);
-    for (FileEntry file : cacheEntry.getFilesList()) {
-      writeFile(file.getContentKey(), execRoot.getRelative(file.getPath()), file.getExecutable());
-    }
+    return ImmutableList.copyOf(CacheEntry.parseFrom(data).getFilesList());
+  }
+
+  @Override
+  public void writeActionOutput(String key, Path execRoot, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException {
+    getBatch(execRoot, getActionOutput(key, stats), stats);
   }
 
   @Override
-  public void putActionOutput(String key, Collection<? extends ActionInput> outputs)
+  public void putActionOutput(
+      String key, Collection<? extends ActionInput> outputs, RemoteCacheStats stats)
       throws IOException {
-    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    List<Path> files = new ArrayList<>(outputs.size());
     for (ActionInput output : outputs) {
-      Path file = execRoot.getRelative(output.getExecPathString());
-      addToActionOutput(file, output.getExecPathString(), actionOutput);
+      files.add(execRoot.getRelative(output.getExecPathString()));
     }
-    cache.put(key, actionOutput.build().toByteArray());
+    putActionOutput(key, execRoot, files, stats);
   }
 
   @Override
   public void putActionOutput(String key, Path execRoot, Collection<Path> files)
       throws IOException {
-    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
-    for (Path file : files) {
-      addToActionOutput(file, file.relativeTo(execRoot).getPathString(), actionOutput);
-    }
-    cache.put(key, actionOutput.build().toByteArray());
+    putActionOutput(key, execRoot, files, new RemoteCacheStats());
   }
 
   /**
-   * Add the file to action output cache entry. Put the file to cache if necessary.
+   * Puts all {@code files} in cache as a batch, then the action output entry listing them.
    */
-  private void addToActionOutput(Path file, String execPathString, CacheEntry.Builder actionOutput)
+  private void putActionOutput(
+      String key, Path execRoot, Collection<Path> files, RemoteCacheStats stats)
       throws IOException {
-    if (file.isDirectory()) {
-      // TODO(alpha): Implement this for directory.
-      throw new UnsupportedOperationException("Storing a directory is not yet supported.");
-    }
-    // First put the file content to cache.
-    String contentKey = putFileIfNotExist(file);
-    // Add to protobuf.
-    actionOutput
-        .addFilesBuilder()
-        .setPath(execPathString)
-        .setContentKey(contentKey)
-        .setExecutable(file.isExecutable());
+    List<String> contentKeys = new ArrayList<>(files.size());
+    List<Path> paths = new ArrayList<>(files);
+    for (Path file : paths) {
+      if (file.isDirectory()) {
+        // TODO(alpha): Implement this for directory.
+        throw new UnsupportedOperationException("Storing a directory is not yet supported.");
+      }
+      contentKeys.add(HashCode.fromBytes(file.getDigest()).toString());
+    }
+    putFiles(contentKeys, paths, stats);
+
+    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    for (int i = 0; i < paths.size(); i++) {
+      Path file = paths.get(i);
+      actionOutput
+          .addFilesBuilder()
+          .setPath(file.relativeTo(execRoot).getPathString())
+          .setContentKey(contentKeys.get(i))
+          .setExecutable(file.isExecutable());
+    }
+    put(key, actionOutput.build().toByteArray(), stats);
   }
 }
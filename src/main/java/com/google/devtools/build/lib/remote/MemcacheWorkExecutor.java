@@ -113,7 +113,8 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
       Collection<ActionInput> inputs,
       ImmutableMap<String, String> environment,
       Collection<? extends ActionInput> outputs,
-      int timeout)
+      int timeout,
+      RemoteCacheStats stats)
       throws IOException, WorkTooLargeException {
     RemoteWorkRequest.Builder work = RemoteWorkRequest.newBuilder();
     work.setOutputKey(actionOutputKey);
@@ -133,21 +134,26 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
       throw new WorkTooLargeException("Work is too large: " + workSize + " bytes.");
     }
 
-    // Save all input files to cache.
+    List<Path> files = new ArrayList<>(inputs.size());
     for (ActionInput input : inputs) {
       Path file = execRoot.getRelative(input.getExecPathString());
-
       if (file.isDirectory()) {
         // TODO(alpha): Handle this case better.
         throw new UnsupportedOperationException(
             "Does not support directory artifacts: " + file + ".");
       }
+      files.add(file);
+    }
 
-      String contentKey = cache.putFileIfNotExist(actionCache, input);
+    // Save all input files to cache.
+    List<String> contentKeys = cache.putBatch(actionCache, inputs, stats);
+    int i = 0;
+    for (ActionInput input : inputs) {
       work.addInputFilesBuilder()
           .setPath(input.getExecPathString())
-          .setContentKey(contentKey)
-          .setExecutable(file.isExecutable());
+          .setContentKey(contentKeys.get(i))
+          .setExecutable(files.get(i).isExecutable());
+      i++;
     }
 
     work.addAllArguments(arguments);
@@ -167,11 +173,7 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
     ByteArrayOutputStream stderr = new ByteArrayOutputStream();
     try {
       // Prepare directories and input files.
-      for (FileEntry input : work.getInputFilesList()) {
-        Path file = execRoot.getRelative(input.getPath());
-        FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
-        cache.writeFile(input.getContentKey(), file, input.getExecutable());
-      }
+      cache.getBatch(execRoot, work.getInputFilesList(), new RemoteCacheStats());
 
       List<Path> outputs = new ArrayList<>(work.getOutputFilesList().size());
       for (FileEntry output : work.getOutputFilesList()) {
@@ -14,12 +14,16 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 
 /**
@@ -42,6 +46,31 @@ interface RemoteActionCache {
    */
   String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException;
 
+  /**
+   * Returns the subset of {@code keys} that are stored in cache. All keys are looked up as one
+   * batch.
+   */
+  ImmutableSet<String> containsKeys(Collection<String> keys, RemoteCacheStats stats)
+      throws IOException;
+
+  /**
+   * Put all files in cache that are not already in it. The cache is checked for all files at once,
+   * and missing files are uploaded concurrently.
+   *
+   * @return The keys for fetching the files from cache, in the order of {@code files}.
+   */
+  ImmutableList<String> putBatch(
+      ActionInputFileCache cache, Collection<? extends ActionInput> files, RemoteCacheStats stats)
+      throws IOException;
+
+  /**
+   * Write the files in cache identified by the content keys of {@code files} to the file system,
+   * relative to {@code root}. Files are downloaded concurrently. Throws CacheNotFoundException if
+   * any of the files is not found in cache.
+   */
+  void getBatch(Path root, Collection<FileEntry> files, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException;
+
   /**
    * Write the file in cache identified by key to the file system. The key must uniquely identify
    * the content of the file. Throws CacheNotFoundException if the file is not found in cache.
@@ -49,19 +78,36 @@ interface RemoteActionCache {
   void writeFile(String key, Path dest, boolean executable)
       throws IOException, CacheNotFoundException;
 
+  /**
+   * Write the content of the file in cache identified by key to the given stream. Large files are
+   * streamed, so they never have to fit in memory. Throws CacheNotFoundException if the file (or
+   * any part of it) is not found in cache.
+   */
+  void readFile(String key, OutputStream dest) throws IOException, CacheNotFoundException;
+
+  /**
+   * Returns the action output files identified by the key, without writing them to the file
+   * system.
+   *
+   * @throws CacheNotFoundException if action output is not found in cache.
+   */
+  ImmutableList<FileEntry> getActionOutput(String key, RemoteCacheStats stats)
+      throws IOException, CacheNotFoundException;
+
   /**
    * Write the action output files identified by the key to the file system. The key must uniquely
    * identify the action and the content of action inputs.
    *
    * @throws CacheNotFoundException if action output is not found in cache.
    */
-  void writeActionOutput(String key, Path execRoot)
+  void writeActionOutput(String key, Path execRoot, RemoteCacheStats stats)
       throws IOException, CacheNotFoundException;
 
   /**
    * Update the cache with the action outputs for the specified key.
    */
-  void putActionOutput(String key, Collection<? extends ActionInput> outputs)
+  void putActionOutput(
+      String key, Collection<? extends ActionInput> outputs, RemoteCacheStats stats)
       throws IOException;
 
   /**
@@ -0,0 +1,90 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the traffic between a single action and the {@link RemoteActionCache}. Batch
+ * operations update them from several transfer threads at once.
+ */
+@ThreadSafe
+final class RemoteCacheStats {
+  private final AtomicLong roundTrips = new AtomicLong();
+  private final AtomicLong bytesUploaded = new AtomicLong();
+  private final AtomicLong bytesDownloaded = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  void addRoundTrip() {
+    roundTrips.incrementAndGet();
+  }
+
+  void addBytesUploaded(long bytes) {
+    bytesUploaded.addAndGet(bytes);
+  }
+
+  void addBytesDownloaded(long bytes) {
+    bytesDownloaded.addAndGet(bytes);
+  }
+
+  /**
+   * Records whether a lookup found its entry in the cache. Uploads count a file that was already
+   * there as a hit; downloads count each action output entry and file that was found.
+   */
+  void addLookup(boolean hit) {
+    (hit ? hits : misses).incrementAndGet();
+  }
+
+  long getRoundTrips() {
+    return roundTrips.get();
+  }
+
+  long getBytesUploaded() {
+    return bytesUploaded.get();
+  }
+
+  long getBytesDownloaded() {
+    return bytesDownloaded.get();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /** Returns the fraction of lookups that were hits, or 0 if there were no lookups. */
+  double getHitRatio() {
+    long hits = getHits();
+    long lookups = hits + getMisses();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d round trips, %d bytes uploaded, %d bytes downloaded, %d/%d cache hits (%.0f%%)",
+        getRoundTrips(),
+        getBytesUploaded(),
+        getBytesDownloaded(),
+        getHits(),
+        getHits() + getMisses(),
+        getHitRatio() * 100);
+  }
+}
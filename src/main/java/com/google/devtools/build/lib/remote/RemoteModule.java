@@ -23,8 +23,10 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -35,6 +37,9 @@ public final class RemoteModule extends BlazeModule {
   private CommandEnvironment env;
   private BuildRequest buildRequest;
   private RemoteActionCache actionCache;
+  // The cache in front of which the local disk cache is put, if any.
+  private RemoteActionCache remoteCache;
+  private LocalDiskActionCache localDiskCache;
   private RemoteWorkExecutor workExecutor;
 
   public RemoteModule() {}
@@ -53,6 +58,9 @@ public final class RemoteModule extends BlazeModule {
 
   @Override
   public void afterCommand() {
+    if (localDiskCache != null) {
+      saveAccessOrder(localDiskCache);
+    }
     this.env = null;
     this.buildRequest = null;
   }
@@ -63,13 +71,13 @@ public final class RemoteModule extends BlazeModule {
     RemoteOptions options = buildRequest.getOptions(RemoteOptions.class);
 
     // Don't provide the remote spawn unless at least action cache is initialized.
-    if (actionCache == null && options.hazelcastNode != null) {
+    if (remoteCache == null && options.hazelcastNode != null) {
       MemcacheActionCache cache =
           new MemcacheActionCache(
               this.env.getDirectories().getExecRoot(),
               options,
               HazelcastCacheFactory.create(options));
-      actionCache = cache;
+      remoteCache = cache;
       if (workExecutor == null && options.remoteWorker != null) {
         try {
           URI uri = new URI("dummy://" + options.remoteWorker);
@@ -84,6 +92,48 @@ public final class RemoteModule extends BlazeModule {
         }
       }
     }
+    updateLocalDiskCache(options);
+    actionCache = localDiskCache != null ? localDiskCache : remoteCache;
+  }
+
+  /**
+   * Recreates the local disk cache if its directory or size changed, and drops it if {@code
+   * --local_disk_cache} is no longer set.
+   */
+  private void updateLocalDiskCache(RemoteOptions options) {
+    Path root =
+        options.localDiskCache == null
+            ? null
+            : env.getWorkspace().getRelative(options.localDiskCache);
+    long maxSizeBytes = options.localDiskCacheMaxSizeMb * 1024 * 1024;
+    if (localDiskCache != null
+        && (!localDiskCache.getRoot().equals(root)
+            || localDiskCache.getMaxSizeBytes() != maxSizeBytes
+            || localDiskCache.getRemoteCache() != remoteCache)) {
+      saveAccessOrder(localDiskCache);
+      localDiskCache = null;
+    }
+    if (localDiskCache == null && root != null) {
+      try {
+        localDiskCache =
+            new LocalDiskActionCache(
+                env.getDirectories().getExecRoot(), root, maxSizeBytes, remoteCache);
+      } catch (IOException | IllegalArgumentException e) {
+        env.getReporter()
+            .handle(Event.warn("Cannot use the local disk cache: " + e.getMessage()));
+      }
+    }
+  }
+
+  private void saveAccessOrder(LocalDiskActionCache cache) {
+    try {
+      cache.saveAccessOrder();
+    } catch (IOException e) {
+      env.getReporter()
+          .handle(
+              Event.warn(
+                  "Cannot save the access order of the local disk cache: " + e.getMessage()));
+    }
   }
 
   @Override
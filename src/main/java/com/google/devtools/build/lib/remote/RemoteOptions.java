@@ -48,4 +48,35 @@ public final class RemoteOptions extends OptionsBase {
             + "For client mode only."
   )
   public String remoteWorker;
+
+  @Option(
+    name = "remote_cache_transfer_threads",
+    defaultValue = "8",
+    category = "remote",
+    help =
+        "The number of files and file chunks that are checked, uploaded or downloaded "
+            + "concurrently by the remote action cache."
+  )
+  public int remoteCacheTransferThreads;
+
+  @Option(
+    name = "local_disk_cache",
+    defaultValue = "null",
+    category = "remote",
+    help =
+        "A directory in which action outputs are cached on local disk. It can be used alone or "
+            + "in front of --hazelcast_node, and can be shared between workspaces. Relative paths "
+            + "are resolved against the workspace."
+  )
+  public String localDiskCache;
+
+  @Option(
+    name = "local_disk_cache_max_size_mb",
+    defaultValue = "10240",
+    category = "remote",
+    help =
+        "The maximum size of --local_disk_cache in megabytes. The least recently used entries "
+            + "are evicted first."
+  )
+  public long localDiskCacheMaxSizeMb;
 }
@@ -31,8 +31,11 @@ import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteWorkResponse;
 import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.Path;
@@ -162,7 +165,10 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
       // If nothing works then run spawn locally.
       standaloneStrategy.exec(spawn, actionExecutionContext);
       if (remoteActionCache != null) {
-        remoteActionCache.putActionOutput(actionOutputKey, spawn.getOutputFiles());
+        long startTime = BlazeClock.nanoTime();
+        RemoteCacheStats stats = new RemoteCacheStats();
+        remoteActionCache.putActionOutput(actionOutputKey, spawn.getOutputFiles(), stats);
+        logCacheTraffic(startTime, ProfilerTask.UPLOAD_TIME, spawn.getMnemonic(), stats);
       }
     } catch (IOException e) {
       throw new UserExecException("Unexpected IO error.", e);
@@ -193,6 +199,8 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
       return false;
     }
     try {
+      long startTime = BlazeClock.nanoTime();
+      RemoteCacheStats stats = new RemoteCacheStats();
       ListenableFuture<RemoteWorkResponse> future =
           remoteWorkExecutor.executeRemotely(
               execRoot,
@@ -202,7 +210,9 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
               inputs,
               environment,
               outputs,
-              timeout);
+              timeout,
+              stats);
+      logCacheTraffic(startTime, ProfilerTask.REMOTE_SETUP, mnemonic, stats);
       RemoteWorkResponse response = future.get(timeout, TimeUnit.SECONDS);
       if (!response.getSuccess()) {
         String exception = "";
@@ -247,8 +257,10 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
     if (remoteActionCache == null) {
       return false;
     }
+    long startTime = BlazeClock.nanoTime();
+    RemoteCacheStats stats = new RemoteCacheStats();
     try {
-      remoteActionCache.writeActionOutput(actionOutputKey, execRoot);
+      remoteActionCache.writeActionOutput(actionOutputKey, execRoot, stats);
       Event.info(mnemonic + " reuse action outputs from cache");
       return true;
     } catch (CacheNotFoundException e) {
@@ -256,10 +268,21 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
         eventHandler.handle(
             Event.warn(mnemonic + " some cache entries cannot be found (" + e + ")"));
       }
+    } finally {
+      logCacheTraffic(startTime, ProfilerTask.FETCH, mnemonic, stats);
     }
     return false;
   }
 
+  /**
+   * Records the round trips, transferred bytes and hit ratio of one step of an action in the
+   * profile, so that slow cache accesses can be told apart from large ones.
+   */
+  private static void logCacheTraffic(
+      long startTime, ProfilerTask task, String mnemonic, RemoteCacheStats stats) {
+    Profiler.instance().logSimpleTask(startTime, task, mnemonic + ": " + stats);
+  }
+
   @Override
   public boolean willExecuteRemotely(boolean remotable) {
     // Returning true here just helps to estimate the cost of this computation is zero.
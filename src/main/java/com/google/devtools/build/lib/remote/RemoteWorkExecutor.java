@@ -35,7 +35,8 @@ public interface RemoteWorkExecutor {
    * The output of running this action should be written to {@link RemoteActionCache} indexed
    * by |actionOutputKey|.
    *
-   * Returns a future for the response of this work request.
+   * Returns a future for the response of this work request. Traffic to the cache is recorded in
+   * {@code stats}.
    */
   ListenableFuture<RemoteWorkResponse> executeRemotely(
       Path execRoot,
@@ -45,6 +46,7 @@ public interface RemoteWorkExecutor {
       Collection<ActionInput> inputs,
       ImmutableMap<String, String> environment,
       Collection<? extends ActionInput> outputs,
-      int timeout)
+      int timeout,
+      RemoteCacheStats stats)
       throws IOException, WorkTooLargeException;
 }
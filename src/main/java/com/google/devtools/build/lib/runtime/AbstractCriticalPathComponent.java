@@ -33,6 +33,8 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
   /** Finish time for the action in nanoseconds. Only to be used for measuring elapsed time. */
   private long relativeFinishNanos = 0;
   protected volatile boolean isRunning = true;
+  /** Whether the action ran, as opposed to being a middleman or an action cache hit. */
+  private volatile boolean executed = false;
 
   /** We keep here the critical path time for the most expensive child. */
   private long childAggregatedElapsedTime = 0;
@@ -72,6 +74,19 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
     return false;
   }
 
+  /** Records that the action ran, so that its elapsed time is a real measurement. */
+  public void markExecuted() {
+    executed = true;
+  }
+
+  /**
+   * Returns whether the action ran. Middlemen and action cache hits take almost no time, which
+   * says nothing about how long the action takes to run.
+   */
+  public boolean wasExecuted() {
+    return executed;
+  }
+
   /** The action for which we are storing the stat. */
   public Action getAction() {
     return action;
@@ -96,6 +111,12 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
     return TimeUnit.NANOSECONDS.toMillis(getElapsedTimeNanos());
   }
 
+  /** Returns the time at which the action finished, comparable to other components' times. */
+  long getRelativeFinishNanos() {
+    Preconditions.checkState(!isRunning, "Still running %s", action);
+    return relativeFinishNanos;
+  }
+
   long getElapsedTimeNanos() {
     Preconditions.checkState(!isRunning, "Still running %s", action);
     return relativeFinishNanos - relativeStartNanos;
@@ -0,0 +1,165 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionExecutionHistory;
+import com.google.devtools.build.lib.actions.MeasuredResourceEstimates;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.actions.SpawnResourceUsageEvent;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
+import com.google.devtools.build.lib.runtime.commands.ActionHistoryCommand;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records how long every executed action took, and what its spawns used of the machine, in an
+ * {@link ActionExecutionHistory} in the output base. With measured resource estimates, also keeps
+ * the {@link ResourceManager} supplied with {@link MeasuredResourceEstimates} from the history.
+ */
+public class ActionHistoryModule extends BlazeModule {
+
+  /** The name of the history file in the output base. */
+  public static final String HISTORY_FILE = "action_history";
+
+  /** The resource usage of the spawns of an action that has not completed yet. */
+  private static final class SpawnTotals {
+    private long wallMillis;
+    private long cpuMillis;
+    private long peakRssBytes;
+    private long ioBytes;
+
+    synchronized void add(SpawnResourceUsageEvent event) {
+      wallMillis += event.getWallMillis();
+      cpuMillis += event.getCpuMillis();
+      peakRssBytes = Math.max(peakRssBytes, event.getPeakRssBytes());
+      ioBytes += event.getIoBytes();
+    }
+
+    synchronized ActionExecutionHistory.Usage toUsage() {
+      return new ActionExecutionHistory.Usage(wallMillis, cpuMillis, peakRssBytes, ioBytes);
+    }
+  }
+
+  private Reporter reporter;
+  private Path historyFile;
+  private volatile boolean enabled;
+  private boolean measuredResourceEstimates;
+  // Kept across commands, so that the file is only read once per server.
+  private ActionExecutionHistory history;
+  private MeasuredResourceEstimates estimates;
+  private final ConcurrentMap<String, SpawnTotals> spawnTotals = new ConcurrentHashMap<>();
+
+  @Override
+  public Iterable<? extends BlazeCommand> getCommands() {
+    return ImmutableList.of(new ActionHistoryCommand());
+  }
+
+  @Override
+  public void beforeCommand(Command command, CommandEnvironment env) {
+    this.reporter = env.getReporter();
+    this.historyFile = env.getOutputBase().getRelative(HISTORY_FILE);
+    env.getEventBus().register(this);
+  }
+
+  @Override
+  public void afterCommand() {
+    this.reporter = null;
+    this.enabled = false;
+    this.measuredResourceEstimates = false;
+    spawnTotals.clear();
+  }
+
+  @Subscribe
+  public void buildStarting(BuildStartingEvent event) {
+    ExecutionOptions options = event.getRequest().getOptions(ExecutionOptions.class);
+    measuredResourceEstimates = options != null && options.measuredResourceEstimates;
+    enabled = options != null && (options.actionHistory || measuredResourceEstimates);
+  }
+
+  @Subscribe
+  public void executionPhaseStarting(ExecutionStartingEvent event) {
+    if (enabled && history == null) {
+      try {
+        history = ActionExecutionHistory.load(historyFile);
+      } catch (IOException e) {
+        reporter.handle(Event.warn("Could not read the action history: " + e.getMessage()));
+        history = new ActionExecutionHistory();
+      }
+      estimates = MeasuredResourceEstimates.fromHistory(history);
+    }
+    ResourceManager.instance()
+        .setMeasuredResourceEstimates(measuredResourceEstimates ? estimates : null);
+  }
+
+  @Subscribe
+  public void spawnResourceUsage(SpawnResourceUsageEvent event) {
+    if (!enabled) {
+      return;
+    }
+    String key = ActionExecutionHistory.getKey(event.getOwner());
+    SpawnTotals totals = spawnTotals.get(key);
+    if (totals == null) {
+      SpawnTotals newTotals = new SpawnTotals();
+      totals = spawnTotals.putIfAbsent(key, newTotals);
+      if (totals == null) {
+        totals = newTotals;
+      }
+    }
+    totals.add(event);
+  }
+
+  @Subscribe
+  public void actionComplete(ActionCompletionEvent event) {
+    if (!enabled) {
+      return;
+    }
+    Action action = event.getAction();
+    SpawnTotals totals = spawnTotals.remove(ActionExecutionHistory.getKey(action));
+    // The spawns measure their own wall time. The time since the action started also includes the
+    // time that it waited for resources, which would make its CPU usage look lower than it is.
+    ActionExecutionHistory.Usage usage =
+        totals == null
+            ? ActionExecutionHistory.Usage.ofWallTime(
+                (BlazeClock.nanoTime() - event.getRelativeActionStartTime()) / 1000000)
+            : totals.toUsage();
+    history.record(action, BlazeClock.instance().currentTimeMillis(), usage);
+    estimates.record(action.getMnemonic(), usage);
+  }
+
+  @Subscribe
+  public void buildComplete(BuildCompleteEvent event) {
+    if (!enabled || history == null) {
+      return;
+    }
+    ResourceManager.instance().setMeasuredResourceEstimates(null);
+    try {
+      history.save(historyFile);
+    } catch (IOException e) {
+      reporter.handle(Event.warn("Could not save the action history: " + e.getMessage()));
+    }
+  }
+}
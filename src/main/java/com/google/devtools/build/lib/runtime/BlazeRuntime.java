@@ -585,6 +585,7 @@ public final class BlazeRuntime {
     for (BlazeModule module : blazeModules) {
       module.blazeShutdown();
     }
+    workspace.getSkyframeExecutor().maybeWriteFileSystemSnapshot();
   }
 
   /**
@@ -921,9 +922,16 @@ public final class BlazeRuntime {
         throw new AbruptExitException("gRPC server not compiled in", ExitCode.BLAZE_INTERNAL_ERROR);
       }
     } else {
+      final SkyframeExecutor skyframeExecutor = runtime.workspace.getSkyframeExecutor();
       return AfUnixServer.newServerWith(runtime.getClock(), commandExecutor,
           runtime.getServerDirectory(), runtime.workspace.getWorkspace(),
-          startupOptions.maxIdleSeconds);
+          startupOptions.maxIdleSeconds,
+          new Runnable() {
+            @Override
+            public void run() {
+              skyframeExecutor.maybeWriteFileSystemSnapshot();
+            }
+          });
     }
   }
 
@@ -202,20 +202,37 @@ public final class BlazeWorkspace {
    */
   public void clearCaches() throws IOException {
     skyframeExecutor.resetEvaluator();
-    actionCache = null;
+    closeActionCache();
     FileSystemUtils.deleteTree(getCacheDirectory());
   }
 
+  private void closeActionCache() throws IOException {
+    if (actionCache instanceof CompactPersistentActionCache) {
+      ((CompactPersistentActionCache) actionCache).close();
+    }
+    actionCache = null;
+  }
+
   /**
    * Returns reference to the lazily instantiated persistent action cache
    * instance. Note, that method may recreate instance between different build
    * requests, so return value should not be cached.
+   *
+   * @param mappedLog whether the cache should keep its entries in a memory-mapped log; the
+   *     instance is recreated if this changes
    */
-  public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+  public ActionCache getPersistentActionCache(Reporter reporter, boolean mappedLog)
+      throws IOException {
+    if (actionCache instanceof CompactPersistentActionCache
+        && ((CompactPersistentActionCache) actionCache).usesMappedLog() != mappedLog) {
+      actionCache.save();
+      closeActionCache();
+    }
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, LOG)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = new CompactPersistentActionCache(
+              getCacheDirectory(), runtime.getClock(), mappedLog);
         } catch (IOException e) {
           LOG.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -228,7 +245,8 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Blaze will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = new CompactPersistentActionCache(
+              getCacheDirectory(), runtime.getClock(), mappedLog);
         }
       }
     }
@@ -16,14 +16,20 @@ package com.google.devtools.build.lib.runtime;
 import com.google.common.base.Joiner;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.CriticalPathEstimates;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -39,11 +45,16 @@ public class BuildSummaryStatsModule extends BlazeModule {
   private SimpleCriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
+  private Path criticalPathEstimatesFile;
+  private boolean criticalPathScheduling;
+  // Kept across commands, so that the file is only read once per server.
+  private CriticalPathEstimates criticalPathEstimates;
 
   @Override
   public void beforeCommand(Command command, CommandEnvironment env) {
     this.reporter = env.getReporter();
     this.eventBus = env.getEventBus();
+    this.criticalPathEstimatesFile = env.getOutputBase().getRelative("critical_path_estimates");
     eventBus.register(this);
   }
 
@@ -52,12 +63,41 @@ public class BuildSummaryStatsModule extends BlazeModule {
     this.criticalPathComputer = null;
     this.eventBus = null;
     this.reporter = null;
+    this.criticalPathScheduling = false;
+  }
+
+  @Subscribe
+  public void buildStarting(BuildStartingEvent event) {
+    ExecutionOptions options = event.getRequest().getOptions(ExecutionOptions.class);
+    criticalPathScheduling = options != null && options.criticalPathScheduling;
   }
 
   @Subscribe
   public void executionPhaseStarting(ExecutionStartingEvent event) {
     criticalPathComputer = new SimpleCriticalPathComputer(BlazeClock.instance());
     eventBus.register(criticalPathComputer);
+
+    if (criticalPathScheduling && criticalPathEstimates == null) {
+      try {
+        criticalPathEstimates = CriticalPathEstimates.load(criticalPathEstimatesFile);
+      } catch (IOException e) {
+        reporter.handle(Event.warn("Could not read critical path estimates: " + e.getMessage()));
+        criticalPathEstimates = new CriticalPathEstimates();
+      }
+    }
+    ResourceManager.instance()
+        .setCriticalPathEstimates(criticalPathScheduling ? criticalPathEstimates : null);
+  }
+
+  /** Remembers the remaining critical path of the actions of this build for the next builds. */
+  private void updateCriticalPathEstimates() {
+    ResourceManager.instance().setCriticalPathEstimates(null);
+    criticalPathEstimates.update(criticalPathComputer.computeRemainingCriticalPathMillis());
+    try {
+      criticalPathEstimates.save(criticalPathEstimatesFile);
+    } catch (IOException e) {
+      reporter.handle(Event.warn("Could not save critical path estimates: " + e.getMessage()));
+    }
   }
 
   @Subscribe
@@ -85,6 +125,10 @@ public class BuildSummaryStatsModule extends BlazeModule {
               ProfilerTask.CRITICAL_PATH_COMPONENT, stat.getAction());
         }
         Profiler.instance().completeTask(ProfilerTask.CRITICAL_PATH);
+
+        if (criticalPathScheduling && criticalPathEstimates != null) {
+          updateCriticalPathEstimates();
+        }
       }
 
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
@@ -85,6 +85,7 @@ public final class CommandEnvironment {
   private long commandStartTime;
   private OutputService outputService;
   private Path workingDirectory;
+  private boolean mappedActionCache;
 
   private AtomicReference<AbruptExitException> pendingException = new AtomicReference<>();
 
@@ -291,7 +292,7 @@ public final class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    return workspace.getPersistentActionCache(reporter, mappedActionCache);
   }
 
   /**
@@ -435,6 +436,7 @@ public final class CommandEnvironment {
     this.workingDirectory = workingDirectory;
 
     updateClientEnv(options.clientEnv, options.ignoreClientEnv);
+    this.mappedActionCache = options.mappedActionCache;
 
     // Fail fast in the case where a Blaze command forgets to install the package path correctly.
     skyframeExecutor.setActive(false);
@@ -257,4 +257,12 @@ public class CommonCommandOptions extends OptionsBase {
           + "unset, these commands will immediately return with an error.")
   public boolean blockForLock;
 
+  @Option(name = "experimental_mapped_action_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the action cache is kept in a memory-mapped, append-only log that is "
+          + "compacted in the background, instead of being loaded onto the heap and rewritten "
+          + "on every save. The file name index is kept in an off-heap string table.")
+  public boolean mappedActionCache;
+
 }
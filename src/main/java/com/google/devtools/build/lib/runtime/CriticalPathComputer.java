@@ -15,7 +15,9 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionCompletionEvent;
@@ -30,8 +32,13 @@ import com.google.devtools.build.lib.util.Preconditions;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -175,6 +182,7 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     Action action = event.getAction();
     C component = Preconditions.checkNotNull(
         outputArtifactToComponent.get(action.getPrimaryOutput()));
+    component.markExecuted();
     finalizeActionStat(event.getRelativeActionStartTime(), action, component);
   }
 
@@ -197,6 +205,64 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     return ImmutableList.copyOf(list).reverse();
   }
 
+  /**
+   * Returns the remaining critical path of every action that ran, in milliseconds and keyed by the
+   * exec path of its primary output: the longest chain of actions that starts with the action and
+   * continues through actions that depend on it. Must only be called once no more actions run.
+   *
+   * <p>Middlemen and action cache hits still connect the actions around them, but get no entry of
+   * their own, since their elapsed time of about zero would replace a real estimate.
+   */
+  public ImmutableMap<String, Long> computeRemainingCriticalPathMillis() {
+    // Actions with several outputs have one component for all of them.
+    Set<C> seen = Sets.newIdentityHashSet();
+    List<C> components = new ArrayList<>();
+    for (C component : outputArtifactToComponent.values()) {
+      if (!component.isRunning && seen.add(component)) {
+        components.add(component);
+      }
+    }
+    // Every action finishes after the actions that it depends on, so visiting the actions in
+    // reverse order of finishing visits all dependents of an action before the action itself. A
+    // cache hit may finish at the same time as the action it depends on, but starts later.
+    Collections.sort(
+        components,
+        new Comparator<C>() {
+          @Override
+          public int compare(C o1, C o2) {
+            int byFinish = Long.compare(o2.getRelativeFinishNanos(), o1.getRelativeFinishNanos());
+            if (byFinish != 0) {
+              return byFinish;
+            }
+            return Long.compare(
+                o2.getRelativeFinishNanos() - o2.getElapsedTimeNanos(),
+                o1.getRelativeFinishNanos() - o1.getElapsedTimeNanos());
+          }
+        });
+    Map<C, Long> dependentsNanos = new IdentityHashMap<>();
+    ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+    for (C component : components) {
+      Long dependents = dependentsNanos.remove(component);
+      long remainingNanos = component.getElapsedTimeNanos() + (dependents == null ? 0 : dependents);
+      Action action = component.getAction();
+      if (component.wasExecuted()) {
+        result.put(
+            action.getPrimaryOutput().getExecPathString(),
+            TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+      }
+      for (Artifact input : action.getInputs()) {
+        C dep = outputArtifactToComponent.get(input);
+        if (dep != null && dep != component && !dep.isRunning) {
+          Long previous = dependentsNanos.get(dep);
+          if (previous == null || previous < remainingNanos) {
+            dependentsNanos.put(dep, remainingNanos);
+          }
+        }
+      }
+    }
+    return result.build();
+  }
+
   private void finalizeActionStat(long startTimeNanos, Action action, C component) {
     boolean updated = component.finishActionExecution(startTimeNanos, clock.nanoTime());
 
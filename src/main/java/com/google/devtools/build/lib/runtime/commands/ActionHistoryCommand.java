@@ -0,0 +1,194 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime.commands;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.ActionExecutionHistory;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.runtime.ActionHistoryModule;
+import com.google.devtools.build.lib.runtime.BlazeCommand;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParser;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The 'blaze action-history' command, which shows the execution history that
+ * {@link ActionHistoryModule} recorded.
+ */
+@Command(name = "action-history",
+         options = { ActionHistoryCommand.Options.class },
+         allowResidue = true,
+         mustRunInWorkspace = false,
+         shortDescription = "Shows how long actions took in earlier builds.",
+         help = "Usage: %{product} action-history [<mnemonic> ...]\n\n"
+              + "Shows the actions that took longest in the builds that ran with "
+              + "--experimental_action_history, with their average wall time, CPU time and disk "
+              + "I/O and their largest resident set size. CPU time, memory and I/O are only "
+              + "measured for the standalone strategy. If mnemonics are given, only the actions "
+              + "with these mnemonics are shown.\n"
+              + "%{options}")
+public final class ActionHistoryCommand implements BlazeCommand {
+
+  /** Converter for the --sort_by option. */
+  public static class SortByConverter extends Converters.StringSetConverter {
+    public SortByConverter() {
+      super("wall", "cpu", "memory", "io");
+    }
+  }
+
+  public static class Options extends OptionsBase {
+    @Option(name = "sort_by",
+            defaultValue = "wall",
+            converter = SortByConverter.class,
+            category = "misc",
+            help = "What to sort the actions by, largest first: one of 'wall', 'cpu', 'memory' "
+                + "or 'io'.")
+    public String sortBy;
+
+    @Option(name = "limit",
+            defaultValue = "20",
+            category = "misc",
+            help = "The number of actions to show; 0 shows all of them.")
+    public int limit;
+
+    @Option(name = "group_by_mnemonic",
+            defaultValue = "false",
+            category = "misc",
+            help = "If enabled, the actions with the same mnemonic are shown as one line.")
+    public boolean groupByMnemonic;
+  }
+
+  /** A line of the output: the averages over the executions of one action or mnemonic. */
+  private static final class Row {
+    final String name;
+    final String mnemonic;
+    int runs;
+    int measuredRuns;
+    long totalWallMillis;
+    long totalCpuMillis;
+    long maxPeakRssBytes = -1;
+    long totalIoBytes;
+
+    Row(String name, String mnemonic) {
+      this.name = name;
+      this.mnemonic = mnemonic;
+    }
+
+    void add(ActionExecutionHistory.Entry entry) {
+      runs += entry.getRuns();
+      measuredRuns += entry.getMeasuredRuns();
+      totalWallMillis += entry.getTotalWallMillis();
+      totalCpuMillis += entry.getTotalCpuMillis();
+      maxPeakRssBytes = Math.max(maxPeakRssBytes, entry.getMaxPeakRssBytes());
+      totalIoBytes += entry.getTotalIoBytes();
+    }
+
+    long getValue(String sortBy) {
+      switch (sortBy) {
+        case "cpu":
+          return measuredRuns == 0 ? -1 : totalCpuMillis / measuredRuns;
+        case "memory":
+          return maxPeakRssBytes;
+        case "io":
+          return measuredRuns == 0 ? -1 : totalIoBytes / measuredRuns;
+        default:
+          return totalWallMillis / runs;
+      }
+    }
+
+    String format() {
+      if (measuredRuns == 0) {
+        return String.format("%6d %10d %10s %10s %10s  %-16s %s",
+            runs, totalWallMillis / runs, "-", "-", "-", mnemonic, name);
+      }
+      return String.format("%6d %10d %10d %10.1f %10.1f  %-16s %s",
+          runs, totalWallMillis / runs, totalCpuMillis / measuredRuns,
+          maxPeakRssBytes / 1048576.0, totalIoBytes / measuredRuns / 1048576.0, mnemonic, name);
+    }
+  }
+
+  @Override
+  public void editOptions(CommandEnvironment env, OptionsParser optionsParser) {}
+
+  @Override
+  public ExitCode exec(CommandEnvironment env, OptionsProvider options) {
+    final Options historyOptions = options.getOptions(Options.class);
+    ImmutableSet<String> mnemonics = ImmutableSet.copyOf(options.getResidue());
+    ActionExecutionHistory history;
+    try {
+      history = ActionExecutionHistory.load(
+          env.getOutputBase().getRelative(ActionHistoryModule.HISTORY_FILE));
+    } catch (IOException e) {
+      env.getReporter().handle(
+          Event.error("Could not read the action history: " + e.getMessage()));
+      return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
+    }
+    if (history.size() == 0) {
+      env.getReporter().handle(Event.info(
+          "No actions were recorded; build with --experimental_action_history to record them"));
+      return ExitCode.SUCCESS;
+    }
+
+    Map<String, Row> rows = new TreeMap<>();
+    for (Map.Entry<String, ActionExecutionHistory.Entry> entry
+        : history.getEntries().entrySet()) {
+      String mnemonic = entry.getValue().getMnemonic();
+      if (!mnemonics.isEmpty() && !mnemonics.contains(mnemonic)) {
+        continue;
+      }
+      String name = historyOptions.groupByMnemonic ? "" : entry.getKey();
+      Row row = rows.get(mnemonic + " " + name);
+      if (row == null) {
+        row = new Row(name, mnemonic);
+        rows.put(mnemonic + " " + name, row);
+      }
+      row.add(entry.getValue());
+    }
+
+    List<Row> sorted = new ArrayList<>(rows.values());
+    Collections.sort(sorted, new Comparator<Row>() {
+      @Override
+      public int compare(Row a, Row b) {
+        return Long.compare(b.getValue(historyOptions.sortBy), a.getValue(historyOptions.sortBy));
+      }
+    });
+    if (historyOptions.limit > 0 && sorted.size() > historyOptions.limit) {
+      sorted = sorted.subList(0, historyOptions.limit);
+    }
+
+    PrintStream out = new PrintStream(env.getReporter().getOutErr().getOutputStream());
+    out.println(String.format("%6s %10s %10s %10s %10s  %-16s %s",
+        "runs", "wall ms", "cpu ms", "rss MB", "io MB", "mnemonic",
+        historyOptions.groupByMnemonic ? "" : "output"));
+    for (Row row : sorted) {
+      out.println(row.format());
+    }
+    out.flush();
+    return ExitCode.SUCCESS;
+  }
+}
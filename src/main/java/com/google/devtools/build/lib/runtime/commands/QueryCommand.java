@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.BlazeQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
@@ -40,6 +41,7 @@ import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.runtime.ReverseDepsIndexModule;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -143,6 +145,13 @@ public final class QueryCommand implements BlazeCommand {
             queryOptions.loadingPhaseThreads,
             settings)) {
 
+      if (queryOptions.rdepsIndex && queryEnv instanceof BlazeQueryEnvironment) {
+        ReverseDepsIndexModule indexModule = runtime.getBlazeModule(ReverseDepsIndexModule.class);
+        if (indexModule != null) {
+          ((BlazeQueryEnvironment) queryEnv).setReverseDepsIndex(indexModule.getIndex());
+        }
+      }
+
       // 1. Parse and transform query:
       QueryExpression expr;
       try {
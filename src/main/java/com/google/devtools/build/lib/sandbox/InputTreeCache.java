@@ -0,0 +1,226 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Keeps copies of the exec root as seen by sandboxed spawns, made of hard links to their inputs.
+ *
+ * <p>Such a tree is mounted as the read-only lower layer of an overlay file system at the exec root
+ * of the sandbox, which replaces one bind mount per input. Spawns with the same inputs share a
+ * tree, and a tree is only deleted once no spawn uses it and more than a fixed number of trees
+ * exist.
+ *
+ * <p>Inputs that cannot be hard linked, e.g. because they are on another device, and symbolic links
+ * to directories are left to bind mounts on top of the overlay. Trees are identified by the paths,
+ * inode numbers, modification times and sizes of their inputs, so an input that is replaced or
+ * changed results in a new tree. The change time would be more precise, but creating a hard link
+ * changes it, so no tree would ever be found again.
+ */
+@ThreadSafe
+final class InputTreeCache {
+
+  /** A tree of hard links below the cache directory. */
+  static final class InputTree {
+    private final String key;
+    private final Path root;
+    private final ImmutableMap<Path, Path> remainingMounts;
+    private int users;
+
+    private InputTree(String key, Path root, ImmutableMap<Path, Path> remainingMounts) {
+      this.key = key;
+      this.root = root;
+      this.remainingMounts = remainingMounts;
+    }
+
+    /** The directory that takes the place of the exec root in the sandbox. */
+    Path getRoot() {
+      return root;
+    }
+
+    /**
+     * The mounts below the exec root that the tree does not contain, as target and source. They
+     * have to be mounted on top of the tree.
+     */
+    ImmutableMap<Path, Path> getRemainingMounts() {
+      return remainingMounts;
+    }
+  }
+
+  private final Path cacheDir;
+  private final int maxTrees;
+
+  // In order of last use.
+  private final LinkedHashMap<String, InputTree> trees = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * @param cacheDir the directory to create the trees in; anything in it is deleted
+   * @param maxTrees how many unused trees to keep
+   */
+  InputTreeCache(Path cacheDir, int maxTrees) throws IOException {
+    this.cacheDir = cacheDir;
+    this.maxTrees = maxTrees;
+    FileSystemUtils.createDirectoryAndParents(cacheDir);
+    FileSystemUtils.deleteTreesBelow(cacheDir);
+  }
+
+  Path getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * Returns a tree with the given mounts below {@code execRoot}, creating it if necessary. The tree
+   * must be passed to {@link #release} once the spawn is done with it.
+   *
+   * @param execRoot the exec root; mounts with other targets are ignored
+   * @param mounts the mounts of a spawn, as target and source, after
+   *     {@link LinuxSandboxedStrategy#finalizeMounts}
+   */
+  InputTree acquire(Path execRoot, Map<Path, Path> mounts) throws IOException {
+    // Sorted, so that the key does not depend on the order in which the inputs were collected.
+    Map<Path, Path> sortedMounts = new TreeMap<>(mounts);
+    Map<Path, Path> remainingMounts = new LinkedHashMap<>();
+    Map<Path, Path> links = new LinkedHashMap<>();
+    List<Path> directories = new ArrayList<>();
+    Fingerprint fingerprint = new Fingerprint();
+    for (Entry<Path, Path> mount : sortedMounts.entrySet()) {
+      Path target = mount.getKey();
+      if (!target.startsWith(execRoot) || target.equals(execRoot)) {
+        continue;
+      }
+      FileStatus stat = mount.getValue().statIfFound(Symlinks.NOFOLLOW);
+      boolean symlink = stat != null && stat.isSymbolicLink();
+      if (symlink) {
+        stat = mount.getValue().statIfFound(Symlinks.FOLLOW);
+      }
+      fingerprint.addPath(target.relativeTo(execRoot));
+      fingerprint.addPath(mount.getValue());
+      // finalizeMounts replaces directories with their contents, but not symbolic links to
+      // directories. Their contents are not in the tree, so they are bind mounted as a whole.
+      if (stat == null || stat.isSpecialFile() || (symlink && stat.isDirectory())) {
+        remainingMounts.put(target, mount.getValue());
+      } else if (stat.isDirectory()) {
+        directories.add(target);
+      } else {
+        links.put(target, mount.getValue());
+        fingerprint.addLong(stat.getNodeId());
+        fingerprint.addLong(stat.getLastModifiedTime());
+        fingerprint.addLong(stat.getSize());
+      }
+    }
+    String key = fingerprint.hexDigestAndReset();
+
+    synchronized (this) {
+      InputTree tree = trees.get(key);
+      if (tree != null && tree.root.exists()) {
+        tree.users++;
+        return tree;
+      }
+    }
+
+    // Trees are created outside the lock, in a directory of their own, so that spawns with
+    // different inputs do not wait for each other.
+    Path root = cacheDir.getRelative(key + "-" + UUID.randomUUID());
+    FileSystemUtils.createDirectoryAndParents(root);
+    for (Path directory : directories) {
+      FileSystemUtils.createDirectoryAndParents(root.getRelative(directory.relativeTo(execRoot)));
+    }
+    for (Entry<Path, Path> link : links.entrySet()) {
+      Path linkPath = root.getRelative(link.getKey().relativeTo(execRoot));
+      FileSystemUtils.createDirectoryAndParents(linkPath.getParentDirectory());
+      try {
+        // link(2) does not follow symbolic links, but bind mounts do.
+        linkPath.createHardLink(link.getValue().resolveSymbolicLinks());
+      } catch (IOException e) {
+        remainingMounts.put(link.getKey(), link.getValue());
+      }
+    }
+
+    InputTree tree = new InputTree(key, root, ImmutableMap.copyOf(remainingMounts));
+    tree.users++;
+    List<InputTree> evicted;
+    synchronized (this) {
+      InputTree previous = trees.put(key, tree);
+      evicted = evict();
+      // Another spawn with the same inputs may have created the tree in the meantime, or it was
+      // deleted behind our back. The older one is deleted once its users are done with it.
+      if (previous != null && previous.users == 0) {
+        evicted.add(previous);
+      }
+    }
+    delete(evicted);
+    return tree;
+  }
+
+  /** Marks a tree as no longer used by a spawn. */
+  void release(InputTree tree) throws IOException {
+    List<InputTree> evicted;
+    synchronized (this) {
+      Preconditions.checkState(tree.users > 0);
+      tree.users--;
+      if (tree.users == 0 && trees.get(tree.key) != tree) {
+        evicted = new ArrayList<>();
+        evicted.add(tree);
+      } else {
+        evicted = evict();
+      }
+    }
+    delete(evicted);
+  }
+
+  private List<InputTree> evict() {
+    List<InputTree> evicted = new ArrayList<>();
+    Iterator<InputTree> it = trees.values().iterator();
+    int excess = trees.size() - maxTrees;
+    while (excess > 0 && it.hasNext()) {
+      InputTree tree = it.next();
+      if (tree.users == 0) {
+        it.remove();
+        evicted.add(tree);
+        excess--;
+      }
+    }
+    return evicted;
+  }
+
+  private static void delete(List<InputTree> evicted) throws IOException {
+    for (InputTree tree : evicted) {
+      FileSystemUtils.deleteTree(tree.root);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return trees.size();
+  }
+}
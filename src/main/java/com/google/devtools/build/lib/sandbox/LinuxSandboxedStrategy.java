@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.sandbox;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -35,6 +36,8 @@ import com.google.devtools.build.lib.analysis.AnalysisUtils;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.config.RunUnder;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.rules.cpp.CppCompileAction;
 import com.google.devtools.build.lib.rules.fileset.FilesetActionContext;
 import com.google.devtools.build.lib.rules.test.TestRunnerAction;
@@ -53,13 +56,17 @@ import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 /**
  * Strategy that uses sandboxing to execute a process.
  */
@@ -79,7 +86,15 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
   private final UUID uuid = UUID.randomUUID();
   private final AtomicInteger execCounter = new AtomicInteger();
   private final String productName;
+  @Nullable private final InputTreeCache inputTrees;
+  @Nullable private final SandboxPool sandboxPool;
 
+  /**
+   * @param inputTrees if not null, the inputs of a spawn are mounted as a single overlay on a tree
+   *     from this cache instead of one bind mount each
+   * @param sandboxPool if not null, sandbox roots are taken from and returned to this pool instead
+   *     of being created and deleted for every spawn
+   */
   public LinuxSandboxedStrategy(
       SandboxOptions options,
       Map<String, String> clientEnv,
@@ -87,7 +102,9 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
       ExecutorService backgroundWorkers,
       boolean verboseFailures,
       boolean unblockNetwork,
-      String productName) {
+      String productName,
+      @Nullable InputTreeCache inputTrees,
+      @Nullable SandboxPool sandboxPool) {
     this.sandboxOptions = options;
     this.clientEnv = ImmutableMap.copyOf(clientEnv);
     this.blazeDirs = blazeDirs;
@@ -96,6 +113,8 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
     this.verboseFailures = verboseFailures;
     this.unblockNetwork = unblockNetwork;
     this.productName = productName;
+    this.inputTrees = inputTrees;
+    this.sandboxPool = sandboxPool;
   }
 
   /**
@@ -129,22 +148,10 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
     // The execId is a unique ID just for this invocation of "exec".
     String execId = uuid + "-" + execCounter.getAndIncrement();
 
-    // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath =
-        execRoot.getRelative(productName + "-sandbox").getRelative(execId);
-
-    // Gather all necessary mounts for the sandbox.
-    ImmutableMap<Path, Path> mounts;
-    try {
-      mounts = getMounts(spawn, actionExecutionContext);
-    } catch (IllegalArgumentException | IOException e) {
-      throw new EnvironmentalExecException("Could not prepare mounts for sandbox execution", e);
-    }
+    int timeout = getTimeout(spawn);
 
     ImmutableSet<Path> createDirs = createImportantDirs(spawn.getEnvironment());
 
-    int timeout = getTimeout(spawn);
-
     ImmutableSet.Builder<PathFragment> outputFiles = ImmutableSet.builder();
     for (PathFragment optionalOutput : spawn.getOptionalOutputFiles()) {
       Preconditions.checkArgument(!optionalOutput.isAbsolute());
@@ -154,6 +161,31 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
       outputFiles.add(new PathFragment(output.getExecPathString()));
     }
 
+    // Gather all necessary mounts for the sandbox.
+    ImmutableMap<Path, Path> mounts;
+    InputTreeCache.InputTree inputTree = null;
+    Path sandboxPath;
+    try (AutoProfiler p =
+        AutoProfiler.profiled(spawn.getResourceOwner(), ProfilerTask.SANDBOX_SETUP)) {
+      Map<Path, Boolean> directoryMounts = new HashMap<>();
+      mounts = getMounts(spawn, actionExecutionContext, directoryMounts);
+      if (inputTrees != null) {
+        inputTree = inputTrees.acquire(execRoot, mounts);
+        mounts = mountOnTopOf(inputTree, mounts);
+      }
+
+      // Each invocation of "exec" gets its own sandbox, which may have been used by an earlier
+      // one.
+      if (sandboxPool != null) {
+        sandboxPath = sandboxPool.acquire(execId, sandboxEntries(mounts, directoryMounts,
+            createDirs, outputFiles.build(), inputTree != null));
+      } else {
+        sandboxPath = execRoot.getRelative(productName + "-sandbox").getRelative(execId);
+      }
+    } catch (IllegalArgumentException | IOException e) {
+      throw new EnvironmentalExecException("Could not prepare mounts for sandbox execution", e);
+    }
+
     try {
       final NamespaceSandboxRunner runner =
           new NamespaceSandboxRunner(
@@ -162,7 +194,10 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
               mounts,
               createDirs,
               verboseFailures,
-              sandboxOptions.sandboxDebug);
+              sandboxOptions.sandboxDebug,
+              inputTree != null ? inputTree.getRoot() : null);
+      final InputTreeCache.InputTree usedInputTree = inputTree;
+      final Path usedSandboxPath = sandboxPath;
       try {
         runner.run(
             spawn.getArguments(),
@@ -181,11 +216,19 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
             new Runnable() {
               @Override
               public void run() {
-                try {
+                try (AutoProfiler p =
+                    AutoProfiler.profiled(runner, ProfilerTask.SANDBOX_CLEANUP)) {
                   while (!Thread.currentThread().isInterrupted()) {
                     try {
-                      runner.cleanup();
-                      return;
+                      if (sandboxPool != null) {
+                        runner.cleanupForReuse();
+                        if (usedSandboxPath.exists()) {
+                          sandboxPool.release(usedSandboxPath);
+                        }
+                      } else {
+                        runner.cleanup();
+                      }
+                      break;
                     } catch (IOException e2) {
                       // Sleep & retry.
                       Thread.sleep(250);
@@ -194,6 +237,13 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
                 } catch (InterruptedException e) {
                   // Exit.
                 }
+                if (usedInputTree != null) {
+                  try {
+                    inputTrees.release(usedInputTree);
+                  } catch (IOException e) {
+                    // Trees that could not be deleted are deleted by the next server.
+                  }
+                }
               }
             });
       }
@@ -202,6 +252,70 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
     }
   }
 
+  /**
+   * Returns the files and directories that are created in the sandbox root for the given mounts,
+   * relative to the root, and whether each of them is a directory. With an overlay at the exec
+   * root, everything below it is created in the overlay instead.
+   *
+   * <p>They are only computed if the sandbox pool reuses a root.
+   *
+   * @param directoryMounts whether the source of each mount is a directory, as far as {@link
+   *     #finalizeMounts} found out; the other sources are checked here
+   */
+  private Supplier<Map<PathFragment, Boolean>> sandboxEntries(final Map<Path, Path> mounts,
+      final Map<Path, Boolean> directoryMounts, final Set<Path> createDirs,
+      final Set<PathFragment> outputs, final boolean overlay) {
+    return new Supplier<Map<PathFragment, Boolean>>() {
+      @Override
+      public Map<PathFragment, Boolean> get() {
+        return getSandboxEntries(mounts, directoryMounts, createDirs, outputs, overlay);
+      }
+    };
+  }
+
+  private Map<PathFragment, Boolean> getSandboxEntries(Map<Path, Path> mounts,
+      Map<Path, Boolean> directoryMounts, Set<Path> createDirs, Set<PathFragment> outputs,
+      boolean overlay) {
+    Map<PathFragment, Boolean> entries = new HashMap<>();
+    PathFragment sandboxExecRoot = execRoot.asFragment().relativeTo("/");
+    for (Entry<Path, Path> mount : mounts.entrySet()) {
+      if (!overlay || !mount.getKey().startsWith(execRoot)) {
+        Boolean isDirectory = directoryMounts.get(mount.getKey());
+        entries.put(mount.getKey().asFragment().relativeTo("/"),
+            isDirectory != null ? isDirectory : mount.getValue().isDirectory());
+      }
+    }
+    for (Path dir : createDirs) {
+      if (!overlay || !dir.startsWith(execRoot)) {
+        entries.put(dir.asFragment().relativeTo("/"), true);
+      }
+    }
+    if (overlay) {
+      entries.put(sandboxExecRoot, true);
+    } else {
+      for (PathFragment output : outputs) {
+        entries.put(sandboxExecRoot.getRelative(output.getParentDirectory()), true);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the mounts that are still needed with the given input tree at the exec root: those
+   * outside of the exec root, and those that the tree does not contain.
+   */
+  private ImmutableMap<Path, Path> mountOnTopOf(
+      InputTreeCache.InputTree inputTree, Map<Path, Path> mounts) {
+    MountMap result = new MountMap();
+    for (Entry<Path, Path> mount : mounts.entrySet()) {
+      if (!mount.getKey().startsWith(execRoot) || mount.getKey().equals(execRoot)) {
+        result.put(mount.getKey(), mount.getValue());
+      }
+    }
+    result.putAll(inputTree.getRemainingMounts());
+    return ImmutableMap.copyOf(result);
+  }
+
   private int getTimeout(Spawn spawn) throws ExecException {
     String timeoutStr = spawn.getExecutionInfo().get("timeout");
     if (timeoutStr != null) {
@@ -230,8 +344,14 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
     return dirs.build();
   }
 
-  private ImmutableMap<Path, Path> getMounts(Spawn spawn, ActionExecutionContext executionContext)
-      throws IOException, ExecException {
+  /**
+   * Returns the mounts of the spawn, as target and source.
+   *
+   * @param directoryMounts receives whether the source of a mount is a directory, for the mounts
+   *     whose source {@link #finalizeMounts} looked at
+   */
+  private ImmutableMap<Path, Path> getMounts(Spawn spawn, ActionExecutionContext executionContext,
+      Map<Path, Boolean> directoryMounts) throws IOException, ExecException {
     ImmutableMap.Builder<Path, Path> result = new ImmutableMap.Builder<>();
     result.putAll(mountUsualUnixDirs());
     result.putAll(mountUserDefinedPath());
@@ -243,7 +363,7 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
     mounts.putAll(mountFilesFromFilesetManifests(spawn, executionContext));
     mounts.putAll(mountInputs(spawn, executionContext));
     mounts.putAll(mountRunUnderCommand(spawn));
-    result.putAll(finalizeMounts(mounts));
+    result.putAll(finalizeMounts(mounts, directoryMounts));
     return result.build();
   }
 
@@ -256,18 +376,24 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
    * @param target the key to add to the map
    * @param source the value to add to the map
    * @param stat information about source (passed in to avoid fetching it twice)
+   * @param directoryMounts receives whether the sources of the added mounts are directories
    */
-  private static void finalizeMountPath(
-      MountMap finalizedMounts, Path target, Path source, FileStatus stat) throws IOException {
+  private static void finalizeMountPath(MountMap finalizedMounts, Path target, Path source,
+      FileStatus stat, Map<Path, Boolean> directoryMounts) throws IOException {
     // The source must exist.
     Preconditions.checkArgument(stat != null, "%s does not exist", source.toString());
     finalizedMounts.put(target, source);
 
     if (stat.isSymbolicLink()) {
       Path symlinkTarget = source.resolveSymbolicLinks();
+      FileStatus targetStat = symlinkTarget.statIfFound(Symlinks.NOFOLLOW);
       Preconditions.checkArgument(
-          symlinkTarget.exists(), "%s does not exist", symlinkTarget.toString());
+          targetStat != null, "%s does not exist", symlinkTarget.toString());
       finalizedMounts.put(symlinkTarget, symlinkTarget);
+      directoryMounts.put(target, targetStat.isDirectory());
+      directoryMounts.put(symlinkTarget, targetStat.isDirectory());
+    } else {
+      directoryMounts.put(target, stat.isDirectory());
     }
   }
 
@@ -287,6 +413,15 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
    */
   @VisibleForTesting
   static MountMap finalizeMounts(Map<Path, Path> mounts) throws IOException {
+    return finalizeMounts(mounts, new HashMap<Path, Boolean>());
+  }
+
+  /**
+   * Like {@link #finalizeMounts(Map)}, and also records for each returned mount whether its source
+   * is a directory, from the information that the checks fetched anyway.
+   */
+  private static MountMap finalizeMounts(Map<Path, Path> mounts,
+      Map<Path, Boolean> directoryMounts) throws IOException {
     MountMap finalizedMounts = new MountMap();
     for (Entry<Path, Path> mount : mounts.entrySet()) {
       Path target = mount.getKey();
@@ -297,11 +432,11 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
       if (stat != null && stat.isDirectory()) {
         for (Path subSource : FileSystemUtils.traverseTree(source, Predicates.alwaysTrue())) {
           Path subTarget = target.getRelative(subSource.relativeTo(source));
-          finalizeMountPath(
-              finalizedMounts, subTarget, subSource, subSource.statNullable(Symlinks.NOFOLLOW));
+          finalizeMountPath(finalizedMounts, subTarget, subSource,
+              subSource.statNullable(Symlinks.NOFOLLOW), directoryMounts);
         }
       } else {
-        finalizeMountPath(finalizedMounts, target, source, stat);
+        finalizeMountPath(finalizedMounts, target, source, stat, directoryMounts);
       }
     }
     return finalizedMounts;
@@ -39,6 +39,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Helper class for running the namespace sandbox. This runner prepares environment inside the
  * sandbox, handles sandbox output, performs cleanup and changes invocation if necessary.
@@ -59,6 +61,9 @@ public class NamespaceSandboxRunner {
   private final ImmutableSet<Path> createDirs;
   private final boolean verboseFailures;
   private final boolean sandboxDebug;
+  @Nullable private final Path overlayLowerDir;
+  private final Path overlayUpperDir;
+  private final Path overlayWorkDir;
 
   public NamespaceSandboxRunner(
       Path execRoot,
@@ -67,11 +72,35 @@ public class NamespaceSandboxRunner {
       ImmutableSet<Path> createDirs,
       boolean verboseFailures,
       boolean sandboxDebug) {
+    this(execRoot, sandboxPath, mounts, createDirs, verboseFailures, sandboxDebug, null);
+  }
+
+  /**
+   * @param overlayLowerDir if not null, the exec root in the sandbox is an overlay file system
+   *     with this directory as its read-only lower layer, and {@code mounts} are mounted on top of
+   *     it
+   */
+  public NamespaceSandboxRunner(
+      Path execRoot,
+      Path sandboxPath,
+      ImmutableMap<Path, Path> mounts,
+      ImmutableSet<Path> createDirs,
+      boolean verboseFailures,
+      boolean sandboxDebug,
+      @Nullable Path overlayLowerDir) {
     this.execRoot = execRoot;
     this.sandboxPath = sandboxPath;
-    this.sandboxExecRoot = sandboxPath.getRelative(execRoot.asFragment().relativeTo("/"));
     this.argumentsFilePath =
         sandboxPath.getParentDirectory().getRelative(sandboxPath.getBaseName() + ".params");
+    this.overlayLowerDir = overlayLowerDir;
+    this.overlayUpperDir =
+        sandboxPath.getParentDirectory().getRelative(sandboxPath.getBaseName() + ".upper");
+    this.overlayWorkDir =
+        sandboxPath.getParentDirectory().getRelative(sandboxPath.getBaseName() + ".work");
+    // With an overlay, whatever the spawn writes below the exec root ends up in the upper layer.
+    this.sandboxExecRoot = overlayLowerDir != null
+        ? overlayUpperDir
+        : sandboxPath.getRelative(execRoot.asFragment().relativeTo("/"));
     this.mounts = mounts;
     this.createDirs = createDirs;
     this.verboseFailures = verboseFailures;
@@ -166,6 +195,16 @@ public class NamespaceSandboxRunner {
       fileArgs.add("-n");
     }
 
+    // Mount the overlay at the working directory, which is the exec root.
+    if (overlayLowerDir != null) {
+      fileArgs.add("-O");
+      fileArgs.add(overlayLowerDir.getPathString());
+      fileArgs.add("-U");
+      fileArgs.add(overlayUpperDir.getPathString());
+      fileArgs.add("-K");
+      fileArgs.add(overlayWorkDir.getPathString());
+    }
+
     // Mount all the inputs.
     for (ImmutableMap.Entry<Path, Path> mount : mounts.entrySet()) {
       fileArgs.add("-M");
@@ -212,6 +251,10 @@ public class NamespaceSandboxRunner {
 
   private void createFileSystem(Collection<PathFragment> outputs) throws IOException {
     FileSystemUtils.createDirectoryAndParents(sandboxPath);
+    if (overlayLowerDir != null) {
+      overlayUpperDir.createDirectory();
+      overlayWorkDir.createDirectory();
+    }
 
     // Prepare the output directories in the sandbox.
     for (PathFragment output : outputs) {
@@ -231,10 +274,31 @@ public class NamespaceSandboxRunner {
     }
   }
 
+  /**
+   * Deletes what this runner left next to the sandbox root, and the parts of the sandbox that are
+   * never reused: the devices, which proves that they are no longer mounted, and the temporary
+   * directory, which contains the file that namespace-sandbox links empty files to.
+   */
+  public void cleanupForReuse() throws IOException {
+    FileSystemUtils.deleteTree(sandboxPath.getRelative("dev"));
+    FileSystemUtils.deleteTree(sandboxPath.getRelative("tmp"));
+    if (overlayLowerDir != null) {
+      FileSystemUtils.deleteTree(overlayUpperDir);
+      FileSystemUtils.deleteTree(overlayWorkDir);
+    }
+    if (!sandboxDebug && argumentsFilePath.exists()) {
+      argumentsFilePath.delete();
+    }
+  }
+
   public void cleanup() throws IOException {
     if (sandboxPath.exists()) {
       FileSystemUtils.deleteTree(sandboxPath);
     }
+    if (overlayLowerDir != null) {
+      FileSystemUtils.deleteTree(overlayUpperDir);
+      FileSystemUtils.deleteTree(overlayWorkDir);
+    }
     if (!sandboxDebug && argumentsFilePath.exists()) {
       argumentsFilePath.delete();
     }
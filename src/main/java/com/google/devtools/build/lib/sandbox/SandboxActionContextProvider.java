@@ -25,6 +25,8 @@ import com.google.devtools.build.lib.util.OS;
 
 import java.util.concurrent.ExecutorService;
 
+import javax.annotation.Nullable;
+
 /**
  * Provides the sandboxed spawn strategy.
  */
@@ -34,7 +36,11 @@ public class SandboxActionContextProvider extends ActionContextProvider {
   private final ImmutableList<ActionContext> strategies;
 
   public SandboxActionContextProvider(
-      CommandEnvironment env, BuildRequest buildRequest, ExecutorService backgroundWorkers) {
+      CommandEnvironment env,
+      BuildRequest buildRequest,
+      ExecutorService backgroundWorkers,
+      @Nullable InputTreeCache inputTrees,
+      @Nullable SandboxPool sandboxPool) {
     boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
     boolean unblockNetwork =
         buildRequest
@@ -52,7 +58,9 @@ public class SandboxActionContextProvider extends ActionContextProvider {
               backgroundWorkers,
               verboseFailures,
               unblockNetwork,
-              env.getRuntime().getProductName()));
+              env.getRuntime().getProductName(),
+              inputTrees,
+              sandboxPool));
     }
 
     this.strategies = strategies.build();
@@ -18,6 +18,7 @@ import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionContextConsumer;
 import com.google.devtools.build.lib.actions.ActionContextProvider;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
 import com.google.devtools.build.lib.concurrent.ExecutorUtil;
 import com.google.devtools.build.lib.events.Event;
@@ -26,11 +27,15 @@ import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.annotation.Nullable;
+
 /**
  * This module provides the Sandbox spawn strategy.
  */
@@ -40,9 +45,14 @@ public class SandboxModule extends BlazeModule {
           + "be guaranteed. See http://bazel.io/docs/bazel-user-manual.html#sandboxing for more "
           + "information. You can turn off this warning via --ignore_unsupported_sandboxing";
 
+  /** How many input trees for --experimental_sandbox_overlay are kept once no spawn uses them. */
+  private static final int MAX_INPUT_TREES = 64;
+
   // Per-server state
   private ExecutorService backgroundWorkers;
   private Boolean sandboxingSupported = null;
+  private InputTreeCache inputTrees;
+  private SandboxPool sandboxPool;
 
   // Per-command state
   private CommandEnvironment env;
@@ -61,7 +71,8 @@ public class SandboxModule extends BlazeModule {
     Preconditions.checkNotNull(env);
     if (isSandboxingSupported(env)) {
       return ImmutableList.<ActionContextProvider>of(
-          new SandboxActionContextProvider(env, buildRequest, backgroundWorkers));
+          new SandboxActionContextProvider(
+              env, buildRequest, backgroundWorkers, getInputTreeCache(), getSandboxPool()));
     }
 
     // For now, sandboxing is only supported on Linux and there's not much point in showing a scary
@@ -74,6 +85,62 @@ public class SandboxModule extends BlazeModule {
     return ImmutableList.of();
   }
 
+  /**
+   * Returns the cache of input trees if --experimental_sandbox_overlay is set. The cache is kept
+   * across commands, so that the trees of unchanged actions are reused.
+   */
+  @Nullable
+  private synchronized InputTreeCache getInputTreeCache() {
+    if (!buildRequest.getOptions(SandboxOptions.class).sandboxOverlay) {
+      return null;
+    }
+    Path cacheDir =
+        env.getExecRoot().getRelative(env.getRuntime().getProductName() + "-sandbox-inputs");
+    if (inputTrees == null || !inputTrees.getCacheDir().equals(cacheDir)) {
+      try {
+        inputTrees = new InputTreeCache(cacheDir, MAX_INPUT_TREES);
+      } catch (IOException e) {
+        env.getReporter().handle(Event.warn(
+            "Could not create " + cacheDir + ", mounting every input of sandboxed actions: "
+                + e.getMessage()));
+        inputTrees = null;
+      }
+    }
+    return inputTrees;
+  }
+
+  /**
+   * Returns the pool of sandbox roots if --experimental_sandbox_reuse is set. Like the input trees,
+   * idle roots are kept across commands.
+   */
+  @Nullable
+  private synchronized SandboxPool getSandboxPool() {
+    if (!buildRequest.getOptions(SandboxOptions.class).sandboxReuse) {
+      return null;
+    }
+    Path baseDir = env.getExecRoot().getRelative(env.getRuntime().getProductName() + "-sandbox");
+    if (sandboxPool == null || !sandboxPool.getBaseDir().equals(baseDir)) {
+      if (sandboxPool != null) {
+        // The exec root changed. Finish with the roots of the old one before forgetting them.
+        try {
+          sandboxPool.shutdown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      try {
+        sandboxPool = new SandboxPool(baseDir, buildRequest.getBuildOptions().jobs);
+      } catch (IOException e) {
+        env.getReporter().handle(Event.warn(
+            "Could not create " + baseDir + ", not reusing sandboxes: " + e.getMessage()));
+        sandboxPool = null;
+      }
+    } else {
+      sandboxPool.setMaxIdle(buildRequest.getBuildOptions().jobs);
+    }
+    return sandboxPool;
+  }
+
   @Override
   public Iterable<ActionContextConsumer> getActionContextConsumers() {
     Preconditions.checkNotNull(env);
@@ -106,10 +173,27 @@ public class SandboxModule extends BlazeModule {
     // if it is run right after a "bazel build". We wait for and shutdown the background worker pool
     // before continuing to avoid this.
     ExecutorUtil.interruptibleShutdown(backgroundWorkers);
+    if (sandboxPool != null) {
+      try {
+        sandboxPool.awaitDeletions();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   @Subscribe
   public void buildStarting(BuildStartingEvent event) {
     buildRequest = event.getRequest();
+    if (sandboxPool != null) {
+      sandboxPool.resetStats();
+    }
+  }
+
+  @Subscribe
+  public void buildComplete(BuildCompleteEvent event) {
+    if (sandboxPool != null && buildRequest.getOptions(SandboxOptions.class).sandboxReuse) {
+      env.getReporter().handle(Event.info(sandboxPool.getStatsSummary()));
+    }
   }
 }
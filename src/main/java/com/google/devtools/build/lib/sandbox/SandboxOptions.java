@@ -49,4 +49,27 @@ public class SandboxOptions extends OptionsBase {
     help = "Add additional path to mount to sandbox. Path including workspace is not allowed."
   )
   public List<String> sandboxAddPath;
+
+  @Option(
+    name = "experimental_sandbox_overlay",
+    defaultValue = "false",
+    category = "strategy",
+    help =
+        "Make the inputs of sandboxed actions available through a single overlay file system on "
+            + "a tree of hard links, which is shared by actions with the same inputs, instead of "
+            + "one bind mount per input. Requires a kernel that allows overlay mounts in user "
+            + "namespaces."
+  )
+  public boolean sandboxOverlay;
+
+  @Option(
+    name = "experimental_sandbox_reuse",
+    defaultValue = "false",
+    category = "strategy",
+    help =
+        "Reuse the root directories of finished sandboxes, and only delete the files and "
+            + "directories in them that the next sandboxed action does not need. Roots that are "
+            + "not reused are deleted in the background."
+  )
+  public boolean sandboxReuse;
 }
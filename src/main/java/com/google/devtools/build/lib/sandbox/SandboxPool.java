@@ -0,0 +1,247 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reuses the root directories of finished sandboxes for new ones.
+ *
+ * <p>namespace-sandbox creates an empty file or directory in the sandbox root for every mount, and
+ * for thousands of inputs creating and deleting them is a noticeable part of the cost of a spawn.
+ * A reused root keeps the entries that the next spawn needs as well, and only the others are
+ * deleted. Roots that are not reused are deleted by a background thread; if it falls too far
+ * behind, the threads that give up roots delete them themselves.
+ */
+@ThreadSafe
+final class SandboxPool {
+  /** How many deletions may wait for the background thread. */
+  @VisibleForTesting
+  static final int MAX_PENDING_DELETIONS = 16;
+
+  private final Path baseDir;
+  private final ThreadPoolExecutor deleter;
+  private final Deque<Path> idle = new ArrayDeque<>();
+  private int maxIdle;
+  private int pendingDeletions;
+
+  // Statistics since the last reset.
+  private int acquired;
+  private int reused;
+  private long keptEntries;
+  private long deletedEntries;
+
+  /**
+   * @param baseDir the directory that contains the sandbox roots. Its contents are deleted, since
+   *     they are left over from an earlier server.
+   * @param maxIdle how many roots to keep for reuse
+   */
+  SandboxPool(Path baseDir, int maxIdle) throws IOException {
+    this.baseDir = baseDir;
+    this.maxIdle = maxIdle;
+    this.deleter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_PENDING_DELETIONS),
+        new ThreadFactoryBuilder().setNameFormat("sandbox-deleter-%d").setDaemon(true).build(),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    FileSystemUtils.createDirectoryAndParents(baseDir);
+    for (Path leftover : baseDir.getDirectoryEntries()) {
+      discard(leftover);
+    }
+  }
+
+  Path getBaseDir() {
+    return baseDir;
+  }
+
+  synchronized void setMaxIdle(int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns a sandbox root that contains nothing but the given entries, or a part of them. If no
+   * root can be reused, the returned directory does not exist yet.
+   *
+   * @param name the name of a new root, if one is needed
+   * @param entriesSupplier the files and directories that the sandbox will contain, relative to
+   *     its root, and whether each of them is a directory. Their parent directories are implied.
+   *     They are only computed if a root is reused.
+   */
+  Path acquire(String name, Supplier<Map<PathFragment, Boolean>> entriesSupplier) {
+    Path root;
+    synchronized (this) {
+      acquired++;
+      root = idle.pollLast();
+    }
+    if (root == null) {
+      return baseDir.getRelative(name);
+    }
+
+    Map<PathFragment, Boolean> entries = entriesSupplier.get();
+    Set<PathFragment> directories = new HashSet<>();
+    for (Map.Entry<PathFragment, Boolean> entry : entries.entrySet()) {
+      if (entry.getValue()) {
+        directories.add(entry.getKey());
+      }
+      for (PathFragment dir = entry.getKey().getParentDirectory();
+          dir.segmentCount() > 0 && directories.add(dir);
+          dir = dir.getParentDirectory()) {}
+    }
+    long[] counts = new long[2];
+    try {
+      reset(root, PathFragment.EMPTY_FRAGMENT, entries, directories, counts);
+    } catch (IOException e) {
+      discard(root);
+      return baseDir.getRelative(name);
+    }
+    synchronized (this) {
+      reused++;
+      keptEntries += counts[0];
+      deletedEntries += counts[1];
+    }
+    return root;
+  }
+
+  /**
+   * Deletes everything below {@code dir} that is not one of the entries or one of their parents.
+   * Counts kept entries in {@code counts[0]} and deleted ones in {@code counts[1]}.
+   */
+  private static void reset(Path root, PathFragment dir, Map<PathFragment, Boolean> entries,
+      Set<PathFragment> directories, long[] counts) throws IOException {
+    for (Dirent dirent : root.getRelative(dir).readdir(Symlinks.NOFOLLOW)) {
+      PathFragment child = dir.getChild(dirent.getName());
+      if (dirent.getType() == Dirent.Type.DIRECTORY && directories.contains(child)) {
+        counts[0]++;
+        reset(root, child, entries, directories, counts);
+      } else if (dirent.getType() == Dirent.Type.FILE && Boolean.FALSE.equals(entries.get(child))
+          && !directories.contains(child)) {
+        counts[0]++;
+      } else {
+        FileSystemUtils.deleteTree(root.getRelative(child));
+        counts[1]++;
+      }
+    }
+  }
+
+  /**
+   * Offers a sandbox root for reuse. The caller must have made sure that nothing is mounted below
+   * it anymore.
+   */
+  void release(Path root) {
+    synchronized (this) {
+      if (idle.size() < maxIdle) {
+        idle.addLast(root);
+        return;
+      }
+    }
+    discard(root);
+  }
+
+  /** Deletes a sandbox root in the background. */
+  void discard(final Path root) {
+    synchronized (this) {
+      pendingDeletions++;
+    }
+    deleter.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              FileSystemUtils.deleteTree(root);
+            } catch (IOException e) {
+              // Left for the next server to delete.
+            } finally {
+              synchronized (SandboxPool.this) {
+                pendingDeletions--;
+                SandboxPool.this.notifyAll();
+              }
+            }
+          }
+        });
+  }
+
+  /** Waits until all roots given to {@link #discard} are deleted. */
+  synchronized void awaitDeletions() throws InterruptedException {
+    while (pendingDeletions > 0) {
+      wait();
+    }
+  }
+
+  /**
+   * Deletes the idle roots and stops the background thread once all deletions are done. The pool
+   * must not be used afterwards.
+   */
+  void shutdown() throws InterruptedException {
+    try {
+      while (true) {
+        Path root;
+        synchronized (this) {
+          root = idle.pollLast();
+        }
+        if (root == null) {
+          break;
+        }
+        discard(root);
+      }
+      awaitDeletions();
+    } finally {
+      deleter.shutdown();
+    }
+  }
+
+  /** Starts collecting the statistics of {@link #getStatsSummary} anew. */
+  synchronized void resetStats() {
+    acquired = 0;
+    reused = 0;
+    keptEntries = 0;
+    deletedEntries = 0;
+  }
+
+  /**
+   * Returns how many sandboxes were acquired since the last reset, how many of them reused a root,
+   * and how many entries were kept rather than deleted and created again.
+   */
+  synchronized String getStatsSummary() {
+    return String.format(
+        "Sandbox roots: %d of %d reused (%.0f%%), %d entries kept instead of deleted and "
+            + "recreated, %d deleted",
+        reused,
+        acquired,
+        acquired == 0 ? 0.0 : 100.0 * reused / acquired,
+        keptEntries,
+        deletedEntries);
+  }
+
+  @VisibleForTesting
+  synchronized int getIdleCount() {
+    return idle.size();
+  }
+}
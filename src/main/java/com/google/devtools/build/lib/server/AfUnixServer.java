@@ -45,6 +45,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * An RPCServer server is a Java object that sits and waits for RPC requests
  * (the sit-and-wait is implemented in {@link #serve()}).  These requests
@@ -72,6 +74,7 @@ public final class AfUnixServer extends RPCServer {
   private final long statusCheckMillis;
   private final Path serverDirectory;
   private final Path workspaceDir;
+  @Nullable private final Runnable idleTask;
   private static final Logger LOG = Logger.getLogger(AfUnixServer.class.getName());
   private volatile boolean lameDuck;
 
@@ -96,6 +99,29 @@ public final class AfUnixServer extends RPCServer {
       long maxIdleMillis, long statusCheckPeriodMillis,
       Path serverDirectory, Path workspaceDir)
       throws IOException {
+    this(clock, rpcService, maxIdleMillis, statusCheckPeriodMillis, serverDirectory, workspaceDir,
+        null);
+  }
+
+  /**
+   * Create a new server instance. After creating the server, you can start it
+   * by calling the {@link #serve()} method.
+   *
+   * @param clock The clock to take time measurements
+   * @param rpcService The underlying service object, which takes
+   *                           care of dispatching to the {@link ServerCommand}
+   *                           instances, as requests arrive.
+   * @param maxIdleMillis      The maximum time the server will wait idly.
+   * @param statusCheckPeriodMillis How long to wait between system status checks.
+   * @param serverDirectory    Directory to put file socket and pid files, etc.
+   * @param workspaceDir The workspace. Used solely to ensure it persists.
+   * @param idleTask           Run by {@link IdleServerTasks} whenever the server becomes idle.
+   * @throws IOException
+   */
+  public AfUnixServer(Clock clock, RPCService rpcService,
+      long maxIdleMillis, long statusCheckPeriodMillis,
+      Path serverDirectory, Path workspaceDir, @Nullable Runnable idleTask)
+      throws IOException {
     super(serverDirectory);
     this.clock = clock;
     this.rpcService = rpcService;
@@ -103,6 +129,7 @@ public final class AfUnixServer extends RPCServer {
     this.statusCheckMillis = statusCheckPeriodMillis;
     this.serverDirectory = serverDirectory;
     this.workspaceDir = workspaceDir;
+    this.idleTask = idleTask;
 
     this.serverSocket = openServerSocket();
     serverSocket.setSoTimeout(Math.min(maxIdleMillis, statusCheckMillis));
@@ -180,7 +207,7 @@ public final class AfUnixServer extends RPCServer {
     try {
       while (!lameDuck) {
         try {
-          IdleServerTasks idleChecker = new IdleServerTasks(workspaceDir);
+          IdleServerTasks idleChecker = new IdleServerTasks(workspaceDir, idleTask);
           idleChecker.idle();
           RequestIo requestIo;
 
@@ -542,11 +569,25 @@ public final class AfUnixServer extends RPCServer {
                                         Path workspaceDir,
                                         int maxIdleSeconds)
       throws IOException {
+    return newServerWith(clock, appCommand, serverDirectory, workspaceDir, maxIdleSeconds, null);
+  }
+
+  /**
+   * Like {@link #newServerWith(Clock, ServerCommand, Path, Path, int)}, but additionally runs
+   * {@code idleTask} whenever the server becomes idle.
+   */
+  public static AfUnixServer newServerWith(Clock clock,
+                                        ServerCommand appCommand,
+                                        Path serverDirectory,
+                                        Path workspaceDir,
+                                        int maxIdleSeconds,
+                                        @Nullable Runnable idleTask)
+      throws IOException {
     // Creates and starts the RPC server.
     RPCService service = new RPCService(appCommand);
 
-    return new AfUnixServer(clock, service, maxIdleSeconds * 1000L,
-                         serverDirectory, workspaceDir);
+    return new AfUnixServer(clock, service, maxIdleSeconds * 1000L, STATUS_CHECK_PERIOD_MILLIS,
+                         serverDirectory, workspaceDir, idleTask);
   }
 
 }
@@ -37,6 +37,7 @@ import javax.annotation.Nullable;
 class IdleServerTasks {
 
   private final Path workspaceDir;
+  @Nullable private final Runnable idleTask;
   private final ScheduledThreadPoolExecutor executor;
   private static final Logger LOG = Logger.getLogger(IdleServerTasks.class.getName());
 
@@ -46,8 +47,20 @@ class IdleServerTasks {
    * Must be called from the main thread.
    */
   public IdleServerTasks(@Nullable Path workspaceDir) {
+    this(workspaceDir, null);
+  }
+
+  /**
+   * Must be called from the main thread.
+   *
+   * @param idleTask an application-provided task to run once the server has been idle for a
+   *     while, e.g. to persist state that would be lost if the server died. It is guaranteed to be
+   *     finished (or not started) when {@link #busy} returns.
+   */
+  public IdleServerTasks(@Nullable Path workspaceDir, @Nullable Runnable idleTask) {
     this.executor = new ScheduledThreadPoolExecutor(1);
     this.workspaceDir = workspaceDir;
+    this.idleTask = idleTask;
   }
 
   /**
@@ -65,6 +78,16 @@ class IdleServerTasks {
           }
         }
       }, 10, TimeUnit.SECONDS);
+
+    if (idleTask != null) {
+      executor.schedule(new Runnable() {
+          @Override public void run() {
+            try (AutoProfiler p = AutoProfiler.logged("Idle server task", LOG)) {
+              idleTask.run();
+            }
+          }
+        }, 30, TimeUnit.SECONDS);
+    }
   }
 
   /**
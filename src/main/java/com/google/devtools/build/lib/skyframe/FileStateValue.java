@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
@@ -195,7 +196,7 @@ public abstract class FileStateValue implements SkyValue {
     private static byte[] tryGetDigest(Path path, FileStatusWithDigest stat) throws IOException {
       try {
         byte[] digest = stat.getDigest();
-        return digest != null ? digest : path.getFastDigest();
+        return digest != null ? digest : DigestUtils.getFastDigest(path);
       } catch (IOException ioe) {
         if (!path.isReadable()) {
           return null;
@@ -0,0 +1,307 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.BasicFilesystemDirtinessChecker;
+import com.google.devtools.build.lib.skyframe.FileStateValue.RegularFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SpecialFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SymlinkFileStateValue;
+import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.skyframe.Differencer;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes a compact on-disk snapshot of the filesystem leaves of the Skyframe graph
+ * ({@link FileStateValue}s and {@link DirectoryListingStateValue}s), so that a new server can
+ * start with the filesystem state of its predecessor instead of an empty graph.
+ *
+ * <p>A snapshot is only a hint: {@link #readUnchanged} checks every value read back against the
+ * file system with a {@link FilesystemValueChecker} before it is handed out, so that files that
+ * changed while no server was running are never injected with their old state.
+ *
+ * <p>Values with dependencies (packages, globs, ...) are deliberately not part of the snapshot:
+ * injected values have no edges, so their dependencies would never invalidate them.
+ *
+ * <p>The file starts with a table of the distinct package roots, followed by the entries. It is
+ * memory-mapped when read back.
+ */
+public final class FileSystemValueSnapshot {
+
+  private static final int MAGIC = 0x46535653; // "FSVS"
+  private static final int VERSION = 1;
+
+  private static final byte FILE_STATE = 0;
+  private static final byte DIRECTORY_LISTING_STATE = 1;
+
+  private FileSystemValueSnapshot() {}
+
+  /**
+   * Writes all {@link FileStateValue}s and {@link DirectoryListingStateValue}s in {@code values} to
+   * {@code snapshotFile}, replacing it atomically. Returns the number of entries written.
+   */
+  public static int write(Path snapshotFile, Map<SkyKey, SkyValue> values) throws IOException {
+    Map<Path, Integer> roots = new HashMap<>();
+    List<Map.Entry<SkyKey, SkyValue>> entries = new ArrayList<>();
+    for (Map.Entry<SkyKey, SkyValue> entry : values.entrySet()) {
+      SkyKey key = entry.getKey();
+      if (!isSnapshotted(key) || entry.getValue() == null) {
+        continue;
+      }
+      Path root = ((RootedPath) key.argument()).getRoot();
+      if (!roots.containsKey(root)) {
+        roots.put(root, roots.size());
+      }
+      entries.add(entry);
+    }
+
+    FileSystemUtils.createDirectoryAndParents(snapshotFile.getParentDirectory());
+    Path tmpFile = snapshotFile.getParentDirectory().getChild(snapshotFile.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      Path[] rootsByIndex = new Path[roots.size()];
+      for (Map.Entry<Path, Integer> root : roots.entrySet()) {
+        rootsByIndex[root.getValue()] = root.getKey();
+      }
+      out.writeInt(rootsByIndex.length);
+      for (Path root : rootsByIndex) {
+        out.writeUTF(root.getPathString());
+      }
+      out.writeInt(entries.size());
+      for (Map.Entry<SkyKey, SkyValue> entry : entries) {
+        RootedPath rootedPath = (RootedPath) entry.getKey().argument();
+        out.writeInt(roots.get(rootedPath.getRoot()));
+        out.writeUTF(rootedPath.getRelativePath().getPathString());
+        if (entry.getKey().functionName().equals(SkyFunctions.FILE_STATE)) {
+          out.writeByte(FILE_STATE);
+          writeFileState(out, (FileStateValue) entry.getValue());
+        } else {
+          out.writeByte(DIRECTORY_LISTING_STATE);
+          writeDirectoryListingState(out, (DirectoryListingStateValue) entry.getValue());
+        }
+      }
+    }
+    tmpFile.renameTo(snapshotFile);
+    return entries.size();
+  }
+
+  /**
+   * Reads back a snapshot written by {@link #write}. Returns an empty map if the file does not
+   * exist or was written by an incompatible version.
+   */
+  public static Map<SkyKey, SkyValue> read(Path snapshotFile, FileSystem fileSystem)
+      throws IOException {
+    if (!snapshotFile.exists()) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<SkyKey, SkyValue> result = ImmutableMap.builder();
+    try (RandomAccessFile file = new RandomAccessFile(snapshotFile.getPathFile(), "r");
+        FileChannel channel = file.getChannel()) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return ImmutableMap.of();
+      }
+      Path[] roots = new Path[in.readInt()];
+      for (int i = 0; i < roots.length; i++) {
+        roots[i] = fileSystem.getPath(in.readUTF());
+      }
+      int numEntries = in.readInt();
+      for (int i = 0; i < numEntries; i++) {
+        RootedPath rootedPath =
+            RootedPath.toRootedPath(roots[in.readInt()], new PathFragment(in.readUTF()));
+        byte kind = in.readByte();
+        switch (kind) {
+          case FILE_STATE:
+            result.put(FileStateValue.key(rootedPath), readFileState(in));
+            break;
+          case DIRECTORY_LISTING_STATE:
+            result.put(
+                DirectoryListingStateValue.key(rootedPath), readDirectoryListingState(in));
+            break;
+          default:
+            throw new IOException("Corrupt snapshot " + snapshotFile + ": unknown kind " + kind);
+        }
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Reads back the snapshot entries under {@code packageRoots} and checks them against the file
+   * system. Entries whose files changed since the snapshot was written are replaced by their
+   * current value, or dropped if it cannot be computed, so the result can be injected as is.
+   */
+  public static Map<SkyKey, SkyValue> readUnchanged(Path snapshotFile, FileSystem fileSystem,
+      Collection<Path> packageRoots, @Nullable TimestampGranularityMonitor tsgm)
+          throws IOException, InterruptedException {
+    Map<SkyKey, SkyValue> result = new HashMap<>();
+    for (Map.Entry<SkyKey, SkyValue> entry : read(snapshotFile, fileSystem).entrySet()) {
+      if (packageRoots.contains(((RootedPath) entry.getKey().argument()).getRoot())) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Differencer.Diff diff =
+        new FilesystemValueChecker(tsgm, null)
+            .getDirtyKeys(result, new BasicFilesystemDirtinessChecker());
+    result.keySet().removeAll(diff.changedKeysWithoutNewValues());
+    result.putAll(diff.changedKeysWithNewValues());
+    return result;
+  }
+
+  private static boolean isSnapshotted(SkyKey key) {
+    return key.functionName().equals(SkyFunctions.FILE_STATE)
+        || key.functionName().equals(SkyFunctions.DIRECTORY_LISTING_STATE);
+  }
+
+  private static void writeFileState(DataOutputStream out, FileStateValue value)
+      throws IOException {
+    out.writeByte(value.getType().ordinal());
+    switch (value.getType()) {
+      case REGULAR_FILE:
+        RegularFileStateValue regular = (RegularFileStateValue) value;
+        out.writeLong(regular.getSize());
+        out.writeLong(regular.getMtime());
+        byte[] digest = regular.getDigest();
+        out.writeBoolean(digest != null);
+        if (digest != null) {
+          out.writeInt(digest.length);
+          out.write(digest);
+        } else {
+          writeContentsProxy(out, regular.getContentsProxy());
+        }
+        break;
+      case SPECIAL_FILE:
+        writeContentsProxy(out, ((SpecialFileStateValue) value).getContentsProxy());
+        break;
+      case SYMLINK:
+        out.writeUTF(((SymlinkFileStateValue) value).getSymlinkTarget().getPathString());
+        break;
+      case DIRECTORY:
+      case NONEXISTENT:
+        break;
+      default:
+        throw new IllegalStateException(value.toString());
+    }
+  }
+
+  private static FileStateValue readFileState(DataInputStream in) throws IOException {
+    FileStateValue.Type type = FileStateValue.Type.values()[in.readByte()];
+    switch (type) {
+      case REGULAR_FILE:
+        long size = in.readLong();
+        long mtime = in.readLong();
+        if (in.readBoolean()) {
+          byte[] digest = new byte[in.readInt()];
+          in.readFully(digest);
+          return new RegularFileStateValue(size, mtime, digest, null);
+        }
+        return new RegularFileStateValue(size, mtime, null, readContentsProxy(in));
+      case SPECIAL_FILE:
+        return new SpecialFileStateValue(readContentsProxy(in));
+      case SYMLINK:
+        return new SymlinkFileStateValue(new PathFragment(in.readUTF()));
+      case DIRECTORY:
+        return FileStateValue.DIRECTORY_FILE_STATE_NODE;
+      case NONEXISTENT:
+        return FileStateValue.NONEXISTENT_FILE_STATE_NODE;
+      default:
+        throw new IllegalStateException(type.toString());
+    }
+  }
+
+  private static void writeContentsProxy(DataOutputStream out, FileContentsProxy proxy)
+      throws IOException {
+    out.writeLong(proxy.getMtime());
+    out.writeLong(proxy.getValueId());
+  }
+
+  private static FileContentsProxy readContentsProxy(DataInputStream in) throws IOException {
+    return FileContentsProxy.create(in.readLong(), in.readLong());
+  }
+
+  private static void writeDirectoryListingState(
+      DataOutputStream out, DirectoryListingStateValue value) throws IOException {
+    out.writeInt(value.getDirents().size());
+    for (Dirent dirent : value.getDirents()) {
+      out.writeUTF(dirent.getName());
+      out.writeByte(dirent.getType().ordinal());
+    }
+  }
+
+  private static DirectoryListingStateValue readDirectoryListingState(DataInputStream in)
+      throws IOException {
+    int size = in.readInt();
+    List<Dirent> dirents = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      String name = in.readUTF();
+      dirents.add(new Dirent(name, Dirent.Type.values()[in.readByte()]));
+    }
+    return DirectoryListingStateValue.create(dirents);
+  }
+
+  /** {@link InputStream} view of a (memory-mapped) {@link ByteBuffer}. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
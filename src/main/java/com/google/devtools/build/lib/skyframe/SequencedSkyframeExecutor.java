@@ -262,6 +262,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     this.valueCacheEvictionLimit = packageCacheOptions.minLoadedPkgCountForCtNodeEviction;
     super.sync(eventHandler, packageCacheOptions, outputBase, workingDirectory,
         defaultsPackageContents, commandId, tsgm);
+    // Snapshot values are checked against the file system while they are loaded, since
+    // handleDiffs only looks at values that are already in the graph.
+    maybeLoadFileSystemSnapshot(pkgLocator.get().getPathEntries());
     handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles);
   }
 
@@ -154,6 +154,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -272,6 +273,12 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   private final RuleClassProvider ruleClassProvider;
 
+  // Whether the file system state should be snapshotted when the server is idle or shuts down, as
+  // requested by the last command. See FileSystemValueSnapshot.
+  private volatile boolean fileSystemSnapshotEnabled = false;
+  // Whether the current graph was already seeded from a file system snapshot, if any.
+  protected boolean fileSystemSnapshotLoaded = false;
+
   private static final Logger LOG = Logger.getLogger(SkyframeExecutor.class.getName());
 
   protected SkyframeExecutor(
@@ -561,6 +568,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    */
   public void resetEvaluator() {
     init();
+    fileSystemSnapshotLoaded = false;
     emittedEventState.clear();
     skyframeBuildView.clearLegacyData();
     reinjectConstantValuesLazily();
@@ -1666,11 +1674,63 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
         packageCacheOptions.globbingThreads, defaultsPackageContents, commandId, tsgm);
     setDeletedPackages(packageCacheOptions.getDeletedPackages());
+    pkgFactory.setSkylarkCompiler(packageCacheOptions.skylarkCompiler);
+    fileSystemSnapshotEnabled = packageCacheOptions.fileSystemSnapshot;
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
     invalidateTransientErrors();
   }
 
+  private Path getFileSystemSnapshotFile() {
+    return directories.getOutputBase().getChild("filesystem_snapshot");
+  }
+
+  /**
+   * Writes the file system values currently in the graph to the output base, if the last command
+   * asked for it. Must only be called when no command is running, e.g. when the server is idle or
+   * about to shut down.
+   */
+  public void maybeWriteFileSystemSnapshot() {
+    if (!fileSystemSnapshotEnabled) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("writing file system snapshot", LOG)) {
+      int numEntries =
+          FileSystemValueSnapshot.write(
+              getFileSystemSnapshotFile(), memoizingEvaluator.getDoneValues());
+      LOG.info(String.format("Wrote %d entries to file system snapshot", numEntries));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write file system snapshot", e);
+    }
+  }
+
+  /**
+   * Seeds a fresh graph with the file system values from the snapshot written by a previous
+   * server, if enabled. Only values under the given package roots are loaded, and each of them is
+   * checked against the file system before it is injected.
+   */
+  protected void maybeLoadFileSystemSnapshot(Collection<Path> packageRoots)
+      throws InterruptedException {
+    if (!fileSystemSnapshotEnabled || fileSystemSnapshotLoaded) {
+      return;
+    }
+    fileSystemSnapshotLoaded = true;
+    Map<SkyKey, SkyValue> snapshot;
+    try (AutoProfiler p = AutoProfiler.logged("loading file system snapshot", LOG)) {
+      snapshot =
+          FileSystemValueSnapshot.readUnchanged(
+              getFileSystemSnapshotFile(),
+              directories.getOutputBase().getFileSystem(),
+              packageRoots,
+              tsgm.get());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to load file system snapshot", e);
+      return;
+    }
+    LOG.info(String.format("Loaded %d entries from file system snapshot", snapshot.size()));
+    injectable().inject(snapshot);
+  }
+
   protected PathPackageLocator createPackageLocator(EventHandler eventHandler,
       PackageCacheOptions packageCacheOptions, Path outputBase, Path workspace,
       Path workingDirectory) throws AbruptExitException {
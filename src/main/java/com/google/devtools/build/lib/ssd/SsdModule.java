@@ -15,25 +15,67 @@ package com.google.devtools.build.lib.ssd;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
+import com.google.devtools.build.lib.analysis.BlazeDirectories;
+import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
 import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsProvider;
 
+import java.io.IOException;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * BlazeModule that applies optimizations to Bazel's internals in order to improve performance when
  * using an SSD.
  */
 public final class SsdModule extends BlazeModule {
+  private static final Logger LOG = Logger.getLogger(SsdModule.class.getName());
+
+  private Path digestCacheFile;
+  private boolean digestCacheLoaded = false;
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
     return ImmutableList.<Class<? extends OptionsBase>>of(SsdOptions.class);
   }
 
+  @Override
+  public void blazeStartup(OptionsProvider startupOptions, BlazeVersionInfo versionInfo,
+      UUID instanceId, BlazeDirectories directories, Clock clock) {
+    digestCacheFile = directories.getOutputBase().getRelative("digest_cache");
+  }
+
   @Override
   public void handleOptions(OptionsProvider optionsProvider) {
     SsdOptions options = optionsProvider.getOptions(SsdOptions.class);
     if (options.experimentalMultiThreadedDigest) {
       DigestUtils.setMultiThreadedDigest(options.experimentalMultiThreadedDigest);
     }
+    DigestUtils.setLargeFileDigestConcurrency(options.experimentalLargeFileDigestJobs);
+    DigestUtils.configureCache(options.experimentalDigestCacheSize);
+    if (options.experimentalDigestCacheSize > 0 && !digestCacheLoaded && digestCacheFile != null) {
+      digestCacheLoaded = true;
+      try {
+        DigestUtils.readCache(digestCacheFile);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to read digest cache " + digestCacheFile, e);
+      }
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    if (digestCacheFile == null) {
+      return;
+    }
+    try {
+      DigestUtils.writeCache(digestCacheFile);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write digest cache " + digestCacheFile, e);
+    }
   }
 }
@@ -29,4 +29,23 @@ public class SsdOptions extends OptionsBase {
             + "performance when using an SSD."
   )
   public boolean experimentalMultiThreadedDigest;
+
+  @Option(
+    name = "experimental_large_file_digest_jobs",
+    defaultValue = "1",
+    help =
+        "The number of files larger than 4KB whose MD5 digests may be computed concurrently. "
+            + "Ignored if --experimental_multi_threaded_digest is set."
+  )
+  public int experimentalLargeFileDigestJobs;
+
+  @Option(
+    name = "experimental_digest_cache_size",
+    defaultValue = "0",
+    help =
+        "The maximum number of computed MD5 digests to remember, keyed on the inode, size, mtime "
+            + "and ctime of the file. The cache is kept in the output base across server "
+            + "restarts. 0 disables the cache."
+  )
+  public long experimentalDigestCacheSize;
 }
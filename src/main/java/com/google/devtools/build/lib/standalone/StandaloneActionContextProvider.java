@@ -68,7 +68,8 @@ public class StandaloneActionContextProvider extends ActionContextProvider {
 
   public StandaloneActionContextProvider(CommandEnvironment env, BuildRequest buildRequest) {
     this.env = env;
-    boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
+    ExecutionOptions executionOptions = buildRequest.getOptions(ExecutionOptions.class);
+    boolean verboseFailures = executionOptions.verboseFailures;
 
     TestActionContext testStrategy =
         new StandaloneTestStrategy(
@@ -84,7 +85,8 @@ public class StandaloneActionContextProvider extends ActionContextProvider {
         new StandaloneSpawnStrategy(
             env.getExecRoot(),
             verboseFailures,
-            env.getRuntime().getProductName()),
+            env.getRuntime().getProductName(),
+            executionOptions.actionHistory || executionOptions.measuredResourceEstimates),
         new DummyIncludeScanningContext(),
         new SpawnLinkStrategy(),
         new SpawnGccStrategy(),
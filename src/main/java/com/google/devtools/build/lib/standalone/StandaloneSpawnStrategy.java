@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.standalone;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionStatusMessage;
@@ -21,6 +23,7 @@ import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.SpawnResourceUsageEvent;
 import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.rules.apple.AppleConfiguration;
@@ -34,11 +37,16 @@ import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.OsUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Strategy that uses subprocessing to execute a process.
@@ -49,13 +57,26 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
   private final Path processWrapper;
   private final Path execRoot;
   private final String productName;
+  // Where process-wrapper writes the resource usage of spawns, or null if it is not measured.
+  private final Path resourceUsageDir;
+  private final AtomicLong resourceUsageFileCounter = new AtomicLong();
 
   public StandaloneSpawnStrategy(Path execRoot, boolean verboseFailures, String productName) {
+    this(execRoot, verboseFailures, productName, false);
+  }
+
+  /**
+   * @param measureResourceUsage whether to measure the CPU time, memory and I/O of spawns and
+   *     post them as {@link SpawnResourceUsageEvent}s
+   */
+  public StandaloneSpawnStrategy(
+      Path execRoot, boolean verboseFailures, String productName, boolean measureResourceUsage) {
     this.verboseFailures = verboseFailures;
     this.execRoot = execRoot;
     this.processWrapper = execRoot.getRelative(
         "_bin/process-wrapper" + OsUtils.executableExtension());
     this.productName = productName;
+    this.resourceUsageDir = measureResourceUsage ? execRoot.getRelative("_resource_usage") : null;
   }
 
   /**
@@ -91,12 +112,19 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
     // All actions therefore depend on the process-wrapper file. Since it's embedded,
     // we don't bother with declaring it as an input.
     List<String> args = new ArrayList<>();
+    Path resourceUsageFile = null;
     if (OS.getCurrent() != OS.WINDOWS) {
       // TODO(bazel-team): process-wrapper seems to work on Windows, but requires
       // additional setup as it is an msys2 binary, so it needs msys2 DLLs on %PATH%.
       // Disable it for now to make the setup easier and to avoid further PATH hacks.
       // Ideally we should have a native implementation of process-wrapper for Windows.
       args.add(processWrapper.getPathString());
+      if (resourceUsageDir != null) {
+        resourceUsageFile = resourceUsageDir.getChild(
+            Long.toString(resourceUsageFileCounter.incrementAndGet()));
+        args.add("--stats");
+        args.add(resourceUsageFile.getPathString());
+      }
       args.add(Integer.toString(timeout));
       args.add("5"); /* kill delay: give some time to print stacktraces and whatnot. */
 
@@ -112,7 +140,11 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
         locallyDeterminedEnv(spawn.getEnvironment()), new File(cwd));
 
     FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    long startNanos = System.nanoTime();
     try {
+      if (resourceUsageFile != null) {
+        FileSystemUtils.createDirectoryAndParents(resourceUsageDir);
+      }
       cmd.execute(
           /* stdin */ new byte[]{},
           Command.NO_OBSERVER,
@@ -130,7 +162,51 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
       String message = CommandFailureUtils.describeCommandFailure(
           verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
       throw new UserExecException(message, e);
+    } catch (IOException e) {
+      throw new UserExecException("could not create " + resourceUsageDir, e);
+    } finally {
+      if (resourceUsageFile != null) {
+        reportResourceUsage(
+            spawn, executor, resourceUsageFile, (System.nanoTime() - startNanos) / 1000000);
+      }
+    }
+  }
+
+  /**
+   * Posts the resource usage that process-wrapper wrote to the given file together with the wall
+   * time of the spawn, and deletes the file. Nothing is posted if the file is missing or cannot be
+   * parsed, e.g. because the spawn was interrupted.
+   */
+  private static void reportResourceUsage(
+      Spawn spawn, Executor executor, Path file, long wallMillis) {
+    Map<String, Long> values = new HashMap<>();
+    try {
+      if (!file.exists()) {
+        return;
+      }
+      for (String line : FileSystemUtils.readLines(file, ISO_8859_1)) {
+        String[] fields = line.split(" ");
+        if (fields.length == 2) {
+          values.put(fields[0], Long.parseLong(fields[1]));
+        }
+      }
+      file.delete();
+    } catch (IOException | NumberFormatException e) {
+      return;
+    }
+    Long userMicros = values.get("user_cpu_us");
+    Long systemMicros = values.get("system_cpu_us");
+    Long peakRssBytes = values.get("max_rss_bytes");
+    Long ioBytes = values.get("io_bytes");
+    if (userMicros == null || systemMicros == null || peakRssBytes == null || ioBytes == null) {
+      return;
     }
+    executor.getEventBus().post(new SpawnResourceUsageEvent(
+        spawn.getResourceOwner(),
+        wallMillis,
+        (userMicros + systemMicros) / 1000,
+        peakRssBytes,
+        ioBytes));
   }
 
   @Override
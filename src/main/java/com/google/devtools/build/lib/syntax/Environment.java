@@ -360,6 +360,12 @@ public final class Environment implements Freezable {
    */
   private final String toolsRepository;
 
+  /**
+   * The number of times a function called from this Environment is interpreted before it is
+   * compiled to byte code, or -1 if functions are never compiled.
+   */
+  private final int compilationThreshold;
+
   /**
    * Enters a scope by saving state to a new Continuation
    * @param function the function whose scope to enter
@@ -499,7 +505,8 @@ public final class Environment implements Freezable {
       @Nullable String fileContentHashCode,
       Phase phase,
       @Nullable Label callerLabel,
-      String toolsRepository) {
+      String toolsRepository,
+      int compilationThreshold) {
     this.globalFrame = Preconditions.checkNotNull(globalFrame);
     this.dynamicFrame = Preconditions.checkNotNull(dynamicFrame);
     Preconditions.checkArgument(globalFrame.mutability().isMutable());
@@ -510,6 +517,7 @@ public final class Environment implements Freezable {
     this.phase = phase;
     this.callerLabel = callerLabel;
     this.toolsRepository = toolsRepository;
+    this.compilationThreshold = compilationThreshold;
     this.transitiveHashCode =
         computeTransitiveContentHashCode(fileContentHashCode, importedExtensions);
   }
@@ -527,6 +535,7 @@ public final class Environment implements Freezable {
     @Nullable private String fileContentHashCode;
     private Label label;
     private String toolsRepository;
+    private int compilationThreshold = -1;
 
     Builder(Mutability mutability) {
       this.mutability = mutability;
@@ -579,6 +588,17 @@ public final class Environment implements Freezable {
       return this;
     }
 
+    /**
+     * Compiles the functions called from this Environment to byte code once they were
+     * interpreted the given number of times. With 0, functions are compiled before their first
+     * call.
+     */
+    public Builder enableCompiler(int compilationThreshold) {
+      Preconditions.checkArgument(compilationThreshold >= 0);
+      this.compilationThreshold = compilationThreshold;
+      return this;
+    }
+
     /** Builds the Environment. */
     public Environment build() {
       Preconditions.checkArgument(mutability.isMutable());
@@ -602,7 +622,8 @@ public final class Environment implements Freezable {
           fileContentHashCode,
           phase,
           label,
-          toolsRepository);
+          toolsRepository,
+          compilationThreshold);
     }
 
     public Builder setCallerLabel(Label label) {
@@ -615,6 +636,20 @@ public final class Environment implements Freezable {
     return new Builder(mutability);
   }
 
+  /** Returns whether functions called from this Environment are compiled once they are hot. */
+  public boolean isCompilerEnabled() {
+    return compilationThreshold >= 0;
+  }
+
+  /**
+   * Returns the number of times a function is interpreted before it is compiled, if the compiler
+   * is enabled.
+   */
+  public int getCompilationThreshold() {
+    Preconditions.checkState(isCompilerEnabled());
+    return compilationThreshold;
+  }
+
   /**
    * Returns the caller's label.
    */
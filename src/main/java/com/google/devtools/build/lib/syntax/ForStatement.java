@@ -184,9 +184,9 @@ public final class ForStatement extends Statement {
     append(code, ByteCodeMethodCalls.BCIterator.next);
     // store current element into l-value
     code.add(variable.compileAssignment(this, debugAccessors, scope));
-    // compile code for the body
+    // count the element, then compile code for the body
+    append(code, new IntegerVariableIncrease(sizeCounterVariable, 1));
     for (Statement statement : block) {
-      append(code, new IntegerVariableIncrease(sizeCounterVariable, 1));
       code.add(statement.compile(scope, loopLabels, debugInfo));
     }
     // compile code for the loop header
@@ -199,7 +199,6 @@ public final class ForStatement extends Statement {
         Jump.ifIntOperandToZero(PrimitiveComparison.NOT_EQUAL).to(loopBody));
     append(
         code,
-        breakLoop,
         // load arguments for checkConcurrentModification and call it
         originalIterable.load(),
         sizeCounterVariable.load(),
@@ -209,7 +208,9 @@ public final class ForStatement extends Statement {
             "checkConcurrentModification",
             Iterable.class,
             int.class,
-            ASTNode.class));
+            ASTNode.class),
+        // like the interpreter, a loop left by break is not checked
+        breakLoop);
     return ByteCodeUtils.compoundAppender(code);
   }
 }
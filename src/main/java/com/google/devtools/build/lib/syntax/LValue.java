@@ -26,6 +26,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
 import net.bytebuddy.implementation.bytecode.Removal;
 import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -126,17 +127,24 @@ public class LValue implements Serializable {
       throws EvalException, InterruptedException {
     Preconditions.checkNotNull(result, "trying to assign null to %s", ident);
 
-    // The variable may have been referenced successfully if a global variable
-    // with the same name exists. In this case an Exception needs to be thrown.
-    if (env.isKnownGlobalVariable(ident.getName())) {
+    checkNotKnownGlobal(env, ident.getName(), loc);
+    env.update(ident.getName(), result);
+  }
+
+  /**
+   * Fails if the variable was read before it is assigned to, which succeeded only because a
+   * global variable with the same name exists.
+   */
+  public static void checkNotKnownGlobal(Environment env, String name, Location loc)
+      throws EvalException {
+    if (env.isKnownGlobalVariable(name)) {
       throw new EvalException(
           loc,
           String.format(
               "Variable '%s' is referenced before assignment. "
                   + "The variable is defined in the global scope.",
-              ident.getName()));
+              name));
     }
-    env.update(ident.getName(), result);
   }
 
   void validate(ValidationEnvironment env, Location loc) throws EvalException {
@@ -194,7 +202,7 @@ public class LValue implements Serializable {
       List<ByteCodeAppender> code)
       throws EvalException {
     if (leftValue instanceof Identifier) {
-      code.add(compileAssignment(scope, (Identifier) leftValue));
+      code.add(compileAssignment(debugAccessors, scope, (Identifier) leftValue));
     } else if (leftValue instanceof ListLiteral) {
       List<Expression> lValueExpressions = ((ListLiteral) leftValue).getElements();
       compileAssignment(node, debugAccessors, scope, lValueExpressions, code);
@@ -248,12 +256,25 @@ public class LValue implements Serializable {
   /**
    * Compile assignment to a single identifier.
    */
-  private static ByteCodeAppender compileAssignment(VariableScope scope, Identifier identifier) {
+  private static ByteCodeAppender compileAssignment(
+      AstAccessors debugAccessors, VariableScope scope, Identifier identifier) {
     // don't store to/create the _ "variable" the value is not needed, just remove it
     if (identifier.getName().equals("_")) {
       return new ByteCodeAppender.Simple(Removal.SINGLE);
     }
-    return scope.getVariable(identifier).store();
+    return new ByteCodeAppender.Compound(
+        // same check as in the interpreter
+        new ByteCodeAppender.Simple(
+            scope.loadEnvironment(),
+            new TextConstant(identifier.getName()),
+            debugAccessors.loadLocation,
+            ByteCodeUtils.invoke(
+                LValue.class,
+                "checkNotKnownGlobal",
+                Environment.class,
+                String.class,
+                Location.class)),
+        scope.getVariable(identifier).store());
   }
 
   /**
@@ -13,7 +13,9 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Location;
@@ -28,6 +30,7 @@ import com.google.devtools.build.lib.syntax.compiler.VariableScope;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
 import net.bytebuddy.asm.ClassVisitorWrapper;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.modifier.MethodManifestation;
@@ -60,6 +63,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -72,12 +78,22 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
-  private Optional<Method> method;
+  // absent until the function is compiled, and if it cannot be compiled
+  private volatile Optional<Method> method = Optional.absent();
+  private volatile boolean compilationAttempted;
+  private final AtomicInteger interpretedCalls = new AtomicInteger();
+
   // TODO(bazel-team) make this configurable once the compiler is stable
   public static boolean debugCompiler = false;
   public static boolean debugCompilerPrintByteCode = false;
   private static File debugFolder;
-  public static boolean enableCompiler = false;
+
+  /**
+   * The number of times a function is interpreted before it is compiled when {@code
+   * --experimental_skylark_compiler} is set, so that the cost of generating byte code is only paid
+   * for functions that are called often.
+   */
+  public static final int DEFAULT_COMPILATION_THRESHOLD = 10;
 
   protected UserDefinedFunction(
       Identifier function,
@@ -88,7 +104,6 @@ public class UserDefinedFunction extends BaseFunction {
     super(function.getName(), signature, function.getLocation());
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
-    method = enableCompiler ? buildCompiledFunction() : Optional.<Method>absent();
   }
 
   public FunctionSignature.WithValues<Object, SkylarkType> getFunctionSignature() {
@@ -99,6 +114,11 @@ public class UserDefinedFunction extends BaseFunction {
     return statements;
   }
 
+  @VisibleForTesting
+  boolean isCompiled() {
+    return method.isPresent();
+  }
+
   @Override
   public Object call(Object[] arguments, FuncallExpression ast, Environment env)
       throws EvalException, InterruptedException {
@@ -111,10 +131,15 @@ public class UserDefinedFunction extends BaseFunction {
               getName(), Iterables.getLast(env.getStackTrace()).getName()));
     }
 
-    if (enableCompiler && method.isPresent()) {
-      Object returnValue = callCompiledFunction(arguments, ast, env);
-      if (returnValue != null) {
-        return returnValue;
+    // Whether to compile is up to the Environment of the caller, which comes from the command
+    // that loads the package, rather than to the Environment that the function was defined in.
+    if (env.isCompilerEnabled()) {
+      Optional<Method> compiled = getCompiledFunction(env.getCompilationThreshold());
+      if (compiled.isPresent()) {
+        Object result = callCompiledFunction(compiled.get(), arguments, ast, env);
+        if (result != null) {
+          return result;
+        }
       }
     }
 
@@ -150,23 +175,57 @@ public class UserDefinedFunction extends BaseFunction {
     }
   }
 
-  private Object callCompiledFunction(Object[] arguments, FuncallExpression ast, Environment env) {
+  /**
+   * Returns the compiled version of this function, compiling it once the function has been
+   * interpreted the given number of times. Returns absent if the function is not hot yet or
+   * cannot be compiled.
+   */
+  private Optional<Method> getCompiledFunction(int compilationThreshold) {
+    if (!compilationAttempted && interpretedCalls.incrementAndGet() > compilationThreshold) {
+      synchronized (this) {
+        if (!compilationAttempted) {
+          method = buildCompiledFunction();
+          compilationAttempted = true;
+        }
+      }
+    }
+    return method;
+  }
+
+  /**
+   * Calls the compiled version of this function. Returns null if the compiled code failed in a
+   * way that Skylark code cannot fail, which is a bug of the compiler: the function is then no
+   * longer compiled, and the call must be interpreted.
+   */
+  @Nullable
+  private Object callCompiledFunction(
+      Method compiled, Object[] arguments, FuncallExpression ast, Environment env)
+      throws EvalException, InterruptedException {
     compilerDebug("Calling compiled function " + getLocationPathAndLine() + " " + getName());
     try {
       Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_COMPILED_FN,
           getLocationPathAndLine() + "#" + getName());
       env.enterScope(this, ast, definitionGlobals);
 
-      return method
-          .get()
-          .invoke(null, ImmutableList.builder().add(arguments).add(env).build().toArray());
+      return compiled.invoke(
+          null, ImmutableList.builder().add(arguments).add(env).build().toArray());
 
     } catch (IllegalAccessException e) {
       // this should never happen
       throw new RuntimeException(
           "Compiler created code that could not be accessed reflectively.", e);
     } catch (InvocationTargetException e) {
-      compilerDebug("Error running compiled version", e.getCause());
+      // Errors of the Skylark code are EvalExceptions, which are reported like the interpreter
+      // reports them: the body may have had side effects already, so it must not be run again.
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, EvalException.class);
+      Throwables.propagateIfInstanceOf(cause, InterruptedException.class);
+      Throwables.propagateIfInstanceOf(cause, Error.class);
+      // Anything else, like a ClassCastException, is a bug of the generated code rather than an
+      // error of the Skylark code, which the interpreter may not have. Side effects of the body
+      // before the failure are repeated, which is the lesser evil.
+      compilerDebug("Error in compiled function, interpreting it from now on", cause);
+      method = Optional.absent();
       return null;
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYLARK_USER_COMPILED_FN);
@@ -180,7 +239,7 @@ public class UserDefinedFunction extends BaseFunction {
    *
    * <p>The "call" method contains the compiled version of this function's AST.
    */
-  private Optional<Method> buildCompiledFunction() throws EvalException {
+  private Optional<Method> buildCompiledFunction() {
     // replace the / character in the path so we have file system compatible class names
     // the java specification mentions that $ should be used in generated code
     // see http://docs.oracle.com/javase/specs/jls/se7/html/jls-3.html#jls-3.8
@@ -222,7 +281,7 @@ public class UserDefinedFunction extends BaseFunction {
       List<Class<?>> parameterTypes = sig.getShape().toClasses();
       parameterTypes.add(Environment.class);
       Unloaded<CompiledFunction> unloadedImplementation =
-          new ByteBuddy()
+          new ByteBuddy(ClassFileVersion.JAVA_V8)
               .withClassVisitor(new StackMapFrameClassVisitor(debugCompilerPrintByteCode))
               .subclass(CompiledFunction.class)
               .name(compiledFunctionClassName)
@@ -259,10 +318,9 @@ public class UserDefinedFunction extends BaseFunction {
                   "call",
                   parameterTypes.toArray(new Class<?>[parameterTypes.size()]))
               .getLoadedMethod());
-    } catch (EvalException e) {
-      // don't capture EvalExceptions
-      throw e;
     } catch (Throwable e) {
+      // Constructs the compiler does not support yet are reported as EvalExceptions; such
+      // functions are interpreted.
       compilerDebug("Error while compiling", e);
       // TODO(bazel-team) don't capture all throwables? couldn't compile this, log somewhere?
     }
@@ -336,12 +394,16 @@ public class UserDefinedFunction extends BaseFunction {
   }
 
   private void compilerDebug(String message) {
-    System.err.println(message);
+    if (debugCompiler) {
+      System.err.println(message);
+    }
   }
 
   private void compilerDebug(String message, Throwable e) {
-    compilerDebug(message);
-    e.printStackTrace();
+    if (debugCompiler) {
+      System.err.println(message);
+      e.printStackTrace();
+    }
   }
 
   /**
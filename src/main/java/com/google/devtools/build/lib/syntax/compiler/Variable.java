@@ -111,9 +111,8 @@ public abstract class Variable {
         return global.lookup(variable);
       } catch (NoSuchVariableException e) {
         throw new EvalExceptionWithStackTrace(
-            new EvalException(
-                node.getLocation(),
-                "local variable '" + variable + "' referenced before assignment"),
+            // same message as the interpreter
+            new EvalException(node.getLocation(), "name '" + variable + "' is not defined"),
             node);
       }
     }
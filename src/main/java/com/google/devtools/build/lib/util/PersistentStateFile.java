@@ -0,0 +1,132 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads and writes the files in which the server keeps state across restarts, such as statistics
+ * of earlier builds.
+ *
+ * <p>A file starts with a magic number that identifies its format, followed by the contents that
+ * its owner writes. Files are replaced atomically, so that a server that dies while writing one
+ * leaves the previous version in place. Contents that the owner cannot make sense of are reported
+ * as an {@link IOException}, like the failure to read the file.
+ */
+public final class PersistentStateFile {
+
+  /** Writes the contents of a file. */
+  public interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /** Reads the contents of a file. */
+  public interface Reader {
+    void read(DataInputStream in) throws IOException;
+  }
+
+  private static final int SMALL_ARRAY_BYTES = 1 << 16;
+
+  private PersistentStateFile() {}
+
+  /**
+   * Reads the given file if it exists.
+   *
+   * @return whether the file existed
+   * @throws IOException if the file cannot be read, has another magic number or is corrupted
+   */
+  public static boolean read(Path file, long magic, Reader reader) throws IOException {
+    if (!file.exists()) {
+      return false;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readLong() != magic) {
+        throw new IOException("Unexpected format of " + file);
+      }
+      reader.read(in);
+    } catch (IllegalArgumentException | NegativeArraySizeException e) {
+      throw new IOException("Corrupted " + file, e);
+    }
+    return true;
+  }
+
+  /** Writes the given file, replacing it atomically. */
+  public static void write(Path file, long magic, Writer writer) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    Path tmp = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmp.getOutputStream()))) {
+      out.writeLong(magic);
+      writer.write(out);
+    } catch (IOException | RuntimeException e) {
+      try {
+        tmp.delete();
+      } catch (IOException deleteFailure) {
+        e.addSuppressed(deleteFailure);
+      }
+      throw e;
+    }
+    tmp.renameTo(file);
+  }
+
+  /**
+   * Reads a byte array written by {@link #writeBytes}. A corrupted length fails at the end of the
+   * file instead of allocating that many bytes up front.
+   */
+  public static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Negative length: " + length);
+    }
+    if (length <= SMALL_ARRAY_BYTES) {
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return bytes;
+    }
+    byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(in, length));
+    if (bytes.length != length) {
+      throw new EOFException();
+    }
+    return bytes;
+  }
+
+  public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString}. Unlike {@link DataInputStream#readUTF}, the
+   * length of the string is not limited to 64k bytes.
+   */
+  public static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in), UTF_8);
+  }
+
+  public static void writeString(DataOutputStream out, String s) throws IOException {
+    writeBytes(out, s.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,496 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A bidirectional String <-> int mapping that keeps no per-entry objects.
+ *
+ * <p>The UTF-8 bytes of all strings are appended to a single byte arena. Per-index offsets,
+ * lengths and hashes live in int buffers, and the string -> index direction is an
+ * open-addressing table of indices. All of these buffers can be allocated outside of the Java
+ * heap, so that a large table costs the garbage collector nothing to trace.
+ *
+ * <p>Unlike most indexers, indices are assigned by the caller, so that a table can be bulk
+ * loaded from a file that lists its entries in any order. {@link #asMap} and
+ * {@link #asReverseMap} expose both directions as the weakly thread-safe maps that
+ * {@link CanonicalStringIndexer} is built from. Strings are decoded on every lookup by index, so
+ * callers that hold on to them should not expect canonical instances.
+ *
+ * <p>Lookups do not block each other or take a lock in the common case: they read optimistically
+ * and only fall back to a read lock if a writer changed the table meanwhile. Lookups by string
+ * compare its characters with the UTF-8 bytes in the arena, without encoding the string first.
+ * Writers are serialized by the table's monitor.
+ */
+@ThreadSafe
+public final class PrimitiveStringTable {
+
+  private static final int NOT_FOUND = -1;
+  private static final int MIN_CAPACITY = 16;
+
+  private final boolean direct;
+  // Held for writing while a writer changes the buffers, so that optimistic reads can tell.
+  private final StampedLock lock = new StampedLock();
+
+  private ByteBuffer arena;
+  // Indexed by string index. An offset of NOT_FOUND marks an unused index.
+  private IntBuffer offsets;
+  private IntBuffer lengths;
+  private IntBuffer hashes;
+  // Open-addressing table of (index + 1), with 0 marking an empty slot.
+  private IntBuffer slots;
+  private volatile int size;
+  private int maxIndex;
+
+  /**
+   * @param expectedSize the number of strings to size the initial buffers for
+   * @param direct whether to allocate the buffers outside of the Java heap
+   */
+  public PrimitiveStringTable(int expectedSize, boolean direct) {
+    Preconditions.checkArgument(expectedSize >= 0);
+    this.direct = direct;
+    init(Math.max(MIN_CAPACITY, expectedSize));
+  }
+
+  // Must be called with the write lock held, except from the constructor.
+  private void init(int capacity) {
+    arena = allocate(capacity * 32);
+    offsets = allocateInts(capacity);
+    lengths = allocateInts(capacity);
+    hashes = allocateInts(capacity);
+    fill(offsets, 0, capacity, NOT_FOUND);
+    slots = allocateInts(Integer.highestOneBit(capacity * 2 - 1) * 2);
+    size = 0;
+    maxIndex = NOT_FOUND;
+  }
+
+  private ByteBuffer allocate(int bytes) {
+    return direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+  }
+
+  private IntBuffer allocateInts(int count) {
+    return allocate(count * 4).asIntBuffer();
+  }
+
+  private static void fill(IntBuffer buffer, int from, int to, int value) {
+    for (int i = from; i < to; i++) {
+      buffer.put(i, value);
+    }
+  }
+
+  private static int hash(String s) {
+    int h = s.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /** Returns whether the buffers of this table are allocated outside of the Java heap. */
+  public boolean isDirect() {
+    return direct;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public synchronized void clear() {
+    long stamp = lock.writeLock();
+    try {
+      init(MIN_CAPACITY);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /** Returns the index of the given string, or -1 if it is not in the table. */
+  public int getIndex(String s) {
+    int hash = hash(s);
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int index = slots.get(findSlot(s, hash)) - 1;
+        if (lock.validate(stamp)) {
+          return index;
+        }
+      } catch (RuntimeException e) {
+        // The buffers were changed while we read them; read them again under the lock.
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return slots.get(findSlot(s, hash)) - 1;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /** Returns the string with the given index, or null if there is none. */
+  public String getString(int index) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        byte[] bytes = getBytes(index);
+        if (lock.validate(stamp)) {
+          return bytes == null ? null : new String(bytes, UTF_8);
+        }
+      } catch (RuntimeException e) {
+        // The buffers were changed while we read them; read them again under the lock.
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      byte[] bytes = getBytes(index);
+      return bytes == null ? null : new String(bytes, UTF_8);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private byte[] getBytes(int index) {
+    if (index < 0 || index > maxIndex || offsets.get(index) == NOT_FOUND) {
+      return null;
+    }
+    byte[] bytes = new byte[lengths.get(index)];
+    ByteBuffer view = arena.duplicate();
+    view.position(offsets.get(index));
+    view.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Maps the string to the index and back. Adding an existing pair again is a no-op.
+   *
+   * @throws IllegalArgumentException if either the string or the index is already mapped to
+   *     something else
+   */
+  public synchronized void put(String s, int index) {
+    Preconditions.checkArgument(index >= 0, index);
+    int hash = hash(s);
+    int slot = findSlot(s, hash);
+    int existing = slots.get(slot) - 1;
+    if (existing == index) {
+      return;
+    }
+    if (existing != NOT_FOUND) {
+      throw new IllegalArgumentException(
+          String.format("'%s' has index %d and %d", s, existing, index));
+    }
+    if (index <= maxIndex && offsets.get(index) != NOT_FOUND) {
+      throw new IllegalArgumentException(
+          String.format("index %d is used by '%s' and '%s'", index, getString(index), s));
+    }
+
+    byte[] bytes = s.getBytes(UTF_8);
+    long stamp = lock.writeLock();
+    try {
+      ensureIndexCapacity(index);
+      ensureArenaCapacity(bytes.length);
+      int offset = arena.position();
+      arena.put(bytes);
+      offsets.put(index, offset);
+      lengths.put(index, bytes.length);
+      hashes.put(index, hash);
+      maxIndex = Math.max(maxIndex, index);
+      size++;
+      if (size * 2 > slots.capacity()) {
+        rehash(slots.capacity() * 2);
+      } else {
+        slots.put(slot, index + 1);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns the slot that holds the given string, or the empty slot where it would be inserted.
+   * Terminates even on an inconsistent view of the buffers, since the table of slots the loop
+   * reads from is never more than half full.
+   */
+  private int findSlot(String s, int hash) {
+    IntBuffer slots = this.slots;
+    int mask = slots.capacity() - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = slots.get(slot);
+      if (entry == 0 || (hashes.get(entry - 1) == hash && contentEquals(entry - 1, s))) {
+        return slot;
+      }
+    }
+  }
+
+  /** Returns whether the UTF-8 bytes of the given index encode {@code s}. */
+  private boolean contentEquals(int index, String s) {
+    ByteBuffer arena = this.arena;
+    int pos = offsets.get(index);
+    int end = pos + lengths.get(index);
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      int codePoint = c;
+      int bytes;
+      if (c < 0x80) {
+        bytes = 1;
+      } else if (c < 0x800) {
+        bytes = 2;
+      } else if (!Character.isSurrogate(c)) {
+        bytes = 3;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        codePoint = Character.toCodePoint(c, s.charAt(++i));
+        bytes = 4;
+      } else {
+        // String.getBytes replaces unpaired surrogates, and so did put.
+        codePoint = '?';
+        bytes = 1;
+      }
+      if (end - pos < bytes) {
+        return false;
+      }
+      if (bytes == 1) {
+        if (arena.get(pos++) != codePoint) {
+          return false;
+        }
+        continue;
+      }
+      int lead = bytes == 2 ? 0xc0 : bytes == 3 ? 0xe0 : 0xf0;
+      if (arena.get(pos++) != (byte) (lead | (codePoint >>> (6 * (bytes - 1))))) {
+        return false;
+      }
+      for (int shift = 6 * (bytes - 2); shift >= 0; shift -= 6) {
+        if (arena.get(pos++) != (byte) (0x80 | ((codePoint >>> shift) & 0x3f))) {
+          return false;
+        }
+      }
+    }
+    return pos == end;
+  }
+
+  private void ensureIndexCapacity(int index) {
+    int capacity = offsets.capacity();
+    if (index < capacity) {
+      return;
+    }
+    int newCapacity = Math.max(capacity * 2, index + 1);
+    offsets = copyOf(offsets, newCapacity);
+    lengths = copyOf(lengths, newCapacity);
+    hashes = copyOf(hashes, newCapacity);
+    fill(offsets, capacity, newCapacity, NOT_FOUND);
+  }
+
+  private IntBuffer copyOf(IntBuffer buffer, int capacity) {
+    IntBuffer copy = allocateInts(capacity);
+    IntBuffer source = buffer.duplicate();
+    source.clear();
+    copy.put(source);
+    copy.clear();
+    return copy;
+  }
+
+  private void ensureArenaCapacity(int bytes) {
+    if (arena.remaining() >= bytes) {
+      return;
+    }
+    long needed = (long) arena.position() + bytes;
+    if (needed > Integer.MAX_VALUE) {
+      throw new IllegalStateException("String table is full");
+    }
+    int newCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * arena.capacity()));
+    ByteBuffer copy = allocate(newCapacity);
+    arena.flip();
+    copy.put(arena);
+    arena = copy;
+  }
+
+  private void rehash(int capacity) {
+    slots = allocateInts(capacity);
+    int mask = capacity - 1;
+    for (int index = 0; index <= maxIndex; index++) {
+      if (offsets.get(index) == NOT_FOUND) {
+        continue;
+      }
+      int slot = hashes.get(index) & mask;
+      while (slots.get(slot) != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots.put(slot, index + 1);
+    }
+  }
+
+  /** Returns the number of bytes allocated for the buffers of this table. */
+  public synchronized long getFootprintBytes() {
+    return arena.capacity()
+        + 4L * (offsets.capacity() + lengths.capacity() + hashes.capacity() + slots.capacity());
+  }
+
+  /** Returns the next used index after the given one, or -1 if there is none. */
+  private synchronized int nextIndex(int index) {
+    for (int i = index + 1; i <= maxIndex; i++) {
+      if (offsets.get(i) != NOT_FOUND) {
+        return i;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Returns a String -> Integer view of this table. Putting a new key adds it to the table;
+   * removing keys is not supported.
+   */
+  public Map<String, Integer> asMap() {
+    return new AbstractMap<String, Integer>() {
+      @Override
+      public int size() {
+        return PrimitiveStringTable.this.size();
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return get(key) != null;
+      }
+
+      @Override
+      public Integer get(Object key) {
+        if (!(key instanceof String)) {
+          return null;
+        }
+        int index = getIndex((String) key);
+        return index == NOT_FOUND ? null : index;
+      }
+
+      @Override
+      public Integer put(String key, Integer value) {
+        synchronized (PrimitiveStringTable.this) {
+          Integer previous = get(key);
+          PrimitiveStringTable.this.put(key, value);
+          return previous;
+        }
+      }
+
+      @Override
+      public void clear() {
+        PrimitiveStringTable.this.clear();
+      }
+
+      @Override
+      public Set<Map.Entry<String, Integer>> entrySet() {
+        return new EntrySet<Map.Entry<String, Integer>>() {
+          @Override
+          Map.Entry<String, Integer> entry(int index, String s) {
+            return new SimpleImmutableEntry<>(s, index);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns an Integer -> String view of this table. Putting a new key adds it to the table;
+   * removing keys is not supported.
+   */
+  public Map<Integer, String> asReverseMap() {
+    return new AbstractMap<Integer, String>() {
+      @Override
+      public int size() {
+        return PrimitiveStringTable.this.size();
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return get(key) != null;
+      }
+
+      @Override
+      public String get(Object key) {
+        return key instanceof Integer ? getString((Integer) key) : null;
+      }
+
+      @Override
+      public String put(Integer key, String value) {
+        synchronized (PrimitiveStringTable.this) {
+          String previous = getString(key);
+          PrimitiveStringTable.this.put(value, key);
+          return previous;
+        }
+      }
+
+      @Override
+      public void clear() {
+        PrimitiveStringTable.this.clear();
+      }
+
+      @Override
+      public Set<Map.Entry<Integer, String>> entrySet() {
+        return new EntrySet<Map.Entry<Integer, String>>() {
+          @Override
+          Map.Entry<Integer, String> entry(int index, String s) {
+            return new SimpleImmutableEntry<>(index, s);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Iterates over the entries in index order. Entries added during the iteration may or may not
+   * be seen.
+   */
+  private abstract class EntrySet<E> extends AbstractSet<E> {
+    abstract E entry(int index, String s);
+
+    @Override
+    public int size() {
+      return PrimitiveStringTable.this.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+      return new Iterator<E>() {
+        private int next = nextIndex(NOT_FOUND);
+
+        @Override
+        public boolean hasNext() {
+          return next != NOT_FOUND;
+        }
+
+        @Override
+        public E next() {
+          if (next == NOT_FOUND) {
+            throw new NoSuchElementException();
+          }
+          int index = next;
+          next = nextIndex(index);
+          return entry(index, getString(index));
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+}
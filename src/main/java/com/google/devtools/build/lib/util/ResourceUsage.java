@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Provides methods to measure the current resource usage of the current
@@ -218,6 +219,30 @@ public final class ResourceUsage {
     }
   }
 
+  /**
+   * Returns the resident set size in bytes of the process with the given id, or 0 if it cannot
+   * be determined. Reads /proc/[processId]/status to obtain this information.
+   *
+   * @param processId the process id or <code>self</code> for the current
+   *        process.
+   */
+  public static long getResidentSetSizeInBytes(String processId) {
+    try {
+      File file = new File("/proc/" + processId + "/status");
+      for (String line : Files.readLines(file, US_ASCII)) {
+        if (line.startsWith("VmRSS:")) {
+          // The line looks like "VmRSS:     1234 kB".
+          Iterator<String> fields = WHITESPACE_SPLITTER.omitEmptyStrings().split(line).iterator();
+          fields.next();
+          return Long.parseLong(fields.next()) * 1024;
+        }
+      }
+      return 0L;
+    } catch (NumberFormatException | NoSuchElementException | IOException e) {
+      return 0L;
+    }
+  }
+
   /**
    * A snapshot of the resource usage of the current process at a point in time.
    */
@@ -24,6 +24,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 
 /**
  * This class implements the FileSystem interface using direct calls to the
@@ -35,6 +39,10 @@ abstract class AbstractFileSystem extends FileSystem {
   protected static final String ERR_PERMISSION_DENIED = " (Permission denied)";
   protected static final Profiler profiler = Profiler.instance();
 
+  // Size of the direct buffer that files are read into when digesting them. Files are not
+  // memory-mapped since a mapping keeps the file locked on Windows until it is garbage collected.
+  private static final int DIGEST_BUFFER_SIZE = 256 * 1024;
+
   @Override
   protected InputStream getInputStream(Path path) throws IOException {
     // This loop is a workaround for an apparent bug in FileInputStrean.open, which delegates
@@ -144,4 +152,33 @@ abstract class AbstractFileSystem extends FileSystem {
       }
     }
   }
+
+  @Override
+  protected byte[] getDigest(Path path) throws IOException {
+    DigestFunction function = getDigestFunction();
+    if (function == DigestFunction.MD5) {
+      return getMD5Digest(path);
+    }
+    String name = path.toString();
+    long startTime = Profiler.nanoTimeMaybe();
+    try (RandomAccessFile file = new RandomAccessFile(name, "r");
+        FileChannel channel = file.getChannel()) {
+      return function == DigestFunction.TREE_SHA256
+          ? ChunkedTreeHash.hash(channel)
+          : digest(channel, function.newMessageDigest());
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_DIGEST, name);
+    }
+  }
+
+  /** Feeds the remaining contents of {@code channel} to {@code digest} and returns the digest. */
+  protected static byte[] digest(FileChannel channel, MessageDigest digest) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+    while (channel.read(buffer) != -1) {
+      buffer.flip();
+      digest.update(buffer);
+      buffer.clear();
+    }
+    return digest.digest();
+  }
 }
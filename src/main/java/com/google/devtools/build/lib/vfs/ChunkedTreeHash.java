@@ -0,0 +1,172 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A two-level SHA-256 tree hash over fixed-size chunks of a file.
+ *
+ * <p>The digest of a file of {@code n} bytes is
+ * {@code SHA-256(n as 8 big-endian bytes || SHA-256(chunk_0) || ... || SHA-256(chunk_k))}, where
+ * every chunk but the last is exactly {@link #CHUNK_SIZE} bytes long. Since the chunk digests are
+ * independent of each other, they can be computed on several cores at once for a single large
+ * file, which a plain SHA-256 or MD5 digest does not allow.
+ */
+public final class ChunkedTreeHash {
+
+  /** Size of the chunks whose digests form the leaves of the tree. */
+  public static final int CHUNK_SIZE = 1 << 20;
+
+  /** Files with fewer chunks than this are always hashed by the calling thread. */
+  private static final int MIN_CHUNKS_FOR_PARALLEL_HASHING = 4;
+
+  private static final int DIGEST_LENGTH = 32;
+
+  private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  // Shared by all concurrent hashes, so that hashing many large files at once does not start more
+  // threads than there are cores. Threads are only created on demand.
+  private static final ExecutorService EXECUTOR =
+      Executors.newFixedThreadPool(
+          PARALLELISM,
+          new ThreadFactoryBuilder().setNameFormat("tree-hash-%d").setDaemon(true).build());
+
+  private ChunkedTreeHash() {}
+
+  /** Returns the length in bytes of the digests computed by this class. */
+  public static int getDigestLength() {
+    return DIGEST_LENGTH;
+  }
+
+  /** Computes the tree hash of the contents of {@code in} on the calling thread. */
+  public static byte[] hash(InputStream in) throws IOException {
+    MessageDigest leaf = newSha256();
+    List<byte[]> leaves = new ArrayList<>();
+    byte[] chunk = new byte[CHUNK_SIZE];
+    long length = 0;
+    int read;
+    while ((read = ByteStreams.read(in, chunk, 0, CHUNK_SIZE)) > 0) {
+      leaf.update(chunk, 0, read);
+      leaves.add(leaf.digest());
+      length += read;
+    }
+    return combine(length, leaves.toArray(new byte[0][]));
+  }
+
+  /**
+   * Computes the tree hash of the whole contents of {@code channel}. Chunks of large files are
+   * hashed in parallel, using positional reads so that the channel's position is not changed.
+   */
+  public static byte[] hash(final FileChannel channel) throws IOException {
+    final long length = channel.size();
+    int numChunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    final byte[][] leaves = new byte[numChunks][];
+    if (numChunks < MIN_CHUNKS_FOR_PARALLEL_HASHING || PARALLELISM == 1) {
+      hashChunks(channel, length, leaves, 0, numChunks);
+      return combine(length, leaves);
+    }
+
+    // Split the chunks into contiguous ranges, one per core, so that every thread reads
+    // sequentially.
+    int chunksPerTask = (numChunks + PARALLELISM - 1) / PARALLELISM;
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int start = 0; start < numChunks; start += chunksPerTask) {
+      final int from = start;
+      final int to = Math.min(numChunks, start + chunksPerTask);
+      futures.add(
+          EXECUTOR.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  hashChunks(channel, length, leaves, from, to);
+                  return null;
+                }
+              }));
+    }
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while hashing");
+    } catch (ExecutionException e) {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    return combine(length, leaves);
+  }
+
+  private static void hashChunks(
+      FileChannel channel, long length, byte[][] leaves, int from, int to) throws IOException {
+    MessageDigest leaf = newSha256();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    for (int i = from; i < to; i++) {
+      long position = (long) i * CHUNK_SIZE;
+      int chunkLength = (int) Math.min(CHUNK_SIZE, length - position);
+      buffer.clear();
+      buffer.limit(chunkLength);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("File shrank while it was being hashed");
+        }
+      }
+      buffer.flip();
+      leaf.update(buffer);
+      leaves[i] = leaf.digest();
+    }
+  }
+
+  private static byte[] combine(long length, byte[][] leaves) {
+    MessageDigest root = newSha256();
+    root.update(ByteBuffer.allocate(8).putLong(length).array());
+    for (byte[] leaf : leaves) {
+      root.update(leaf);
+    }
+    return root.digest();
+  }
+
+  private static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
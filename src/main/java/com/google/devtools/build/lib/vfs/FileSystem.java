@@ -16,11 +16,13 @@ package com.google.devtools.build.lib.vfs;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharStreams;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.Dirent.Type;
 
 import java.io.FileNotFoundException;
@@ -28,8 +30,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This interface models a file system using UNIX the naming scheme.
@@ -37,6 +42,82 @@ import java.util.List;
 @ThreadSafe
 public abstract class FileSystem {
 
+  /** The functions that may be used to compute the digests of file contents. */
+  public enum DigestFunction {
+    MD5("MD5"),
+    SHA1("SHA-1"),
+    SHA256("SHA-256"),
+    /** See {@link ChunkedTreeHash}. */
+    TREE_SHA256(null);
+
+    private final String algorithm;
+
+    private DigestFunction(String algorithm) {
+      this.algorithm = algorithm;
+    }
+
+    /** Returns the length in bytes of the digests computed by this function. */
+    public int getDigestLength() {
+      return this == TREE_SHA256
+          ? ChunkedTreeHash.getDigestLength()
+          : newMessageDigest().getDigestLength();
+    }
+
+    /**
+     * Returns a new {@link MessageDigest} for this function. Must not be called for {@link
+     * #TREE_SHA256}, which is not a plain message digest.
+     */
+    public MessageDigest newMessageDigest() {
+      Preconditions.checkState(algorithm != null, this);
+      try {
+        return MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(algorithm + " not available", e);
+      }
+    }
+
+    /** Computes the digest of the contents of {@code in}. */
+    public byte[] digest(InputStream in) throws IOException {
+      if (this == TREE_SHA256) {
+        return ChunkedTreeHash.hash(in);
+      }
+      MessageDigest digest = newMessageDigest();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+      return digest.digest();
+    }
+
+    /**
+     * Parses the value of the {@code bazel.DigestFunction} system property, which is
+     * case-insensitive.
+     */
+    public static DigestFunction fromString(String name) {
+      try {
+        return valueOf(name.toUpperCase(Locale.US));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown digest function '" + name + "'", e);
+      }
+    }
+  }
+
+  // Selected with --host_jvm_args=-Dbazel.DigestFunction=<function>. This is effectively final and
+  // should only be changed by tests.
+  private static DigestFunction digestFunction =
+      DigestFunction.fromString(System.getProperty("bazel.DigestFunction", "MD5"));
+
+  /** Returns the function used to compute the digests of file contents. */
+  public static DigestFunction getDigestFunction() {
+    return digestFunction;
+  }
+
+  @VisibleForTesting
+  public static void setDigestFunctionForTesting(DigestFunction function) {
+    digestFunction = Preconditions.checkNotNull(function);
+  }
+
   /**
    * An exception thrown when attempting to resolve an ordinary file as a symlink.
    */
@@ -263,6 +344,20 @@ public abstract class FileSystem {
     }.hash(Hashing.md5()).asBytes();
   }
 
+  /**
+   * Returns the digest of the file denoted by {@code path}, computed with {@link
+   * #getDigestFunction}. See {@link Path#getDigest} for specification.
+   */
+  protected byte[] getDigest(Path path) throws IOException {
+    DigestFunction function = getDigestFunction();
+    if (function == DigestFunction.MD5) {
+      return getMD5Digest(path);
+    }
+    try (InputStream in = getInputStream(path)) {
+      return function.digest(in);
+    }
+  }
+
   /**
    * Returns true if "path" denotes an existing symbolic link. See
    * {@link Path#isSymbolicLink} for specification.
@@ -484,6 +579,17 @@ public abstract class FileSystem {
   protected abstract void createSymbolicLink(Path linkPath, PathFragment targetFragment)
       throws IOException;
 
+  /**
+   * Creates a hard link. See {@link Path#createHardLink(Path)} for specification.
+   *
+   * <p>Note: the default implementation throws an {@link UnsupportedOperationException}; file
+   * systems backed by a native file system override it.
+   */
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    throw new UnsupportedOperationException(
+        "Attempted to create a hard link, but hard links are not supported.");
+  }
+
   /**
    * Returns the target of a symbolic link. See {@link Path#readSymbolicLink}
    * for specification.
@@ -21,6 +21,8 @@ import com.google.devtools.build.lib.unix.FileAccessException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -241,6 +243,20 @@ public class JavaIoFileSystem extends AbstractFileSystemWithCustomStat {
     return false;
   }
 
+  @Override
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    File file = getIoFile(linkPath);
+    try {
+      Files.createLink(file.toPath(), getIoFile(originalPath).toPath());
+    } catch (java.nio.file.FileAlreadyExistsException e) {
+      throw new IOException(linkPath + ERR_FILE_EXISTS);
+    } catch (java.nio.file.AccessDeniedException e) {
+      throw new IOException(linkPath + ERR_PERMISSION_DENIED);
+    } catch (java.nio.file.NoSuchFileException e) {
+      throw new FileNotFoundException(linkPath + ERR_NO_SUCH_FILE_OR_DIR);
+    }
+  }
+
   @Override
   protected void createSymbolicLink(Path linkPath, PathFragment targetFragment)
       throws IOException {
@@ -364,8 +380,9 @@ public class JavaIoFileSystem extends AbstractFileSystemWithCustomStat {
   protected byte[] getMD5Digest(Path path) throws IOException {
     String name = path.toString();
     long startTime = Profiler.nanoTimeMaybe();
-    try {
-      return super.getMD5Digest(path);
+    try (RandomAccessFile file = new RandomAccessFile(getIoFile(path), "r");
+        FileChannel channel = file.getChannel()) {
+      return digest(channel, DigestFunction.MD5.newMessageDigest());
     } finally {
       profiler.logSimpleTask(startTime, ProfilerTask.VFS_MD5, name);
     }
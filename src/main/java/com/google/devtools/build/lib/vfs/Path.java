@@ -797,6 +797,20 @@ public class Path implements Comparable<Path>, Serializable {
   public void createSymbolicLink(PathFragment target) throws IOException {
     fileSystem.createSymbolicLink(this, target);
   }
+
+  /**
+   * Creates a hard link with the name of the current path to the existing file
+   * "original", which must be on the same file system (and device) as this path.
+   *
+   * @throws IOException if the creation of the hard link was unsuccessful
+   *         for any reason
+   * @throws UnsupportedOperationException if the file system does not support
+   *         hard links
+   */
+  public void createHardLink(Path original) throws IOException {
+    checkSameFilesystem(original);
+    fileSystem.createHardLink(this, original);
+  }
   
   /**
    * Returns the target of the current path, which must be a symbolic link. The
@@ -982,6 +996,20 @@ public class Path implements Comparable<Path>, Serializable {
     return fileSystem.getMD5Digest(this);
   }
 
+  /**
+   * Returns the digest of the file denoted by the current path, following symbolic links, as
+   * computed by {@link FileSystem#getDigestFunction}.
+   *
+   * <p>This method runs in O(n) time where n is the length of the file, but certain
+   * implementations may be much faster than the worst case.
+   *
+   * @return a new array of {@link FileSystem.DigestFunction#getDigestLength} bytes
+   * @throws IOException if the digest could not be computed for any reason
+   */
+  public byte[] getDigest() throws IOException {
+    return fileSystem.getDigest(this);
+  }
+
   /**
    * Opens the file denoted by this path, following symbolic links, for reading,
    * and returns an input stream to it.
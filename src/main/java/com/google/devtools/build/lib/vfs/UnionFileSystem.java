@@ -189,6 +189,12 @@ public class UnionFileSystem extends FileSystem {
     return delegate.getMD5Digest(adjustPath(path, delegate));
   }
 
+  @Override
+  protected byte[] getDigest(Path path) throws IOException {
+    FileSystem delegate = getDelegate(path);
+    return delegate.getDigest(adjustPath(path, delegate));
+  }
+
   @Override
   protected boolean createDirectory(Path path) throws IOException {
     checkModifiable();
@@ -278,6 +284,17 @@ public class UnionFileSystem extends FileSystem {
     delegate.createSymbolicLink(adjustPath(linkPath, delegate), targetFragment);
   }
 
+  @Override
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    checkModifiable();
+    FileSystem delegate = getDelegate(linkPath);
+    if (getDelegate(originalPath) != delegate) {
+      throw new IOException(
+          "Cannot create a hard link across file systems: " + linkPath + " -> " + originalPath);
+    }
+    delegate.createHardLink(adjustPath(linkPath, delegate), adjustPath(originalPath, delegate));
+  }
+
   @Override
   protected boolean exists(Path path, boolean followSymlinks) {
     FileSystem delegate = getDelegate(path);
@@ -422,6 +422,11 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    NativePosixFiles.link(originalPath.toString(), linkPath.toString());
+  }
+
   private boolean isHardLinkAllowed(Path path) {
     for (Path root : rootsWithAllowedHardlinks) {
       if (path.startsWith(root)) {
@@ -0,0 +1,151 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.devtools.build.lib.util.PersistentStateFile.readBytes;
+import static com.google.devtools.build.lib.util.PersistentStateFile.readString;
+import static com.google.devtools.build.lib.util.PersistentStateFile.writeBytes;
+import static com.google.devtools.build.lib.util.PersistentStateFile.writeString;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.util.PersistentStateFile;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The kinds of workers that recent builds used, and how many instances of each they needed at
+ * once, persisted in a file so that the next server can start these workers ahead of time.
+ *
+ * <p>A key is forgotten once it has not been used for {@link #MAX_AGE_BUILDS} builds.
+ */
+final class RecentWorkerKeys {
+  static final int MAX_AGE_BUILDS = 5;
+
+  private static final long MAGIC = 0x776b6b6579730001L;
+
+  private static final class Entry {
+    final WorkerKey key;
+    final int instances;
+    final int age;
+
+    Entry(WorkerKey key, int instances, int age) {
+      this.key = key;
+      this.instances = instances;
+      this.age = age;
+    }
+  }
+
+  // Keyed by WorkerKey, which ignores the worker files hash; the entry holds the latest key.
+  private final Map<WorkerKey, Entry> entries = new LinkedHashMap<>();
+
+  /**
+   * Reads the keys from the given file. Returns an empty instance if the file does not exist.
+   * Working directories are resolved in the file system of the file.
+   *
+   * @throws IOException if the file cannot be read or is corrupted
+   */
+  static RecentWorkerKeys load(final Path file) throws IOException {
+    final RecentWorkerKeys keys = new RecentWorkerKeys();
+    PersistentStateFile.read(
+        file,
+        MAGIC,
+        new PersistentStateFile.Reader() {
+          @Override
+          public void read(DataInputStream in) throws IOException {
+            for (int count = in.readInt(); count > 0; count--) {
+              ImmutableList.Builder<String> args = ImmutableList.builder();
+              for (int n = in.readInt(); n > 0; n--) {
+                args.add(readString(in));
+              }
+              ImmutableMap.Builder<String, String> env = ImmutableMap.builder();
+              for (int n = in.readInt(); n > 0; n--) {
+                env.put(readString(in), readString(in));
+              }
+              Path workDir = file.getFileSystem().getPath(readString(in));
+              String mnemonic = readString(in);
+              HashCode hash = HashCode.fromBytes(readBytes(in));
+              boolean multiplex = in.readBoolean();
+              WorkerKey key =
+                  new WorkerKey(args.build(), env.build(), workDir, mnemonic, hash, multiplex);
+              keys.entries.put(key, new Entry(key, in.readInt(), in.readInt()));
+            }
+          }
+        });
+    return keys;
+  }
+
+  /** Writes the keys to the given file, replacing it atomically. */
+  void save(Path file) throws IOException {
+    PersistentStateFile.write(
+        file,
+        MAGIC,
+        new PersistentStateFile.Writer() {
+          @Override
+          public void write(DataOutputStream out) throws IOException {
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+              WorkerKey key = entry.key;
+              out.writeInt(key.getArgs().size());
+              for (String arg : key.getArgs()) {
+                writeString(out, arg);
+              }
+              out.writeInt(key.getEnv().size());
+              for (Map.Entry<String, String> var : key.getEnv().entrySet()) {
+                writeString(out, var.getKey());
+                writeString(out, var.getValue());
+              }
+              writeString(out, key.getWorkDir().getPathString());
+              writeString(out, key.getMnemonic());
+              writeBytes(out, key.getWorkerFilesHash().asBytes());
+              out.writeBoolean(key.isMultiplex());
+              out.writeInt(entry.instances);
+              out.writeInt(entry.age);
+            }
+          }
+        });
+  }
+
+  /**
+   * Records a build that used the given keys with the given number of instances at once. Keys that
+   * the build did not use age by one build.
+   */
+  void recordBuild(Map<WorkerKey, Integer> usedInstances) {
+    Map<WorkerKey, Entry> previous = new LinkedHashMap<>(entries);
+    entries.clear();
+    for (Map.Entry<WorkerKey, Integer> used : usedInstances.entrySet()) {
+      entries.put(used.getKey(), new Entry(used.getKey(), used.getValue(), 0));
+    }
+    for (Entry entry : previous.values()) {
+      if (!entries.containsKey(entry.key) && entry.age + 1 < MAX_AGE_BUILDS) {
+        entries.put(entry.key, new Entry(entry.key, entry.instances, entry.age + 1));
+      }
+    }
+  }
+
+  /** Returns the recently used keys and how many instances of each were needed at once. */
+  ImmutableMap<WorkerKey, Integer> getInstances() {
+    ImmutableMap.Builder<WorkerKey, Integer> instances = ImmutableMap.builder();
+    for (Entry entry : entries.values()) {
+      instances.put(entry.key, entry.instances);
+    }
+    return instances.build();
+  }
+}
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -136,6 +137,26 @@ final class Worker {
     return this.workerId;
   }
 
+  /**
+   * Returns the operating system's id of the worker process, or -1 if it cannot be determined.
+   */
+  long getProcessId() {
+    try {
+      // Process.pid() only exists from Java 9 on; before that, the Unix implementation keeps the
+      // id in a private field.
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      // Fall through.
+    }
+    try {
+      Field pid = process.getClass().getDeclaredField("pid");
+      pid.setAccessible(true);
+      return pid.getInt(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+
   HashCode getWorkerFilesHash() {
     return workerFilesHash;
   }
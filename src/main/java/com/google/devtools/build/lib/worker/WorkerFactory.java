@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.vfs.Path;
@@ -21,11 +22,19 @@ import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Factory used by the pool to create / destroy / validate worker processes.
  */
 final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker> {
   private final Path logDir;
+  private final Map<Worker, WorkerKey> workers = new ConcurrentHashMap<>();
+  // The keys of the workers destroyed by the current thread, while it runs trackDestroyed.
+  private final ThreadLocal<List<WorkerKey>> destroyedKeys = new ThreadLocal<>();
   private Reporter reporter;
   private boolean verbose;
 
@@ -44,7 +53,29 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
 
   @Override
   public Worker create(WorkerKey key) throws Exception {
-    return Worker.create(key, logDir, reporter, verbose);
+    Worker worker = Worker.create(key, logDir, reporter, verbose);
+    workers.put(worker, key);
+    return worker;
+  }
+
+  /** Returns the workers that this factory created and that have not been destroyed yet. */
+  ImmutableMap<Worker, WorkerKey> getWorkers() {
+    return ImmutableMap.copyOf(workers);
+  }
+
+  /**
+   * Runs the given operation and returns the keys of the workers that it destroyed. Workers that
+   * other threads destroy meanwhile are not included.
+   */
+  List<WorkerKey> trackDestroyed(Runnable operation) {
+    List<WorkerKey> destroyed = new ArrayList<>();
+    destroyedKeys.set(destroyed);
+    try {
+      operation.run();
+    } finally {
+      destroyedKeys.remove();
+    }
+    return destroyed;
   }
 
   /**
@@ -69,6 +100,11 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
                   + p.getObject().getWorkerId()
                   + ")."));
     }
+    workers.remove(p.getObject());
+    List<WorkerKey> destroyed = destroyedKeys.get();
+    if (destroyed != null) {
+      destroyed.add(key);
+    }
     p.getObject().destroy();
   }
 
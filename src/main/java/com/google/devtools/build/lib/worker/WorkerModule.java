@@ -14,7 +14,9 @@
 package com.google.devtools.build.lib.worker;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.ActionContextConsumer;
 import com.google.devtools.build.lib.actions.ActionContextProvider;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
@@ -30,6 +32,9 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A module that adds the WorkerActionContextProvider to the available action context providers.
@@ -42,6 +47,7 @@ public class WorkerModule extends BlazeModule {
   private WorkerFactory workerFactory;
   private WorkerPool workerPool;
   private WorkerPoolConfig workerPoolConfig;
+  private RecentWorkerKeys recentWorkerKeys;
 
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
@@ -98,6 +104,55 @@ public class WorkerModule extends BlazeModule {
       workerPoolConfig = newConfig;
       workerPool = new WorkerPool(workerFactory, workerPoolConfig);
     }
+    workerPool.resetStats();
+
+    if (options.workerPrefork) {
+      prefork();
+    }
+  }
+
+  private Path getRecentWorkerKeysFile() {
+    return env.getOutputBase().getRelative("worker-keys");
+  }
+
+  /**
+   * Starts the workers that recent builds used in the background, so that they are ready by the
+   * time the execution phase needs them. Does nothing for workers that are already running.
+   */
+  private void prefork() {
+    if (recentWorkerKeys == null) {
+      try {
+        recentWorkerKeys = RecentWorkerKeys.load(getRecentWorkerKeysFile());
+      } catch (IOException e) {
+        env.getReporter().handle(Event.warn("Could not read recent worker keys: " + e));
+        recentWorkerKeys = new RecentWorkerKeys();
+      }
+    }
+    ImmutableMap<WorkerKey, Integer> instances = recentWorkerKeys.getInstances();
+    if (instances.isEmpty()) {
+      return;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            instances.size(),
+            new ThreadFactoryBuilder().setNameFormat("worker-prefork-%d").setDaemon(true).build());
+    final WorkerPool pool = workerPool;
+    for (final Map.Entry<WorkerKey, Integer> entry : instances.entrySet()) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                pool.prefork(entry.getKey(), entry.getValue());
+              } catch (IOException | RuntimeException e) {
+                // The worker will be started on demand instead, which reports any problems.
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          });
+    }
+    executor.shutdown();
   }
 
   private WorkerPoolConfig createWorkerPoolConfig(WorkerOptions options) {
@@ -112,6 +167,15 @@ public class WorkerModule extends BlazeModule {
     config.setMaxTotalPerKey(options.workerMaxInstances);
     config.setMinIdlePerKey(options.workerMaxInstances);
 
+    // Grow the number of workers for keys whose actions queue for them.
+    config.setAdaptiveMaxTotalPerKey(options.workerAdaptiveMaxInstances);
+
+    // Shut down idle workers when all workers together use too much memory.
+    config.setMemoryLimitBytes(options.workerMemoryLimitMb * 1024L * 1024L);
+
+    // Multiplex workers run a single process per key, which takes this many requests at once.
+    config.setMaxMultiplexRequestsPerKey(options.workerMaxMultiplexRequests);
+
     // Don't limit the total number of worker processes, as otherwise the pool might be full of
     // e.g. Java workers and could never accommodate another request for a different kind of
     // worker.
@@ -148,6 +212,22 @@ public class WorkerModule extends BlazeModule {
 
   @Subscribe
   public void buildComplete(BuildCompleteEvent event) {
+    if (workerPool != null) {
+      for (String line : workerPool.getStatsSummary()) {
+        env.getReporter().handle(Event.info(line));
+      }
+      if (recentWorkerKeys != null
+          && buildRequest != null
+          && buildRequest.getOptions(WorkerOptions.class) != null
+          && buildRequest.getOptions(WorkerOptions.class).workerPrefork) {
+        recentWorkerKeys.recordBuild(workerPool.getUsedInstances());
+        try {
+          recentWorkerKeys.save(getRecentWorkerKeysFile());
+        } catch (IOException e) {
+          env.getReporter().handle(Event.warn("Could not save recent worker keys: " + e));
+        }
+      }
+    }
     if (buildRequest != null
         && buildRequest.getOptions(WorkerOptions.class) != null
         && buildRequest.getOptions(WorkerOptions.class).workerQuitAfterBuild) {
@@ -0,0 +1,142 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends concurrent requests to a single multiplex worker process.
+ *
+ * <p>Each request is tagged with a fresh request id. A reader thread reads the responses in
+ * whatever order the worker sends them and hands each one to the thread waiting for it. If the
+ * worker's output ends or cannot be parsed, all pending requests fail and the multiplexer is no
+ * longer usable.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  private final Worker worker;
+  private final AtomicInteger nextRequestId = new AtomicInteger(1);
+  private final Map<Integer, SettableFuture<WorkResponse>> pending = new ConcurrentHashMap<>();
+  private final Thread reader;
+  private volatile IOException failure;
+
+  WorkerMultiplexer(Worker worker) {
+    this.worker = Preconditions.checkNotNull(worker);
+    this.reader =
+        new Thread("worker-" + worker.getWorkerId() + "-responses") {
+          @Override
+          public void run() {
+            readResponses();
+          }
+        };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readResponses() {
+    try {
+      while (true) {
+        WorkResponse response = WorkResponse.parseDelimitedFrom(worker.getInputStream());
+        if (response == null) {
+          throw new IOException("Worker process closed its output");
+        }
+        if (response.getRequestId() == 0) {
+          throw new IOException("Worker process sent a response without a request id");
+        }
+        SettableFuture<WorkResponse> future = pending.remove(response.getRequestId());
+        // Responses to requests that were given up on are dropped.
+        if (future != null) {
+          future.set(response);
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void fail(IOException e) {
+    if (failure == null) {
+      failure = e;
+    }
+    for (Integer requestId : pending.keySet()) {
+      SettableFuture<WorkResponse> future = pending.remove(requestId);
+      if (future != null) {
+        future.setException(failure);
+      }
+    }
+  }
+
+  /**
+   * Sends the request to the worker and waits for the response to it. Other threads may send
+   * requests meanwhile.
+   *
+   * @throws IOException if the worker failed before it responded; this multiplexer should then be
+   *     discarded
+   */
+  WorkResponse execute(WorkRequest request) throws IOException, InterruptedException {
+    int requestId = nextRequestId.getAndIncrement();
+    SettableFuture<WorkResponse> future = SettableFuture.create();
+    pending.put(requestId, future);
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+      OutputStream out = worker.getOutputStream();
+      synchronized (out) {
+        request.toBuilder().setRequestId(requestId).build().writeDelimitedTo(out);
+        out.flush();
+      }
+      return future.get();
+    } catch (IOException e) {
+      fail(e);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pending.remove(requestId);
+    }
+  }
+
+  /** Returns the number of requests sent to the worker that it has not responded to yet. */
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  Worker getWorker() {
+    return worker;
+  }
+
+  boolean isAlive() {
+    return failure == null && worker.isAlive();
+  }
+
+  /** Fails all pending requests. Must be called once the worker process has been destroyed. */
+  void abandon() {
+    fail(new IOException("Worker process was destroyed"));
+  }
+}
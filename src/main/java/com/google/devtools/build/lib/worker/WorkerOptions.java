@@ -48,6 +48,50 @@ public class WorkerOptions extends OptionsBase {
   )
   public int workerMaxInstances;
 
+  @Option(
+    name = "experimental_worker_adaptive_max_instances",
+    defaultValue = "0",
+    category = "strategy",
+    help =
+        "If larger than --worker_max_instances, the number of instances of a worker process may "
+            + "grow up to this limit while actions have to wait for a worker of that kind."
+  )
+  public int workerAdaptiveMaxInstances;
+
+  @Option(
+    name = "experimental_worker_memory_limit_mb",
+    defaultValue = "0",
+    category = "strategy",
+    help =
+        "If positive, idle worker processes are shut down, least recently used first, while the "
+            + "resident memory of all idle worker processes together exceeds this many megabytes. "
+            + "Busy and multiplex workers cannot be shut down, so they do not count."
+  )
+  public int workerMemoryLimitMb;
+
+  @Option(
+    name = "worker_max_multiplex_requests",
+    defaultValue = "8",
+    category = "strategy",
+    help =
+        "How many requests may be sent at once to a multiplex worker process if you use the "
+            + "'worker' strategy. Actions opt into multiplex workers with the "
+            + "'supports-multiplex-workers' execution requirement; a single process is then "
+            + "started per kind of worker."
+  )
+  public int workerMaxMultiplexRequests;
+
+  @Option(
+    name = "experimental_worker_prefork",
+    defaultValue = "false",
+    category = "strategy",
+    help =
+        "If enabled, the kinds of workers used by recent builds are remembered in the output "
+            + "base, and started in the background at the beginning of a build while loading and "
+            + "analysis are still running."
+  )
+  public boolean workerPrefork;
+
   @Option(
     name = "worker_max_retries",
     defaultValue = "3",
@@ -14,12 +14,25 @@
 package com.google.devtools.build.lib.worker;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.util.ResourceUsage;
 
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -27,22 +40,155 @@ import javax.annotation.concurrent.ThreadSafe;
  *
  * <p>This is useful when the worker cannot handle multiple parallel requests on its own and we need
  * to pre-fork a couple of them instead.
+ *
+ * <p>Multiplex workers can handle parallel requests, so the pool keeps a single process per
+ * multiplex {@link WorkerKey} instead, and bounds the number of requests in flight to it.
+ *
+ * <p>The number of workers per key starts out at the configured maximum. If adaptive sizing is
+ * enabled, the pool of a key grows by one worker whenever an action had to wait for a worker of
+ * that key for longer than a threshold, up to the adaptive maximum. If the idle worker processes
+ * together use more memory than the configured limit when a worker is returned, the least recently
+ * used of them are destroyed until they fit again.
  */
 @ThreadSafe
 final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
 
-  public WorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig config) {
+  /** The multiplex worker process for one key, and the permits for requests in flight to it. */
+  private static final class MultiplexSlot {
+    final Semaphore permits;
+    @GuardedBy("this") WorkerMultiplexer multiplexer;
+
+    MultiplexSlot(int maxRequests) {
+      permits = new Semaphore(maxRequests, /*fair=*/true);
+    }
+  }
+
+  /** The current instance limit of a non-multiplex key, and what the pool observed for it. */
+  private static final class KeyStats {
+    final Semaphore permits;
+    @GuardedBy("this") int instanceLimit;
+    @GuardedBy("this") long startNanos;
+    @GuardedBy("this") int borrows;
+    @GuardedBy("this") long totalWaitNanos;
+    @GuardedBy("this") long maxWaitNanos;
+    @GuardedBy("this") long busyNanos;
+    @GuardedBy("this") int evictions;
+    @GuardedBy("this") int inUse;
+    @GuardedBy("this") int maxInUse;
+
+    KeyStats(int instanceLimit) {
+      this.permits = new Semaphore(instanceLimit, /*fair=*/true);
+      this.instanceLimit = instanceLimit;
+      reset();
+    }
+
+    synchronized void reset() {
+      startNanos = System.nanoTime();
+      borrows = 0;
+      totalWaitNanos = 0;
+      maxWaitNanos = 0;
+      busyNanos = 0;
+      evictions = 0;
+      maxInUse = inUse;
+    }
+  }
+
+  private final WorkerFactory factory;
+  private final int maxMultiplexRequestsPerKey;
+  private final int initialInstancesPerKey;
+  private final int adaptiveMaxInstancesPerKey;
+  private final long queueWaitThresholdNanos;
+  private final long memoryLimitBytes;
+  private final ConcurrentMap<WorkerKey, MultiplexSlot> multiplexSlots =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<WorkerKey, KeyStats> keyStats = new ConcurrentHashMap<>();
+  private final Map<Worker, Long> borrowStartNanos = new ConcurrentHashMap<>();
+  // The keys used since the last reset. The values are the latest instances, which carry the
+  // latest worker files hash.
+  private final Map<WorkerKey, WorkerKey> usedKeys = new ConcurrentHashMap<>();
+  private final Object memoryEvictionLock = new Object();
+  // Held for reading while prefork starts workers and for writing while the pool closes, so that
+  // no worker that prefork starts outlives the pool.
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  @GuardedBy("closeLock") private boolean closed;
+
+  public WorkerPool(WorkerFactory factory, WorkerPoolConfig config) {
     super(factory, config);
+    this.factory = factory;
+    this.maxMultiplexRequestsPerKey = config.getMaxMultiplexRequestsPerKey();
+    this.initialInstancesPerKey =
+        config.getMaxTotalPerKey() < 0 ? Integer.MAX_VALUE : config.getMaxTotalPerKey();
+    this.adaptiveMaxInstancesPerKey =
+        Math.max(initialInstancesPerKey, config.getAdaptiveMaxTotalPerKey());
+    this.queueWaitThresholdNanos =
+        TimeUnit.MILLISECONDS.toNanos(config.getQueueWaitThresholdMillis());
+    this.memoryLimitBytes = config.getMemoryLimitBytes();
+    if (adaptiveMaxInstancesPerKey > initialInstancesPerKey) {
+      // The limit per key is enforced by KeyStats.permits; the underlying pool only needs to have
+      // room for the largest size that a key may grow to.
+      setMaxTotalPerKey(adaptiveMaxInstancesPerKey);
+      setMaxIdlePerKey(Math.max(getMaxIdlePerKey(), adaptiveMaxInstancesPerKey));
+    }
+  }
+
+  private KeyStats getStats(WorkerKey key) {
+    KeyStats stats = keyStats.get(key);
+    if (stats == null) {
+      KeyStats newStats = new KeyStats(initialInstancesPerKey);
+      stats = keyStats.putIfAbsent(key, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
   }
 
   @Override
   public Worker borrowObject(WorkerKey key) throws IOException, InterruptedException {
+    KeyStats stats = getStats(key);
+    long waitNanos = 0;
+    if (!stats.permits.tryAcquire()) {
+      long start = System.nanoTime();
+      stats.permits.acquire();
+      waitNanos = System.nanoTime() - start;
+    }
+    usedKeys.put(key, key);
+    synchronized (stats) {
+      stats.borrows++;
+      stats.inUse++;
+      stats.maxInUse = Math.max(stats.maxInUse, stats.inUse);
+      stats.totalWaitNanos += waitNanos;
+      stats.maxWaitNanos = Math.max(stats.maxWaitNanos, waitNanos);
+      if (waitNanos > queueWaitThresholdNanos
+          && stats.instanceLimit < adaptiveMaxInstancesPerKey) {
+        stats.instanceLimit++;
+        stats.permits.release();
+      }
+    }
+
+    Worker worker;
     try {
-      return super.borrowObject(key);
+      worker = super.borrowObject(key);
     } catch (Throwable t) {
+      synchronized (stats) {
+        stats.inUse--;
+      }
+      stats.permits.release();
       Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
       throw new RuntimeException("unexpected", t);
     }
+    borrowStartNanos.put(worker, System.nanoTime());
+    return worker;
+  }
+
+  @Override
+  public void returnObject(WorkerKey key, Worker obj) {
+    try {
+      super.returnObject(key, obj);
+    } finally {
+      finishBorrow(key, obj);
+    }
+    evictIdleWorkersOverMemoryLimit();
   }
 
   @Override
@@ -52,6 +198,289 @@ final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
     } catch (Throwable t) {
       Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
       throw new RuntimeException("unexpected", t);
+    } finally {
+      finishBorrow(key, obj);
+    }
+  }
+
+  private void finishBorrow(WorkerKey key, Worker worker) {
+    Long start = borrowStartNanos.remove(worker);
+    if (start == null) {
+      return;
+    }
+    KeyStats stats = getStats(key);
+    synchronized (stats) {
+      stats.busyNanos += System.nanoTime() - start;
+      stats.inUse--;
+    }
+    stats.permits.release();
+  }
+
+  /**
+   * Destroys the least recently used idle workers of all keys until the idle worker processes
+   * together fit into the memory limit again, or no idle workers are left. Busy and multiplex
+   * workers are not counted, since they cannot be evicted.
+   */
+  private void evictIdleWorkersOverMemoryLimit() {
+    if (memoryLimitBytes <= 0) {
+      return;
+    }
+    synchronized (memoryEvictionLock) {
+      while (getNumIdle() > 0) {
+        if (getResidentSetSize(getIdleWorkers()) <= memoryLimitBytes) {
+          return;
+        }
+        // Destroys the idle workers that were returned longest ago; at least one, and about 15%
+        // of them if there are many. Only those count as evicted, not the workers that other
+        // threads invalidate meanwhile.
+        List<WorkerKey> evicted =
+            factory.trackDestroyed(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    clearOldest();
+                  }
+                });
+        for (WorkerKey key : evicted) {
+          KeyStats stats = keyStats.get(key);
+          if (stats != null) {
+            synchronized (stats) {
+              stats.evictions++;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns the non-multiplex workers that are not borrowed at the moment. */
+  private List<Worker> getIdleWorkers() {
+    List<Worker> idle = new ArrayList<>();
+    for (Map.Entry<Worker, WorkerKey> entry : factory.getWorkers().entrySet()) {
+      if (!entry.getValue().isMultiplex() && !borrowStartNanos.containsKey(entry.getKey())) {
+        idle.add(entry.getKey());
+      }
+    }
+    return idle;
+  }
+
+  private static long getResidentSetSize(Iterable<Worker> workers) {
+    long bytes = 0;
+    for (Worker worker : workers) {
+      long pid = worker.getProcessId();
+      if (pid > 0) {
+        bytes += ResourceUsage.getResidentSetSizeInBytes(Long.toString(pid));
+      }
+    }
+    return bytes;
+  }
+
+  /** Returns how many workers of a non-multiplex key may currently be in use at once. */
+  int getInstanceLimit(WorkerKey key) {
+    KeyStats stats = getStats(key);
+    synchronized (stats) {
+      return stats.instanceLimit;
+    }
+  }
+
+  /** Returns how many idle workers of a key were destroyed to save memory since the last reset. */
+  int getEvictionCount(WorkerKey key) {
+    KeyStats stats = getStats(key);
+    synchronized (stats) {
+      return stats.evictions;
+    }
+  }
+
+  /** Starts collecting the statistics of {@link #getStatsSummary} anew. */
+  void resetStats() {
+    usedKeys.clear();
+    for (KeyStats stats : keyStats.values()) {
+      stats.reset();
+    }
+  }
+
+  /**
+   * Returns the keys used since the last reset, with the largest number of their workers that
+   * were in use at once. That number is always 1 for multiplex keys.
+   */
+  ImmutableMap<WorkerKey, Integer> getUsedInstances() {
+    ImmutableMap.Builder<WorkerKey, Integer> instances = ImmutableMap.builder();
+    for (WorkerKey key : usedKeys.values()) {
+      if (key.isMultiplex()) {
+        instances.put(key, 1);
+      } else {
+        KeyStats stats = getStats(key);
+        synchronized (stats) {
+          instances.put(key, Math.max(1, stats.maxInUse));
+        }
+      }
+    }
+    return instances.build();
+  }
+
+  /**
+   * Starts workers for the given key until it has the given number of them, or as many as its
+   * current limit allows. The new workers are idle, so that the next actions that need them don't
+   * have to wait for them to start.
+   */
+  void prefork(WorkerKey key, int instances) throws IOException, InterruptedException {
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      if (key.isMultiplex()) {
+        MultiplexSlot slot = getSlot(key);
+        synchronized (slot) {
+          if (slot.multiplexer == null) {
+            slot.multiplexer = new WorkerMultiplexer(factory.create(key));
+          }
+        }
+        return;
+      }
+      int missing =
+          Math.min(instances, getInstanceLimit(key)) - (getNumActive(key) + getNumIdle(key));
+      for (int i = 0; i < missing; i++) {
+        addObject(key);
+      }
+    } catch (Throwable t) {
+      Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
+      throw new RuntimeException("unexpected", t);
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns one line for every non-multiplex key that was used since the last reset, with its
+   * utilization, the time that actions waited for its workers, and how many of them were evicted.
+   */
+  ImmutableList<String> getStatsSummary() {
+    ImmutableList.Builder<String> summary = ImmutableList.builder();
+    for (Map.Entry<WorkerKey, KeyStats> entry : keyStats.entrySet()) {
+      WorkerKey key = entry.getKey();
+      KeyStats stats = entry.getValue();
+      synchronized (stats) {
+        if (stats.borrows == 0) {
+          continue;
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - stats.startNanos);
+        summary.add(
+            String.format(
+                "%s workers: %d actions on %d instances (limit %d), %.0f%% busy, "
+                    + "%.1f ms average and %.1f ms maximum queue wait, %d evicted",
+                key.getMnemonic(),
+                stats.borrows,
+                getNumActive(key) + getNumIdle(key),
+                stats.instanceLimit,
+                100.0 * stats.busyNanos / elapsedNanos / stats.instanceLimit,
+                stats.totalWaitNanos / 1e6 / stats.borrows,
+                stats.maxWaitNanos / 1e6,
+                stats.evictions));
+      }
+    }
+    return summary.build();
+  }
+
+  private MultiplexSlot getSlot(WorkerKey key) {
+    MultiplexSlot slot = multiplexSlots.get(key);
+    if (slot == null) {
+      MultiplexSlot newSlot = new MultiplexSlot(maxMultiplexRequestsPerKey);
+      slot = multiplexSlots.putIfAbsent(key, newSlot);
+      if (slot == null) {
+        slot = newSlot;
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the multiplexer for the worker process of the given multiplex key, starting a new
+   * process if there is none or the old one is no longer valid. Blocks while the maximum number of
+   * requests is in flight for this key. Every call must be followed by a call to
+   * {@link #returnMultiplexer} or {@link #invalidateMultiplexer}.
+   */
+  WorkerMultiplexer borrowMultiplexer(WorkerKey key) throws IOException, InterruptedException {
+    Preconditions.checkArgument(key.isMultiplex(), key);
+    usedKeys.put(key, key);
+    MultiplexSlot slot = getSlot(key);
+    slot.permits.acquire();
+    try {
+      synchronized (slot) {
+        if (slot.multiplexer != null
+            && !(slot.multiplexer.isAlive()
+                && factory.validateObject(key, factory.wrap(slot.multiplexer.getWorker())))) {
+          destroy(key, slot.multiplexer);
+          slot.multiplexer = null;
+        }
+        if (slot.multiplexer == null) {
+          slot.multiplexer = new WorkerMultiplexer(factory.create(key));
+        }
+        return slot.multiplexer;
+      }
+    } catch (Throwable t) {
+      slot.permits.release();
+      Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
+      throw new RuntimeException("unexpected", t);
+    }
+  }
+
+  /** Marks a request to the given multiplexer as finished. */
+  void returnMultiplexer(WorkerKey key, WorkerMultiplexer multiplexer) {
+    getSlot(key).permits.release();
+  }
+
+  /**
+   * Marks a request to the given multiplexer as failed, and destroys its worker process. Other
+   * requests still in flight to it fail as well.
+   */
+  void invalidateMultiplexer(WorkerKey key, WorkerMultiplexer multiplexer) {
+    MultiplexSlot slot = getSlot(key);
+    try {
+      synchronized (slot) {
+        if (slot.multiplexer == multiplexer) {
+          destroy(key, multiplexer);
+          slot.multiplexer = null;
+        }
+      }
+    } finally {
+      slot.permits.release();
+    }
+  }
+
+  /** Returns the number of requests in flight to the worker process of a multiplex key. */
+  int getNumMultiplexActive(WorkerKey key) {
+    MultiplexSlot slot = multiplexSlots.get(key);
+    return slot == null ? 0 : maxMultiplexRequestsPerKey - slot.permits.availablePermits();
+  }
+
+  private void destroy(WorkerKey key, WorkerMultiplexer multiplexer) {
+    try {
+      factory.destroyObject(key, factory.wrap(multiplexer.getWorker()));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      multiplexer.abandon();
+    }
+  }
+
+  @Override
+  public void close() {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    super.close();
+    for (WorkerKey key : multiplexSlots.keySet()) {
+      MultiplexSlot slot = multiplexSlots.get(key);
+      synchronized (slot) {
+        if (slot.multiplexer != null) {
+          destroy(key, slot.multiplexer);
+          slot.multiplexer = null;
+        }
+      }
     }
   }
 }
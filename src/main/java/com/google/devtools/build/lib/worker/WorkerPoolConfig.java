@@ -22,6 +22,57 @@ import java.util.Objects;
  * and {@code hashCode()}.
  */
 final class WorkerPoolConfig extends GenericKeyedObjectPoolConfig {
+  private int maxMultiplexRequestsPerKey = 1;
+  private int adaptiveMaxTotalPerKey = 0;
+  private long queueWaitThresholdMillis = 100;
+  private long memoryLimitBytes = 0;
+
+  /**
+   * Returns how many requests may be in flight at once in the worker process of a multiplex
+   * {@link WorkerKey}.
+   */
+  int getMaxMultiplexRequestsPerKey() {
+    return maxMultiplexRequestsPerKey;
+  }
+
+  void setMaxMultiplexRequestsPerKey(int maxMultiplexRequestsPerKey) {
+    this.maxMultiplexRequestsPerKey = maxMultiplexRequestsPerKey;
+  }
+
+  /**
+   * Returns how many workers the pool of a single {@link WorkerKey} may grow to when actions queue
+   * for its workers. Each pool starts out with {@link #getMaxTotalPerKey} workers. If this is not
+   * larger than that, pools do not grow.
+   */
+  int getAdaptiveMaxTotalPerKey() {
+    return adaptiveMaxTotalPerKey;
+  }
+
+  void setAdaptiveMaxTotalPerKey(int adaptiveMaxTotalPerKey) {
+    this.adaptiveMaxTotalPerKey = adaptiveMaxTotalPerKey;
+  }
+
+  /** Returns how long an action has to wait for a worker before the pool of its key grows. */
+  long getQueueWaitThresholdMillis() {
+    return queueWaitThresholdMillis;
+  }
+
+  void setQueueWaitThresholdMillis(long queueWaitThresholdMillis) {
+    this.queueWaitThresholdMillis = queueWaitThresholdMillis;
+  }
+
+  /**
+   * Returns the resident set size that all worker processes together may use before idle workers
+   * are evicted, or 0 if there is no limit.
+   */
+  long getMemoryLimitBytes() {
+    return memoryLimitBytes;
+  }
+
+  void setMemoryLimitBytes(long memoryLimitBytes) {
+    this.memoryLimitBytes = memoryLimitBytes;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -48,6 +99,10 @@ final class WorkerPoolConfig extends GenericKeyedObjectPoolConfig {
         && getMaxTotal() == that.getMaxTotal()
         && getMaxTotalPerKey() == that.getMaxTotalPerKey()
         && getMinIdlePerKey() == that.getMinIdlePerKey()
+        && getMaxMultiplexRequestsPerKey() == that.getMaxMultiplexRequestsPerKey()
+        && getAdaptiveMaxTotalPerKey() == that.getAdaptiveMaxTotalPerKey()
+        && getQueueWaitThresholdMillis() == that.getQueueWaitThresholdMillis()
+        && getMemoryLimitBytes() == that.getMemoryLimitBytes()
         && Objects.equals(getEvictionPolicyClassName(), that.getEvictionPolicyClassName())
         && Objects.equals(getJmxNameBase(), that.getJmxNameBase())
         && Objects.equals(getJmxNamePrefix(), that.getJmxNamePrefix());
@@ -73,6 +128,10 @@ final class WorkerPoolConfig extends GenericKeyedObjectPoolConfig {
         getMaxTotal(),
         getMaxTotalPerKey(),
         getMinIdlePerKey(),
+        getMaxMultiplexRequestsPerKey(),
+        getAdaptiveMaxTotalPerKey(),
+        getQueueWaitThresholdMillis(),
+        getMemoryLimitBytes(),
         getEvictionPolicyClassName(),
         getJmxNameBase(),
         getJmxNamePrefix());
@@ -66,6 +66,12 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
   public static final String REASON_NO_TOOLS =
       "Not using worker strategy, because the action has no tools";
 
+  /**
+   * The execution requirement that marks a spawn whose worker process can handle concurrent
+   * requests, each tagged with a request id.
+   */
+  public static final String SUPPORTS_MULTIPLEX_WORKERS = "supports-multiplex-workers";
+
   private final Path execRoot;
   private final WorkerPool workers;
   private final WorkerOptions options;
@@ -139,7 +145,9 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
       ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
 
       HashCode workerFilesHash = combineActionInputHashes(spawn.getToolFiles(), inputFileCache);
-      WorkerKey key = new WorkerKey(args, env, execRoot, spawn.getMnemonic(), workerFilesHash);
+      boolean multiplex = spawn.getExecutionInfo().containsKey(SUPPORTS_MULTIPLEX_WORKERS);
+      WorkerKey key =
+          new WorkerKey(args, env, execRoot, spawn.getMnemonic(), workerFilesHash, multiplex);
 
       WorkRequest.Builder requestBuilder = WorkRequest.newBuilder();
       expandArgument(requestBuilder, Iterables.getLast(spawn.getArguments()));
@@ -161,7 +169,10 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
             .build();
       }
 
-      WorkResponse response = execInWorker(eventHandler, key, requestBuilder.build(), maxRetries);
+      WorkResponse response =
+          multiplex
+              ? execInMultiplexWorker(eventHandler, key, requestBuilder.build(), maxRetries)
+              : execInWorker(eventHandler, key, requestBuilder.build(), maxRetries);
 
       outErr.getErrorStream().write(response.getOutputBytes().toByteArray());
 
@@ -260,6 +271,35 @@ public final class WorkerSpawnStrategy implements SpawnActionContext {
     return response;
   }
 
+  private WorkResponse execInMultiplexWorker(
+      EventHandler eventHandler, WorkerKey key, WorkRequest request, int retriesLeft)
+      throws IOException, InterruptedException {
+    WorkerMultiplexer multiplexer = workers.borrowMultiplexer(key);
+    boolean invalidated = false;
+    try {
+      // If this thread is interrupted, other requests may still be in flight to the same process,
+      // so it is left running.
+      return multiplexer.execute(request);
+    } catch (IOException e) {
+      invalidated = true;
+      workers.invalidateMultiplexer(key, multiplexer);
+      if (retriesLeft > 0) {
+        eventHandler.handle(
+            Event.warn(
+                key.getMnemonic()
+                    + " multiplex worker failed ("
+                    + e
+                    + "), invalidating and retrying with new worker..."));
+        return execInMultiplexWorker(eventHandler, key, request, retriesLeft - 1);
+      }
+      throw e;
+    } finally {
+      if (!invalidated) {
+        workers.returnMultiplexer(key, multiplexer);
+      }
+    }
+  }
+
   @Override
   public String toString() {
     return "worker";
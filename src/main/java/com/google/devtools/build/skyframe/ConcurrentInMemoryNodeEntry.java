@@ -0,0 +1,291 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.MoreObjects;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link InMemoryNodeEntry} whose done-state reads and reverse dep registrations on done nodes do
+ * not take the entry's monitor.
+ *
+ * <p>Hot nodes (toolchains, precomputed values, ...) may be requested by tens of thousands of
+ * parents during a single evaluation. Once such a node is done, every parent only needs to read its
+ * value and register itself as a reverse dep. With {@link InMemoryNodeEntry} both operations are
+ * {@code synchronized}, so all of those parents serialize on the same monitor.
+ *
+ * <p>This class publishes an immutable {@link DoneSnapshot} through a volatile field whenever the
+ * node becomes done, and clears it (under the monitor) when the node is marked dirty. Reads of
+ * the value, error, version and done-ness go through the snapshot and never block. Reverse deps
+ * added to a done node are pushed onto a lock-free stack and folded into the regular reverse deps
+ * representation the next time the monitor is held by an operation that needs the full set of
+ * reverse deps. Since nodes are only marked dirty outside of evaluation, a reverse dep cannot be
+ * pushed onto the stack of a node that is concurrently becoming not-done.
+ *
+ * <p>Note that the "maybe check reverse dep not present" sanity check is skipped on the lock-free
+ * path; duplicates are still detected when the pending reverse deps are consolidated.
+ *
+ * <p>Counters for the fast and slow paths of reverse dep registration are kept in {@link Stats},
+ * so that the reduction in monitor acquisitions can be observed on real builds. Reads are not
+ * counted: the superclass calls them from its own synchronized methods, so a count could not tell
+ * the reads that avoided the monitor from those that already held it.
+ */
+public class ConcurrentInMemoryNodeEntry extends InMemoryNodeEntry {
+
+  /** Immutable view of a done node, published through {@link #doneSnapshot}. */
+  private static final class DoneSnapshot {
+    private final SkyValue value;
+    private final Version version;
+
+    private DoneSnapshot(SkyValue value, Version version) {
+      this.value = value;
+      this.version = version;
+    }
+  }
+
+  /** A reverse dep added while this node was done, and not yet consolidated. */
+  private static final class PendingReverseDep {
+    private final SkyKey key;
+    @Nullable private final PendingReverseDep next;
+
+    private PendingReverseDep(SkyKey key, @Nullable PendingReverseDep next) {
+      this.key = key;
+      this.next = next;
+    }
+  }
+
+  private static final AtomicReferenceFieldUpdater<ConcurrentInMemoryNodeEntry, PendingReverseDep>
+      PENDING_UPDATER =
+          AtomicReferenceFieldUpdater.newUpdater(
+              ConcurrentInMemoryNodeEntry.class, PendingReverseDep.class, "pendingReverseDeps");
+
+  /** Non-null iff this node is done. Only written while holding the monitor. */
+  @Nullable private volatile DoneSnapshot doneSnapshot = null;
+
+  /** Head of the lock-free stack of reverse deps added while done. */
+  @Nullable private volatile PendingReverseDep pendingReverseDeps = null;
+
+  /**
+   * Construct a ConcurrentInMemoryNodeEntry. Use ONLY in Skyframe evaluation and graph
+   * implementations.
+   */
+  public ConcurrentInMemoryNodeEntry() {
+  }
+
+  @Override
+  public boolean isDone() {
+    return doneSnapshot != null;
+  }
+
+  @Override
+  public SkyValue getValue() {
+    return ValueWithMetadata.justValue(getDoneSnapshot().value);
+  }
+
+  @Override
+  public SkyValue getValueMaybeWithMetadata() {
+    return getDoneSnapshot().value;
+  }
+
+  @Override
+  @Nullable
+  public ErrorInfo getErrorInfo() {
+    return ValueWithMetadata.getMaybeErrorInfo(getDoneSnapshot().value);
+  }
+
+  @Override
+  public SkyValue toValue() {
+    DoneSnapshot snapshot = doneSnapshot;
+    if (snapshot != null) {
+      return ValueWithMetadata.getMaybeErrorInfo(snapshot.value) == null
+          ? ValueWithMetadata.justValue(snapshot.value)
+          : null;
+    }
+    return super.toValue();
+  }
+
+  @Override
+  public Version getVersion() {
+    DoneSnapshot snapshot = doneSnapshot;
+    if (snapshot != null) {
+      return snapshot.version;
+    }
+    synchronized (this) {
+      return lastChangedVersion;
+    }
+  }
+
+  private DoneSnapshot getDoneSnapshot() {
+    DoneSnapshot snapshot = doneSnapshot;
+    Preconditions.checkState(snapshot != null, "no value until done: %s", this);
+    return snapshot;
+  }
+
+  @Override
+  protected void markDone() {
+    super.markDone();
+    doneSnapshot = new DoneSnapshot(value, lastChangedVersion);
+  }
+
+  @Override
+  public DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
+    if (reverseDep != null && doneSnapshot != null) {
+      if (keepEdges()) {
+        PendingReverseDep head;
+        do {
+          head = pendingReverseDeps;
+        } while (!PENDING_UPDATER.compareAndSet(
+            this, head, new PendingReverseDep(reverseDep, head)));
+      }
+      // The snapshot may have been cleared since we read it only if this node was concurrently
+      // marked dirty, which the evaluator never does while evaluating.
+      Stats.lockFreeReverseDepAdds.increment();
+      return DependencyState.DONE;
+    }
+    // The superclass calls this method while holding the monitor, e.g. from
+    // checkIfDoneForDirtyReverseDep. Those calls are not contended on this entry's behalf.
+    if (!Thread.holdsLock(this)) {
+      Stats.lockedReverseDepAdds.increment();
+    }
+    synchronized (this) {
+      return super.addReverseDepAndCheckIfDone(reverseDep);
+    }
+  }
+
+  /**
+   * Moves all reverse deps added through the lock-free path into the regular reverse deps
+   * representation. Must be called while holding the monitor.
+   */
+  private void consolidatePendingReverseDeps() {
+    PendingReverseDep head = PENDING_UPDATER.getAndSet(this, null);
+    if (head == null) {
+      return;
+    }
+    List<SkyKey> keys = new ArrayList<>();
+    for (PendingReverseDep current = head; current != null; current = current.next) {
+      keys.add(current.key);
+    }
+    Stats.pendingReverseDepConsolidations.increment();
+    getReverseDepsUtil().addReverseDeps(this, keys);
+  }
+
+  @Override
+  public synchronized DependencyState checkIfDoneForDirtyReverseDep(SkyKey reverseDep) {
+    consolidatePendingReverseDeps();
+    return super.checkIfDoneForDirtyReverseDep(reverseDep);
+  }
+
+  @Override
+  public synchronized void removeReverseDep(SkyKey reverseDep) {
+    consolidatePendingReverseDeps();
+    super.removeReverseDep(reverseDep);
+  }
+
+  @Override
+  public synchronized Iterable<SkyKey> getReverseDeps() {
+    consolidatePendingReverseDeps();
+    return super.getReverseDeps();
+  }
+
+  @Override
+  public synchronized MarkedDirtyResult markDirty(boolean isChanged) {
+    consolidatePendingReverseDeps();
+    MarkedDirtyResult result = super.markDirty(isChanged);
+    doneSnapshot = null;
+    return result;
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    consolidatePendingReverseDeps();
+    return super.cloneNodeEntry();
+  }
+
+  @Override
+  public synchronized String toString() {
+    consolidatePendingReverseDeps();
+    return super.toString();
+  }
+
+  @Override
+  protected synchronized Set<SkyKey> setStateFinishedAndReturnReverseDeps() {
+    Preconditions.checkState(pendingReverseDeps == null, this);
+    return super.setStateFinishedAndReturnReverseDeps();
+  }
+
+  /**
+   * {@link ConcurrentInMemoryNodeEntry} that does not store edges once done. See {@link
+   * EdgelessInMemoryNodeEntry}.
+   */
+  static class Edgeless extends ConcurrentInMemoryNodeEntry {
+    @Override
+    public boolean keepEdges() {
+      return false;
+    }
+  }
+
+  /**
+   * Process-wide counters of how often {@link ConcurrentInMemoryNodeEntry} avoided taking the
+   * entry's monitor. Intended for comparing against the all-{@code synchronized} implementation on
+   * large graphs.
+   */
+  public static final class Stats {
+    private static final LongAdder lockFreeReverseDepAdds = new LongAdder();
+    private static final LongAdder lockedReverseDepAdds = new LongAdder();
+    private static final LongAdder pendingReverseDepConsolidations = new LongAdder();
+
+    private Stats() {}
+
+    /** Number of reverse deps registered on done nodes without taking the monitor. */
+    public static long getLockFreeReverseDepAdds() {
+      return lockFreeReverseDepAdds.sum();
+    }
+
+    /**
+     * Number of {@link NodeEntry#addReverseDepAndCheckIfDone} calls from outside the entry that
+     * took the monitor.
+     */
+    public static long getLockedReverseDepAdds() {
+      return lockedReverseDepAdds.sum();
+    }
+
+    /** Number of times lock-free reverse deps were folded into the regular representation. */
+    public static long getPendingReverseDepConsolidations() {
+      return pendingReverseDepConsolidations.sum();
+    }
+
+    /** Resets all counters. Not atomic with respect to concurrent updates. */
+    public static void reset() {
+      lockFreeReverseDepAdds.reset();
+      lockedReverseDepAdds.reset();
+      pendingReverseDepConsolidations.reset();
+    }
+
+    public static String asString() {
+      return MoreObjects.toStringHelper("ConcurrentInMemoryNodeEntry.Stats")
+          .add("lockFreeReverseDepAdds", getLockFreeReverseDepAdds())
+          .add("lockedReverseDepAdds", getLockedReverseDepAdds())
+          .add("pendingReverseDepConsolidations", getPendingReverseDepConsolidations())
+          .toString();
+    }
+  }
+}
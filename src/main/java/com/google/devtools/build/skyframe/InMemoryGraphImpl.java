@@ -35,13 +35,23 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   protected final ConcurrentMap<SkyKey, NodeEntry> nodeMap =
       new MapMaker().initialCapacity(1024).concurrencyLevel(200).makeMap();
   private final boolean keepEdges;
+  private final boolean lockFreeDoneReads;
 
   InMemoryGraphImpl() {
     this(/*keepEdges=*/ true);
   }
 
   public InMemoryGraphImpl(boolean keepEdges) {
+    this(keepEdges, /*lockFreeDoneReads=*/ false);
+  }
+
+  /**
+   * @param lockFreeDoneReads if true, nodes are {@link ConcurrentInMemoryNodeEntry}s, whose
+   *     done-state reads and reverse dep registrations on done nodes do not take the node's monitor
+   */
+  public InMemoryGraphImpl(boolean keepEdges, boolean lockFreeDoneReads) {
     this.keepEdges = keepEdges;
+    this.lockFreeDoneReads = lockFreeDoneReads;
   }
 
   @Override
@@ -66,8 +76,17 @@ public class InMemoryGraphImpl implements InMemoryGraph {
     return builder.build();
   }
 
+  private NodeEntry newNodeEntry() {
+    if (lockFreeDoneReads) {
+      return keepEdges
+          ? new ConcurrentInMemoryNodeEntry()
+          : new ConcurrentInMemoryNodeEntry.Edgeless();
+    }
+    return keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
+  }
+
   protected NodeEntry createIfAbsent(SkyKey key) {
-    NodeEntry newval = keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
+    NodeEntry newval = newNodeEntry();
     NodeEntry oldval = nodeMap.putIfAbsent(key, newval);
     return oldval == null ? newval : oldval;
   }
@@ -97,10 +97,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       @Nullable EvaluationProgressReceiver invalidationReceiver,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        invalidationReceiver,
+        emittedEventState,
+        keepEdges,
+        /*lockFreeDoneReads=*/ false);
+  }
+
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      boolean lockFreeDoneReads) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = invalidationReceiver;
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph = new InMemoryGraphImpl(keepEdges, lockFreeDoneReads);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
   }
@@ -369,4 +385,27 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               skyFunctions, differencer, invalidationReceiver, emittedEventState, keepEdges);
         }
       };
+
+  /**
+   * Like {@link #SUPPLIER}, but the graph uses {@link ConcurrentInMemoryNodeEntry}s to reduce
+   * monitor contention on nodes with many reverse deps.
+   */
+  public static final EvaluatorSupplier LOCK_FREE_DONE_READS_SUPPLIER =
+      new EvaluatorSupplier() {
+        @Override
+        public MemoizingEvaluator create(
+            ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+            Differencer differencer,
+            @Nullable EvaluationProgressReceiver invalidationReceiver,
+            EmittedEventState emittedEventState,
+            boolean keepEdges) {
+          return new InMemoryMemoizingEvaluator(
+              skyFunctions,
+              differencer,
+              invalidationReceiver,
+              emittedEventState,
+              keepEdges,
+              /*lockFreeDoneReads=*/ true);
+        }
+      };
 }
@@ -51,7 +51,7 @@ import javax.annotation.Nullable;
 public class InMemoryNodeEntry implements NodeEntry {
 
   /** Actual data stored in this entry when it is done. */
-  private SkyValue value = null;
+  protected SkyValue value = null;
 
   /**
    * The last version of the graph at which this node's value was changed. In {@link #setValue} it
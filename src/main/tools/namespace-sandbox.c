@@ -64,6 +64,10 @@ struct Options {
   size_t mount_map_sizes;    // How many elements in mount_{sources,targets}
   int num_mounts;            // How many mounts were specified
 
+  const char *overlay_lower; // Lower layer of the overlay at working_dir (-O)
+  const char *overlay_upper; // Upper layer of the overlay (-U)
+  const char *overlay_work;  // Work directory of the overlay (-K)
+
   int create_netns;          // If 1, create a new network namespace (-n)
   int fake_root;             // Pretend to be root inside the namespace (-r)
   bool debug;                // Whether to print debugging messages (-D)
@@ -144,6 +148,13 @@ static void Usage(int argc, char *const *argv, const char *fmt, ...) {
       "    The -M option specifies which directory to mount, the -m option "
       "specifies where to\n"
       "    mount it in the sandbox.\n"
+      "  -O <dir>  mount an overlay file system at the working directory, "
+      "with <dir> as its\n"
+      "    read-only lower layer. Requires -W, -U and -K. The -M mounts are "
+      "made on top of it.\n"
+      "  -U <dir>  upper layer of the overlay, which receives all changes\n"
+      "  -K <dir>  empty work directory of the overlay, on the same file "
+      "system as -U\n"
       "  -n if set, a new network namespace will be created\n"
       "  -r if set, make the uid/gid be root, otherwise use nobody\n"
       "  -D  if set, debug info will be printed\n"
@@ -264,7 +275,7 @@ static void ParseCommandLine(int argc, char *const *argv) {
   extern int optind, optopt;
   int c;
 
-  while ((c = getopt(argc, argv, ":CS:W:T:t:d:M:m:nrDl:L:")) != -1) {
+  while ((c = getopt(argc, argv, ":CS:W:T:t:d:M:m:O:U:K:nrDl:L:")) != -1) {
     switch (c) {
       case 'C':
         // Shortcut for the "does this system support sandboxing" check.
@@ -331,6 +342,21 @@ static void ParseCommandLine(int argc, char *const *argv) {
         }
         opt.mount_targets[opt.num_mounts++] = optarg;
         break;
+      case 'O':
+      case 'U':
+      case 'K':
+        if (optarg[0] != '/') {
+          Usage(argc, argv,
+                "The -%c option must be used with absolute paths only.", c);
+        }
+        if (c == 'O') {
+          opt.overlay_lower = optarg;
+        } else if (c == 'U') {
+          opt.overlay_upper = optarg;
+        } else {
+          opt.overlay_work = optarg;
+        }
+        break;
       case 'n':
         opt.create_netns = 1;
         break;
@@ -404,6 +430,12 @@ static void ParseOptions(int argc, char *const argv[]) {
   if (opt.sandbox_root == NULL) {
     Usage(argc, argv, "Sandbox root (-S) must be specified");
   }
+
+  if (opt.overlay_lower != NULL &&
+      (opt.overlay_upper == NULL || opt.overlay_work == NULL ||
+       opt.working_dir == NULL)) {
+    Usage(argc, argv, "An overlay (-O) requires -U, -K and -W");
+  }
 }
 
 static void CreateNamespaces(int create_netns) {
@@ -514,6 +546,27 @@ static int rmrf(const char *fpath, const struct stat *sb, int typeflag,
   }
 }
 
+// Mounts an overlay file system at the working directory. Everything the
+// sandboxed process changes below it goes to the upper layer, so the lower
+// layer can be shared by several sandboxes.
+static void SetupOverlay() {
+  char *target = malloc(strlen(opt.sandbox_root) + strlen(opt.working_dir) + 1);
+  strcpy(target, opt.sandbox_root);
+  strcat(target, opt.working_dir);
+  CHECK_CALL(CreateTarget(target, true));
+
+  const char *format = "lowerdir=%s,upperdir=%s,workdir=%s";
+  size_t size = strlen(format) + strlen(opt.overlay_lower) +
+                strlen(opt.overlay_upper) + strlen(opt.overlay_work) + 1;
+  char *options = malloc(size);
+  snprintf(options, size, format, opt.overlay_lower, opt.overlay_upper,
+           opt.overlay_work);
+  PRINT_DEBUG("overlay: %s -> <sandbox>%s\n", options, opt.working_dir);
+  CHECK_CALL(mount("overlay", target, "overlay", MS_NOSUID, options));
+  free(options);
+  free(target);
+}
+
 static void SetupDirectories() {
   // If in sandbox_debug mode and debugging, create the sandbox root dir first
   if (opt.debug && isatty(fileno(stdin))) {
@@ -545,6 +598,11 @@ static void SetupDirectories() {
   CHECK_CALL(CreateTarget("proc", true));
   CHECK_CALL(mount("/proc", "proc", NULL, MS_REC | MS_BIND, NULL));
 
+  // Mount the overlay before anything is created or mounted below it.
+  if (opt.overlay_lower != NULL) {
+    SetupOverlay();
+  }
+
   // Make sure the home directory exists, too.
   char *homedir_from_env = getenv("HOME");
   if (homedir_from_env != NULL) {
@@ -17,6 +17,10 @@
 // from normal termination or timeout, the subprocess (and any of its children)
 // is killed.
 //
+// If the arguments start with "--stats <file>", the CPU time, peak resident
+// set size and block I/O of the subprocess and the children it waited for are
+// written to the file once it exits, one "<name> <value>" pair per line.
+//
 // The exit status of this program is whatever the child process returned,
 // unless process-wrapper receives a signal. ie, on SIGTERM this program will
 // die with raise(SIGTERM) even if the child process handles SIGTERM with
@@ -31,6 +35,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/resource.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <sys/wait.h>
@@ -51,6 +56,7 @@ struct Options {
   double kill_delay_secs;
   const char *stdout_path;
   const char *stderr_path;
+  const char *stats_path;
   char *const *args;
 };
 
@@ -59,8 +65,8 @@ struct Options {
 // string for the error message to print.
 static void Usage(char *const *argv) {
   fprintf(stderr,
-          "Usage: %s <timeout-secs> <kill-delay-secs> <stdout-redirect> "
-          "<stderr-redirect> <command> [args] ...\n",
+          "Usage: %s [--stats <stats-file>] <timeout-secs> <kill-delay-secs> "
+          "<stdout-redirect> <stderr-redirect> <command> [args] ...\n",
           argv[0]);
   exit(EXIT_FAILURE);
 }
@@ -68,11 +74,18 @@ static void Usage(char *const *argv) {
 // Parse the command line flags and return the result in an Options structure
 // passed as argument.
 static void ParseCommandLine(int argc, char *const *argv, struct Options *opt) {
-  if (argc <= 5) {
-    Usage(argv);
+  char *const *program = argv;
+  argv++;
+  argc--;
+  if (argc >= 2 && strcmp(*argv, "--stats") == 0) {
+    opt->stats_path = argv[1];
+    argv += 2;
+    argc -= 2;
+  }
+  if (argc <= 4) {
+    Usage(program);
   }
 
-  argv++;
   if (sscanf(*argv++, "%lf", &opt->timeout_secs) != 1) {
     DIE("timeout_secs is not a real number.\n");
   }
@@ -104,9 +117,38 @@ void OnSignal(int sig) {
   }
 }
 
+// Write the resource usage of the children that were waited for to the given
+// file. Failures are ignored, since they must not fail the command.
+static void WriteStats(const char *stats_path) {
+  struct rusage usage;
+  if (getrusage(RUSAGE_CHILDREN, &usage) < 0) {
+    return;
+  }
+  FILE *stats = fopen(stats_path, "w");
+  if (stats == NULL) {
+    return;
+  }
+#ifdef __APPLE__
+  // ru_maxrss is in bytes on OS X, and in kilobytes elsewhere.
+  long long max_rss_bytes = usage.ru_maxrss;
+#else
+  long long max_rss_bytes = usage.ru_maxrss * 1024LL;
+#endif
+  fprintf(stats, "user_cpu_us %lld\n",
+          usage.ru_utime.tv_sec * 1000000LL + usage.ru_utime.tv_usec);
+  fprintf(stats, "system_cpu_us %lld\n",
+          usage.ru_stime.tv_sec * 1000000LL + usage.ru_stime.tv_usec);
+  fprintf(stats, "max_rss_bytes %lld\n", max_rss_bytes);
+  // Block operations are counted in units of 512 bytes.
+  fprintf(stats, "io_bytes %lld\n",
+          (usage.ru_inblock + (long long)usage.ru_oublock) * 512LL);
+  fclose(stats);
+}
+
 // Run the command specified by the argv array and kill it after timeout
 // seconds.
-static void SpawnCommand(char *const *argv, double timeout_secs) {
+static void SpawnCommand(char *const *argv, double timeout_secs,
+                         const char *stats_path) {
   CHECK_CALL(global_child_pid = fork());
   if (global_child_pid == 0) {
     // In child.
@@ -136,6 +178,10 @@ static void SpawnCommand(char *const *argv, double timeout_secs) {
     // kill.
     kill(-global_child_pid, SIGKILL);
 
+    if (stats_path != NULL) {
+      WriteStats(stats_path);
+    }
+
     if (global_signal > 0) {
       // Don't trust the exit code if we got a timeout or signal.
       UnHandle(global_signal);
@@ -163,7 +209,7 @@ int main(int argc, char *argv[]) {
   RedirectStdout(opt.stdout_path);
   RedirectStderr(opt.stderr_path);
 
-  SpawnCommand(opt.args, opt.timeout_secs);
+  SpawnCommand(opt.args, opt.timeout_secs, opt.stats_path);
 
   return 0;
 }
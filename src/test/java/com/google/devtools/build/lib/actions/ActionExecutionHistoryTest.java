@@ -0,0 +1,118 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.actions.ActionExecutionHistory.Entry;
+import com.google.devtools.build.lib.actions.ActionExecutionHistory.Usage;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/** Tests for {@link ActionExecutionHistory}. */
+@RunWith(JUnit4.class)
+public class ActionExecutionHistoryTest {
+  private Path file;
+  private Root root;
+
+  @Before
+  public final void createRoot() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem();
+    file = fs.getPath("/output_base/action_history");
+    Path execRoot = fs.getPath("/exec");
+    root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+  }
+
+  private Action action(String name) {
+    return new NullAction(new Artifact(new PathFragment(name), root));
+  }
+
+  @Test
+  public void missingFileIsAnEmptyHistory() throws Exception {
+    assertThat(ActionExecutionHistory.load(file).size()).isEqualTo(0);
+  }
+
+  @Test
+  public void executionsAreAddedUp() throws Exception {
+    ActionExecutionHistory history = new ActionExecutionHistory();
+    Action action = action("a");
+    history.record(action, 1000, new Usage(100, 80, 1 << 20, 4096));
+    history.record(action, 2000, Usage.ofWallTime(50));
+    history.record(action, 3000, new Usage(300, 200, 1 << 10, 0));
+
+    Entry entry = history.get("out/a");
+    assertThat(entry.getMnemonic()).isEqualTo(action.getMnemonic());
+    assertThat(entry.getLastRunMillis()).isEqualTo(3000);
+    assertThat(entry.getLast().getWallMillis()).isEqualTo(300);
+    assertThat(entry.getRuns()).isEqualTo(3);
+    assertThat(entry.getMeasuredRuns()).isEqualTo(2);
+    assertThat(entry.getTotalWallMillis()).isEqualTo(450);
+    assertThat(entry.getTotalCpuMillis()).isEqualTo(280);
+    assertThat(entry.getMaxPeakRssBytes()).isEqualTo(1 << 20);
+    assertThat(entry.getTotalIoBytes()).isEqualTo(4096);
+  }
+
+  @Test
+  public void unmeasuredExecutionsHaveNoResourceUsage() throws Exception {
+    ActionExecutionHistory history = new ActionExecutionHistory();
+    history.record(action("a"), 1000, Usage.ofWallTime(50));
+
+    Entry entry = history.get("out/a");
+    assertThat(entry.getLast().isMeasured()).isFalse();
+    assertThat(entry.getMeasuredRuns()).isEqualTo(0);
+    assertThat(entry.getMaxPeakRssBytes()).isEqualTo(-1);
+  }
+
+  @Test
+  public void savedHistoryIsLoadedAgain() throws Exception {
+    ActionExecutionHistory history = new ActionExecutionHistory();
+    history.record(action("a"), 1000, new Usage(100, 80, 1 << 20, 4096));
+    history.record(action("dir/b"), 2000, Usage.ofWallTime(7));
+    history.save(file);
+
+    ActionExecutionHistory loaded = ActionExecutionHistory.load(file);
+    assertThat(loaded.size()).isEqualTo(2);
+    Entry a = loaded.get("out/a");
+    assertThat(a.getLast().getCpuMillis()).isEqualTo(80);
+    assertThat(a.getLast().getPeakRssBytes()).isEqualTo(1 << 20);
+    assertThat(a.getLast().getIoBytes()).isEqualTo(4096);
+    assertThat(a.getTotalCpuMillis()).isEqualTo(80);
+    Entry b = loaded.get("out/dir/b");
+    assertThat(b.getLastRunMillis()).isEqualTo(2000);
+    assertThat(b.getTotalWallMillis()).isEqualTo(7);
+    assertThat(b.getMeasuredRuns()).isEqualTo(0);
+  }
+
+  @Test
+  public void corruptedFileIsAnError() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(file, "not a history");
+    try {
+      ActionExecutionHistory.load(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/** Tests for {@link CriticalPathEstimates}. */
+@RunWith(JUnit4.class)
+public class CriticalPathEstimatesTest {
+  private Path file;
+  private Root root;
+
+  @Before
+  public final void createRoot() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem();
+    file = fs.getPath("/output_base/critical_path_estimates");
+    Path execRoot = fs.getPath("/exec");
+    root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+  }
+
+  private Action action(String name) {
+    return new NullAction(new Artifact(new PathFragment(name), root));
+  }
+
+  @Test
+  public void unknownActionsHaveNoRemainingCriticalPath() throws Exception {
+    assertThat(CriticalPathEstimates.load(file).getRemainingMillis(action("a"))).isEqualTo(0);
+  }
+
+  @Test
+  public void updatesReplaceEstimatesOfTheSameActions() throws Exception {
+    CriticalPathEstimates estimates = new CriticalPathEstimates();
+    estimates.update(ImmutableMap.of("out/a", 100L, "out/b", 50L));
+    estimates.update(ImmutableMap.of("out/a", 200L));
+    assertThat(estimates.getRemainingMillis(action("a"))).isEqualTo(200);
+    assertThat(estimates.getRemainingMillis(action("b"))).isEqualTo(50);
+  }
+
+  @Test
+  public void savedEstimatesAreLoadedAgain() throws Exception {
+    CriticalPathEstimates estimates = new CriticalPathEstimates();
+    estimates.update(ImmutableMap.of("out/a", 100L, "out/dir/c", 7L));
+    estimates.save(file);
+
+    CriticalPathEstimates loaded = CriticalPathEstimates.load(file);
+    assertThat(loaded.size()).isEqualTo(2);
+    assertThat(loaded.getRemainingMillis(action("a"))).isEqualTo(100);
+    assertThat(loaded.getRemainingMillis(action("dir/c"))).isEqualTo(7);
+  }
+
+  @Test
+  public void corruptedFileIsAnError() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(file, "not estimates");
+    try {
+      CriticalPathEstimates.load(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
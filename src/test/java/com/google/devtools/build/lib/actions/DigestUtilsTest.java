@@ -13,7 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions;
 
-
+import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
@@ -25,10 +25,12 @@ import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.DigestFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -36,6 +38,7 @@ import org.junit.runners.JUnit4;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for DigestUtils.
@@ -43,6 +46,13 @@ import java.util.concurrent.TimeUnit;
 @RunWith(JUnit4.class)
 public class DigestUtilsTest {
 
+  @After
+  public final void resetDigestUtils() throws Exception {
+    DigestUtils.configureCache(0);
+    DigestUtils.setLargeFileDigestConcurrency(1);
+    FileSystem.setDigestFunctionForTesting(DigestFunction.MD5);
+  }
+
   private static void assertMd5CalculationConcurrency(boolean expectConcurrent,
       final boolean fastDigest, final int fileSize1, final int fileSize2) throws Exception {
     final CountDownLatch barrierLatch = new CountDownLatch(2); // Used to block test threads.
@@ -120,6 +130,85 @@ public class DigestUtilsTest {
     assertMd5CalculationConcurrency(true, false, 1024, 1024);
   }
 
+  @Test
+  public void testLargeFileDigestConcurrency() throws Exception {
+    DigestUtils.setLargeFileDigestConcurrency(2);
+    assertMd5CalculationConcurrency(true, false, 4097, 4097);
+  }
+
+  private static class CountingFileSystem extends InMemoryFileSystem {
+    private final AtomicInteger digestCalls = new AtomicInteger();
+
+    private CountingFileSystem() {
+      super(BlazeClock.instance());
+    }
+
+    @Override
+    protected byte[] getMD5Digest(Path path) throws IOException {
+      digestCalls.incrementAndGet();
+      return super.getMD5Digest(path);
+    }
+  }
+
+  @Test
+  public void testCacheHit() throws Exception {
+    DigestUtils.configureCache(10);
+    CountingFileSystem fs = new CountingFileSystem();
+    Path path = fs.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, Strings.repeat("a", 5000));
+
+    byte[] first = DigestUtils.getDigestOrFail(path, 5000);
+    byte[] second = DigestUtils.getDigestOrFail(path, 5000);
+    assertArrayEquals(first, second);
+    assertEquals(1, fs.digestCalls.get());
+    assertEquals(1, DigestUtils.getCacheStats().hitCount());
+  }
+
+  @Test
+  public void testCacheMissAfterModification() throws Exception {
+    DigestUtils.configureCache(10);
+    CountingFileSystem fs = new CountingFileSystem();
+    Path path = fs.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "a");
+    byte[] first = DigestUtils.getDigestOrFail(path, 1);
+
+    FileSystemUtils.writeContentAsLatin1(path, "b");
+    path.setLastModifiedTime(path.getLastModifiedTime() + 1000);
+    byte[] second = DigestUtils.getDigestOrFail(path, 1);
+    assertEquals(2, fs.digestCalls.get());
+    assertArrayEquals(path.getMD5Digest(), second);
+    assertThat(second).isNotEqualTo(first);
+  }
+
+  @Test
+  public void testCacheDisabled() throws Exception {
+    CountingFileSystem fs = new CountingFileSystem();
+    Path path = fs.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "a");
+    DigestUtils.getDigestOrFail(path, 1);
+    DigestUtils.getDigestOrFail(path, 1);
+    assertEquals(2, fs.digestCalls.get());
+    assertThat(DigestUtils.getCacheStats()).isNull();
+  }
+
+  @Test
+  public void testCacheSurvivesWriteAndRead() throws Exception {
+    DigestUtils.configureCache(10);
+    CountingFileSystem fs = new CountingFileSystem();
+    Path path = fs.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "a");
+    byte[] digest = DigestUtils.getDigestOrFail(path, 1);
+
+    Path cacheFile = fs.getPath("/output_base/digest_cache");
+    assertEquals(1, DigestUtils.writeCache(cacheFile));
+    DigestUtils.configureCache(0);
+    DigestUtils.configureCache(10);
+    assertEquals(1, DigestUtils.readCache(cacheFile));
+
+    assertArrayEquals(digest, DigestUtils.getDigestOrFail(path, 1));
+    assertEquals(1, fs.digestCalls.get());
+  }
+
   @Test
   public void testRecoverFromMalformedDigest() throws Exception {
     final byte[] malformed = {0, 0, 0};
@@ -142,4 +231,26 @@ public class DigestUtilsTest {
     assertNotSame(malformed, result);
     assertEquals(16, result.length);
   }
+
+  @Test
+  public void testNonMd5DigestFunction() throws Exception {
+    FileSystem.setDigestFunctionForTesting(DigestFunction.SHA256);
+    FileSystem myFS = new InMemoryFileSystem(BlazeClock.instance()) {
+      @Override
+      protected String getFastDigestFunctionType(Path path) {
+        return "MD5";
+      }
+
+      @Override
+      protected byte[] getFastDigest(Path path) throws IOException {
+        return getMD5Digest(path);
+      }
+    };
+    Path path = myFS.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "a");
+    // The fast digest is an MD5 digest, so it must not be used.
+    byte[] result = DigestUtils.getDigestOrFail(path, 1);
+    assertEquals(32, result.length);
+    assertArrayEquals(path.getDigest(), result);
+  }
 }
@@ -337,4 +337,21 @@ public class LocalHostResourceManagerLinuxTest {
     // +/- 0.1MB
     assertEquals(8223.956, LocalHostResourceManagerLinux.getMemoryInMbHelper(meminfoFile), 0.1);
   }
+
+  @Test
+  public void testCgroupFreeMemory() throws Exception {
+    scratch.file("cgroup/build/memory.max", "1048576000");
+    String root =
+        scratch.file("cgroup/build/memory.current", "524288000")
+            .getParentDirectory().getParentDirectory().getPathString();
+    // 500 MiB are left, which is 512000 KB.
+    assertEquals(512.0,
+        LocalHostResourceManagerLinux.getCgroupFreeMemoryInMbHelper("0::/build\n", root), 0.1);
+    assertEquals(Double.POSITIVE_INFINITY,
+        LocalHostResourceManagerLinux.getCgroupFreeMemoryInMbHelper("3:cpu:/build\n", root), 0);
+
+    scratch.file("cgroup/unlimited/memory.max", "max");
+    assertEquals(Double.POSITIVE_INFINITY,
+        LocalHostResourceManagerLinux.getCgroupFreeMemoryInMbHelper("0::/unlimited\n", root), 0);
+  }
 }
@@ -0,0 +1,91 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.actions.ActionExecutionHistory.Usage;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MeasuredResourceEstimates}. */
+@RunWith(JUnit4.class)
+public class MeasuredResourceEstimatesTest {
+  private static final ResourceSet DECLARED = ResourceSet.create(250, 1, 0.5, 0);
+  private static final long MB = 1 << 20;
+
+  private Action action;
+  private String mnemonic;
+
+  @Before
+  public final void createAction() throws Exception {
+    Path execRoot = new InMemoryFileSystem().getPath("/exec");
+    Root root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    action = new NullAction(new Artifact(new PathFragment("a"), root));
+    mnemonic = action.getMnemonic();
+  }
+
+  @Test
+  public void declaredResourcesAreKeptUntilThereAreEnoughSamples() throws Exception {
+    MeasuredResourceEstimates estimates = new MeasuredResourceEstimates();
+    for (int i = 1; i < MeasuredResourceEstimates.MIN_SAMPLES; i++) {
+      estimates.record(mnemonic, new Usage(1000, 2000, 100 * MB, 0));
+    }
+    assertThat(estimates.estimate(action, DECLARED)).isSameAs(DECLARED);
+    estimates.record(mnemonic, new Usage(1000, 2000, 100 * MB, 0));
+
+    ResourceSet estimate = estimates.estimate(action, DECLARED);
+    assertThat(estimate.getMemoryMb()).isWithin(0.01).of(125);
+    assertThat(estimate.getCpuUsage()).isWithin(0.01).of(2);
+    assertThat(estimate.getIoUsage()).isWithin(0.01).of(0.5);
+  }
+
+  @Test
+  public void estimatesFollowRecentSamples() throws Exception {
+    MeasuredResourceEstimates estimates = new MeasuredResourceEstimates();
+    for (int i = 0; i < 10; i++) {
+      estimates.record(mnemonic, new Usage(1000, 1000, 100 * MB, 0));
+    }
+    for (int i = 0; i < 10; i++) {
+      estimates.record(mnemonic, new Usage(1000, 1000, 1000 * MB, 0));
+    }
+    // 0.8^10 of the old average is left: (1000 - 900 * 0.107) MB, with 25% headroom.
+    assertThat(estimates.estimate(action, DECLARED).getMemoryMb()).isWithin(1).of(1129);
+  }
+
+  @Test
+  public void unmeasuredExecutionsAreIgnored() throws Exception {
+    MeasuredResourceEstimates estimates = new MeasuredResourceEstimates();
+    for (int i = 0; i < 10; i++) {
+      estimates.record(mnemonic, Usage.ofWallTime(1000));
+    }
+    assertThat(estimates.estimate(action, DECLARED)).isSameAs(DECLARED);
+  }
+
+  @Test
+  public void idleActionsStillReserveSomeCpu() throws Exception {
+    MeasuredResourceEstimates estimates = new MeasuredResourceEstimates();
+    for (int i = 0; i < MeasuredResourceEstimates.MIN_SAMPLES; i++) {
+      estimates.record(mnemonic, new Usage(1000, 0, MB, 0));
+    }
+    assertThat(estimates.estimate(action, DECLARED).getCpuUsage()).isGreaterThan(0.0);
+  }
+}
@@ -18,16 +18,26 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata.MiddlemanType;
 import com.google.devtools.build.lib.testutil.TestThread;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -324,7 +334,185 @@ public class ResourceManagerTest {
     assertFalse(rm.inUse());
   }
 
+  /** Returns an action whose primary output has the exec path "out/{name}". */
+  private static ActionExecutionMetadata actionWithOutput(String name) {
+    Path execRoot = new InMemoryFileSystem().getPath("/exec");
+    Root root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    return new ResourceOwnerStub(new Artifact(new PathFragment(name), root));
+  }
+
+  @Test
+  public void testLongerCriticalPathIsUnblockedFirst() throws Exception {
+    final ActionExecutionMetadata shortPath = actionWithOutput("short");
+    final ActionExecutionMetadata longPath = actionWithOutput("long");
+    CriticalPathEstimates estimates = new CriticalPathEstimates();
+    estimates.update(ImmutableMap.of("out/short", 10L, "out/long", 1000L));
+    rm.setCriticalPathEstimates(estimates);
+
+    acquire(0, 1, 0, 0);
+    TestThread shortThread =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            rm.acquireResources(shortPath, ResourceSet.create(0, 1, 0, 0)).close();
+            validate(2);
+          }
+        };
+    TestThread longThread =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            try (ResourceManager.ResourceHandle handle =
+                rm.acquireResources(longPath, ResourceSet.create(0, 1, 0, 0))) {
+              validate(1);
+            }
+          }
+        };
+    shortThread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    longThread.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+    // The short action asked first, but the long one has to run first.
+    release(0, 1, 0, 0);
+    longThread.joinAndAssertState(1000);
+    shortThread.joinAndAssertState(1000);
+    assertFalse(rm.inUse());
+  }
+
+  /**
+   * Queues many fast independent actions for a single CPU, and then the first action of a long
+   * chain. Returns the primary outputs of the actions in the order that they got the CPU.
+   */
+  private List<String> runDeepAndWideBuild(boolean prioritize) throws Exception {
+    int wideActions = 10;
+
+    rm.setAvailableResources(ResourceSet.create(1000, 1, 1, 2));
+    Map<String, Long> remaining = new HashMap<>();
+    final List<String> grantOrder = Collections.synchronizedList(new ArrayList<String>());
+    List<TestThread> threads = new ArrayList<>();
+    for (int i = 0; i <= wideActions; i++) {
+      String name = i < wideActions ? "wide" + i : "chain";
+      final ActionExecutionMetadata action = actionWithOutput(name);
+      remaining.put("out/" + name, i < wideActions ? 5L : 400L);
+      threads.add(
+          new TestThread() {
+            @Override
+            public void runTest() throws Exception {
+              try (ResourceManager.ResourceHandle handle =
+                  rm.acquireResources(action, ResourceSet.create(0, 1, 0, 0))) {
+                grantOrder.add(action.getPrimaryOutput().getExecPathString());
+              }
+            }
+          });
+    }
+    CriticalPathEstimates estimates = new CriticalPathEstimates();
+    estimates.update(remaining);
+    rm.setCriticalPathEstimates(prioritize ? estimates : null);
+
+    // Holds the CPU until all actions are queued, one after the other, with the chain last.
+    acquire(0, 1, 0, 0);
+    for (int i = 0; i < threads.size(); i++) {
+      threads.get(i).start();
+      while (rm.getWaitCount() < i + 1) {
+        Thread.yield();
+      }
+    }
+    release(0, 1, 0, 0);
+    for (TestThread thread : threads) {
+      thread.joinAndAssertState(10000);
+    }
+    assertEquals(wideActions + 1, grantOrder.size());
+    return grantOrder;
+  }
+
+  @Test
+  public void testCriticalPathSchedulingStartsTheChainFirst() throws Exception {
+    // In order of arrival, the chain only starts once the fast actions are done; prioritized by
+    // remaining critical path, it starts first and the fast actions run next to it.
+    List<String> fifo = runDeepAndWideBuild(/*prioritize=*/false);
+    assertEquals("out/chain", fifo.get(fifo.size() - 1));
+    List<String> prioritized = runDeepAndWideBuild(/*prioritize=*/true);
+    assertEquals("out/chain", prioritized.get(0));
+  }
+
+  @Test
+  public void testMeasuredEstimatesReplaceDeclaredResources() throws Exception {
+    ActionExecutionMetadata link = new ResourceOwnerStub(null, "Link");
+    MeasuredResourceEstimates estimates = new MeasuredResourceEstimates();
+    for (int i = 0; i < MeasuredResourceEstimates.MIN_SAMPLES; i++) {
+      estimates.record("Link", new ActionExecutionHistory.Usage(1000, 500, 100L << 20, 0));
+    }
+    rm.setMeasuredResourceEstimates(estimates);
+
+    // The link is declared to need all memory, but is measured to use only a bit over 100 MB.
+    ResourceManager.ResourceHandle first =
+        rm.acquireResources(link, ResourceSet.create(1000, 0.1, 0, 0));
+    assertTrue(rm.tryAcquire(resourceOwner, ResourceSet.create(800, 0, 0, 0)));
+    assertEquals(125.0, first.resourceSet.getMemoryMb(), 0.01);
+    assertEquals(0.5, first.resourceSet.getCpuUsage(), 0.01);
+    first.close();
+    release(800, 0, 0, 0);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testMemoryIsOnlyGrantedWhileTheHostHasItFree() throws Exception {
+    final AtomicInteger freeMb = new AtomicInteger(500);
+    rm.setFreeMemorySupplier(
+        new Supplier<Double>() {
+          @Override
+          public Double get() {
+            // Reading the free memory must not block threads that acquire or release resources.
+            assertFalse(Thread.holdsLock(rm));
+            return (double) freeMb.get();
+          }
+        });
+
+    acquire(300, 0, 0, 0);
+    // Only 500 - 300 MB are left of what the host had free, although the budget allows 700 more.
+    assertFalse(acquireNonblocking(300, 0, 0, 0));
+    assertTrue(acquireNonblocking(100, 0, 0, 0));
+
+    TestThread thread =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            acquire(300, 0, 0, 0);
+            release(300, 0, 0, 0);
+          }
+        };
+    thread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    // Waiting threads are checked against what the host has free when resources are released.
+    freeMb.set(700);
+    release(100, 0, 0, 0);
+    thread.joinAndAssertState(1000);
+    release(300, 0, 0, 0);
+    assertFalse(rm.inUse());
+  }
+
   private static class ResourceOwnerStub implements ActionExecutionMetadata {
+    @Nullable private final Artifact primaryOutput;
+    @Nullable private final String mnemonic;
+
+    ResourceOwnerStub() {
+      this(null);
+    }
+
+    ResourceOwnerStub(@Nullable Artifact primaryOutput) {
+      this(primaryOutput, null);
+    }
+
+    ResourceOwnerStub(@Nullable Artifact primaryOutput, @Nullable String mnemonic) {
+      this.primaryOutput = primaryOutput;
+      this.mnemonic = mnemonic;
+    }
 
     @Override
     @Nullable
@@ -344,7 +532,10 @@ public class ResourceManagerTest {
 
     @Override
     public String getMnemonic() {
-      throw new IllegalStateException();
+      if (mnemonic == null) {
+        throw new IllegalStateException();
+      }
+      return mnemonic;
     }
 
     @Override
@@ -384,7 +575,10 @@ public class ResourceManagerTest {
 
     @Override
     public Artifact getPrimaryOutput() {
-      throw new IllegalStateException();
+      if (primaryOutput == null) {
+        throw new IllegalStateException();
+      }
+      return primaryOutput;
     }
 
     @Override
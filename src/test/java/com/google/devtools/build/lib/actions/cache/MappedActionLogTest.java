@@ -0,0 +1,218 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link MappedActionLog}. */
+@RunWith(JUnit4.class)
+public class MappedActionLogTest {
+  private static final int VERSION = 1;
+
+  private Path root;
+  private Path logFile;
+  private final AtomicInteger flushes = new AtomicInteger();
+  private final Runnable countFlushes =
+      new Runnable() {
+        @Override
+        public void run() {
+          flushes.incrementAndGet();
+        }
+      };
+
+  @Before
+  public final void createRoot() throws Exception {
+    root = FileSystems.getJavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("log_test");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    logFile = root.getChild("action_log");
+  }
+
+  private MappedActionLog open() throws IOException {
+    return new MappedActionLog(logFile, VERSION, countFlushes);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(ISO_8859_1);
+  }
+
+  @Test
+  public void valuesSurviveReopening() throws Exception {
+    MappedActionLog log = open();
+    for (int i = 0; i < 1000; i++) {
+      log.put(i, bytes("value" + i));
+    }
+    log.put(7, bytes("updated"));
+    log.remove(8);
+    assertThat(log.get(7)).isEqualTo(bytes("updated"));
+    assertThat(log.get(8)).isNull();
+    assertThat(log).hasSize(999);
+    log.save();
+    assertThat(flushes.get()).isEqualTo(1);
+
+    log = open();
+    assertThat(log).hasSize(999);
+    assertThat(log.get(7)).isEqualTo(bytes("updated"));
+    assertThat(log.get(8)).isNull();
+    assertThat(log.get(999)).isEqualTo(bytes("value999"));
+    assertThat(log.get(-10)).isNull();
+  }
+
+  @Test
+  public void unsavedAppendsAreLost() throws Exception {
+    MappedActionLog log = open();
+    log.put(1, bytes("saved"));
+    log.save();
+    log.put(2, bytes("not saved"));
+
+    log = open();
+    assertThat(log.keySet()).containsExactly(1);
+  }
+
+  @Test
+  public void partiallyWrittenRecordIsDropped() throws Exception {
+    MappedActionLog log = open();
+    log.put(1, bytes("first"));
+    log.put(2, bytes("second"));
+    long size = log.save();
+    try (RandomAccessFile file = new RandomAccessFile(logFile.getPathFile(), "rw")) {
+      file.setLength(size - 3);
+    }
+
+    log = open();
+    assertThat(log.keySet()).containsExactly(1);
+    log.put(3, bytes("third"));
+    log.save();
+    assertThat(open().get(3)).isEqualTo(bytes("third"));
+  }
+
+  @Test
+  public void otherVersionIsRejected() throws Exception {
+    open().save();
+    try {
+      new MappedActionLog(logFile, VERSION + 1, countFlushes);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void compactionKeepsOnlyCurrentValues() throws Exception {
+    MappedActionLog log = open();
+    byte[] large = new byte[1000];
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 100; i++) {
+        log.put(i, large);
+      }
+    }
+    for (int i = 50; i < 100; i++) {
+      log.remove(i);
+    }
+    log.put(1, bytes("one"));
+    long before = log.save();
+
+    log.compact();
+    assertThat(log.getLogBytes()).isLessThan(before / 5);
+    assertThat(log).hasSize(50);
+    assertThat(log.get(1)).isEqualTo(bytes("one"));
+    assertThat(log.get(2)).isEqualTo(large);
+    assertThat(log.get(50)).isNull();
+
+    log.put(50, bytes("fifty"));
+    log.remove(2);
+    log.save();
+    log = open();
+    assertThat(log).hasSize(50);
+    assertThat(log.get(50)).isEqualTo(bytes("fifty"));
+    assertThat(log.get(2)).isNull();
+  }
+
+  @Test
+  public void saveStartsBackgroundCompaction() throws Exception {
+    MappedActionLog log = open();
+    byte[] large = new byte[64 * 1024];
+    for (int round = 0; round < 40; round++) {
+      log.put(round % 4, large);
+    }
+    long before = log.save();
+    while (log.isCompacting()) {
+      Thread.sleep(10);
+    }
+    assertThat(log.getLogBytes()).isLessThan(before / 4);
+    assertThat(open().keySet()).containsExactly(0, 1, 2, 3);
+  }
+
+  @Test
+  public void removedKeysDoNotGrowTheIndex() throws Exception {
+    MappedActionLog log = open();
+    for (int i = 0; i < 100000; i++) {
+      log.put(i, bytes("value"));
+      log.remove(i);
+    }
+    assertThat(log).isEmpty();
+    // The initial capacity of 32 slots.
+    assertThat(log.getIndexBytes()).isAtMost(32 * (4L + 8L));
+  }
+
+  @Test
+  public void closeWaitsForBackgroundCompaction() throws Exception {
+    MappedActionLog log = open();
+    byte[] large = new byte[64 * 1024];
+    for (int round = 0; round < 40; round++) {
+      log.put(round % 4, large);
+    }
+    log.save();
+    log.close();
+    assertThat(log.isCompacting()).isFalse();
+    assertThat(root.getChild("action_log.compacting").exists()).isFalse();
+
+    log = open();
+    assertThat(log.keySet()).containsExactly(0, 1, 2, 3);
+    assertThat(log.get(3)).isEqualTo(large);
+    log.close();
+  }
+
+  @Test
+  public void actionCacheWithMappedLog() throws Exception {
+    CompactPersistentActionCache cache =
+        new CompactPersistentActionCache(root, BlazeClock.instance(), true);
+    assertThat(cache.usesMappedLog()).isTrue();
+    ActionCache.Entry entry = cache.createEntry("action", false);
+    entry.getFileDigest();
+    cache.put("key", entry);
+    cache.save();
+    assertThat(CompactPersistentActionCache.logFile(root).exists()).isTrue();
+    assertThat(CompactPersistentActionCache.cacheFile(root).exists()).isFalse();
+
+    cache = new CompactPersistentActionCache(root, BlazeClock.instance(), true);
+    assertThat(cache.get("key").getActionKey()).isEqualTo("action");
+  }
+}
@@ -357,6 +357,46 @@ public class PersistentStringIndexerTest {
     }
   }
 
+  @Test
+  public void testOffHeapIndexReadsSameFiles() throws Exception {
+    setupTestContent();
+    psi.save();
+    clock.advance(4);
+    assertIndex(9, "journaled");
+    psi.flush();
+    assertTrue(journalPath.exists());
+
+    psi = PersistentStringIndexer.newPersistentStringIndexer(dataPath, clock, true);
+    assertThat(psi.getOffHeapBytes()).isGreaterThan(0L);
+    assertSize(10);
+    assertContent();
+    assertIndex(10, "added");
+    psi.save();
+
+    psi = PersistentStringIndexer.newPersistentStringIndexer(dataPath, clock);
+    assertThat(psi.getOffHeapBytes()).isEqualTo(0L);
+    assertSize(11);
+    assertContent();
+  }
+
+  @Test
+  public void testOffHeapDupeIndexCorruption() throws Exception {
+    setupTestContent();
+    psi.save();
+    byte[] content = FileSystemUtils.readContent(dataPath);
+    assertTrue(dataPath.delete());
+    // See testDupeIndexCorruption.
+    content[content.length - 1] = content[content.length - 1] == 1 ? (byte) 2 : (byte) 1;
+    FileSystemUtils.writeContent(journalPath, content);
+
+    try {
+      psi = PersistentStringIndexer.newPersistentStringIndexer(dataPath, clock, true);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Corrupted filename index has duplicate entry");
+    }
+  }
+
   @Test
   public void testDeferredIOFailure() throws Exception {
     assertFalse(dataPath.exists());
@@ -0,0 +1,178 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.Suite;
+import com.google.devtools.build.lib.testutil.TestSpec;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link RunfilesTreeUpdater}. */
+@RunWith(JUnit4.class)
+@TestSpec(size = Suite.SMALL_TESTS)
+public class RunfilesTreeUpdaterTest {
+  private Path manifest;
+  private Path root;
+  private RunfilesTreeUpdater updater;
+
+  @Before
+  public final void setUp() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem();
+    manifest = fs.getPath("/out/bin/foo.runfiles_manifest");
+    root = fs.getPath("/out/bin/foo.runfiles");
+    FileSystemUtils.createDirectoryAndParents(manifest.getParentDirectory());
+    updater = new RunfilesTreeUpdater(4);
+  }
+
+  private RunfilesTreeUpdater.Stats update(boolean filesetTree, String... lines)
+      throws Exception {
+    FileSystemUtils.writeLinesAs(manifest, ISO_8859_1, lines);
+    return updater.update(manifest, root, filesetTree, /*enableRunfiles=*/true);
+  }
+
+  private void assertLink(String link, String target) throws IOException {
+    assertThat(root.getRelative(link).readSymbolicLink()).isEqualTo(new PathFragment(target));
+  }
+
+  @Test
+  public void createsTreeFromScratch() throws Exception {
+    RunfilesTreeUpdater.Stats stats =
+        update(false, "ws/a/b /src/b", "ws/a/c /src/c", "ws/__init__.py ");
+    assertThat(stats.isFromScratch()).isTrue();
+    assertThat(stats.getCreated()).isEqualTo(5);
+    assertLink("ws/a/b", "/src/b");
+    assertLink("ws/a/c", "/src/c");
+    Path empty = root.getRelative("ws/__init__.py");
+    assertThat(empty.isFile(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(empty.getFileSize()).isEqualTo(0);
+    assertThat(FileSystemUtils.readContent(root.getChild("MANIFEST")))
+        .isEqualTo(FileSystemUtils.readContent(manifest));
+  }
+
+  @Test
+  public void onlyChangedLinksAreTouched() throws Exception {
+    update(false, "ws/a /src/a", "ws/b /src/b", "ws/c /src/c");
+    RunfilesTreeUpdater.Stats stats = update(false, "ws/a /src/a", "ws/b /src/b2", "ws/d /src/d");
+    assertThat(stats.isFromScratch()).isFalse();
+    // ws/b is replaced, ws/c is deleted and ws/d is created.
+    assertThat(stats.getDeleted()).isEqualTo(2);
+    assertThat(stats.getCreated()).isEqualTo(2);
+    assertLink("ws/a", "/src/a");
+    assertLink("ws/b", "/src/b2");
+    assertLink("ws/d", "/src/d");
+    assertThat(root.getRelative("ws/c").exists(Symlinks.NOFOLLOW)).isFalse();
+  }
+
+  @Test
+  public void directoryAndLinkSwapPlaces() throws Exception {
+    update(false, "ws/a/x /src/x", "ws/b /src/b");
+    update(false, "ws/a /src/a", "ws/b/y /src/y");
+    assertLink("ws/a", "/src/a");
+    assertLink("ws/b/y", "/src/y");
+    assertThat(root.getRelative("ws/b").isDirectory(Symlinks.NOFOLLOW)).isTrue();
+    assertThat(root.getRelative("ws/a/x").exists(Symlinks.NOFOLLOW)).isFalse();
+  }
+
+  @Test
+  public void treeWithoutManifestIsRecreated() throws Exception {
+    update(false, "ws/a /src/a");
+    FileSystemUtils.createEmptyFile(root.getRelative("ws/stale"));
+    root.getChild("MANIFEST").delete();
+    RunfilesTreeUpdater.Stats stats = update(false, "ws/a /src/a");
+    assertThat(stats.isFromScratch()).isTrue();
+    assertThat(root.getRelative("ws/stale").exists()).isFalse();
+    assertLink("ws/a", "/src/a");
+  }
+
+  @Test
+  public void manyLinksAreCreatedInParallel() throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < RunfilesTreeUpdater.MIN_PARALLEL_LINKS * 2; i++) {
+      lines.add("ws/d" + (i % 10) + "/f" + i + " /src/f" + i);
+    }
+    RunfilesTreeUpdater.Stats stats = update(false, lines.toArray(new String[0]));
+    assertThat(stats.getCreated()).isEqualTo(lines.size() + 11);
+    assertLink("ws/d7/f1237", "/src/f1237");
+  }
+
+  @Test
+  public void filesetManifestSkipsMetadataAndAllowsRelativeTargets() throws Exception {
+    update(true, "a/b ../c", "metadata 1", "a/d /e", "metadata 2");
+    assertLink("a/b", "../c");
+    assertLink("a/d", "/e");
+    assertThat(root.getRelative("metadata").exists(Symlinks.NOFOLLOW)).isFalse();
+  }
+
+  @Test
+  public void manifestOnly() throws Exception {
+    update(false, "ws/a /src/a");
+    FileSystemUtils.writeLinesAs(manifest, ISO_8859_1, "ws/b /src/b");
+    updater.update(manifest, root, false, /*enableRunfiles=*/false);
+    assertThat(root.getDirectoryEntries()).containsExactly(root.getChild("MANIFEST"));
+  }
+
+  @Test
+  public void treeIsCreatedFromScratchWhenRunfilesAreEnabledAfterManifestOnly() throws Exception {
+    FileSystemUtils.writeLinesAs(manifest, ISO_8859_1, "ws/a /src/a");
+    updater.update(manifest, root, false, /*enableRunfiles=*/false);
+    RunfilesTreeUpdater.Stats stats = update(false, "ws/a /src/a", "ws/b /src/b");
+    assertThat(stats.isFromScratch()).isTrue();
+    assertLink("ws/a", "/src/a");
+    assertLink("ws/b", "/src/b");
+  }
+
+  @Test
+  public void manifestWrittenByAnotherToolIsNotTrusted() throws Exception {
+    update(false, "ws/a /src/a");
+    // Like build-runfiles --manifest_only, which leaves the links alone.
+    FileSystemUtils.writeLinesAs(root.getChild("MANIFEST"), ISO_8859_1, "ws/b /src/b");
+    RunfilesTreeUpdater.Stats stats = update(false, "ws/b /src/b", "ws/c /src/c");
+    assertThat(stats.isFromScratch()).isTrue();
+    assertThat(root.getRelative("ws/a").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertLink("ws/b", "/src/b");
+    assertLink("ws/c", "/src/c");
+  }
+
+  @Test
+  public void malformedManifestIsRejected() throws Exception {
+    try {
+      update(false, "ws/a src/a");
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("expected absolute path at line 1");
+    }
+    try {
+      update(false, "ws/a /src/a b");
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("contains space");
+    }
+  }
+}
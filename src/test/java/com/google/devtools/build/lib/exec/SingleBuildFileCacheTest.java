@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.DigestFunction;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.protobuf.ByteString;
@@ -46,6 +47,8 @@ import java.util.Map;
 @TestSpec(size = Suite.SMALL_TESTS)
 public class SingleBuildFileCacheTest {
   private static final String EMPTY_MD5 = "d41d8cd98f00b204e9800998ecf8427e";
+  private static final String EMPTY_SHA256 =
+      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
 
   private FileSystem fs;
   private Map<String, Integer> calls;
@@ -122,6 +125,17 @@ public class SingleBuildFileCacheTest {
     assert(calls.containsKey("/empty"));
   }
 
+  @Test
+  public void testUsesConfiguredDigestFunction() throws Exception {
+    FileSystem.setDigestFunctionForTesting(DigestFunction.SHA256);
+    try {
+      ByteString digest = underTest.getDigest(ActionInputHelper.fromPath("/empty"));
+      assertEquals(EMPTY_SHA256, digest.toStringUtf8());
+    } finally {
+      FileSystem.setDigestFunctionForTesting(DigestFunction.MD5);
+    }
+  }
+
   @Test
   public void testUnreadableFileWhenFileSystemSupportsDigest() throws Exception {
     byte[] expectedDigestRaw = MessageDigest.getInstance("md5").digest(
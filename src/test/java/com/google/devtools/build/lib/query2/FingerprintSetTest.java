@@ -0,0 +1,104 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.testutil.TestThread;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link FingerprintSet}. */
+@RunWith(JUnit4.class)
+public class FingerprintSetTest {
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private static HashCode fingerprint(int i) {
+    return HASH.hashString("//pkg:target" + i, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void duplicatesAreOnlyAddedOnce() {
+    FingerprintSet set = new FingerprintSet();
+    assertThat(set.add(fingerprint(1))).isTrue();
+    assertThat(set.add(fingerprint(2))).isTrue();
+    assertThat(set.add(fingerprint(1))).isFalse();
+    assertThat(set.add(HashCode.fromBytes(fingerprint(2).asBytes()))).isFalse();
+  }
+
+  @Test
+  public void allZeroFingerprintCanBeAdded() {
+    FingerprintSet set = new FingerprintSet();
+    HashCode zero = HashCode.fromBytes(new byte[16]);
+    assertThat(set.add(zero)).isTrue();
+    assertThat(set.add(zero)).isFalse();
+  }
+
+  @Test
+  public void setGrowsBeyondTheInitialCapacity() {
+    FingerprintSet set = new FingerprintSet();
+    // Far more than the initial capacity of all stripes together, so that every stripe resizes
+    // several times.
+    int count = 100000;
+    for (int i = 0; i < count; i++) {
+      assertThat(set.add(fingerprint(i))).isTrue();
+    }
+    for (int i = 0; i < count; i++) {
+      assertThat(set.add(fingerprint(i))).isFalse();
+    }
+  }
+
+  @Test
+  public void concurrentAddsAddEveryFingerprintOnce() throws Exception {
+    final FingerprintSet set = new FingerprintSet();
+    final int count = 20000;
+    int threads = 4;
+    final AtomicInteger added = new AtomicInteger();
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    List<TestThread> testThreads = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * count / threads;
+      TestThread thread =
+          new TestThread() {
+            @Override
+            public void runTest() throws Exception {
+              barrier.await();
+              // Every thread adds all fingerprints, starting at a different one.
+              for (int i = 0; i < count; i++) {
+                if (set.add(fingerprint((offset + i) % count))) {
+                  added.incrementAndGet();
+                }
+              }
+            }
+          };
+      thread.start();
+      testThreads.add(thread);
+    }
+    for (TestThread thread : testThreads) {
+      thread.joinAndAssertState(60000);
+    }
+    assertThat(added.get()).isEqualTo(count);
+  }
+}
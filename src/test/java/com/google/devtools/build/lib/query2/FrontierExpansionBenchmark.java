@@ -0,0 +1,244 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Function;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the parallel frontier expansion that {@link SkyQueryEnvironment} uses for {@code
+ * deps} and {@code rdeps}, on a large synthetic graph.
+ *
+ * <p>The graph has layers of {@code --layer_width} nodes, each node depending on random nodes of
+ * the layer below, so that every frontier of a walk is one layer. Each iteration walks the whole
+ * graph breadth first, once along the dependencies from the top layer and once along the reverse
+ * dependencies from the bottom layer, expanding every frontier with {@link
+ * SkyQueryEnvironment#mapInParallel}. Looking up the edges of a node is cheap here, so
+ * {@code --work_per_target} adds some hashing per visited edge to stand in for the graph lookups
+ * and target filtering of a real query. The figures thus show the overhead and the speedup of
+ * splitting the frontiers, not the cost of a query on a real graph.
+ *
+ * <p>Run with {@code bazel run //src/test/java/com/google/devtools/build/lib:query2_benchmark --
+ * --nodes=1000000 --threads=8}.
+ */
+public final class FrontierExpansionBenchmark {
+
+  /** Options for the benchmark. */
+  public static class BenchmarkOptions extends OptionsBase {
+    @Option(name = "nodes", defaultValue = "200000", help = "The number of nodes in the graph.")
+    public int nodes;
+
+    @Option(
+      name = "layer_width",
+      defaultValue = "5000",
+      help = "The number of nodes per layer, which is the size of the frontiers."
+    )
+    public int layerWidth;
+
+    @Option(name = "fanout", defaultValue = "4", help = "The number of dependencies per node.")
+    public int fanout;
+
+    @Option(
+      name = "threads",
+      defaultValue = "8",
+      help = "The number of threads that expand the frontiers in the parallel runs."
+    )
+    public int threads;
+
+    @Option(
+      name = "min_parallel_frontier_size",
+      defaultValue = "1000",
+      help = "Frontiers with fewer nodes than this are expanded on the calling thread."
+    )
+    public int minParallelFrontierSize;
+
+    @Option(
+      name = "work_per_target",
+      defaultValue = "20",
+      help = "The number of hash rounds done for each visited edge."
+    )
+    public int workPerTarget;
+
+    @Option(
+      name = "warmup_iterations",
+      defaultValue = "2",
+      help = "The number of iterations to run before measuring."
+    )
+    public int warmupIterations;
+
+    @Option(name = "iterations", defaultValue = "5", help = "The number of measured iterations.")
+    public int iterations;
+
+    @Option(name = "seed", defaultValue = "42", help = "The seed for generating the graph.")
+    public long seed;
+  }
+
+  private final BenchmarkOptions options;
+  private final int width;
+  private final int[][] deps;
+  private final int[][] rdeps;
+  // Written by the expansions so that the JIT cannot drop the simulated work.
+  private volatile long sink;
+
+  private FrontierExpansionBenchmark(BenchmarkOptions options) {
+    this.options = options;
+    Random random = new Random(options.seed);
+    width = Math.min(options.layerWidth, options.nodes);
+    deps = new int[options.nodes][];
+    int[] rdepCounts = new int[options.nodes];
+    for (int i = 0; i < options.nodes; i++) {
+      int nextLayer = (i / width + 1) * width;
+      if (nextLayer >= options.nodes) {
+        deps[i] = new int[0];
+        continue;
+      }
+      int nextWidth = Math.min(width, options.nodes - nextLayer);
+      deps[i] = new int[options.fanout];
+      for (int j = 0; j < options.fanout; j++) {
+        deps[i][j] = nextLayer + random.nextInt(nextWidth);
+        rdepCounts[deps[i][j]]++;
+      }
+    }
+    rdeps = new int[options.nodes][];
+    for (int i = 0; i < options.nodes; i++) {
+      rdeps[i] = new int[rdepCounts[i]];
+    }
+    for (int i = 0; i < options.nodes; i++) {
+      for (int dep : deps[i]) {
+        rdeps[dep][--rdepCounts[dep]] = i;
+      }
+    }
+  }
+
+  /** Returns the function that collects the edges of a part of a frontier. */
+  private Function<List<Integer>, List<Integer>> expansion(final int[][] edges) {
+    return new Function<List<Integer>, List<Integer>>() {
+      @Override
+      public List<Integer> apply(List<Integer> part) {
+        List<Integer> next = new ArrayList<>();
+        long hash = 0;
+        for (int node : part) {
+          for (int edge : edges[node]) {
+            for (int i = 0; i < options.workPerTarget; i++) {
+              hash = hash * 31 + Long.rotateLeft(hash ^ edge, 7);
+            }
+            next.add(edge);
+          }
+        }
+        sink += hash;
+        return next;
+      }
+    };
+  }
+
+  /** Visits every node reachable from the start nodes and returns the number visited. */
+  private int walk(int start, int end, int[][] edges, ForkJoinPool pool) {
+    Function<List<Integer>, List<Integer>> expansion = expansion(edges);
+    BitSet visited = new BitSet(options.nodes);
+    List<Integer> frontier = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      visited.set(i);
+      frontier.add(i);
+    }
+    int count = frontier.size();
+    while (!frontier.isEmpty()) {
+      List<Integer> next = new ArrayList<>();
+      for (List<Integer> part :
+          SkyQueryEnvironment.mapInParallel(
+              frontier, expansion, pool, options.minParallelFrontierSize)) {
+        for (int node : part) {
+          if (!visited.get(node)) {
+            visited.set(node);
+            next.add(node);
+          }
+        }
+      }
+      count += next.size();
+      frontier = next;
+    }
+    return count;
+  }
+
+  /** Runs one iteration and returns the elapsed nanoseconds of the deps and rdeps walks. */
+  private long[] runIteration(ForkJoinPool pool) {
+    int bottomLayer = (options.nodes - 1) / width * width;
+    long start = System.nanoTime();
+    walk(0, Math.min(width, options.nodes), deps, pool);
+    long depsNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    walk(bottomLayer, options.nodes, rdeps, pool);
+    return new long[] {depsNanos, System.nanoTime() - start};
+  }
+
+  private static String summarize(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return String.format(
+        "min %.1f ms, median %.1f ms, max %.1f ms",
+        sorted[0] / 1e6,
+        sorted[sorted.length / 2] / 1e6,
+        sorted[sorted.length - 1] / 1e6);
+  }
+
+  private void measure(int threads) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      for (int i = 0; i < options.warmupIterations; i++) {
+        runIteration(pool);
+      }
+      long[] depsNanos = new long[options.iterations];
+      long[] rdepsNanos = new long[options.iterations];
+      for (int i = 0; i < options.iterations; i++) {
+        long[] result = runIteration(pool);
+        depsNanos[i] = result[0];
+        rdepsNanos[i] = result[1];
+      }
+      System.out.printf("%2d threads, deps:        %s%n", threads, summarize(depsNanos));
+      System.out.printf("%2d threads, rdeps:       %s%n", threads, summarize(rdepsNanos));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void run() {
+    System.out.printf(
+        "graph: %d nodes in layers of %d, %d deps per node%n",
+        options.nodes, width, options.fanout);
+    measure(1);
+    measure(options.threads);
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(BenchmarkOptions.class);
+    parser.parse(args);
+    BenchmarkOptions options = parser.getOptions(BenchmarkOptions.class);
+    if (options.nodes < 1
+        || options.layerWidth < 1
+        || options.iterations < 1
+        || options.threads < 1) {
+      System.err.println("--nodes, --layer_width, --iterations and --threads must be positive");
+      System.exit(2);
+    }
+    new FrontierExpansionBenchmark(options).run();
+  }
+}
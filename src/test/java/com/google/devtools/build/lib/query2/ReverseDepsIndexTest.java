@@ -0,0 +1,280 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.packages.Attribute.attr;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.analysis.BaseRuleClasses;
+import com.google.devtools.build.lib.analysis.RuleDefinition;
+import com.google.devtools.build.lib.analysis.RuleDefinitionEnvironment;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.BuildType;
+import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.RuleClass;
+import com.google.devtools.build.lib.packages.RuleClass.Builder;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllCallback;
+import com.google.devtools.build.lib.testutil.UnknownRuleConfiguredTarget;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Tests for {@link ReverseDepsIndex} and the {@code rdeps} that uses it. */
+@RunWith(JUnit4.class)
+public class ReverseDepsIndexTest extends PackageLoadingTestCase {
+
+  private Package getPackage(String name) throws Exception {
+    return getPackageManager().getPackage(reporter, PackageIdentifier.createInMainRepo(name));
+  }
+
+  /** A rule with an implicit dependency on a package that //... does not match. */
+  private static final class RuleWithTool implements RuleDefinition {
+    @Override
+    public RuleClass build(Builder builder, RuleDefinitionEnvironment env) {
+      return builder
+          .setUndocumented()
+          .add(attr("$tool", BuildType.LABEL)
+              .value(Label.parseAbsoluteUnchecked("//tools/defaults:tool")))
+          .build();
+    }
+
+    @Override
+    public Metadata getMetadata() {
+      return RuleDefinition.Metadata.builder()
+          .name("rule_with_tool")
+          .ancestors(BaseRuleClasses.RuleBase.class)
+          .factoryClass(UnknownRuleConfiguredTarget.class)
+          .build();
+    }
+  }
+
+  @Override
+  protected List<RuleDefinition> getExtraRules() {
+    return ImmutableList.<RuleDefinition>of(new RuleWithTool());
+  }
+
+  private void update(ReverseDepsIndex index, String... packageNames) throws Exception {
+    List<Package> packages = new ArrayList<>();
+    for (String name : packageNames) {
+      packages.add(getPackage(name));
+    }
+    index.update(packages, getPackageManager(), reporter);
+  }
+
+  private ReverseDepsIndex index(String... packageNames) throws Exception {
+    ReverseDepsIndex index = new ReverseDepsIndex();
+    update(index, packageNames);
+    return index;
+  }
+
+  /** Returns the reverse dependencies as strings, each with its dependencies in the result. */
+  private static Map<String, Set<String>> rdeps(
+      ReverseDepsIndex index, int depth, String... labels) throws Exception {
+    List<Label> targets = new ArrayList<>();
+    for (String label : labels) {
+      targets.add(Label.parseAbsolute(label));
+    }
+    Map<String, Set<String>> result = new HashMap<>();
+    for (Map.Entry<Label, Collection<Label>> entry :
+        index.getReverseDeps(targets, depth).entrySet()) {
+      Set<String> deps = new HashSet<>();
+      for (Label dep : entry.getValue()) {
+        deps.add(dep.toString());
+      }
+      result.put(entry.getKey().toString(), deps);
+    }
+    return result;
+  }
+
+  private void writeChain() throws Exception {
+    scratch.file("c/BUILD", "filegroup(name = 'c', srcs = ['c.txt'])");
+    scratch.file("b/BUILD", "filegroup(name = 'b', srcs = ['//c'])");
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['//b'])", "filegroup(name = 'a2')");
+  }
+
+  @Test
+  public void reverseDepsAreFollowedUpToTheDepth() throws Exception {
+    writeChain();
+    ReverseDepsIndex index = index("a", "b", "c");
+    assertThat(rdeps(index, 0, "//c:c").keySet()).containsExactly("//c:c");
+    assertThat(rdeps(index, 1, "//c:c").keySet()).containsExactly("//c:c", "//b:b");
+    assertThat(rdeps(index, Integer.MAX_VALUE, "//c:c.txt").keySet())
+        .containsExactly("//c:c.txt", "//c:c", "//b:b", "//a:a");
+  }
+
+  @Test
+  public void reverseDepsArePairedWithTheirDepsInTheResult() throws Exception {
+    writeChain();
+    Map<String, Set<String>> result = rdeps(index("a", "b", "c"), 1, "//b:b", "//c:c");
+    assertThat(result.get("//a:a")).containsExactly("//b:b");
+    assertThat(result.get("//b:b")).containsExactly("//c:c");
+    // //c:c.txt is not in the result.
+    assertThat(result.get("//c:c")).isEmpty();
+  }
+
+  @Test
+  public void onlyTargetsInTheClosureOfTheRulesAreFound() throws Exception {
+    scratch.file(
+        "a/BUILD", "exports_files(['unused.txt'])", "filegroup(name = 'a', srcs = ['used.txt'])");
+    ReverseDepsIndex index = index("a");
+    assertThat(rdeps(index, 1, "//a:used.txt").keySet()).containsExactly("//a:used.txt", "//a:a");
+    assertThat(rdeps(index, 1, "//a:unused.txt")).isEmpty();
+    assertThat(rdeps(index, 1, "//a:unknown")).isEmpty();
+  }
+
+  @Test
+  public void packageGroupIncludeCyclesAreInTheClosure() throws Exception {
+    scratch.file(
+        "a/BUILD",
+        "package_group(name = 'g1', includes = [':g2'])",
+        "package_group(name = 'g2', includes = [':g1'])",
+        "filegroup(name = 'a', visibility = [':g1'])");
+    ReverseDepsIndex index = index("a");
+    assertThat(rdeps(index, 0, "//a:g1", "//a:g2").keySet()).containsExactly("//a:g1", "//a:g2");
+    assertThat(rdeps(index, 0, "//a:g2", "//a:g1").keySet()).containsExactly("//a:g1", "//a:g2");
+    assertThat(rdeps(index, Integer.MAX_VALUE, "//a:g2").keySet())
+        .containsExactly("//a:g1", "//a:g2", "//a:a");
+  }
+
+  @Test
+  public void updateFollowsChangedAndRemovedPackages() throws Exception {
+    writeChain();
+    ReverseDepsIndex index = index("a", "b", "c");
+    assertThat(index.getPackageCount()).isEqualTo(3);
+
+    scratch.overwriteFile(
+        "a/BUILD", "filegroup(name = 'a')", "filegroup(name = 'a2', srcs = ['//b'])");
+    invalidatePackages();
+    update(index, "a", "b", "c");
+    assertThat(rdeps(index, 1, "//b:b").keySet()).containsExactly("//b:b", "//a:a2");
+
+    update(index, "b", "c");
+    assertThat(index.getPackageCount()).isEqualTo(2);
+    assertThat(rdeps(index, Integer.MAX_VALUE, "//c:c").keySet())
+        .containsExactly("//c:c", "//b:b");
+  }
+
+  @Test
+  public void packagesOutsideTheUniverseAreIndexedButAreNotPartOfIt() throws Exception {
+    writeChain();
+    ReverseDepsIndex index = index("a");
+    assertThat(index.getPackageCount()).isEqualTo(3);
+    assertThat(rdeps(index, Integer.MAX_VALUE, "//c:c.txt").keySet())
+        .containsExactly("//c:c.txt", "//c:c", "//b:b", "//a:a");
+
+    // //a:a2 is only in the closure of the universe through a rule of it.
+    scratch.overwriteFile("c/BUILD", "filegroup(name = 'c', srcs = ['//a:a2'])");
+    invalidatePackages();
+    update(index, "c");
+    // //b is indexed because //a depends on it, though not through //a:a2.
+    assertThat(index.getPackageCount()).isEqualTo(3);
+    assertThat(rdeps(index, Integer.MAX_VALUE, "//a:a2").keySet())
+        .containsExactly("//a:a2", "//c:c");
+    assertThat(rdeps(index, 0, "//a:a")).isEmpty();
+  }
+
+  @Test
+  public void numbersOfRemovedLabelsAreReclaimed() throws Exception {
+    ReverseDepsIndex index = new ReverseDepsIndex();
+    for (int i = 0; i < 20; i++) {
+      scratch.overwriteFile(
+          "a/BUILD", "filegroup(name = 'a" + i + "', srcs = ['a" + i + ".txt'])");
+      invalidatePackages();
+      update(index, "a");
+      assertThat(rdeps(index, 1, "//a:a" + i + ".txt").keySet())
+          .containsExactly("//a:a" + i + ".txt", "//a:a" + i);
+      // Twice the labels of the rule, its source file and the BUILD file.
+      assertThat(index.getLabelCount()).isAtMost(6);
+    }
+  }
+
+  private Set<String> query(String query, ReverseDepsIndex index) throws Exception {
+    BlazeQueryEnvironment env =
+        new BlazeQueryEnvironment(
+            skyframeExecutor.pkgLoader(),
+            getPackageManager(),
+            getPackageManager().newTargetPatternEvaluator(),
+            /*keepGoing=*/ false,
+            /*strictScope=*/ true,
+            /*loadingPhaseThreads=*/ 4,
+            Rule.ALL_LABELS,
+            reporter,
+            ImmutableSet.<Setting>of(),
+            ImmutableList.<QueryFunction>of());
+    env.setReverseDepsIndex(index);
+    AggregateAllCallback<Target> callback = new AggregateAllCallback<>();
+    env.evaluateQuery(env.transformParsedQuery(QueryExpression.parse(query, env)), callback);
+    Set<String> labels = new HashSet<>();
+    for (Target target : callback.getResult()) {
+      labels.add(target.getLabel().toString());
+    }
+    return labels;
+  }
+
+  @Test
+  public void indexedRdepsGivesTheSameResultsAsRdeps() throws Exception {
+    writeChain();
+    scratch.file(
+        "d/BUILD",
+        "package_group(name = 'g1', includes = [':g2'])",
+        "package_group(name = 'g2', packages = ['//d'])",
+        "filegroup(name = 'd', srcs = ['//a', '//c:c.txt'], visibility = [':g1'])",
+        "exports_files(['unused.txt'])");
+    ReverseDepsIndex index = new ReverseDepsIndex();
+    for (String target :
+        ImmutableList.of("//c:c.txt", "//c:c", "//a:a2", "//d:g2", "//d:unused.txt")) {
+      for (String depth : ImmutableList.of("", ", 0", ", 1", ", 2")) {
+        String query = "rdeps(//..., " + target + depth + ")";
+        assertThat(query(query, index)).named(query).containsExactlyElementsIn(query(query, null));
+      }
+    }
+  }
+
+  @Test
+  public void pathsThroughImplicitDependenciesOutsideTheUniverseAreFollowed() throws Exception {
+    setUpSkyframe(
+        ConstantRuleVisibility.PUBLIC,
+        "package(default_visibility = ['//visibility:public'])\n"
+            + "filegroup(name = 'tool', srcs = ['//c'])\n"
+            + "filegroup(name = 'unused')\n");
+    writeChain();
+    scratch.file("d/BUILD", "rule_with_tool(name = 'd')");
+    ReverseDepsIndex index = new ReverseDepsIndex();
+    String query = "rdeps(//..., //c:c)";
+    assertThat(query(query, index))
+        .containsExactly("//c:c", "//b:b", "//a:a", "//tools/defaults:tool", "//d:d");
+    assertThat(query(query, null)).containsExactlyElementsIn(query(query, index));
+    assertThat(query("rdeps(//..., //tools/defaults:unused)", index)).isEmpty();
+    assertThat(index.getPackageCount()).isEqualTo(5);
+  }
+}
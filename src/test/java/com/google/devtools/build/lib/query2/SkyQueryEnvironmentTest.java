@@ -0,0 +1,198 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/** Tests for the parallel frontier expansion of {@link SkyQueryEnvironment}. */
+@RunWith(JUnit4.class)
+public class SkyQueryEnvironmentTest extends PackageLoadingTestCase {
+  private static final int TARGETS_PER_PACKAGE = 20;
+
+  @Before
+  public final void writeBuildFiles() throws Exception {
+    List<String> bRules = new ArrayList<>();
+    List<String> aRules = new ArrayList<>();
+    for (int i = 0; i < TARGETS_PER_PACKAGE; i++) {
+      bRules.add("filegroup(name = 'b" + i + "')");
+      // Every a target depends on one b target, and the even ones also on the next a target.
+      aRules.add(
+          "filegroup(name = 'a" + i + "', srcs = ['//b:b" + i + "'"
+              + (i % 2 == 0 && i + 1 < TARGETS_PER_PACKAGE ? ", ':a" + (i + 1) + "'" : "")
+              + "])");
+    }
+    scratch.file("b/BUILD", bRules.toArray(new String[0]));
+    scratch.file("a/BUILD", aRules.toArray(new String[0]));
+  }
+
+  private Set<String> eval(String query, int parallelism) throws Exception {
+    SkyQueryEnvironment env =
+        new SkyQueryEnvironment(
+            /*keepGoing=*/ false,
+            /*loadingPhaseThreads=*/ 4,
+            reporter,
+            ImmutableSet.<Setting>of(),
+            ImmutableList.<QueryFunction>of(),
+            /*parserPrefix=*/ "",
+            skyframeExecutor,
+            ImmutableList.of("//..."),
+            getPackageManager().getPackagePath());
+    try {
+      env.setFrontierParallelism(parallelism, /*minParallelFrontierSize=*/ 2);
+      AggregateAllCallback<Target> callback = new AggregateAllCallback<>();
+      env.evaluateQuery(query, callback);
+      Set<String> labels = new HashSet<>();
+      for (Target target : callback.getResult()) {
+        labels.add(target.getLabel().toString());
+      }
+      return labels;
+    } finally {
+      env.close();
+    }
+  }
+
+  /** Checks that the parallel evaluation of the query gives the same result as the serial one. */
+  private Set<String> assertParallelResultIsTheSame(String query) throws Exception {
+    Set<String> serial = eval(query, 1);
+    assertThat(eval(query, 4)).containsExactlyElementsIn(serial);
+    return serial;
+  }
+
+  private static Set<String> labels(String pkg, int from, int to) {
+    Set<String> labels = new HashSet<>();
+    for (int i = from; i < to; i++) {
+      labels.add("//" + pkg + ":" + pkg + i);
+    }
+    return labels;
+  }
+
+  @Test
+  public void parallelGetFwdDeps() throws Exception {
+    Set<String> expected = labels("a", 0, TARGETS_PER_PACKAGE);
+    expected.addAll(labels("b", 0, TARGETS_PER_PACKAGE));
+    assertThat(assertParallelResultIsTheSame("deps(//a:all, 1)")).containsExactlyElementsIn(
+        expected);
+    assertThat(assertParallelResultIsTheSame("deps(//a:a0)"))
+        .containsExactly("//a:a0", "//a:a1", "//b:b0", "//b:b1");
+  }
+
+  @Test
+  public void parallelGetReverseDeps() throws Exception {
+    Set<String> expected = labels("a", 0, TARGETS_PER_PACKAGE);
+    expected.addAll(labels("b", 0, TARGETS_PER_PACKAGE));
+    assertThat(assertParallelResultIsTheSame("rdeps(//..., //b:all, 1)"))
+        .containsExactlyElementsIn(expected);
+    // The odd a targets are split over the partitions of the frontier, and the parent of each one
+    // must be found through the partition that holds it.
+    Set<String> odd = new HashSet<>();
+    for (int i = 1; i < TARGETS_PER_PACKAGE; i += 2) {
+      odd.add("//a:a" + i);
+      odd.add("//a:a" + (i - 1));
+    }
+    assertThat(assertParallelResultIsTheSame("rdeps(//..., " + oddSet() + ", 1)"))
+        .containsExactlyElementsIn(odd);
+  }
+
+  @Test
+  public void parallelAllRdeps() throws Exception {
+    Set<String> expected = labels("a", 0, TARGETS_PER_PACKAGE);
+    expected.addAll(labels("b", 0, TARGETS_PER_PACKAGE));
+    assertThat(assertParallelResultIsTheSame("rdeps(//..., //b:all)"))
+        .containsExactlyElementsIn(expected);
+  }
+
+  @Test
+  public void mapInParallelKeepsTheOrderOfTheParts() throws Exception {
+    List<Integer> numbers = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      numbers.add(i);
+    }
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      List<List<Integer>> parts =
+          SkyQueryEnvironment.mapInParallel(
+              numbers,
+              new Function<List<Integer>, List<Integer>>() {
+                @Override
+                public List<Integer> apply(List<Integer> part) {
+                  return part;
+                }
+              },
+              pool,
+              /*minParallelSize=*/ 2);
+      assertThat(parts).hasSize(3);
+      List<Integer> concatenated = new ArrayList<>();
+      for (List<Integer> part : parts) {
+        concatenated.addAll(part);
+      }
+      assertThat(concatenated).containsExactlyElementsIn(numbers).inOrder();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void mapInParallelPropagatesExceptions() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      SkyQueryEnvironment.mapInParallel(
+          ImmutableList.of(1, 2, 3, 4),
+          new Function<List<Integer>, Integer>() {
+            @Override
+            public Integer apply(List<Integer> part) {
+              if (part.contains(4)) {
+                throw new IllegalStateException("part " + part);
+              }
+              return part.size();
+            }
+          },
+          pool,
+          /*minParallelSize=*/ 2);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("part [3, 4]");
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static String oddSet() {
+    StringBuilder set = new StringBuilder("set(");
+    for (int i = 1; i < TARGETS_PER_PACKAGE; i += 2) {
+      set.append(" //a:a").append(i);
+    }
+    return set.append(")").toString();
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.query2.engine.Lexer.TokenKind;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllCallback;
+import com.google.devtools.build.lib.testutil.TestThread;
+import com.google.devtools.build.lib.testutil.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Tests for the concurrent evaluation of {@link BinaryOperatorExpression}. */
+@RunWith(JUnit4.class)
+public class BinaryOperatorExpressionTest {
+
+  /** The behaviour of one operand, keyed by its pattern. */
+  private interface Operand {
+    Set<String> eval() throws QueryException, InterruptedException;
+  }
+
+  private final Map<String, Operand> operands = new HashMap<>();
+  private QueryEnvironment<String> env;
+  private ListeningExecutorService executor;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public final void createEnvironment() throws Exception {
+    env = mock(QueryEnvironment.class);
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) throws Throwable {
+                TargetLiteral literal = (TargetLiteral) invocation.getArguments()[0];
+                Callback<String> callback = (Callback<String>) invocation.getArguments()[1];
+                callback.process(operands.get(literal.getPattern()).eval());
+                return null;
+              }
+            })
+        .when(env)
+        .eval(any(QueryExpression.class), any(Callback.class));
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+  }
+
+  @After
+  public final void shutDownExecutor() throws Exception {
+    executor.shutdownNow();
+  }
+
+  private Set<String> evalConcurrently(TokenKind operator, String... patterns)
+      throws QueryException, InterruptedException {
+    ImmutableList.Builder<QueryExpression> literals = ImmutableList.builder();
+    for (String pattern : patterns) {
+      literals.add(new TargetLiteral(pattern));
+    }
+    AggregateAllCallback<String> callback = new AggregateAllCallback<>();
+    new BinaryOperatorExpression(operator, literals.build())
+        .evalConcurrently(env, callback, executor);
+    return callback.getResult();
+  }
+
+  /** Returns an operand that only completes once all operands meeting at {@code barrier} run. */
+  private static Operand meetingAt(final CyclicBarrier barrier, final String... targets) {
+    return new Operand() {
+      @Override
+      public Set<String> eval() throws InterruptedException {
+        try {
+          barrier.await(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+          throw new AssertionError("operands were not evaluated at the same time", e);
+        }
+        return ImmutableSet.copyOf(targets);
+      }
+    };
+  }
+
+  /** Returns an operand that blocks until it is interrupted, and records the interruption. */
+  private static Operand blockingUntilInterrupted(
+      final CountDownLatch started, final CountDownLatch interrupted) {
+    return new Operand() {
+      @Override
+      public Set<String> eval() throws InterruptedException {
+        started.countDown();
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw e;
+        }
+        throw new AssertionError();
+      }
+    };
+  }
+
+  @Test
+  public void intersectEvaluatesItsOperandsConcurrently() throws Exception {
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    operands.put("a", meetingAt(barrier, "x", "y", "z"));
+    operands.put("b", meetingAt(barrier, "y", "z", "w"));
+    assertThat(evalConcurrently(TokenKind.INTERSECT, "a", "b")).containsExactly("y", "z");
+  }
+
+  @Test
+  public void exceptEvaluatesItsOperandsConcurrently() throws Exception {
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    operands.put("a", meetingAt(barrier, "x", "y", "z"));
+    operands.put("b", meetingAt(barrier, "y"));
+    assertThat(evalConcurrently(TokenKind.EXCEPT, "a", "b")).containsExactly("x", "z");
+  }
+
+  private void assertFailingOperandCancelsTheOthers(TokenKind operator) throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    operands.put("slow", blockingUntilInterrupted(started, interrupted));
+    operands.put(
+        "bad",
+        new Operand() {
+          @Override
+          public Set<String> eval() throws QueryException, InterruptedException {
+            started.await();
+            throw new QueryException("bad operand");
+          }
+        });
+    try {
+      evalConcurrently(operator, "slow", "bad");
+      fail();
+    } catch (QueryException e) {
+      assertThat(e).hasMessage("bad operand");
+    }
+    assertThat(interrupted.await(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void failingOperandCancelsTheOthersInExcept() throws Exception {
+    assertFailingOperandCancelsTheOthers(TokenKind.EXCEPT);
+  }
+
+  @Test
+  public void failingOperandCancelsTheOthersInUnion() throws Exception {
+    assertFailingOperandCancelsTheOthers(TokenKind.UNION);
+  }
+
+  @Test
+  public void interruptCancelsTheOperands() throws Exception {
+    final CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch interrupted = new CountDownLatch(2);
+    operands.put("a", blockingUntilInterrupted(started, interrupted));
+    operands.put("b", blockingUntilInterrupted(started, interrupted));
+    final Thread caller = Thread.currentThread();
+    TestThread interrupter =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            started.await();
+            caller.interrupt();
+          }
+        };
+    interrupter.start();
+    try {
+      evalConcurrently(TokenKind.INTERSECT, "a", "b");
+      fail();
+    } catch (InterruptedException expected) {
+      // Expected.
+    }
+    interrupter.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    assertThat(interrupted.await(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Tests that the proto and xml formatters write the same output whether the targets arrive in one
+ * batch or in many, as they do when a query streams its result.
+ */
+@RunWith(JUnit4.class)
+public class StreamedOutputFormatterTest {
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+  private List<Target> targets;
+
+  @Before
+  public final void createTargets() throws Exception {
+    Path buildFile =
+        scratch.file(
+            "pkg/BUILD",
+            "genrule(name = 'gen', srcs = ['in.txt'], outs = ['out.txt'], cmd = 'echo ü > $@')",
+            "cc_library(name = 'lib', srcs = ['lib.cc'], deps = [':dep'])",
+            "cc_library(name = 'dep', hdrs = ['dep.h'])");
+    targets = ImmutableList.copyOf(packages.createPackage("pkg", buildFile).getTargets());
+    assertThat(targets.size()).isGreaterThan(4);
+  }
+
+  private static byte[] format(AbstractUnorderedFormatter formatter, List<List<Target>> batches)
+      throws Exception {
+    formatter.setOptions(Options.getDefaults(QueryOptions.class), new NullAspectResolver());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    OutputFormatterCallback<Target> callback = formatter.createStreamCallback(out);
+    callback.start();
+    for (List<Target> batch : batches) {
+      callback.process(batch);
+    }
+    callback.close();
+    return bytes.toByteArray();
+  }
+
+  private List<List<Target>> oneByOne() {
+    List<List<Target>> batches = Lists.newArrayList(Lists.partition(targets, 1));
+    batches.add(1, ImmutableList.<Target>of());
+    return batches;
+  }
+
+  @Test
+  public void streamedXmlIsLaidOutLikeTheWholeDocument() throws Exception {
+    byte[] whole = format(new XmlOutputFormatter(), ImmutableList.of(targets));
+    byte[] streamed = format(new XmlOutputFormatter(), oneByOne());
+    assertThat(new String(streamed, UTF_8)).isEqualTo(new String(whole, UTF_8));
+
+    Document doc =
+        DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(new ByteArrayInputStream(streamed));
+    assertThat(doc.getDocumentElement().getTagName()).isEqualTo("query");
+    assertThat(doc.getDocumentElement().getElementsByTagName("rule").getLength()).isEqualTo(3);
+    assertThat(new String(streamed, UTF_8)).contains("echo ü &gt; $@");
+  }
+
+  @Test
+  public void emptyXmlResultIsAnEmptyQueryElement() throws Exception {
+    String xml =
+        new String(
+            format(new XmlOutputFormatter(), ImmutableList.of(ImmutableList.<Target>of())), UTF_8);
+    assertThat(xml).contains("<query version=\"2\"/>");
+    assertThat(xml).doesNotContain("</query>");
+  }
+
+  @Test
+  public void streamedProtoIsTheWholeQueryResult() throws Exception {
+    byte[] streamed = format(new ProtoOutputFormatter(), oneByOne());
+    QueryResult result = QueryResult.parseFrom(streamed);
+    assertThat(result.getTargetCount()).isEqualTo(targets.size());
+    // The bytes that the formatter wrote when it built the whole message before writing it.
+    assertThat(result.toByteArray()).isEqualTo(streamed);
+    assertThat(format(new ProtoOutputFormatter(), ImmutableList.of(targets))).isEqualTo(streamed);
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Tests for {@link LocalDiskActionCache}. */
+@RunWith(JUnit4.class)
+public class LocalDiskActionCacheTest {
+  private static final long MAX_SIZE = 1024 * 1024;
+
+  private Path execRoot;
+  private Path cacheDir;
+
+  @Before
+  public final void createDirectories() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem(BlazeClock.instance());
+    execRoot = fs.getPath("/exec/root");
+    cacheDir = fs.getPath("/disk_cache");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+  }
+
+  private void writeOutput(Path root, String name, String content, boolean executable)
+      throws Exception {
+    Path file = root.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(file, content);
+    file.setExecutable(executable);
+  }
+
+  private static String readOutput(Path root, String name) throws Exception {
+    return new String(FileSystemUtils.readContentAsLatin1(root.getRelative(name)));
+  }
+
+  private static ImmutableList<ActionInput> outputs(String... names) {
+    ImmutableList.Builder<ActionInput> outputs = ImmutableList.builder();
+    for (String name : names) {
+      outputs.add(ActionInputHelper.fromPath(name));
+    }
+    return outputs.build();
+  }
+
+  @Test
+  public void actionOutputIsRestoredWithoutRemoteCache() throws Exception {
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, MAX_SIZE, null);
+    writeOutput(execRoot, "out/lib.a", "library", false);
+    writeOutput(execRoot, "out/tool", "#!/bin/sh", true);
+    cache.putActionOutput("action", outputs("out/lib.a", "out/tool"), new RemoteCacheStats());
+
+    Path otherRoot = execRoot.getRelative("other");
+    cache.writeActionOutput("action", otherRoot, new RemoteCacheStats());
+    assertThat(readOutput(otherRoot, "out/lib.a")).isEqualTo("library");
+    assertThat(readOutput(otherRoot, "out/tool")).isEqualTo("#!/bin/sh");
+    assertThat(otherRoot.getRelative("out/lib.a").isExecutable()).isFalse();
+    assertThat(otherRoot.getRelative("out/tool").isExecutable()).isTrue();
+
+    try {
+      cache.writeActionOutput("other_action", otherRoot, new RemoteCacheStats());
+      fail();
+    } catch (CacheNotFoundException expected) {
+    }
+  }
+
+  @Test
+  public void entriesSurviveRestart() throws Exception {
+    writeOutput(execRoot, "out/file", "contents", false);
+    new LocalDiskActionCache(execRoot, cacheDir, MAX_SIZE, null)
+        .putActionOutput("action", outputs("out/file"), new RemoteCacheStats());
+
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, MAX_SIZE, null);
+    assertThat(cache.getSizeBytes()).isGreaterThan(0L);
+    execRoot.getRelative("out/file").delete();
+    cache.writeActionOutput("action", execRoot, new RemoteCacheStats());
+    assertThat(readOutput(execRoot, "out/file")).isEqualTo("contents");
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+    char[] content = new char[400];
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, 1000, null);
+    for (char c : new char[] {'a', 'b', 'c'}) {
+      Arrays.fill(content, c);
+      writeOutput(execRoot, "out/" + c, new String(content), false);
+    }
+    String a = cache.putFileIfNotExist(execRoot.getRelative("out/a"));
+    String b = cache.putFileIfNotExist(execRoot.getRelative("out/b"));
+    // Using "a" makes "b" the least recently used entry.
+    cache.writeFile(a, execRoot.getRelative("a_copy"), false);
+    String c = cache.putFileIfNotExist(execRoot.getRelative("out/c"));
+
+    assertThat(cache.getSizeBytes()).isAtMost(1000L);
+    assertThat(cache.containsKeys(ImmutableList.of(a, b, c), new RemoteCacheStats()))
+        .containsExactly(a, c);
+  }
+
+  @Test
+  public void remoteHitsAreStoredLocally() throws Exception {
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    MemcacheActionCache remote =
+        new MemcacheActionCache(execRoot, Options.getDefaults(RemoteOptions.class), map);
+    writeOutput(execRoot, "out/file", "remote contents", true);
+    remote.putActionOutput("action", outputs("out/file"), new RemoteCacheStats());
+
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, MAX_SIZE, remote);
+    Path otherRoot = execRoot.getRelative("other");
+    RemoteCacheStats stats = new RemoteCacheStats();
+    cache.writeActionOutput("action", otherRoot, stats);
+    assertThat(readOutput(otherRoot, "out/file")).isEqualTo("remote contents");
+    assertThat(stats.getBytesDownloaded()).isGreaterThan(0L);
+    assertThat(stats.getHits()).isEqualTo(2);
+
+    // The second hit is served without the remote cache.
+    map.clear();
+    Path thirdRoot = execRoot.getRelative("third");
+    stats = new RemoteCacheStats();
+    cache.writeActionOutput("action", thirdRoot, stats);
+    assertThat(readOutput(thirdRoot, "out/file")).isEqualTo("remote contents");
+    assertThat(thirdRoot.getRelative("out/file").isExecutable()).isTrue();
+    assertThat(stats.getRoundTrips()).isEqualTo(0);
+    // One hit for the action output entry and one for the file.
+    assertThat(stats.getHits()).isEqualTo(2);
+    assertThat(stats.getMisses()).isEqualTo(0);
+  }
+
+  @Test
+  public void putsAreWrittenThrough() throws Exception {
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    MemcacheActionCache remote =
+        new MemcacheActionCache(execRoot, Options.getDefaults(RemoteOptions.class), map);
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, MAX_SIZE, remote);
+    writeOutput(execRoot, "out/file", "contents", false);
+    cache.putActionOutput("action", outputs("out/file"), new RemoteCacheStats());
+
+    Path otherRoot = execRoot.getRelative("other");
+    remote.writeActionOutput("action", otherRoot, new RemoteCacheStats());
+    assertThat(FileSystemUtils.readContent(otherRoot.getRelative("out/file")))
+        .isEqualTo("contents".getBytes(ISO_8859_1));
+  }
+
+  @Test
+  public void hitsDoNotTouchStoredFiles() throws Exception {
+    ManualClock clock = new ManualClock();
+    InMemoryFileSystem fs = new InMemoryFileSystem(clock);
+    execRoot = fs.getPath("/exec/root");
+    cacheDir = fs.getPath("/disk_cache");
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, MAX_SIZE, null);
+    writeOutput(execRoot, "out/file", "contents", false);
+    String key = cache.putFileIfNotExist(execRoot.getRelative("out/file"));
+    Path blob = cacheDir.getRelative("cas/" + key);
+    long storedTime = blob.getLastModifiedTime();
+
+    clock.advanceMillis(1000);
+    Path restored = execRoot.getRelative("restored");
+    cache.writeFile(key, restored, false);
+    long restoredTime = restored.getLastModifiedTime();
+    clock.advanceMillis(1000);
+    cache.containsKeys(ImmutableList.of(key), new RemoteCacheStats());
+    cache.putFileIfNotExist(execRoot.getRelative("out/file"));
+    cache.writeFile(key, execRoot.getRelative("restored_again"), false);
+
+    assertThat(blob.getLastModifiedTime()).isEqualTo(storedTime);
+    assertThat(restored.getLastModifiedTime()).isEqualTo(restoredTime);
+  }
+
+  @Test
+  public void savedAccessOrderSurvivesRestart() throws Exception {
+    char[] content = new char[400];
+    LocalDiskActionCache cache = new LocalDiskActionCache(execRoot, cacheDir, 1000, null);
+    for (char c : new char[] {'a', 'b', 'c'}) {
+      Arrays.fill(content, c);
+      writeOutput(execRoot, "out/" + c, new String(content), false);
+    }
+    String a = cache.putFileIfNotExist(execRoot.getRelative("out/a"));
+    String b = cache.putFileIfNotExist(execRoot.getRelative("out/b"));
+    // Using "a" makes "b" the least recently used entry, also for the next server.
+    cache.writeFile(a, execRoot.getRelative("a_copy"), false);
+    cache.saveAccessOrder();
+
+    cache = new LocalDiskActionCache(execRoot, cacheDir, 1000, null);
+    String c = cache.putFileIfNotExist(execRoot.getRelative("out/c"));
+    assertThat(cache.containsKeys(ImmutableList.of(a, b, c), new RemoteCacheStats()))
+        .containsExactly(a, c);
+  }
+}
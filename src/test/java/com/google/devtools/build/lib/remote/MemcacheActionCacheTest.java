@@ -0,0 +1,234 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Tests for {@link MemcacheActionCache}, backed by an in-memory map. */
+@RunWith(JUnit4.class)
+public class MemcacheActionCacheTest {
+  private static final int CHUNK_SIZE = MemcacheActionCache.CHUNK_SIZE_BYTES;
+
+  private ConcurrentMap<String, byte[]> map;
+  private MemcacheActionCache cache;
+  private Path execRoot;
+
+  @Before
+  public final void createCache() throws Exception {
+    map = new ConcurrentHashMap<>();
+    execRoot = new InMemoryFileSystem(BlazeClock.instance()).getPath("/exec/root");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    cache = new MemcacheActionCache(execRoot, Options.getDefaults(RemoteOptions.class), map);
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private Path writeFile(String name, byte[] content) throws Exception {
+    Path file = execRoot.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContent(file, content);
+    return file;
+  }
+
+  private byte[] readFromCache(String key) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cache.readFile(key, out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void smallFileIsStoredInOneEntry() throws Exception {
+    byte[] content = randomBytes(1000, 1);
+    String key = cache.putFileIfNotExist(writeFile("small", content));
+
+    assertThat(map).hasSize(1);
+    assertThat(CacheEntry.parseFrom(map.get(key)).getChunkKeysCount()).isEqualTo(0);
+    assertThat(readFromCache(key)).isEqualTo(content);
+  }
+
+  @Test
+  public void largeFileIsStoredInChunks() throws Exception {
+    byte[] content = randomBytes(3 * CHUNK_SIZE + 17, 2);
+    String key = cache.putFileIfNotExist(writeFile("large", content));
+
+    assertThat(CacheEntry.parseFrom(map.get(key)).getChunkKeysCount()).isEqualTo(4);
+    assertThat(map).hasSize(5);
+    for (byte[] value : map.values()) {
+      assertThat(value.length).isAtMost(CHUNK_SIZE + 16);
+    }
+    assertThat(readFromCache(key)).isEqualTo(content);
+
+    Path dest = execRoot.getRelative("dest");
+    cache.writeFile(key, dest, true);
+    assertThat(FileSystemUtils.readContent(dest)).isEqualTo(content);
+    assertThat(dest.isExecutable()).isTrue();
+  }
+
+  @Test
+  public void chunksSharedBetweenFilesAreStoredOnce() throws Exception {
+    byte[] shared = randomBytes(2 * CHUNK_SIZE, 3);
+    byte[] first = Arrays.copyOf(shared, 2 * CHUNK_SIZE + 1);
+    byte[] second = Arrays.copyOf(shared, 2 * CHUNK_SIZE + 2);
+
+    String firstKey = cache.putFileIfNotExist(writeFile("first", first));
+    String secondKey = cache.putFileIfNotExist(writeFile("second", second));
+
+    // Two file entries, two shared chunks and one distinct last chunk per file.
+    assertThat(map).hasSize(6);
+    assertThat(readFromCache(firstKey)).isEqualTo(first);
+    assertThat(readFromCache(secondKey)).isEqualTo(second);
+  }
+
+  @Test
+  public void missingChunkIsReported() throws Exception {
+    byte[] content = randomBytes(2 * CHUNK_SIZE + 1, 4);
+    String key = cache.putFileIfNotExist(writeFile("large", content));
+    map.remove(CacheEntry.parseFrom(map.get(key)).getChunkKeys(1));
+
+    try {
+      readFromCache(key);
+      fail();
+    } catch (CacheNotFoundException expected) {
+      assertThat(expected.getMessage()).contains("chunk");
+    }
+  }
+
+  @Test
+  public void containsKeysReturnsPresentKeys() throws Exception {
+    String key = cache.putFileIfNotExist(writeFile("present", randomBytes(10, 5)));
+    RemoteCacheStats stats = new RemoteCacheStats();
+
+    assertThat(cache.containsKeys(ImmutableList.of(key, "missing", key), stats))
+        .containsExactly(key);
+    assertThat(stats.getRoundTrips()).isEqualTo(2);
+  }
+
+  @Test
+  public void actionOutputUploadsOnlyMissingFiles() throws Exception {
+    byte[] present = randomBytes(100, 6);
+    byte[] missing = randomBytes(200, 7);
+    byte[] large = randomBytes(CHUNK_SIZE + 1, 8);
+    cache.putFileIfNotExist(writeFile("out/present", present));
+    writeFile("out/missing", missing);
+    writeFile("out/large", large);
+    execRoot.getRelative("out/missing").setExecutable(true);
+    ImmutableList<ActionInput> outputs =
+        ImmutableList.of(
+            ActionInputHelper.fromPath("out/present"),
+            ActionInputHelper.fromPath("out/missing"),
+            ActionInputHelper.fromPath("out/large"));
+
+    RemoteCacheStats stats = new RemoteCacheStats();
+    cache.putActionOutput("action", outputs, stats);
+    assertThat(stats.getHits()).isEqualTo(1);
+    assertThat(stats.getMisses()).isEqualTo(2);
+    assertThat(stats.getBytesUploaded()).isAtLeast(200L + CHUNK_SIZE + 1);
+    assertThat(map).containsKey(
+        HashCode.fromBytes(execRoot.getRelative("out/missing").getDigest()).toString());
+
+    Path otherRoot = execRoot.getRelative("other");
+    stats = new RemoteCacheStats();
+    cache.writeActionOutput("action", otherRoot, stats);
+    assertThat(FileSystemUtils.readContent(otherRoot.getRelative("out/present")))
+        .isEqualTo(present);
+    assertThat(FileSystemUtils.readContent(otherRoot.getRelative("out/missing")))
+        .isEqualTo(missing);
+    assertThat(FileSystemUtils.readContent(otherRoot.getRelative("out/large"))).isEqualTo(large);
+    assertThat(otherRoot.getRelative("out/missing").isExecutable()).isTrue();
+    assertThat(otherRoot.getRelative("out/present").isExecutable()).isFalse();
+    assertThat(stats.getBytesDownloaded()).isAtLeast(300L + CHUNK_SIZE + 1);
+    // The action output entry and its three files.
+    assertThat(stats.getHits()).isEqualTo(4);
+    assertThat(stats.getMisses()).isEqualTo(0);
+  }
+
+  @Test
+  public void missingActionOutputIsCountedAsMiss() throws Exception {
+    RemoteCacheStats stats = new RemoteCacheStats();
+    try {
+      cache.writeActionOutput("action", execRoot, stats);
+      fail();
+    } catch (CacheNotFoundException expected) {
+      assertThat(stats.getHits()).isEqualTo(0);
+      assertThat(stats.getMisses()).isEqualTo(1);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void uploadsFinishWithMoreSmallFilesThanThreadsUnderATightMemoryBudget()
+      throws Exception {
+    // Slow puts keep small uploads in flight while the chunks of the large file are read.
+    ConcurrentMap<String, byte[]> slowMap =
+        new ConcurrentHashMap<String, byte[]>() {
+          @Override
+          public byte[] put(String key, byte[] value) {
+            try {
+              Thread.sleep(20);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return super.put(key, value);
+          }
+        };
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.remoteCacheTransferThreads = 2;
+    // Room for one chunk, or for one small file at a time.
+    cache = new MemcacheActionCache(execRoot, options, slowMap, CHUNK_SIZE / 1024);
+    ImmutableList.Builder<ActionInput> outputs = ImmutableList.builder();
+    for (int i = 0; i < 6; i++) {
+      writeFile("out/small" + i, randomBytes(3 * CHUNK_SIZE / 4, 10 + i));
+      outputs.add(ActionInputHelper.fromPath("out/small" + i));
+    }
+    byte[] large = randomBytes(3 * CHUNK_SIZE, 9);
+    writeFile("out/large", large);
+    outputs.add(ActionInputHelper.fromPath("out/large"));
+
+    RemoteCacheStats stats = new RemoteCacheStats();
+    cache.putActionOutput("action", outputs.build(), stats);
+    assertThat(stats.getMisses()).isEqualTo(7);
+    // The action output entry, six small files, and the large file with its three chunks.
+    assertThat(slowMap).hasSize(11);
+
+    Path otherRoot = execRoot.getRelative("other");
+    cache.writeActionOutput("action", otherRoot, new RemoteCacheStats());
+    assertThat(FileSystemUtils.readContent(otherRoot.getRelative("out/large"))).isEqualTo(large);
+  }
+}
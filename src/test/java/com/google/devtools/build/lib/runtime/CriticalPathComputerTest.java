@@ -0,0 +1,85 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionStartedEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.Map;
+
+/** Tests for {@link CriticalPathComputer}. */
+@RunWith(JUnit4.class)
+public class CriticalPathComputerTest {
+  private final ManualClock clock = new ManualClock();
+  private final SimpleCriticalPathComputer computer = new SimpleCriticalPathComputer(clock);
+  private final Path outputs = new InMemoryFileSystem().getPath("/out");
+
+  private Artifact artifact(String name) {
+    Path path = outputs.getRelative(name);
+    return new Artifact(path, Root.asSourceRoot(outputs));
+  }
+
+  private Action action(Artifact output, Artifact... inputs) {
+    Action action = Mockito.mock(Action.class);
+    when(action.getPrimaryOutput()).thenReturn(output);
+    when(action.getOutputs()).thenReturn(ImmutableSet.of(output));
+    when(action.getInputs()).thenReturn(ImmutableList.copyOf(inputs));
+    return action;
+  }
+
+  private void run(Action action, long millis) {
+    long start = clock.nanoTime();
+    computer.actionStarted(new ActionStartedEvent(action, start));
+    clock.advanceMillis(millis);
+    computer.actionComplete(new ActionCompletionEvent(start, action));
+  }
+
+  @Test
+  public void remainingCriticalPathSkipsActionsThatDidNotRun() throws Exception {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    Artifact c = artifact("c");
+    Action first = action(a);
+    Action cached = action(b, a);
+    Action last = action(c, b);
+
+    run(first, 100);
+    computer.actionCached(new CachedActionEvent(cached, clock.nanoTime()));
+    clock.advanceMillis(1);
+    run(last, 50);
+
+    Map<String, Long> remaining = computer.computeRemainingCriticalPathMillis();
+    // The cache hit gets no entry, but the chain through it still counts for the first action.
+    assertThat(remaining).doesNotContainKey(b.getExecPathString());
+    assertThat(remaining).containsEntry(c.getExecPathString(), 50L);
+    assertThat(remaining).containsEntry(a.getExecPathString(), 150L);
+  }
+}
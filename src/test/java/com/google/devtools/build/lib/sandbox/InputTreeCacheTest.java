@@ -0,0 +1,206 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Tests for {@link InputTreeCache}. */
+@RunWith(JUnit4.class)
+public class InputTreeCacheTest {
+  /** A file system whose change times move whenever a hard link is created, like with link(2). */
+  private static final class LinkingChangesCtimeFileSystem extends JavaIoFileSystem {
+    private final AtomicLong links = new AtomicLong();
+
+    @Override
+    protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+      super.createHardLink(linkPath, originalPath);
+      links.incrementAndGet();
+    }
+
+    @Override
+    protected FileStatus stat(Path path, boolean followSymlinks) throws IOException {
+      final FileStatus status = super.stat(path, followSymlinks);
+      return new FileStatus() {
+        @Override
+        public boolean isFile() {
+          return status.isFile();
+        }
+
+        @Override
+        public boolean isDirectory() {
+          return status.isDirectory();
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+          return status.isSymbolicLink();
+        }
+
+        @Override
+        public boolean isSpecialFile() {
+          return status.isSpecialFile();
+        }
+
+        @Override
+        public long getSize() throws IOException {
+          return status.getSize();
+        }
+
+        @Override
+        public long getLastModifiedTime() throws IOException {
+          return status.getLastModifiedTime();
+        }
+
+        @Override
+        public long getLastChangeTime() throws IOException {
+          return links.get();
+        }
+
+        @Override
+        public long getNodeId() throws IOException {
+          return status.getNodeId();
+        }
+      };
+    }
+  }
+
+  private Path execRoot;
+  private Path outside;
+
+  @Before
+  public final void createExecRoot() throws Exception {
+    Path testRoot =
+        FileSystems.getJavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("trees");
+    FileSystemUtils.deleteTree(testRoot);
+    execRoot = testRoot.getRelative("execroot");
+    outside = testRoot.getRelative("outside");
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("pkg"));
+    FileSystemUtils.createDirectoryAndParents(outside);
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("pkg/a.cc"), "a");
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("pkg/b.cc"), "b");
+    FileSystemUtils.writeContentAsLatin1(outside.getRelative("tool"), "tool");
+  }
+
+  private ImmutableMap<Path, Path> inputs(String... names) {
+    ImmutableMap.Builder<Path, Path> mounts = ImmutableMap.builder();
+    mounts.put(outside.getRelative("tool"), outside.getRelative("tool"));
+    for (String name : names) {
+      mounts.put(execRoot.getRelative(name), execRoot.getRelative(name));
+    }
+    return mounts.build();
+  }
+
+  private static String read(InputTreeCache.InputTree tree, String path) throws Exception {
+    return new String(FileSystemUtils.readContentAsLatin1(tree.getRoot().getRelative(path)));
+  }
+
+  @Test
+  public void inputsBelowTheExecRootAreLinked() throws Exception {
+    InputTreeCache cache = new InputTreeCache(execRoot.getRelative("trees"), 4);
+    InputTreeCache.InputTree tree = cache.acquire(execRoot, ImmutableMap.of(
+        execRoot.getRelative("pkg/a.cc"), execRoot.getRelative("pkg/a.cc"),
+        execRoot.getRelative("runfiles/x"), execRoot.getRelative("pkg/b.cc"),
+        execRoot.getRelative("runfiles/missing"), execRoot.getRelative("pkg/missing"),
+        outside.getRelative("tool"), outside.getRelative("tool")));
+    assertThat(read(tree, "pkg/a.cc")).isEqualTo("a");
+    assertThat(read(tree, "runfiles/x")).isEqualTo("b");
+    assertThat(tree.getRoot().getRelative("runfiles/missing").exists()).isFalse();
+    assertThat(tree.getRemainingMounts()).containsExactly(
+        execRoot.getRelative("runfiles/missing"), execRoot.getRelative("pkg/missing"));
+  }
+
+  @Test
+  public void symlinksToDirectoriesAreMountedOnTop() throws Exception {
+    Path dir = execRoot.getRelative("external/dir");
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("external"));
+    dir.createSymbolicLink(outside);
+    InputTreeCache cache = new InputTreeCache(execRoot.getRelative("trees"), 4);
+    InputTreeCache.InputTree tree = cache.acquire(execRoot, ImmutableMap.of(
+        execRoot.getRelative("pkg/a.cc"), execRoot.getRelative("pkg/a.cc"),
+        dir, dir,
+        outside, outside));
+    assertThat(read(tree, "pkg/a.cc")).isEqualTo("a");
+    assertThat(tree.getRoot().getRelative("external/dir").exists()).isFalse();
+    assertThat(tree.getRemainingMounts()).containsExactly(dir, dir);
+  }
+
+  @Test
+  public void spawnsWithTheSameInputsShareATree() throws Exception {
+    InputTreeCache cache = new InputTreeCache(execRoot.getRelative("trees"), 4);
+    InputTreeCache.InputTree first = cache.acquire(execRoot, inputs("pkg/a.cc", "pkg/b.cc"));
+    InputTreeCache.InputTree second = cache.acquire(execRoot, inputs("pkg/b.cc", "pkg/a.cc"));
+    assertThat(second).isSameAs(first);
+    InputTreeCache.InputTree other = cache.acquire(execRoot, inputs("pkg/a.cc"));
+    assertThat(other).isNotSameAs(first);
+    assertThat(other.getRoot().getRelative("pkg/b.cc").exists()).isFalse();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void treesAreSharedAfterLinkingChangedTheChangeTimeOfTheInputs() throws Exception {
+    Path linkingExecRoot = new LinkingChangesCtimeFileSystem().getPath(execRoot.getPathString());
+    InputTreeCache cache = new InputTreeCache(linkingExecRoot.getRelative("trees"), 4);
+    ImmutableMap<Path, Path> mounts = ImmutableMap.of(
+        linkingExecRoot.getRelative("pkg/a.cc"), linkingExecRoot.getRelative("pkg/a.cc"));
+    InputTreeCache.InputTree first = cache.acquire(linkingExecRoot, mounts);
+    cache.release(first);
+    assertThat(cache.acquire(linkingExecRoot, mounts)).isSameAs(first);
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void changedInputsGetANewTree() throws Exception {
+    InputTreeCache cache = new InputTreeCache(execRoot.getRelative("trees"), 4);
+    InputTreeCache.InputTree first = cache.acquire(execRoot, inputs("pkg/a.cc"));
+    cache.release(first);
+    Path input = execRoot.getRelative("pkg/a.cc");
+    input.delete();
+    FileSystemUtils.writeContentAsLatin1(input, "changed");
+    input.setLastModifiedTime(input.getLastModifiedTime() + 5000);
+    InputTreeCache.InputTree second = cache.acquire(execRoot, inputs("pkg/a.cc"));
+    assertThat(second).isNotSameAs(first);
+    assertThat(read(second, "pkg/a.cc")).isEqualTo("changed");
+  }
+
+  @Test
+  public void onlyUnusedTreesAreDeleted() throws Exception {
+    InputTreeCache cache = new InputTreeCache(execRoot.getRelative("trees"), 1);
+    InputTreeCache.InputTree first = cache.acquire(execRoot, inputs("pkg/a.cc"));
+    InputTreeCache.InputTree second = cache.acquire(execRoot, inputs("pkg/b.cc"));
+    assertThat(first.getRoot().exists()).isTrue();
+    assertThat(second.getRoot().exists()).isTrue();
+
+    cache.release(first);
+    assertThat(first.getRoot().exists()).isFalse();
+    cache.release(second);
+    assertThat(second.getRoot().exists()).isTrue();
+    assertThat(cache.size()).isEqualTo(1);
+  }
+}
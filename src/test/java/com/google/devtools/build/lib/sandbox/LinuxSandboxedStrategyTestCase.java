@@ -108,7 +108,9 @@ public class LinuxSandboxedStrategyTestCase {
                     MoreExecutors.newDirectExecutorService(),
                     true,
                     false,
-                    TestConstants.PRODUCT_NAME)),
+                    TestConstants.PRODUCT_NAME,
+                    /*inputTrees=*/ null,
+                    /*sandboxPool=*/ null)),
             ImmutableList.<ActionContextProvider>of());
   }
 
@@ -0,0 +1,161 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Tests for {@link SandboxPool}. */
+@RunWith(JUnit4.class)
+public class SandboxPoolTest {
+  /** Entries that must not be computed because no root is reused. */
+  private static final Supplier<Map<PathFragment, Boolean>> NOT_NEEDED =
+      new Supplier<Map<PathFragment, Boolean>>() {
+        @Override
+        public Map<PathFragment, Boolean> get() {
+          throw new AssertionError("Entries computed for a new root");
+        }
+      };
+
+  private Path baseDir;
+
+  @Before
+  public final void createBaseDir() throws Exception {
+    baseDir = FileSystems.getJavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("pool");
+    FileSystemUtils.deleteTree(baseDir);
+  }
+
+  private static Supplier<Map<PathFragment, Boolean>> entries(Map<PathFragment, Boolean> entries) {
+    return Suppliers.ofInstance(entries);
+  }
+
+  private static Path createRoot(SandboxPool pool, String name) throws Exception {
+    Path root = pool.acquire(name, NOT_NEEDED);
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("usr/bin"));
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("execroot/pkg"));
+    FileSystemUtils.createEmptyFile(root.getRelative("usr/bin/gcc"));
+    FileSystemUtils.createEmptyFile(root.getRelative("execroot/pkg/a.cc"));
+    FileSystemUtils.createEmptyFile(root.getRelative("execroot/pkg/b.cc"));
+    return root;
+  }
+
+  @Test
+  public void leftoversAreDeleted() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(baseDir.getRelative("old/execroot"));
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    pool.awaitDeletions();
+    assertThat(baseDir.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void newRootWhenNoneIsIdleWithoutComputingEntries() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    Path root = pool.acquire("first", NOT_NEEDED);
+    assertThat(root).isEqualTo(baseDir.getChild("first"));
+    assertThat(root.exists()).isFalse();
+  }
+
+  @Test
+  public void reusedRootKeepsOnlyExpectedEntries() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    Path root = createRoot(pool, "first");
+    pool.release(root);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+
+    Path reused = pool.acquire("second", entries(ImmutableMap.of(
+        new PathFragment("usr/bin/gcc"), false,
+        new PathFragment("execroot/pkg/a.cc"), false,
+        // A file where a directory is expected is replaced.
+        new PathFragment("execroot/pkg/b.cc"), true)));
+    assertThat(reused).isEqualTo(root);
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    assertThat(reused.getRelative("usr/bin/gcc").isFile()).isTrue();
+    assertThat(reused.getRelative("execroot/pkg/a.cc").isFile()).isTrue();
+    assertThat(reused.getRelative("execroot/pkg/b.cc").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(pool.getStatsSummary()).isEqualTo(
+        "Sandbox roots: 1 of 2 reused (50%), 6 entries kept instead of deleted and recreated, "
+            + "1 deleted");
+  }
+
+  @Test
+  public void entriesThatAreNotExpectedAreDeleted() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    pool.release(createRoot(pool, "first"));
+    Path reused = pool.acquire("second",
+        entries(ImmutableMap.of(new PathFragment("execroot/pkg"), true)));
+    assertThat(reused.getRelative("usr").exists()).isFalse();
+    assertThat(reused.getRelative("execroot/pkg").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void rootsBeyondMaxIdleAreDeleted() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    Path first = createRoot(pool, "first");
+    Path second = createRoot(pool, "second");
+    pool.release(first);
+    pool.release(second);
+    pool.awaitDeletions();
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+    assertThat(first.exists()).isTrue();
+    assertThat(second.exists()).isFalse();
+  }
+
+  @Test
+  public void rootsThatDisappearedAreNotReused() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    Path first = createRoot(pool, "first");
+    pool.release(first);
+    FileSystemUtils.deleteTree(first);
+    assertThat(pool.acquire("second", entries(ImmutableMap.<PathFragment, Boolean>of())))
+        .isEqualTo(baseDir.getChild("second"));
+  }
+
+  @Test
+  public void shutdownDeletesIdleRoots() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 2);
+    Path first = createRoot(pool, "first");
+    Path second = createRoot(pool, "second");
+    pool.release(first);
+    pool.release(second);
+    pool.shutdown();
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    assertThat(baseDir.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void statsAreReset() throws Exception {
+    SandboxPool pool = new SandboxPool(baseDir, 1);
+    createRoot(pool, "first");
+    pool.resetStats();
+    assertThat(pool.getStatsSummary()).isEqualTo(
+        "Sandbox roots: 0 of 0 reused (0%), 0 entries kept instead of deleted and recreated, "
+            + "0 deleted");
+  }
+}
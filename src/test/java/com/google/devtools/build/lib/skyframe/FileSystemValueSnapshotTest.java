@@ -0,0 +1,164 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.FileStateValue.RegularFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SpecialFileStateValue;
+import com.google.devtools.build.lib.skyframe.FileStateValue.SymlinkFileStateValue;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Tests for {@link FileSystemValueSnapshot}. */
+@RunWith(JUnit4.class)
+public class FileSystemValueSnapshotTest {
+
+  private FileSystem fs;
+  private Path root;
+  private Path otherRoot;
+  private Path snapshotFile;
+
+  @Before
+  public final void createDirectories() throws Exception {
+    fs = FileSystems.getJavaIoFileSystem();
+    Path testRoot = fs.getPath(TestUtils.tmpDir()).getRelative("snapshot_test");
+    FileSystemUtils.deleteTree(testRoot);
+    root = testRoot.getRelative("workspace");
+    otherRoot = testRoot.getRelative("other");
+    snapshotFile = testRoot.getRelative("output_base/filesystem_snapshot");
+  }
+
+  private static RootedPath rootedPath(Path root, String relativePath) {
+    return RootedPath.toRootedPath(root, new PathFragment(relativePath));
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    Map<SkyKey, SkyValue> values =
+        ImmutableMap.<SkyKey, SkyValue>builder()
+            .put(
+                FileStateValue.key(rootedPath(root, "pkg/BUILD")),
+                new RegularFileStateValue(
+                    42, 1234, null, FileContentsProxy.create(1234, 99)))
+            .put(
+                FileStateValue.key(rootedPath(root, "pkg/empty")),
+                new RegularFileStateValue(0, 5678, new byte[] {1, 2, 3}, null))
+            .put(
+                FileStateValue.key(rootedPath(root, "pkg/fifo")),
+                new SpecialFileStateValue(FileContentsProxy.create(1, 2)))
+            .put(
+                FileStateValue.key(rootedPath(otherRoot, "link")),
+                new SymlinkFileStateValue(new PathFragment("../target")))
+            .put(
+                FileStateValue.key(rootedPath(root, "pkg")),
+                FileStateValue.DIRECTORY_FILE_STATE_NODE)
+            .put(
+                FileStateValue.key(rootedPath(root, "missing")),
+                FileStateValue.NONEXISTENT_FILE_STATE_NODE)
+            .put(
+                DirectoryListingStateValue.key(rootedPath(root, "pkg")),
+                DirectoryListingStateValue.create(
+                    ImmutableList.of(
+                        new Dirent("BUILD", Dirent.Type.FILE),
+                        new Dirent("sub", Dirent.Type.DIRECTORY),
+                        new Dirent("link", Dirent.Type.SYMLINK))))
+            .build();
+
+    assertThat(FileSystemValueSnapshot.write(snapshotFile, values)).isEqualTo(values.size());
+    assertThat(FileSystemValueSnapshot.read(snapshotFile, fs)).isEqualTo(values);
+  }
+
+  @Test
+  public void onlyFileSystemValuesAreWritten() throws Exception {
+    SkyKey fileStateKey = FileStateValue.key(rootedPath(root, "BUILD"));
+    Map<SkyKey, SkyValue> values =
+        ImmutableMap.<SkyKey, SkyValue>of(
+            fileStateKey,
+            FileStateValue.NONEXISTENT_FILE_STATE_NODE,
+            PrecomputedValue.BUILD_ID.getKeyForTesting(),
+            new PrecomputedValue(new Object()));
+
+    assertThat(FileSystemValueSnapshot.write(snapshotFile, values)).isEqualTo(1);
+    assertThat(FileSystemValueSnapshot.read(snapshotFile, fs))
+        .containsExactly(fileStateKey, FileStateValue.NONEXISTENT_FILE_STATE_NODE);
+  }
+
+  @Test
+  public void filesChangedAfterTheSnapshotAreNotLoadedWithTheirOldState() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("pkg"));
+    FileSystemUtils.createDirectoryAndParents(otherRoot);
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("pkg/BUILD"), "unchanged");
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("pkg/changed"), "old");
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("pkg/deleted"), "old");
+    FileSystemUtils.writeContentAsLatin1(otherRoot.getRelative("other"), "other");
+    Map<SkyKey, SkyValue> values = new HashMap<>();
+    for (RootedPath rootedPath :
+        ImmutableList.of(
+            rootedPath(root, "pkg/BUILD"),
+            rootedPath(root, "pkg/changed"),
+            rootedPath(root, "pkg/deleted"),
+            rootedPath(otherRoot, "other"))) {
+      values.put(FileStateValue.key(rootedPath), FileStateValue.create(rootedPath, null));
+    }
+    RootedPath pkg = rootedPath(root, "pkg");
+    values.put(DirectoryListingStateValue.key(pkg), DirectoryListingStateValue.create(pkg));
+    FileSystemValueSnapshot.write(snapshotFile, values);
+
+    // Simulates changes made while no server was running.
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("pkg/changed"), "new contents");
+    root.getRelative("pkg/deleted").delete();
+
+    Map<SkyKey, SkyValue> loaded =
+        FileSystemValueSnapshot.readUnchanged(snapshotFile, fs, ImmutableList.of(root), null);
+
+    assertThat(loaded.keySet())
+        .containsExactly(
+            FileStateValue.key(rootedPath(root, "pkg/BUILD")),
+            FileStateValue.key(rootedPath(root, "pkg/changed")),
+            FileStateValue.key(rootedPath(root, "pkg/deleted")),
+            DirectoryListingStateValue.key(pkg));
+    assertThat(loaded.get(FileStateValue.key(rootedPath(root, "pkg/BUILD"))))
+        .isEqualTo(values.get(FileStateValue.key(rootedPath(root, "pkg/BUILD"))));
+    assertThat(loaded.get(FileStateValue.key(rootedPath(root, "pkg/changed"))))
+        .isEqualTo(FileStateValue.create(rootedPath(root, "pkg/changed"), null));
+    assertThat(loaded.get(FileStateValue.key(rootedPath(root, "pkg/deleted"))))
+        .isEqualTo(FileStateValue.NONEXISTENT_FILE_STATE_NODE);
+    assertThat(loaded.get(DirectoryListingStateValue.key(pkg)))
+        .isEqualTo(DirectoryListingStateValue.create(pkg));
+  }
+
+  @Test
+  public void missingSnapshotIsEmpty() throws Exception {
+    assertThat(FileSystemValueSnapshot.read(snapshotFile, fs)).isEmpty();
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for functions that are compiled to byte code by {@link UserDefinedFunction}.
+ */
+@RunWith(JUnit4.class)
+public class CompiledFunctionTest extends EvaluationTestCase {
+  private Environment newEnvironment(int compilationThreshold) {
+    return Environment.builder(mutability)
+        .setSkylark()
+        .setGlobals(Environment.SKYLARK)
+        .setEventHandler(getEventHandler())
+        .enableCompiler(compilationThreshold)
+        .build();
+  }
+
+  @Override
+  public Environment newEnvironment() {
+    return newEnvironment(2);
+  }
+
+  @Test
+  public void testHotFunctionIsCompiled() throws Exception {
+    eval("def func(a):",
+        "  b = 0",
+        "  for x in a:",
+        "    b += x",
+        "  return b",
+        "r1 = [func([1, 2]), func([3, 4])]");
+    UserDefinedFunction func = (UserDefinedFunction) lookup("func");
+    assertThat(func.isCompiled()).isFalse();
+    eval("r2 = [func([5, 6]), func([7, 8])]");
+    assertThat(func.isCompiled()).isTrue();
+    assertThat((Iterable<?>) lookup("r1")).containsExactly(3, 7).inOrder();
+    assertThat((Iterable<?>) lookup("r2")).containsExactly(11, 15).inOrder();
+  }
+
+  @Test
+  public void testUnsupportedFunctionIsInterpreted() throws Exception {
+    eval("def func(k):",
+        "  d = {}",
+        "  d[k] = 1",
+        "  return d",
+        "r = [func('a'), func('b'), func('c')]");
+    assertThat(((UserDefinedFunction) lookup("func")).isCompiled()).isFalse();
+    assertThat((Iterable<?>) lookup("r")).hasSize(3);
+  }
+
+  @Test
+  public void testErrorInCompiledFunctionDoesNotRunItAgain() throws Exception {
+    eval("calls = []",
+        "def func(a):",
+        "  calls.append(a)",
+        "  return 'abc'.index(a)",
+        "func('a')",
+        "func('b')");
+    checkEvalErrorContains("substring \"z\" not found in \"abc\"", "func('z')");
+    assertThat(((UserDefinedFunction) lookup("func")).isCompiled()).isTrue();
+    assertThat((Iterable<?>) lookup("calls")).containsExactly("a", "b", "z").inOrder();
+  }
+
+  @Test
+  public void testLocalVariableReferencedBeforeAssignment() throws Exception {
+    env = newEnvironment(0);
+    eval("a = 1",
+        "def func():",
+        "  b = a",
+        "  a = 2",
+        "  return b");
+    checkEvalErrorContains("Variable 'a' is referenced before assignment.", "func()");
+    assertThat(((UserDefinedFunction) lookup("func")).isCompiled()).isTrue();
+  }
+
+  @Test
+  public void testFunctionsAreOnlyCompiledWhenTheCallerEnablesIt() throws Exception {
+    eval("def func():",
+        "  return 1");
+    UserDefinedFunction func = (UserDefinedFunction) lookup("func");
+    Environment interpreting = newSkylarkEnvironment();
+    interpreting.update("func", func);
+    for (int i = 0; i < 5; i++) {
+      interpreting.eval("func()");
+    }
+    assertThat(func.isCompiled()).isFalse();
+    eval("r = [func(), func(), func()]");
+    assertThat(func.isCompiled()).isTrue();
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the evaluation of macro-heavy Skylark code, interpreted and with the byte code
+ * compiler of {@link UserDefinedFunction}.
+ *
+ * <p>The benchmark generates a .bzl-like file that defines {@code --macros} macros built from
+ * the same helper functions, and a BUILD-like list of {@code --calls} calls to them, each of which
+ * declares a few rules by computing their attributes with loops, list comprehensions and string
+ * formatting. The file is parsed once; each iteration evaluates it in a fresh environment, once
+ * interpreted and once with the compiler enabled, so that the compiled figures include the cost
+ * of generating byte code for every function, as when a package is loaded. Both evaluations must
+ * declare the same rules.
+ *
+ * <p>Run with {@code bazel run //src/test/java/com/google/devtools/build/lib:skylark_benchmark --
+ * --calls=5000 --compilation_threshold=0}.
+ */
+public final class SkylarkMacroBenchmark {
+
+  /** Options for the benchmark. */
+  public static class BenchmarkOptions extends OptionsBase {
+    @Option(name = "macros", defaultValue = "20", help = "The number of macros to define.")
+    public int macros;
+
+    @Option(name = "calls", defaultValue = "2000", help = "The number of macro calls.")
+    public int calls;
+
+    @Option(
+      name = "srcs_per_call",
+      defaultValue = "10",
+      help = "The number of source files that each macro call computes attributes for."
+    )
+    public int srcsPerCall;
+
+    @Option(
+      name = "compilation_threshold",
+      defaultValue = "10",
+      help = "The number of interpreted calls of a function before it is compiled."
+    )
+    public int compilationThreshold;
+
+    @Option(
+      name = "warmup_iterations",
+      defaultValue = "3",
+      help = "The number of iterations to run before measuring."
+    )
+    public int warmupIterations;
+
+    @Option(name = "iterations", defaultValue = "10", help = "The number of measured iterations.")
+    public int iterations;
+  }
+
+  private static final EventHandler FAIL_ON_ERRORS =
+      new EventHandler() {
+        @Override
+        public void handle(Event event) {
+          if (EventKind.ERRORS_AND_WARNINGS.contains(event.getKind())) {
+            throw new IllegalStateException(event.toString());
+          }
+        }
+      };
+
+  private final BenchmarkOptions options;
+  private final List<Statement> statements;
+
+  private SkylarkMacroBenchmark(BenchmarkOptions options) {
+    this.options = options;
+    this.statements = newEnvironment(Mutability.create("parse"), false).parseFile(generateSource());
+  }
+
+  /** Returns the lines of the generated file. */
+  private String[] generateSource() {
+    List<String> lines = new ArrayList<>();
+    lines.add("rules = []");
+    lines.add("def _labels(prefix, names):");
+    lines.add("  result = []");
+    lines.add("  for name in names:");
+    lines.add("    if name.startswith(':'):");
+    lines.add("      result += [name]");
+    lines.add("    else:");
+    lines.add("      result += ['%s:%s' % (prefix, name)]");
+    lines.add("  return result");
+    lines.add("def _copts(kind, count):");
+    lines.add("  flags = ['-D%s_%d' % (kind.upper(), i) for i in range(count)]");
+    lines.add("  if kind == 'test':");
+    lines.add("    flags += ['-DTESTING']");
+    lines.add("  return flags");
+    lines.add("def _rule(kind, name, srcs, deps, copts):");
+    lines.add("  rules.append(struct(kind = kind, name = name, srcs = srcs, deps = deps,");
+    lines.add("      copts = copts))");
+    for (int m = 0; m < options.macros; m++) {
+      lines.add("def macro" + m + "(name, count):");
+      lines.add("  srcs = ['%s_%d.cc' % (name, i) for i in range(count)]");
+      lines.add("  hdrs = [src.replace('.cc', '.h') for src in srcs]");
+      lines.add("  deps = _labels('//lib" + m + "', [name + '_dep', ':' + name + '_base'])");
+      lines.add("  _rule('library', name, srcs + hdrs, deps, _copts('lib', 3))");
+      lines.add("  tests = []");
+      lines.add("  for src in srcs:");
+      lines.add("    test = src.replace('.cc', '_test')");
+      lines.add("    _rule('test', test, [test + '.cc'], [':' + name], _copts('test', 2))");
+      lines.add("    tests += [':' + test]");
+      lines.add("  _rule('suite', name + '_tests', [], tests, [])");
+    }
+    for (int c = 0; c < options.calls; c++) {
+      lines.add(
+          String.format(
+              "macro%d('target%d', %d)", c % options.macros, c, options.srcsPerCall));
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  private Environment newEnvironment(Mutability mutability, boolean compile) {
+    Environment.Builder builder = Environment.builder(mutability)
+        .setSkylark()
+        .setGlobals(Environment.SKYLARK)
+        .setEventHandler(FAIL_ON_ERRORS);
+    if (compile) {
+      builder.enableCompiler(options.compilationThreshold);
+    }
+    return builder.build();
+  }
+
+  /** The outcome of evaluating the file once. */
+  private static final class Evaluation {
+    final long nanos;
+    final String rules;
+    final int compiledFunctions;
+
+    Evaluation(long nanos, String rules, int compiledFunctions) {
+      this.nanos = nanos;
+      this.rules = rules;
+      this.compiledFunctions = compiledFunctions;
+    }
+  }
+
+  private Evaluation evaluate(boolean compile) throws EvalException, InterruptedException {
+    try (Mutability mutability = Mutability.create("benchmark")) {
+      Environment env = newEnvironment(mutability, compile);
+      long start = System.nanoTime();
+      for (Statement statement : statements) {
+        statement.exec(env);
+      }
+      long nanos = System.nanoTime() - start;
+      Environment.Frame globals = env.getGlobals();
+      int compiledFunctions = 0;
+      for (String name : globals.getDirectVariableNames()) {
+        Object value = globals.get(name);
+        if (value instanceof UserDefinedFunction && ((UserDefinedFunction) value).isCompiled()) {
+          compiledFunctions++;
+        }
+      }
+      return new Evaluation(nanos, Printer.repr(globals.get("rules")), compiledFunctions);
+    }
+  }
+
+  private static String summarize(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return String.format(
+        "min %.1f ms, median %.1f ms, max %.1f ms",
+        sorted[0] / 1e6,
+        sorted[sorted.length / 2] / 1e6,
+        sorted[sorted.length - 1] / 1e6);
+  }
+
+  private void run() throws EvalException, InterruptedException {
+    System.out.printf(
+        "%d macros, %d calls, %d statements%n", options.macros, options.calls, statements.size());
+    for (int i = 0; i < options.warmupIterations; i++) {
+      evaluate(false);
+      evaluate(true);
+    }
+    long[] interpreted = new long[options.iterations];
+    long[] compiled = new long[options.iterations];
+    int compiledFunctions = 0;
+    for (int i = 0; i < options.iterations; i++) {
+      Evaluation interpretedEvaluation = evaluate(false);
+      Evaluation compiledEvaluation = evaluate(true);
+      if (!interpretedEvaluation.rules.equals(compiledEvaluation.rules)) {
+        throw new IllegalStateException("The compiled functions declared different rules");
+      }
+      interpreted[i] = interpretedEvaluation.nanos;
+      compiled[i] = compiledEvaluation.nanos;
+      compiledFunctions = compiledEvaluation.compiledFunctions;
+    }
+    System.out.println("interpreted:            " + summarize(interpreted));
+    System.out.println("compiled:               " + summarize(compiled));
+    System.out.printf(
+        "compiled functions:     %d of %d%n", compiledFunctions, options.macros + 3);
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(BenchmarkOptions.class);
+    parser.parse(args);
+    BenchmarkOptions options = parser.getOptions(BenchmarkOptions.class);
+    if (options.macros < 1
+        || options.calls < 0
+        || options.srcsPerCall < 0
+        || options.compilationThreshold < 0
+        || options.iterations < 1) {
+      System.err.println(
+          "--macros and --iterations must be positive, and the other options not negative");
+      System.exit(2);
+    }
+    new SkylarkMacroBenchmark(options).run();
+  }
+}
@@ -42,8 +42,16 @@ class SkylarkShell {
   private final BufferedReader reader = new BufferedReader(
       new InputStreamReader(System.in, Charset.defaultCharset()));
   private final Mutability mutability = Mutability.create("shell");
-  private final Environment env = Environment.builder(mutability)
-      .setSkylark().setGlobals(Environment.SKYLARK).setEventHandler(PRINT_HANDLER).build();
+  private final Environment env;
+
+  SkylarkShell(boolean compile) {
+    Environment.Builder builder = Environment.builder(mutability)
+        .setSkylark().setGlobals(Environment.SKYLARK).setEventHandler(PRINT_HANDLER);
+    if (compile) {
+      builder.enableCompiler(UserDefinedFunction.DEFAULT_COMPILATION_THRESHOLD);
+    }
+    env = builder.build();
+  }
 
   public String read() {
     StringBuilder input = new StringBuilder();
@@ -81,11 +89,11 @@ class SkylarkShell {
   }
 
   public static void main(String[] args) {
-    if (args.length > 0 && args[0].equals("--compiler-debug")) {
-      UserDefinedFunction.enableCompiler = true;
+    boolean compile = args.length > 0 && args[0].equals("--compiler-debug");
+    if (compile) {
       UserDefinedFunction.debugCompiler = true;
       UserDefinedFunction.debugCompilerPrintByteCode = true;
     }
-    new SkylarkShell().readEvalPrintLoop();
+    new SkylarkShell(compile).readEvalPrintLoop();
   }
 }
@@ -0,0 +1,176 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Tests for {@link PersistentStateFile}. */
+@RunWith(JUnit4.class)
+public class PersistentStateFileTest {
+  private static final long MAGIC = 0x7465737400000001L;
+
+  private final Scratch scratch = new Scratch();
+  private Path file;
+
+  @Before
+  public final void createFile() throws Exception {
+    file = scratch.resolve("/output_base/state");
+  }
+
+  private void writeStrings(long magic, final String... strings) throws IOException {
+    PersistentStateFile.write(
+        file,
+        magic,
+        new PersistentStateFile.Writer() {
+          @Override
+          public void write(DataOutputStream out) throws IOException {
+            out.writeInt(strings.length);
+            for (String s : strings) {
+              PersistentStateFile.writeString(out, s);
+            }
+          }
+        });
+  }
+
+  private List<String> readStrings() throws IOException {
+    final List<String> strings = new ArrayList<>();
+    PersistentStateFile.read(
+        file,
+        MAGIC,
+        new PersistentStateFile.Reader() {
+          @Override
+          public void read(DataInputStream in) throws IOException {
+            for (int count = in.readInt(); count > 0; count--) {
+              strings.add(PersistentStateFile.readString(in));
+            }
+          }
+        });
+    return strings;
+  }
+
+  private void assertReadFails() throws Exception {
+    try {
+      readStrings();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void missingFileIsNotRead() throws Exception {
+    assertThat(
+            PersistentStateFile.read(
+                file,
+                MAGIC,
+                new PersistentStateFile.Reader() {
+                  @Override
+                  public void read(DataInputStream in) {
+                    fail();
+                  }
+                }))
+        .isFalse();
+  }
+
+  @Test
+  public void writtenContentsAreReadAgain() throws Exception {
+    char[] large = new char[100000];
+    Arrays.fill(large, 'x');
+    writeStrings(MAGIC, "", "ascii", "ü中", new String(large));
+    assertThat(readStrings()).containsExactly("", "ascii", "ü中", new String(large))
+        .inOrder();
+  }
+
+  @Test
+  public void writeReplacesTheFileAndRemovesTheTemporaryFile() throws Exception {
+    writeStrings(MAGIC, "old");
+    writeStrings(MAGIC, "new");
+    assertThat(readStrings()).containsExactly("new");
+    assertThat(file.getParentDirectory().getDirectoryEntries()).containsExactly(file);
+  }
+
+  @Test
+  public void failedWriteKeepsThePreviousFile() throws Exception {
+    writeStrings(MAGIC, "old");
+    try {
+      PersistentStateFile.write(
+          file,
+          MAGIC,
+          new PersistentStateFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+              out.writeInt(1);
+              throw new IOException("disk full");
+            }
+          });
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessage("disk full");
+    }
+    assertThat(readStrings()).containsExactly("old");
+    assertThat(file.getParentDirectory().getDirectoryEntries()).containsExactly(file);
+  }
+
+  @Test
+  public void otherMagicNumberIsAnError() throws Exception {
+    writeStrings(MAGIC + 1, "a");
+    assertReadFails();
+  }
+
+  @Test
+  public void unrelatedFileIsAnError() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(file, "not a state file");
+    assertReadFails();
+  }
+
+  @Test
+  public void truncatedFileIsAnError() throws Exception {
+    writeStrings(MAGIC, "abcdef");
+    byte[] contents = FileSystemUtils.readContent(file);
+    FileSystemUtils.writeContent(file, Arrays.copyOf(contents, contents.length - 2));
+    assertReadFails();
+  }
+
+  @Test
+  public void corruptedLengthIsAnError() throws Exception {
+    writeStrings(MAGIC, "abcdef");
+    byte[] contents = FileSystemUtils.readContent(file);
+    // The length of the string follows the magic number and the count.
+    for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+      contents[12] = (byte) (length >>> 24);
+      contents[13] = (byte) (length >>> 16);
+      contents[14] = (byte) (length >>> 8);
+      contents[15] = (byte) length;
+      FileSystemUtils.writeContent(file, contents);
+      assertReadFails();
+    }
+  }
+}
@@ -19,6 +19,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
@@ -311,4 +312,123 @@ public abstract class StringIndexerTest {
     }
   }
 
+  @RunWith(JUnit4.class)
+  public static class PrimitiveStringTableTest extends CanonicalStringIndexerTest {
+    private PrimitiveStringTable table;
+
+    @Override
+    protected StringIndexer newIndexer() {
+      table = new PrimitiveStringTable(1, /*direct=*/true);
+      return new CanonicalStringIndexer(table.asMap(), table.asReverseMap());
+    }
+
+    @Test
+    public void entriesCanBeAddedInAnyOrder() {
+      for (int i = 999; i >= 0; i -= 2) {
+        table.put("string" + i, i);
+      }
+      assertEquals(500, table.size());
+      assertEquals(999, table.getIndex("string999"));
+      assertEquals(-1, table.getIndex("string998"));
+      assertEquals("string1", table.getString(1));
+      assertNull(table.getString(0));
+      assertNull(table.getString(1001));
+      // Multi-byte characters round-trip through the UTF-8 arena.
+      table.put("\u00e9t\u00e9", 0);
+      assertEquals("\u00e9t\u00e9", table.getString(0));
+      assertEquals(0, indexer.getIndex("\u00e9t\u00e9"));
+      assertThat(table.asReverseMap().keySet()).hasSize(501);
+      assertThat(table.asMap()).containsEntry("string3", 3);
+    }
+
+    @Test
+    public void conflictingEntriesAreRejected() {
+      table.put("a", 0);
+      table.put("a", 0);
+      try {
+        table.put("a", 1);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        table.put("b", 0);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      assertEquals(1, table.size());
+    }
+
+    @Test
+    public void lookupsCompareAllKindsOfCharacters() {
+      String[] strings = {
+        "ascii", "\u00e9t\u00e9", "\u20ac100", "\ud83d\ude00 smile", "\u00e9", "\u00e8", "a\u0000b"
+      };
+      for (int i = 0; i < strings.length; i++) {
+        table.put(strings[i], i);
+      }
+      for (int i = 0; i < strings.length; i++) {
+        assertEquals(i, table.getIndex(strings[i]));
+        assertEquals(strings[i], table.getString(i));
+      }
+      assertEquals(-1, table.getIndex("\u00e9t"));
+      assertEquals(-1, table.getIndex("\u00e9t\u00e9t"));
+      assertEquals(-1, table.getIndex("\ud83d\ude01 smile"));
+      assertEquals(-1, table.getIndex("\u20ac10"));
+    }
+
+    @Test
+    public void lookupsRunConcurrentlyWithWrites() throws Exception {
+      final int count = 20000;
+      final AtomicInteger written = new AtomicInteger();
+      final AtomicInteger errors = new AtomicInteger();
+      Thread writer =
+          new Thread() {
+            @Override
+            public void run() {
+              for (int i = 0; i < count; i++) {
+                table.put("string" + i, i);
+                written.set(i + 1);
+              }
+            }
+          };
+      List<Thread> readers = Lists.newArrayList();
+      for (int t = 0; t < 4; t++) {
+        readers.add(
+            new Thread() {
+              @Override
+              public void run() {
+                while (written.get() < count) {
+                  int i = written.get() - 1;
+                  if (i >= 0
+                      && (table.getIndex("string" + i) != i
+                          || !("string" + i).equals(table.getString(i)))) {
+                    errors.incrementAndGet();
+                  }
+                }
+              }
+            });
+      }
+      writer.start();
+      for (Thread reader : readers) {
+        reader.start();
+      }
+      writer.join();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      assertEquals(0, errors.get());
+      assertEquals(count, table.size());
+    }
+
+    @Test
+    public void heapTable() {
+      PrimitiveStringTable heapTable = new PrimitiveStringTable(0, /*direct=*/false);
+      assertFalse(heapTable.isDirect());
+      String longString = Strings.repeat("x", 10000);
+      heapTable.put(longString, 0);
+      assertEquals(longString, heapTable.getString(0));
+      assertThat(heapTable.getFootprintBytes()).isGreaterThan(10000L);
+    }
+  }
+
 }
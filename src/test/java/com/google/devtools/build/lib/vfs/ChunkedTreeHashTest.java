@@ -0,0 +1,122 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystem.DigestFunction;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Tests for {@link ChunkedTreeHash} and the {@link DigestFunction}s. */
+@RunWith(JUnit4.class)
+public class ChunkedTreeHashTest {
+
+  @After
+  public final void resetDigestFunction() throws Exception {
+    FileSystem.setDigestFunctionForTesting(DigestFunction.MD5);
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] expectedTreeHash(byte[] data) {
+    Hasher root = Hashing.sha256().newHasher().putBytes(Longs.toByteArray(data.length));
+    for (int start = 0; start < data.length; start += ChunkedTreeHash.CHUNK_SIZE) {
+      int end = Math.min(data.length, start + ChunkedTreeHash.CHUNK_SIZE);
+      root.putBytes(Hashing.sha256().hashBytes(Arrays.copyOfRange(data, start, end)).asBytes());
+    }
+    return root.hash().asBytes();
+  }
+
+  private static byte[] hashThroughChannel(byte[] data) throws Exception {
+    File file = File.createTempFile("tree_hash", ".dat", new File(TestUtils.tmpDir()));
+    try {
+      Files.write(data, file);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+          FileChannel channel = raf.getChannel()) {
+        return ChunkedTreeHash.hash(channel);
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void emptyInput() throws Exception {
+    byte[] expected = expectedTreeHash(new byte[0]);
+    assertThat(ChunkedTreeHash.hash(new ByteArrayInputStream(new byte[0]))).isEqualTo(expected);
+    assertThat(hashThroughChannel(new byte[0])).isEqualTo(expected);
+  }
+
+  @Test
+  public void partialLastChunk() throws Exception {
+    byte[] data = randomBytes(ChunkedTreeHash.CHUNK_SIZE + 17);
+    byte[] expected = expectedTreeHash(data);
+    assertThat(ChunkedTreeHash.hash(new ByteArrayInputStream(data))).isEqualTo(expected);
+    assertThat(hashThroughChannel(data)).isEqualTo(expected);
+  }
+
+  @Test
+  public void parallelHashOfLargeFileMatchesSequentialHash() throws Exception {
+    byte[] data = randomBytes(9 * ChunkedTreeHash.CHUNK_SIZE + 3);
+    byte[] expected = expectedTreeHash(data);
+    assertThat(ChunkedTreeHash.hash(new ByteArrayInputStream(data))).isEqualTo(expected);
+    assertThat(hashThroughChannel(data)).isEqualTo(expected);
+  }
+
+  @Test
+  public void digestLengths() throws Exception {
+    assertThat(DigestFunction.MD5.getDigestLength()).isEqualTo(16);
+    assertThat(DigestFunction.SHA1.getDigestLength()).isEqualTo(20);
+    assertThat(DigestFunction.SHA256.getDigestLength()).isEqualTo(32);
+    assertThat(DigestFunction.TREE_SHA256.getDigestLength()).isEqualTo(32);
+    assertThat(DigestFunction.fromString("tree_sha256")).isEqualTo(DigestFunction.TREE_SHA256);
+  }
+
+  @Test
+  public void pathDigestUsesSelectedFunction() throws Exception {
+    FileSystem fs = new InMemoryFileSystem(BlazeClock.instance());
+    Path path = fs.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "contents");
+    byte[] data = "contents".getBytes(ISO_8859_1);
+
+    assertThat(path.getDigest()).isEqualTo(Hashing.md5().hashBytes(data).asBytes());
+    FileSystem.setDigestFunctionForTesting(DigestFunction.SHA256);
+    assertThat(path.getDigest()).isEqualTo(Hashing.sha256().hashBytes(data).asBytes());
+    FileSystem.setDigestFunctionForTesting(DigestFunction.TREE_SHA256);
+    assertThat(path.getDigest()).isEqualTo(expectedTreeHash(data));
+  }
+}
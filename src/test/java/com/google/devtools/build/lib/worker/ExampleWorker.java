@@ -33,8 +33,12 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An example implementation of a worker process that is used for integration tests.
@@ -45,7 +49,7 @@ public class ExampleWorker {
   static final UUID workerUuid = UUID.randomUUID();
 
   // A counter that increases with each work unit processed.
-  static int workUnitCounter = 1;
+  static final AtomicInteger workUnitCounter = new AtomicInteger(1);
 
   // If true, returns corrupt responses instead of correct protobufs.
   static boolean poisoned = false;
@@ -53,6 +57,9 @@ public class ExampleWorker {
   // Keep state across multiple builds.
   static final LinkedHashMap<String, String> inputs = new LinkedHashMap<>();
 
+  // Runs the requests that carry a request id concurrently.
+  static final ExecutorService multiplexExecutor = Executors.newCachedThreadPool();
+
   public static void main(String[] args) throws Exception {
     if (ImmutableSet.copyOf(args).contains("--persistent_worker")) {
       OptionsParser parser = OptionsParser.newOptionsParser(ExampleWorkerOptions.class);
@@ -64,7 +71,7 @@ public class ExampleWorker {
       runPersistentWorker(workerOptions);
     } else {
       // This is a single invocation of the example that exits after it processed the request.
-      processRequest(ImmutableList.copyOf(args));
+      processRequest(ImmutableList.copyOf(args), inputs, System.out);
     }
   }
 
@@ -73,12 +80,16 @@ public class ExampleWorker {
     PrintStream originalStdErr = System.err;
 
     while (true) {
-      try {
-        WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
-        if (request == null) {
-          break;
-        }
+      WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
+      if (request == null) {
+        break;
+      }
+      if (request.getRequestId() != 0) {
+        startMultiplexRequest(request, originalStdOut);
+        continue;
+      }
 
+      try {
         inputs.clear();
         for (Input input : request.getInputsList()) {
           inputs.put(input.getPath(), input.getDigest().toStringUtf8());
@@ -92,7 +103,7 @@ public class ExampleWorker {
           System.setErr(ps);
 
           try {
-            processRequest(request.getArgumentsList());
+            processRequest(request.getArgumentsList(), inputs, System.out);
           } catch (Exception e) {
             e.printStackTrace();
             exitCode = 1;
@@ -113,11 +124,11 @@ public class ExampleWorker {
         }
         System.out.flush();
 
-        if (workerOptions.exitAfter > 0 && workUnitCounter > workerOptions.exitAfter) {
+        if (workerOptions.exitAfter > 0 && workUnitCounter.get() > workerOptions.exitAfter) {
           return;
         }
 
-        if (workerOptions.poisonAfter > 0 && workUnitCounter > workerOptions.poisonAfter) {
+        if (workerOptions.poisonAfter > 0 && workUnitCounter.get() > workerOptions.poisonAfter) {
           poisoned = true;
         }
       } finally {
@@ -125,9 +136,52 @@ public class ExampleWorker {
         System.gc();
       }
     }
+    multiplexExecutor.shutdown();
+  }
+
+  /**
+   * Processes a request on a thread of its own, so that further requests can be read meanwhile.
+   * The response carries the request id, and responses are written in the order they finish.
+   */
+  private static void startMultiplexRequest(final WorkRequest request, final PrintStream stdout) {
+    multiplexExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            Map<String, String> requestInputs = new LinkedHashMap<>();
+            for (Input input : request.getInputsList()) {
+              requestInputs.put(input.getPath(), input.getDigest().toStringUtf8());
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            int exitCode = 0;
+            try (PrintStream ps = new PrintStream(baos)) {
+              processRequest(request.getArgumentsList(), requestInputs, ps);
+            } catch (Exception e) {
+              e.printStackTrace();
+              exitCode = 1;
+            }
+
+            WorkResponse response =
+                WorkResponse.newBuilder()
+                    .setOutput(baos.toString())
+                    .setExitCode(exitCode)
+                    .setRequestId(request.getRequestId())
+                    .build();
+            synchronized (stdout) {
+              try {
+                response.writeDelimitedTo(stdout);
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              }
+              stdout.flush();
+            }
+          }
+        });
   }
 
-  private static void processRequest(List<String> args) throws Exception {
+  private static void processRequest(
+      List<String> args, Map<String, String> inputs, PrintStream out) throws Exception {
     if (args.size() == 1 && args.get(0).startsWith("@")) {
       args = Files.readAllLines(Paths.get(args.get(0).substring(1)), UTF_8);
     }
@@ -144,7 +198,7 @@ public class ExampleWorker {
     }
 
     if (options.writeCounter) {
-      outputs.add("COUNTER " + workUnitCounter++);
+      outputs.add("COUNTER " + workUnitCounter.getAndIncrement());
     }
 
     String residueStr = Joiner.on(' ').join(parser.getResidue());
@@ -159,9 +213,19 @@ public class ExampleWorker {
       }
     }
 
+    if (options.workTimeMs > 0) {
+      Thread.sleep(options.workTimeMs);
+    }
+
+    if (!options.waitForFile.isEmpty()) {
+      while (!Files.exists(Paths.get(options.waitForFile))) {
+        Thread.sleep(10);
+      }
+    }
+
     String outputStr = Joiner.on('\n').join(outputs);
     if (options.outputFile.isEmpty()) {
-      System.out.println(outputStr);
+      out.println(outputStr);
     } else {
       try (PrintStream outputFile = new PrintStream(options.outputFile)) {
         outputFile.println(outputStr);
@@ -51,6 +51,20 @@ public class ExampleWorkerOptions extends OptionsBase {
       help = "Writes a list of input files and their digests."
     )
     public boolean printInputs;
+
+    @Option(
+      name = "work_time_ms",
+      defaultValue = "0",
+      help = "Sleeps this many milliseconds before responding, to simulate expensive work."
+    )
+    public int workTimeMs;
+
+    @Option(
+      name = "wait_for_file",
+      defaultValue = "",
+      help = "Waits until the given file exists before responding, so tests can hold requests open."
+    )
+    public String waitForFile;
   }
 
   @Option(name = "persistent_worker", defaultValue = "false")
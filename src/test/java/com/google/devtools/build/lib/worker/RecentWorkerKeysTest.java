@@ -0,0 +1,104 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/** Tests for {@link RecentWorkerKeys}. */
+@RunWith(JUnit4.class)
+public class RecentWorkerKeysTest {
+  private Path file;
+  private WorkerKey javac;
+  private WorkerKey scalac;
+
+  @Before
+  public final void createKeys() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem();
+    file = fs.getPath("/output_base/worker-keys");
+    Path execRoot = fs.getPath("/output_base/execroot");
+    javac =
+        new WorkerKey(
+            ImmutableList.of("javac", "--persistent_worker"),
+            ImmutableMap.of("LANG", "en_US.UTF-8"),
+            execRoot,
+            "Javac",
+            HashCode.fromInt(1),
+            /*multiplex=*/false);
+    scalac =
+        new WorkerKey(
+            ImmutableList.of("scalac", "--persistent_worker"),
+            ImmutableMap.<String, String>of(),
+            execRoot,
+            "Scalac",
+            HashCode.fromInt(2),
+            /*multiplex=*/true);
+  }
+
+  @Test
+  public void missingFileHasNoKeys() throws Exception {
+    assertThat(RecentWorkerKeys.load(file).getInstances()).isEmpty();
+  }
+
+  @Test
+  public void savedKeysAreLoadedAgain() throws Exception {
+    RecentWorkerKeys keys = new RecentWorkerKeys();
+    keys.recordBuild(ImmutableMap.of(javac, 4, scalac, 1));
+    keys.save(file);
+
+    ImmutableMap<WorkerKey, Integer> loaded = RecentWorkerKeys.load(file).getInstances();
+    assertThat(loaded).containsExactly(javac, 4, scalac, 1);
+    WorkerKey loadedJavac = loaded.keySet().asList().get(0);
+    assertThat(loadedJavac.getEnv()).isEqualTo(javac.getEnv());
+    assertThat(loadedJavac.getWorkerFilesHash()).isEqualTo(javac.getWorkerFilesHash());
+    assertThat(loaded.keySet().asList().get(1).isMultiplex()).isTrue();
+  }
+
+  @Test
+  public void unusedKeysAreForgotten() throws Exception {
+    RecentWorkerKeys keys = new RecentWorkerKeys();
+    keys.recordBuild(ImmutableMap.of(javac, 4, scalac, 1));
+    for (int i = 1; i < RecentWorkerKeys.MAX_AGE_BUILDS; i++) {
+      keys.recordBuild(ImmutableMap.of(javac, 2));
+    }
+    assertThat(keys.getInstances()).containsExactly(javac, 2, scalac, 1);
+    keys.recordBuild(ImmutableMap.of(javac, 2));
+    assertThat(keys.getInstances()).containsExactly(javac, 2);
+  }
+
+  @Test
+  public void corruptedFileIsAnError() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(file, "not worker keys");
+    try {
+      RecentWorkerKeys.load(file);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
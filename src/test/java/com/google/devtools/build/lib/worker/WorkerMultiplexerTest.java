@@ -0,0 +1,158 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ObjectArrays;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/** Tests for multiplex workers, using {@link ExampleWorker} as the worker process. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+  private static final int MAX_REQUESTS = 8;
+
+  private Path root;
+  private Path gate;
+  private WorkerPool pool;
+  private WorkerKey key;
+  private ExecutorService executor;
+  // Released once for every request that got hold of the multiplexer.
+  private final Semaphore borrowed = new Semaphore(0);
+
+  @Before
+  public final void startPool() throws Exception {
+    root = FileSystems.getJavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("multiplex");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    gate = root.getRelative("gate");
+
+    WorkerPoolConfig config = new WorkerPoolConfig();
+    config.setMaxMultiplexRequestsPerKey(MAX_REQUESTS);
+    pool = new WorkerPool(new WorkerFactory(root), config);
+    key = WorkerTestUtils.exampleWorkerKey(root, /*multiplex=*/true);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public final void closePool() throws Exception {
+    executor.shutdownNow();
+    pool.close();
+  }
+
+  private Future<WorkResponse> submit(final String... args) {
+    return executor.submit(
+        new Callable<WorkResponse>() {
+          @Override
+          public WorkResponse call() throws Exception {
+            WorkerMultiplexer multiplexer = pool.borrowMultiplexer(key);
+            borrowed.release();
+            try {
+              return multiplexer.execute(
+                  WorkRequest.newBuilder().addAllArguments(ImmutableList.copyOf(args)).build());
+            } finally {
+              pool.returnMultiplexer(key, multiplexer);
+            }
+          }
+        });
+  }
+
+  /** Submits a request that the worker holds open until {@link #openGate} is called. */
+  private Future<WorkResponse> submitGated(String... args) {
+    return submit(ObjectArrays.concat("--wait_for_file=" + gate.getPathString(), args));
+  }
+
+  private void openGate() throws IOException {
+    FileSystemUtils.createEmptyFile(gate);
+  }
+
+  @Test
+  public void concurrentRequestsShareOneProcess() throws Exception {
+    List<Future<WorkResponse>> responses = new ArrayList<>();
+    for (int i = 0; i < MAX_REQUESTS; i++) {
+      responses.add(submitGated("--write_uuid", "request" + i));
+    }
+    // None of the requests can finish before the gate opens, so all of them are in flight at once.
+    borrowed.acquire(MAX_REQUESTS);
+    assertThat(pool.getNumMultiplexActive(key)).isEqualTo(MAX_REQUESTS);
+    openGate();
+
+    Set<String> uuids = new HashSet<>();
+    for (int i = 0; i < MAX_REQUESTS; i++) {
+      String[] lines = responses.get(i).get().getOutput().split("\n");
+      uuids.add(lines[0]);
+      assertThat(lines[1]).isEqualTo("request" + i);
+    }
+    assertThat(uuids).hasSize(1);
+    assertThat(pool.getNumMultiplexActive(key)).isEqualTo(0);
+  }
+
+  @Test
+  public void requestsBeyondTheLimitWait() throws Exception {
+    List<Future<WorkResponse>> responses = new ArrayList<>();
+    for (int i = 0; i < MAX_REQUESTS * 2; i++) {
+      responses.add(submitGated("request" + i));
+    }
+    borrowed.acquire(MAX_REQUESTS);
+    // The first requests hold every permit until the gate opens, so no others can have started.
+    assertThat(pool.getNumMultiplexActive(key)).isEqualTo(MAX_REQUESTS);
+    assertThat(borrowed.availablePermits()).isEqualTo(0);
+    for (Future<WorkResponse> response : responses) {
+      assertThat(response.isDone()).isFalse();
+    }
+    openGate();
+
+    for (int i = 0; i < responses.size(); i++) {
+      assertThat(responses.get(i).get().getOutput()).isEqualTo("request" + i + "\n");
+    }
+    assertThat(borrowed.availablePermits()).isEqualTo(MAX_REQUESTS);
+  }
+
+  @Test
+  public void failedProcessIsReplaced() throws Exception {
+    WorkerMultiplexer multiplexer = pool.borrowMultiplexer(key);
+    multiplexer.getWorker().destroy();
+    try {
+      multiplexer.execute(WorkRequest.newBuilder().addArguments("lost").build());
+      fail();
+    } catch (IOException expected) {
+      pool.invalidateMultiplexer(key, multiplexer);
+    }
+    assertThat(submit("again").get().getOutput()).isEqualTo("again\n");
+  }
+}
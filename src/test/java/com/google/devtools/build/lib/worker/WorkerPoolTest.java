@@ -0,0 +1,191 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Tests for {@link WorkerPool}, using {@link ExampleWorker} as the worker process. */
+@RunWith(JUnit4.class)
+public class WorkerPoolTest {
+  private Path root;
+  private WorkerKey key;
+  private WorkerPool pool;
+  private ExecutorService executor;
+
+  @Before
+  public final void createKey() throws Exception {
+    root = FileSystems.getJavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("pool");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    key = WorkerTestUtils.exampleWorkerKey(root, /*multiplex=*/false);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public final void closePool() throws Exception {
+    executor.shutdownNow();
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  private WorkerPoolConfig createConfig(int maxInstances) {
+    WorkerPoolConfig config = new WorkerPoolConfig();
+    config.setMaxTotalPerKey(maxInstances);
+    config.setMaxIdlePerKey(maxInstances);
+    config.setBlockWhenExhausted(true);
+    return config;
+  }
+
+  private Future<Worker> borrowLater() {
+    return executor.submit(
+        new Callable<Worker>() {
+          @Override
+          public Worker call() throws Exception {
+            return pool.borrowObject(key);
+          }
+        });
+  }
+
+  @Test
+  public void poolGrowsWhenActionsQueue() throws Exception {
+    WorkerPoolConfig config = createConfig(1);
+    config.setAdaptiveMaxTotalPerKey(2);
+    config.setQueueWaitThresholdMillis(50);
+    pool = new WorkerPool(new WorkerFactory(root), config);
+
+    Worker first = pool.borrowObject(key);
+    Future<Worker> queued = borrowLater();
+    Thread.sleep(200);
+    assertThat(queued.isDone()).isFalse();
+    pool.returnObject(key, first);
+
+    // The queued borrower waited for longer than the threshold, so now there is room for two.
+    Worker second = queued.get();
+    assertThat(pool.getInstanceLimit(key)).isEqualTo(2);
+    Worker third = pool.borrowObject(key);
+    assertThat(third).isNotSameAs(second);
+    pool.returnObject(key, second);
+    pool.returnObject(key, third);
+    assertThat(pool.getStatsSummary()).hasSize(1);
+    assertThat(pool.getStatsSummary().get(0)).startsWith("Work workers: 3 actions on 2 instances");
+  }
+
+  @Test
+  public void poolDoesNotGrowBeyondTheAdaptiveMaximum() throws Exception {
+    WorkerPoolConfig config = createConfig(1);
+    config.setQueueWaitThresholdMillis(0);
+    pool = new WorkerPool(new WorkerFactory(root), config);
+
+    Worker first = pool.borrowObject(key);
+    Future<Worker> queued = borrowLater();
+    Thread.sleep(100);
+    pool.returnObject(key, first);
+    pool.returnObject(key, queued.get());
+    assertThat(pool.getInstanceLimit(key)).isEqualTo(1);
+  }
+
+  @Test
+  public void idleWorkersAreEvictedOverTheMemoryLimit() throws Exception {
+    WorkerPoolConfig config = createConfig(2);
+    config.setMemoryLimitBytes(1);
+    pool = new WorkerPool(new WorkerFactory(root), config);
+
+    Worker first = pool.borrowObject(key);
+    Worker second = pool.borrowObject(key);
+    // Only idle workers count towards the limit, and only they can be evicted.
+    pool.returnObject(key, first);
+    assertThat(pool.getNumIdle(key)).isEqualTo(0);
+    assertThat(pool.getNumActive(key)).isEqualTo(1);
+    pool.returnObject(key, second);
+    assertThat(pool.getNumIdle(key)).isEqualTo(0);
+    assertThat(pool.getEvictionCount(key)).isEqualTo(2);
+    assertThat(first.isAlive()).isFalse();
+    assertThat(second.isAlive()).isFalse();
+  }
+
+  @Test
+  public void multiplexWorkersAreNeitherCountedNorEvicted() throws Exception {
+    WorkerPoolConfig config = createConfig(2);
+    config.setMemoryLimitBytes(1);
+    pool = new WorkerPool(new WorkerFactory(root), config);
+    WorkerKey multiplexKey = WorkerTestUtils.exampleWorkerKey(root, /*multiplex=*/true);
+
+    WorkerMultiplexer multiplexer = pool.borrowMultiplexer(multiplexKey);
+    pool.returnMultiplexer(multiplexKey, multiplexer);
+    Worker worker = pool.borrowObject(key);
+    pool.returnObject(key, worker);
+    assertThat(pool.getEvictionCount(key)).isEqualTo(1);
+    assertThat(pool.getEvictionCount(multiplexKey)).isEqualTo(0);
+    assertThat(multiplexer.isAlive()).isTrue();
+  }
+
+  @Test
+  public void preforkStartsIdleWorkers() throws Exception {
+    pool = new WorkerPool(new WorkerFactory(root), createConfig(2));
+
+    pool.prefork(key, 3);
+    assertThat(pool.getNumIdle(key)).isEqualTo(2);
+    pool.prefork(key, 3);
+    assertThat(pool.getNumIdle(key)).isEqualTo(2);
+    // Preforked workers are not counted as used.
+    assertThat(pool.getUsedInstances()).isEmpty();
+
+    Worker first = pool.borrowObject(key);
+    Worker second = pool.borrowObject(key);
+    pool.returnObject(key, first);
+    pool.returnObject(key, second);
+    assertThat(pool.getNumIdle(key)).isEqualTo(2);
+    assertThat(pool.getUsedInstances()).containsExactly(key, 2);
+  }
+
+  @Test
+  public void preforkAfterCloseStartsNoWorkers() throws Exception {
+    WorkerFactory factory = new WorkerFactory(root);
+    pool = new WorkerPool(factory, createConfig(2));
+    pool.close();
+
+    pool.prefork(key, 2);
+    pool.prefork(WorkerTestUtils.exampleWorkerKey(root, /*multiplex=*/true), 1);
+    assertThat(factory.getWorkers()).isEmpty();
+  }
+
+  @Test
+  public void idleWorkersStayWithinTheMemoryLimit() throws Exception {
+    WorkerPoolConfig config = createConfig(2);
+    config.setMemoryLimitBytes(1L << 40);
+    pool = new WorkerPool(new WorkerFactory(root), config);
+
+    Worker worker = pool.borrowObject(key);
+    pool.returnObject(key, worker);
+    assertThat(pool.getNumIdle(key)).isEqualTo(1);
+    assertThat(pool.getEvictionCount(key)).isEqualTo(0);
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Helpers for tests that run {@link ExampleWorker} as a real worker process. */
+final class WorkerTestUtils {
+  private WorkerTestUtils() {}
+
+  /** Returns a key that starts an {@link ExampleWorker} in the given directory. */
+  static WorkerKey exampleWorkerKey(Path workDir, boolean multiplex) {
+    return new WorkerKey(
+        ImmutableList.of(
+            System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+            "-cp",
+            absoluteClassPath(),
+            ExampleWorker.class.getName(),
+            "--persistent_worker"),
+        ImmutableMap.<String, String>of(),
+        workDir,
+        "Work",
+        HashCode.fromInt(0),
+        multiplex);
+  }
+
+  /** Returns this JVM's class path, resolved against its working directory. */
+  private static String absoluteClassPath() {
+    List<String> entries = new ArrayList<>();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      entries.add(new File(entry).getAbsolutePath());
+    }
+    return Joiner.on(File.pathSeparator).join(entries);
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ConcurrentInMemoryNodeEntry}. Runs all {@link InMemoryNodeEntryTest}s, plus
+ * tests for the lock-free reverse dep registration.
+ */
+@RunWith(JUnit4.class)
+public class ConcurrentInMemoryNodeEntryTest extends InMemoryNodeEntryTest {
+
+  private static final SkyFunctionName NODE_TYPE = SkyFunctionName.create("Type");
+
+  @Override
+  protected InMemoryNodeEntry newEntry() {
+    return new ConcurrentInMemoryNodeEntry();
+  }
+
+  @Test
+  public void concurrentReverseDepsOnDoneNode() throws Exception {
+    final NodeEntry entry = newEntry();
+    final SkyValue value = new SkyValue() {};
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    entry.setValue(value, IntVersion.of(0L));
+    int numThreads = 16;
+    final int rdepsPerThread = 1000;
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<SkyKey> expected = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      final int thread = i;
+      for (int j = 0; j < rdepsPerThread; j++) {
+        expected.add(SkyKey.create(NODE_TYPE, thread + ":" + j));
+      }
+      pool.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                start.await();
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+              for (int j = 0; j < rdepsPerThread; j++) {
+                assertThat(entry.addReverseDepAndCheckIfDone(
+                        SkyKey.create(NODE_TYPE, thread + ":" + j)))
+                    .isEqualTo(DependencyState.DONE);
+                assertThat(entry.getValue()).isSameAs(value);
+              }
+            }
+          });
+    }
+    start.countDown();
+    pool.shutdown();
+    assertThat(pool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+    assertThat(entry.getReverseDeps()).containsExactlyElementsIn(expected);
+  }
+
+  @Test
+  public void pendingReverseDepsSurviveMarkDirty() {
+    NodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    SkyKey dep = SkyKey.create(NODE_TYPE, "dep");
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.add(dep);
+    entry.addTemporaryDirectDeps(helper);
+    entry.signalDep();
+    entry.setValue(new SkyValue() {}, IntVersion.of(0L));
+    SkyKey parent = SkyKey.create(NODE_TYPE, "parent");
+    assertThat(entry.addReverseDepAndCheckIfDone(parent)).isEqualTo(DependencyState.DONE);
+    NodeEntry.MarkedDirtyResult result = entry.markDirty(/*isChanged=*/ false);
+    assertThat(result.getReverseDepsUnsafe()).containsExactly(parent);
+    assertThat(entry.isDone()).isFalse();
+    assertThat(entry.isDirty()).isTrue();
+  }
+
+  @Test
+  public void statsCountOnlyCallsFromOutsideTheEntry() {
+    ConcurrentInMemoryNodeEntry.Stats.reset();
+    NodeEntry entry = newEntry();
+    SkyKey parent = SkyKey.create(NODE_TYPE, "parent");
+    entry.addReverseDepAndCheckIfDone(parent); // Start evaluation.
+    entry.setValue(new SkyValue() {}, IntVersion.of(0L));
+    entry.addReverseDepAndCheckIfDone(SkyKey.create(NODE_TYPE, "other"));
+    entry.markDirty(/*isChanged=*/ true);
+    // Calls addReverseDepAndCheckIfDone(null) while holding the monitor.
+    entry.checkIfDoneForDirtyReverseDep(parent);
+    assertThat(ConcurrentInMemoryNodeEntry.Stats.getLockedReverseDepAdds()).isEqualTo(1);
+    assertThat(ConcurrentInMemoryNodeEntry.Stats.getLockFreeReverseDepAdds()).isEqualTo(1);
+  }
+}
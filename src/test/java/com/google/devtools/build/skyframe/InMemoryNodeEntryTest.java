@@ -57,9 +57,14 @@ public class InMemoryNodeEntryTest {
     return SkyKey.create(NODE_TYPE, name);
   }
 
+  /** Creates the entry under test. Overridden to test other {@link InMemoryNodeEntry}s. */
+  protected InMemoryNodeEntry newEntry() {
+    return new InMemoryNodeEntry();
+  }
+
   @Test
   public void createEntry() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     assertFalse(entry.isDone());
     assertTrue(entry.isReady());
@@ -70,7 +75,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void signalEntry() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep1 = key("dep1");
     addTemporaryDirectDep(entry, dep1);
@@ -96,7 +101,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void reverseDeps() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey mother = key("mother");
     SkyKey father = key("father");
     assertEquals(DependencyState.NEEDS_SCHEDULING, entry.addReverseDepAndCheckIfDone(mother));
@@ -112,7 +117,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void errorValue() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     ReifiedSkyFunctionException exception = new ReifiedSkyFunctionException(
         new GenericFunctionException(new SomeErrorException("oops"), Transience.PERSISTENT),
@@ -126,7 +131,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void errorAndValue() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     ReifiedSkyFunctionException exception = new ReifiedSkyFunctionException(
         new GenericFunctionException(new SomeErrorException("oops"), Transience.PERSISTENT),
@@ -139,7 +144,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnNullErrorAndValue() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     try {
       setValue(entry, /*value=*/null, /*errorInfo=*/null, /*graphVersion=*/0L);
@@ -151,7 +156,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnTooManySignals() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     try {
       entry.signalDep();
@@ -163,7 +168,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnDifferentValue() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     try {
@@ -177,7 +182,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void dirtyLifecycle() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -206,7 +211,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void changedLifecycle() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -232,7 +237,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void markDirtyThenChanged() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, key("dep"));
     entry.signalDep();
@@ -254,7 +259,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void markChangedThenDirty() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, key("dep"));
     entry.signalDep();
@@ -275,7 +280,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnTwiceMarkedChanged() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     assertFalse(entry.isDirty());
@@ -291,7 +296,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnTwiceMarkedDirty() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, key("dep"));
     entry.signalDep();
@@ -307,7 +312,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnAddReverseDepTwice() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey parent = key("parent");
     assertEquals(DependencyState.NEEDS_SCHEDULING, entry.addReverseDepAndCheckIfDone(parent));
     try {
@@ -322,7 +327,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnAddReverseDepTwiceAfterDone() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     SkyKey parent = key("parent");
@@ -339,7 +344,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnAddReverseDepBeforeAfterDone() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey parent = key("parent");
     assertEquals(DependencyState.NEEDS_SCHEDULING, entry.addReverseDepAndCheckIfDone(parent));
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
@@ -355,7 +360,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneBeforeBuild() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey dep = key("dep");
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, dep);
@@ -400,7 +405,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneAfterBuild() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -423,7 +428,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void noPruneWhenDetailsChange() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -456,7 +461,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneWhenDepGroupReordered() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     SkyKey dep1InGroup = key("dep1InGroup");
@@ -493,7 +498,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void errorInfoCannotBePruned() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -520,7 +525,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void getDependencyGroup() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     SkyKey dep2 = key("dep2");
@@ -544,7 +549,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void maintainDependencyGroupAfterRemoval() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     SkyKey dep2 = key("dep2");
@@ -574,7 +579,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneWhenDepsChange() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -598,7 +603,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void checkDepsOneByOne() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     List<SkyKey> deps = new ArrayList<>();
     for (int ii = 0; ii < 10; ii++) {
@@ -625,7 +630,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void signalOnlyNewParents() {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(key("parent"));
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     entry.markDirty(/*isChanged=*/true);
@@ -639,7 +644,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void testClone() {
-    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    InMemoryNodeEntry entry = newEntry();
     IntVersion version = IntVersion.of(0);
     IntegerValue originalValue = new IntegerValue(42);
     SkyKey originalChild = key("child");
@@ -680,7 +685,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void getGroupedDirectDeps() {
-    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    InMemoryNodeEntry entry = newEntry();
     ImmutableList<ImmutableSet<SkyKey>> groupedDirectDeps = ImmutableList.of(
         ImmutableSet.of(key("1A")),
         ImmutableSet.of(key("2A"), key("2B")),
@@ -0,0 +1,334 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.common.options.EnumConverter;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures Skyframe evaluation and invalidation on large synthetic graphs.
+ *
+ * <p>Every node sums the values of its dependencies; leaves read their value from an array that
+ * the benchmark changes between evaluations. For each iteration, the benchmark times a full
+ * evaluation in a fresh evaluator, an incremental evaluation after changing some leaves, and an
+ * evaluation after invalidating some leaves without changing them, which change pruning should
+ * stop at the leaves. The graph and the leaves picked in each iteration only depend on the seed.
+ *
+ * <p>Run with {@code bazel run //src/test/java/com/google/devtools/build/skyframe:benchmark --
+ * --shape=diamond --nodes=1000000}. Give the JVM enough heap for the memory figures to be
+ * meaningful.
+ */
+public final class SkyframeBenchmark {
+
+  /** The shapes of graph that the benchmark can generate. */
+  enum Shape {
+    /** Every node depends on the next one. */
+    CHAIN,
+    /** A single root depends on all other nodes. */
+    FAN_IN,
+    /** Square layers, each node depending on two random nodes of the layer below. */
+    DIAMOND
+  }
+
+  /** Converts the --shape option. */
+  public static class ShapeConverter extends EnumConverter<Shape> {
+    public ShapeConverter() {
+      super(Shape.class, "graph shape");
+    }
+  }
+
+  /** Options for the benchmark. */
+  public static class BenchmarkOptions extends OptionsBase {
+    @Option(
+      name = "shape",
+      defaultValue = "diamond",
+      converter = ShapeConverter.class,
+      help = "The shape of the graph: chain, fan_in or diamond."
+    )
+    public Shape shape;
+
+    @Option(name = "nodes", defaultValue = "100000", help = "The number of nodes in the graph.")
+    public int nodes;
+
+    @Option(
+      name = "dirty_leaves",
+      defaultValue = "100",
+      help = "The number of leaves to invalidate for the incremental evaluations."
+    )
+    public int dirtyLeaves;
+
+    @Option(name = "threads", defaultValue = "100", help = "The number of evaluation threads.")
+    public int threads;
+
+    @Option(
+      name = "warmup_iterations",
+      defaultValue = "2",
+      help = "The number of iterations to run before measuring."
+    )
+    public int warmupIterations;
+
+    @Option(name = "iterations", defaultValue = "5", help = "The number of measured iterations.")
+    public int iterations;
+
+    @Option(name = "seed", defaultValue = "42", help = "The seed for generating the graph.")
+    public long seed;
+
+    @Option(
+      name = "lock_free_done_reads",
+      defaultValue = "false",
+      help = "Whether the evaluator reads done nodes without locking them."
+    )
+    public boolean lockFreeDoneReads;
+  }
+
+  private static final SkyFunctionName NODE = SkyFunctionName.create("BENCHMARK_NODE");
+
+  /** A value that is equal to any other value with the same sum, so that pruning can apply. */
+  private static final class SumValue implements SkyValue {
+    private final long sum;
+
+    SumValue(long sum) {
+      this.sum = sum;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof SumValue && ((SumValue) obj).sum == sum;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(sum);
+    }
+  }
+
+  private final BenchmarkOptions options;
+  private final Random random;
+  private final SkyKey[] keys;
+  private final int[][] deps;
+  private final ImmutableList<SkyKey> roots;
+  private final int[] leaves;
+  private final long[] leafValues;
+
+  private SkyframeBenchmark(BenchmarkOptions options) {
+    this.options = options;
+    this.random = new Random(options.seed);
+    keys = new SkyKey[options.nodes];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = SkyKey.create(NODE, i);
+    }
+    deps = new int[options.nodes][];
+    List<SkyKey> roots = new ArrayList<>();
+    switch (options.shape) {
+      case CHAIN:
+        for (int i = 0; i < options.nodes - 1; i++) {
+          deps[i] = new int[] {i + 1};
+        }
+        roots.add(keys[0]);
+        break;
+      case FAN_IN:
+        int[] all = new int[options.nodes - 1];
+        for (int i = 0; i < all.length; i++) {
+          all[i] = i + 1;
+        }
+        deps[0] = all;
+        roots.add(keys[0]);
+        break;
+      case DIAMOND:
+        int width = (int) Math.max(1, Math.sqrt(options.nodes));
+        for (int i = 0; i < options.nodes; i++) {
+          int nextLayer = (i / width + 1) * width;
+          if (nextLayer < options.nodes) {
+            int nextWidth = Math.min(width, options.nodes - nextLayer);
+            deps[i] =
+                new int[] {
+                  nextLayer + random.nextInt(nextWidth), nextLayer + random.nextInt(nextWidth)
+                };
+          }
+          if (i < width) {
+            roots.add(keys[i]);
+          }
+        }
+        break;
+      default:
+        throw new IllegalArgumentException(options.shape.toString());
+    }
+    this.roots = ImmutableList.copyOf(roots);
+
+    int leafCount = 0;
+    int[] leaves = new int[options.nodes];
+    for (int i = 0; i < options.nodes; i++) {
+      if (deps[i] == null) {
+        deps[i] = new int[0];
+        leaves[leafCount++] = i;
+      }
+    }
+    this.leaves = Arrays.copyOf(leaves, leafCount);
+    leafValues = new long[options.nodes];
+  }
+
+  private final SkyFunction function =
+      new SkyFunction() {
+        @Override
+        public SkyValue compute(SkyKey skyKey, Environment env) {
+          int node = (Integer) skyKey.argument();
+          int[] nodeDeps = deps[node];
+          if (nodeDeps.length == 0) {
+            return new SumValue(leafValues[node]);
+          }
+          List<SkyKey> depKeys = new ArrayList<>(nodeDeps.length);
+          for (int dep : nodeDeps) {
+            depKeys.add(keys[dep]);
+          }
+          Map<SkyKey, SkyValue> values = env.getValues(depKeys);
+          if (env.valuesMissing()) {
+            return null;
+          }
+          long sum = 0;
+          for (SkyValue value : values.values()) {
+            sum += ((SumValue) value).sum;
+          }
+          return new SumValue(sum);
+        }
+
+        @Override
+        public String extractTag(SkyKey skyKey) {
+          return null;
+        }
+      };
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void evaluate(BuildDriver driver, ImmutableList<SkyKey> roots, int threads)
+      throws InterruptedException {
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(roots, /*keepGoing=*/false, threads, NullEventHandler.INSTANCE);
+    if (result.hasError()) {
+      throw new IllegalStateException(result.toString());
+    }
+  }
+
+  /** Picks leaves at random, changes their values if requested, and returns their keys. */
+  private ImmutableList<SkyKey> pickLeaves(boolean change) {
+    ImmutableList.Builder<SkyKey> picked = ImmutableList.builder();
+    for (int i = 0; i < Math.min(options.dirtyLeaves, leaves.length); i++) {
+      int leaf = leaves[random.nextInt(leaves.length)];
+      if (change) {
+        leafValues[leaf]++;
+      }
+      picked.add(keys[leaf]);
+    }
+    return picked.build();
+  }
+
+  /**
+   * Runs one iteration and returns the elapsed nanoseconds of the full, incremental and pruned
+   * evaluations, followed by the bytes retained per node if requested.
+   */
+  private long[] runIteration(boolean measureMemory) throws InterruptedException {
+    long baseline = measureMemory ? usedMemory() : 0;
+    RecordingDifferencer differencer = new RecordingDifferencer();
+    MemoizingEvaluator evaluator =
+        new InMemoryMemoizingEvaluator(
+            ImmutableMap.of(NODE, function),
+            differencer,
+            null,
+            new EmittedEventState(),
+            /*keepEdges=*/true,
+            options.lockFreeDoneReads);
+    BuildDriver driver = new SequentialBuildDriver(evaluator);
+    long[] result = new long[4];
+
+    long start = System.nanoTime();
+    evaluate(driver, roots, options.threads);
+    result[0] = System.nanoTime() - start;
+    if (measureMemory) {
+      result[3] = (usedMemory() - baseline) / options.nodes;
+    }
+
+    differencer.invalidate(pickLeaves(/*change=*/true));
+    start = System.nanoTime();
+    evaluate(driver, roots, options.threads);
+    result[1] = System.nanoTime() - start;
+
+    differencer.invalidate(pickLeaves(/*change=*/false));
+    start = System.nanoTime();
+    evaluate(driver, roots, options.threads);
+    result[2] = System.nanoTime() - start;
+    return result;
+  }
+
+  private static String summarize(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return String.format(
+        "min %.1f ms, median %.1f ms, max %.1f ms",
+        sorted[0] / 1e6,
+        sorted[sorted.length / 2] / 1e6,
+        sorted[sorted.length - 1] / 1e6);
+  }
+
+  private void run() throws InterruptedException {
+    System.out.printf(
+        "%s graph: %d nodes, %d leaves, %d roots%n",
+        options.shape, options.nodes, leaves.length, roots.size());
+    for (int i = 0; i < options.warmupIterations; i++) {
+      runIteration(false);
+    }
+    long[] full = new long[options.iterations];
+    long[] incremental = new long[options.iterations];
+    long[] pruned = new long[options.iterations];
+    long bytesPerNode = 0;
+    for (int i = 0; i < options.iterations; i++) {
+      long[] result = runIteration(i == options.iterations - 1);
+      full[i] = result[0];
+      incremental[i] = result[1];
+      pruned[i] = result[2];
+      bytesPerNode = result[3];
+    }
+    System.out.println("full evaluation:        " + summarize(full));
+    System.out.println("changed leaves:         " + summarize(incremental));
+    System.out.println("unchanged leaves:       " + summarize(pruned));
+    System.out.println("retained bytes/node:    " + bytesPerNode);
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(BenchmarkOptions.class);
+    parser.parse(args);
+    BenchmarkOptions options = parser.getOptions(BenchmarkOptions.class);
+    if (options.nodes < 1 || options.iterations < 1) {
+      System.err.println("--nodes and --iterations must be positive");
+      System.exit(2);
+    }
+    new SkyframeBenchmark(options).run();
+  }
+}
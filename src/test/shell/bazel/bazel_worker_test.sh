@@ -100,6 +100,8 @@ def _impl(ctx):
       progress_message="Working on %s" % ctx.label.name,
       mnemonic="Work",
       arguments=ctx.attr.worker_args + ["@" + argfile.path],
+      execution_requirements=(
+          {"supports-multiplex-workers": ""} if ctx.attr.multiplex else {}),
   )
 
 work = rule(
@@ -109,6 +111,7 @@ work = rule(
         "worker_args": attr.string_list(),
         "args": attr.string_list(),
         "srcs": attr.label_list(allow_files=True),
+        "multiplex": attr.bool(),
     },
     outputs = {"out": "%{name}.out"},
 )
@@ -327,6 +330,25 @@ EOF
   assert_not_equals "$worker_uuid_1" "$worker_uuid_2"
 }
 
+function test_multiplex_worker_runs_concurrent_work_in_one_process() {
+  prepare_example_worker
+  cat >>BUILD <<'EOF'
+[work(
+  name = "hello_world_%s" % idx,
+  worker = ":worker",
+  multiplex = True,
+  args = ["--write_uuid", "--work_time_ms=1000"],
+) for idx in range(4)]
+EOF
+
+  bazel build -s --worker_verbose --strategy=Work=worker --jobs=4 \
+    --worker_max_multiplex_requests=4 :hello_world_0 :hello_world_1 :hello_world_2 \
+    :hello_world_3 &> $TEST_log || fail "build failed"
+  worker_uuids=$(cat bazel-bin/hello_world_*.out | grep UUID | sort -u | wc -l)
+  assert_equals "1" $worker_uuids
+  assert_equals "1" "$(grep -c "Created new Work worker" $TEST_log)"
+}
+
 function test_input_digests() {
   prepare_example_worker
   cat >>BUILD <<'EOF'